@@ -63,7 +63,14 @@ public class AutoCompleteAction extends ETextAction {
             // structs from it. 
             JavaResearcher javaResearcher = JavaResearcher.getSharedInstance();
             completionsList = new ArrayList<LSP.Completion>();
-            for (String text : javaResearcher.listIdentifiersStartingWith(prefix)) {
+            TreeSet<String> identifiers = new TreeSet<>(javaResearcher.listIdentifiersStartingWith(prefix));
+            // Add the identifiers ctags(1) found in the workspace, unless we'd be offering every identifier there is.
+            final Workspace workspace = getFocusedTextWindow().getWorkspace();
+            final SymbolIndex symbolIndex = (workspace != null) ? workspace.getFileList().getSymbolIndex() : null;
+            if (symbolIndex != null && prefix.length() > 0) {
+                identifiers.addAll(symbolIndex.listIdentifiersStartingWith(prefix));
+            }
+            for (String text : identifiers) {
                 completionsList.add(new LSP.Completion(new LSP.CompletionEdit(start, end, text), null, null));
             }
         }
@@ -162,6 +162,12 @@ public class EErrorsWindow extends JFrame {
             super(textArea, ADDRESS_PATTERN, PStyle.HYPERLINK);
         }
         
+        @Override
+        protected boolean mightMatch(CharSequence text, int start, int end) {
+            // Every address contains a '.' before its extension, unless it's a Makefile.
+            return contains(text, start, end, '.') || StringUtilities.indexOf(text.subSequence(start, end), "Makefile", 0) != -1;
+        }
+        
         @Override
         public boolean isAcceptableMatch(CharSequence line, Matcher matcher) {
             String match = matcher.group(1);
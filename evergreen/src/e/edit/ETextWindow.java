@@ -43,8 +43,11 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     private Timer findResultsUpdateTimer;
     private PFindListener findResultsUpdater = new PFindListener() {
         public void aboutToFind() {
-            // FIXME: isn't this too conservative? shouldn't we check whether the timer is running? if it's not, aren't the results already up to date?
-            updateFindResults();
+            // The results are up to date unless we're waiting to search the whole file again.
+            if (findResultsUpdateTimer != null && findResultsUpdateTimer.isRunning()) {
+                findResultsUpdateTimer.stop();
+                updateFindResults();
+            }
         }
     };
     
@@ -300,11 +303,36 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     }
     
     public void textRemoved(PTextEvent e) {
-        textBecameDirty();
+        textChanged(e);
     }
     
     public void textInserted(PTextEvent e) {
-        textBecameDirty();
+        textChanged(e);
+    }
+    
+    private void textChanged(PTextEvent e) {
+        if (findResultsUpdateTimer != null && findResultsUpdateTimer.isRunning() == false && EventQueue.isDispatchThread() && updateFindResultsAfterChange(e)) {
+            getTitleBar().repaint();
+        } else {
+            textBecameDirty();
+        }
+    }
+    
+    /**
+     * Updates the find results for just the lines around a change, which is cheap enough to do as the user types.
+     * Returns false if that's not possible, and the whole file will have to be searched again.
+     */
+    private boolean updateFindResultsAfterChange(PTextEvent e) {
+        try {
+            if (textArea.updateMatchesAfterChange(currentRegularExpression, birdView, e) == false) {
+                return false;
+            }
+        } catch (PatternSyntaxException ex) {
+            // Let the full search report the problem.
+            return false;
+        }
+        updateStatusLine();
+        return true;
     }
     
     private void highlightMergeConflicts() {
@@ -3,6 +3,7 @@ package e.edit;
 import e.util.*;
 import java.awt.EventQueue;
 import java.io.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 public final class EditServer {
@@ -45,12 +46,21 @@ public final class EditServer {
     
     public void open(PrintWriter out, String line) {
         String filename = line.substring("open ".length());
-        handleOpen(filename, false, out);
+        handleOpen(filename, out);
     }
     
-    public void openAndBlock(PrintWriter out, String line) {
+    /**
+     * Opens a file, and completes the request when its window is closed.
+     */
+    public CompletableFuture<Void> openAndBlock(PrintWriter out, String line) {
         String filename = line.substring("openAndBlock ".length());
-        handleOpen(filename, true, out);
+        EWindow window = handleOpen(filename, out);
+        if (window == null) {
+            // We'll have reported the problem.
+            return CompletableFuture.completedFuture(null);
+        }
+        out.println("Waiting for \"" + filename + "\" to be closed...");
+        return GuiUtilities.whenWindowDisappears(window);
     }
     
     public void rememberState() {
@@ -95,15 +105,10 @@ public final class EditServer {
         }
     }
     
-    private void handleOpen(final String filename, final boolean shouldBlock, final PrintWriter out) {
+    private EWindow handleOpen(final String filename, final PrintWriter out) {
         // We only have one pipe.
         PrintWriter err = out;
         Opener opener = new Opener(filename, err);
-        final EWindow window = opener.open();
-        if (shouldBlock == false) {
-            return;
-        }
-        out.println("Waiting for \"" + filename + "\" to be closed...");
-        GuiUtilities.waitForWindowToDisappear(window);
+        return opener.open();
     }
 }
@@ -517,6 +517,9 @@ public class Evergreen {
         try {
             Files.delete(workspace.getFileListCachePath());
         } catch (IOException ex) {}
+        try {
+            Files.delete(workspace.getTrigramIndexCachePath());
+        } catch (IOException ex) {}
         
         // Removing the workspace from the index stops its windows from being moved to another workspace.
         tabbedPane.remove(workspace);
@@ -32,6 +32,7 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
     
     /** We share these between all workspaces, to make it harder to accidentally launch a denial-of-service attack against ourselves. */
     private static final ExecutorService definitionFinderExecutor = ThreadUtilities.newFixedThreadPool(8, "Find Definitions");
+    private static final ForkJoinPool fileSearchPool = ThreadUtilities.newForkJoinPool(Runtime.getRuntime().availableProcessors() + 1, "find-in-files");
     
     /** Which workspace is this "Find in Files" for? */
     private final Workspace workspace;
@@ -107,7 +108,7 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             this.matchCount = matchCount;
             this.pattern = pattern;
             if (pattern != null) {
-                definitionFinderExecutor.submit(new DefinitionFinder(file, pattern, this));
+                definitionFinderExecutor.submit(new DefinitionFinder(workspace.getFileList().getSymbolIndex(), name, file, pattern, this));
             }
         }
         
@@ -165,13 +166,142 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
         }
     }
     
+    /**
+     * Stands in for the matching lines we didn't keep. Opening it searches the file again, in the background, to fill them in.
+     * The file may have changed since the original search, so we replace all the file's lines with the new search's results, rather than assuming the ones we kept are still the first few.
+     */
+    public class MoreMatchingLines implements ClickableTreeItem {
+        private final DefaultMutableTreeNode fileNode;
+        private final Path file;
+        private final Pattern pattern;
+        private final int shownCount;
+        private final int matchCount;
+        private boolean isSearching = false;
+        
+        public MoreMatchingLines(DefaultMutableTreeNode fileNode, Path file, Pattern pattern, int shownCount, int matchCount) {
+            this.fileNode = fileNode;
+            this.file = file;
+            this.pattern = pattern;
+            this.shownCount = shownCount;
+            this.matchCount = matchCount;
+        }
+        
+        public void open() {
+            if (isSearching) {
+                return;
+            }
+            isSearching = true;
+            // We're the last child of the file's node.
+            matchTreeModel.nodeChanged(fileNode.getLastChild());
+            new SwingWorker<ArrayList<String>, Object>() {
+                @Override protected ArrayList<String> doInBackground() throws IOException {
+                    ArrayList<String> matches = new ArrayList<>();
+                    new FileSearcher(pattern).searchFile(file, matches);
+                    return matches;
+                }
+                
+                @Override protected void done() {
+                    isSearching = false;
+                    ArrayList<String> matches;
+                    try {
+                        matches = get();
+                    } catch (Exception ex) {
+                        Log.warn("Failed to search \"" + file + "\" again.", ex);
+                        matchTreeModel.nodeChanged(fileNode.getLastChild());
+                        return;
+                    }
+                    if (fileNode.getRoot() != matchTreeModel.getRoot()) {
+                        // There's been a new search since, and nobody can see this node any more.
+                        return;
+                    }
+                    fileNode.removeAllChildren();
+                    for (String match : matches) {
+                        fileNode.add(new DefaultMutableTreeNode(new MatchingLine(match, file, pattern)));
+                    }
+                    matchTreeModel.nodeStructureChanged(fileNode);
+                }
+            }.execute();
+        }
+        
+        @Override public String toString() {
+            if (isSearching) {
+                return "searching\u2026";
+            }
+            return "more\u2026 (" + StringUtilities.pluralize(matchCount - shownCount, "matching line", "matching lines") + ")";
+        }
+    }
+    
+    /**
+     * Collects the first 'limit' matching lines from a FileSearcher, but counts them all.
+     */
+    private static class CappedLineList extends AbstractCollection<String> {
+        private final ArrayList<String> lines = new ArrayList<>();
+        private final int limit;
+        private int matchCount = 0;
+        
+        private CappedLineList(int limit) {
+            this.limit = limit;
+        }
+        
+        @Override public boolean add(String line) {
+            ++matchCount;
+            if (lines.size() < limit) {
+                lines.add(line);
+            }
+            return true;
+        }
+        
+        @Override public Iterator<String> iterator() {
+            return lines.iterator();
+        }
+        
+        @Override public int size() {
+            return lines.size();
+        }
+    }
+    
+    /**
+     * One file's results, on their way from a searching thread to the EDT.
+     */
+    private static class FileMatches {
+        private final String name;
+        private final Path file;
+        private final int matchCount;
+        private final List<String> lines;
+        
+        private FileMatches(String name, Path file, int matchCount, List<String> lines) {
+            this.name = name;
+            this.file = file;
+            this.matchCount = matchCount;
+            this.lines = lines;
+        }
+    }
+    
+    /**
+     * Runs a search. The searching threads put each matching file's results on a bounded queue, blocking while it's full.
+     * A timer on the EDT empties the queue into the tree about once per frame, so the tree is only ever touched on the EDT, and a search with a huge number of matches can't get arbitrarily far ahead of the UI.
+     * We keep at most MAX_LINES_PER_FILE lines per file, and MAX_LINES_PER_SEARCH lines in all; files with lines we didn't keep get a "more" node instead.
+     */
     public class FileFinder extends SwingWorker<DefaultMutableTreeNode, DefaultMutableTreeNode> {
+        private static final int MAX_LINES_PER_FILE = 100;
+        private static final int MAX_LINES_PER_SEARCH = 10 * 1000;
+        // Avoid accidental searches locking up the EDT for literally hours.
+        private static final int MAX_EXPANDED_ROWS = 10 * 1000;
+        private static final int RESULT_QUEUE_CAPACITY = 1024;
+        private static final int FRAME_MS = 16;
+        
+        private final ArrayBlockingQueue<FileMatches> results = new ArrayBlockingQueue<>(RESULT_QUEUE_CAPACITY);
+        private final javax.swing.Timer resultTimer;
+        private final AtomicInteger retainedLineCount = new AtomicInteger(0);
+        
         private List<String> fileList;
         private DefaultMutableTreeNode matchRoot;
         private String regex;
         private String fileRegex;
         private String errorMessage;
+        private volatile Pattern pattern;
         
+        // Only used on the EDT.
         private HashMap<String, DefaultMutableTreeNode> pathMap = new HashMap<>();
         
         private int sequenceNumber;
@@ -198,8 +328,75 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             this.percentage = -1;
             
             matchTreeModel.setRoot(matchRoot);
+            
+            this.resultTimer = new javax.swing.Timer(FRAME_MS, (e) -> { addResultsToTree(); });
+            GuiUtilities.invokeLater(() -> { resultTimer.start(); });
+        }
+        
+        /**
+         * Moves everything currently in the result queue into the tree. Invoked on the EDT.
+         */
+        private void addResultsToTree() {
+            if (!shouldStillWorkOn(sequenceNumber)) {
+                // Unblock any searching threads so they notice they're no longer wanted.
+                resultTimer.stop();
+                results.clear();
+                return;
+            }
+            ArrayList<FileMatches> batch = new ArrayList<>();
+            results.drainTo(batch);
+            for (FileMatches fileMatches : batch) {
+                DefaultMutableTreeNode pathNode = getPathNode(fileMatches.name);
+                if (regex.length() == 0) {
+                    DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(new MatchingFile(fileMatches.file, fileMatches.name));
+                    insertNodeInAlphabeticalOrder(pathNode, fileNode);
+                    expand(pathNode);
+                    continue;
+                }
+                MatchingFile matchingFile = new MatchingFile(fileMatches.file, fileMatches.name, fileMatches.matchCount, pattern);
+                DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(matchingFile);
+                for (String line : fileMatches.lines) {
+                    fileNode.add(new DefaultMutableTreeNode(new MatchingLine(line, fileMatches.file, pattern)));
+                }
+                if (fileMatches.matchCount > fileMatches.lines.size()) {
+                    fileNode.add(new DefaultMutableTreeNode(new MoreMatchingLines(fileNode, fileMatches.file, pattern, fileMatches.lines.size(), fileMatches.matchCount)));
+                }
+                insertNodeInAlphabeticalOrder(pathNode, fileNode);
+                expand(fileNode);
+            }
+        }
+        
+        private void expand(DefaultMutableTreeNode node) {
+            if (matchView.getRowCount() <= MAX_EXPANDED_ROWS) {
+                // I've no idea why new nodes default to being collapsed.
+                matchView.expandOrCollapsePath(node.getPath(), true);
+            }
+        }
+        
+        /**
+         * Hands a file's results to the EDT, waiting for room in the queue unless this search is abandoned.
+         */
+        private void addResult(FileMatches fileMatches) throws InterruptedException {
+            while (shouldStillWorkOn(sequenceNumber)) {
+                if (results.offer(fileMatches, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
         }
         
+        /**
+         * Returns how many of 'lineCount' lines we can keep without exceeding MAX_LINES_PER_SEARCH, and counts them as kept.
+         */
+        private int reserveLines(int lineCount) {
+            while (true) {
+                final int retained = retainedLineCount.get();
+                final int granted = Math.min(lineCount, MAX_LINES_PER_SEARCH - retained);
+                if (retainedLineCount.compareAndSet(retained, retained + granted)) {
+                    return granted;
+                }
+            }
+        }
+
         private void updateStatus() {
             int newPercentage = (doneFileCount.get() * 100) / totalFileCount;
             if (newPercentage != percentage) {
@@ -217,20 +414,18 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             endTimeNs = 0;
             
             try {
-                Pattern pattern = PatternUtilities.smartCaseCompile(regex);
+                pattern = PatternUtilities.smartCaseCompile(regex);
+                FileSearcher fileSearcher = new FileSearcher(pattern);
                 
-                final int threadCount = Runtime.getRuntime().availableProcessors() + 1;
-                ThreadPoolExecutor executor = (ThreadPoolExecutor) ThreadUtilities.newFixedThreadPool(threadCount, "find-in-files");
-                for (String candidate : fileList) {
-                    executor.execute(new FileSearchRunnable(candidate, pattern));
-                }
-                executor.shutdown();
-                try {
-                    executor.awaitTermination(3600, TimeUnit.SECONDS);
-                } catch (InterruptedException ignored) {
-                    // Fine; we're still finished.
+                // Don't bother searching files the workspace's index says can't match.
+                List<String> candidates = fileList;
+                if (regex.length() != 0) {
+                    candidates = workspace.getFileList().getFilesPossiblyContaining(fileList, pattern);
+                    doneFileCount.addAndGet(fileList.size() - candidates.size());
                 }
                 
+                fileSearchPool.invoke(new FileSearchTask(candidates, 0, candidates.size(), pattern, fileSearcher));
+                
                 endTimeNs = System.nanoTime();
                 Log.warn("Search for \"" + regex + "\" in files matching \"" + fileRegex + "\" took " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + ".");
             } catch (PatternSyntaxException ex) {
@@ -246,45 +441,30 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             String pathSoFar = "";
             DefaultMutableTreeNode parentNode = matchRoot;
             DefaultMutableTreeNode node = matchRoot;
-            synchronized (matchView) {
-                for (int i = 0; i < pathElements.length - 1; ++i) {
-                    pathSoFar += pathElements[i] + File.separator;
-                    node = pathMap.get(pathSoFar);
-                    if (node == null) {
-                        node = new DefaultMutableTreeNode(pathElements[i] + File.separator);
-                        insertNodeInAlphabeticalOrder(parentNode, node);
-                        pathMap.put(pathSoFar, node);
-                    }
-                    parentNode = node;
+            for (int i = 0; i < pathElements.length - 1; ++i) {
+                pathSoFar += pathElements[i] + File.separator;
+                node = pathMap.get(pathSoFar);
+                if (node == null) {
+                    node = new DefaultMutableTreeNode(pathElements[i] + File.separator);
+                    insertNodeInAlphabeticalOrder(parentNode, node);
+                    pathMap.put(pathSoFar, node);
                 }
+                parentNode = node;
             }
             return node;
         }
         
-        @Override
-        protected void process(List<DefaultMutableTreeNode> treeNodes) {
-            if (!shouldStillWorkOn(sequenceNumber)) {
-                return;
-            }
-            
-            synchronized (matchView) {
-                for (DefaultMutableTreeNode node : treeNodes) {
-                    // Avoid accidental searches locking up the EDT for literally hours.
-                    if (matchView.getRowCount() > 10 * 1000) {
-                        return;
-                    }
-                    // I've no idea why new nodes default to being collapsed.
-                    matchView.expandOrCollapsePath(node.getPath(), true);
-                }
-            }
-        }
-        
         @Override
         protected void done() {
             if (!shouldStillWorkOn(sequenceNumber)) {
+                resultTimer.stop();
                 return;
             }
             
+            // All the searching threads have finished, so this empties the queue for the last time.
+            addResultsToTree();
+            resultTimer.stop();
+            
             if (errorMessage != null) {
                 setStatus(errorMessage, true);
             } else {
@@ -305,13 +485,51 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             return status;
         }
         
+        /**
+         * Searches files[start, end), splitting the range so that idle threads can steal half of it.
+         */
+        private class FileSearchTask extends RecursiveAction {
+            private static final int FILES_PER_TASK = 16;
+            
+            private final List<String> files;
+            private final int start;
+            private final int end;
+            private final Pattern pattern;
+            private final FileSearcher fileSearcher;
+            
+            private FileSearchTask(List<String> files, int start, int end, Pattern pattern, FileSearcher fileSearcher) {
+                this.files = files;
+                this.start = start;
+                this.end = end;
+                this.pattern = pattern;
+                this.fileSearcher = fileSearcher;
+            }
+            
+            @Override
+            protected void compute() {
+                if (!shouldStillWorkOn(sequenceNumber)) {
+                    return;
+                }
+                if (end - start > FILES_PER_TASK) {
+                    final int middle = (start + end) >>> 1;
+                    invokeAll(new FileSearchTask(files, start, middle, pattern, fileSearcher), new FileSearchTask(files, middle, end, pattern, fileSearcher));
+                    return;
+                }
+                for (int i = start; i < end; ++i) {
+                    new FileSearchRunnable(files.get(i), pattern, fileSearcher).run();
+                }
+            }
+        }
+        
         private class FileSearchRunnable implements Runnable {
             private String candidate;
             private Pattern pattern;
+            private FileSearcher fileSearcher;
             
-            private FileSearchRunnable(String candidate, Pattern pattern) {
+            private FileSearchRunnable(String candidate, Pattern pattern, FileSearcher fileSearcher) {
                 this.candidate = candidate;
                 this.pattern = pattern;
+                this.fileSearcher = fileSearcher;
             }
             
             public void run() {
@@ -320,7 +538,6 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                 }
                 try {
                     final long t0 = System.nanoTime();
-                    FileSearcher fileSearcher = new FileSearcher(pattern);
                     Path file = FileUtilities.pathFrom(workspace.getRootDirectory(), candidate);
                     
                     // Update our percentage-complete status, but only if we've
@@ -332,7 +549,7 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                     }
                     
                     if (regex.length() != 0) {
-                        ArrayList<String> matches = new ArrayList<>();
+                        CappedLineList matches = new CappedLineList(MAX_LINES_PER_FILE);
                         boolean wasText = fileSearcher.searchFile(file, matches);
                         if (wasText == false) {
                             // FIXME: should we do the grep(1) thing of "binary file <x> matches"?
@@ -342,33 +559,20 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
                         if (TimeUtilities.nsToS(t1 - t0) > 0.5) {
                             Log.warn("Searching file \"" + file + "\" for \"" + regex + "\" took " + TimeUtilities.nsToString(t1 - t0) + "!");
                         }
-                        final int matchCount = matches.size();
-                        if (matchCount > 0) {
-                            synchronized (matchView) {
-                                DefaultMutableTreeNode pathNode = getPathNode(candidate);
-                                MatchingFile matchingFile = new MatchingFile(file, candidate, matchCount, pattern);
-                                DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(matchingFile);
-                                for (String line : matches) {
-                                    fileNode.add(new DefaultMutableTreeNode(new MatchingLine(line, file, pattern)));
-                                }
-                                insertNodeInAlphabeticalOrder(pathNode, fileNode);
-                                matchingFileCount.incrementAndGet();
-                                // Make sure the new node gets expanded.
-                                publish(fileNode);
-                            }
-                        }
-                    } else {
-                        synchronized (matchView) {
-                            DefaultMutableTreeNode pathNode = getPathNode(candidate);
-                            DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(new MatchingFile(file, candidate));
-                            insertNodeInAlphabeticalOrder(pathNode, fileNode);
+                        if (matches.matchCount > 0) {
+                            List<String> lines = matches.lines.subList(0, reserveLines(matches.size()));
                             matchingFileCount.incrementAndGet();
-                            publish(pathNode);
+                            addResult(new FileMatches(candidate, file, matches.matchCount, lines));
                         }
+                    } else {
+                        matchingFileCount.incrementAndGet();
+                        addResult(new FileMatches(candidate, file, 0, Collections.<String>emptyList()));
                     }
                 } catch (FileNotFoundException ignored) {
                     // This special case is worthwhile if your workspace's index is out of date.
                     // A common case is when the index contains generated files that may be removed during a build.
+                } catch (InterruptedException ignored) {
+                    // We were waiting for room in the result queue, but we're being shut down.
                 } catch (Throwable th) {
                     Log.warn("FileSearchRunnable.call caught something", th);
                 }
@@ -377,12 +581,16 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
     }
     
     public static class DefinitionFinder implements Runnable, TagReader.TagListener {
+        private final SymbolIndex symbolIndex;
+        private final String name;
         private final Path file;
         private final MatchingFile matchingFile;
         private final Pattern pattern;
         private final int sequenceNumber;
         
-        public DefinitionFinder(Path file, Pattern pattern, MatchingFile matchingFile) {
+        public DefinitionFinder(SymbolIndex symbolIndex, String name, Path file, Pattern pattern, MatchingFile matchingFile) {
+            this.symbolIndex = symbolIndex;
+            this.name = name;
             this.file = file;
             this.matchingFile = matchingFile;
             this.pattern = pattern;
@@ -393,6 +601,10 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             if (!shouldStillWorkOn(sequenceNumber)) {
                 return;
             }
+            // The workspace's symbol index usually knows, which saves running ctags(1) for every matching file.
+            if (symbolIndex != null && symbolIndex.readTags(name, file, null, this)) {
+                return;
+            }
             // FIXME: obviously not all files are really UTF-8.
             new TagReader(file, null, "UTF-8", this);
         }
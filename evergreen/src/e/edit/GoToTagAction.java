@@ -33,7 +33,19 @@ public class GoToTagAction extends ETextAction {
             return;
         }
         
-        final String workspaceRoot = Evergreen.getInstance().getCurrentWorkspace().getRootDirectory();
+        final Workspace workspace = Evergreen.getInstance().getCurrentWorkspace();
+        final String workspaceRoot = workspace.getRootDirectory();
+        
+        // Unless the user has their own tool, the workspace's symbol index should know.
+        // If it doesn't, perhaps the workspace has a "tags" file our default tool can use.
+        SymbolIndex symbolIndex = workspace.getFileList().getSymbolIndex();
+        if (Parameters.getString("tags.findTagsTool", null) == null && symbolIndex != null) {
+            List<String> addresses = symbolIndex.findTags(tagName);
+            if (addresses.size() > 0) {
+                showAddresses(tagName, workspaceRoot, addresses);
+                return;
+            }
+        }
         
         // Call our helper to find the tags for us.
         final String defaultFindTagsExecutable = Evergreen.getResourceFilename("lib", "scripts", "find-tags.rb");
@@ -55,9 +67,17 @@ public class GoToTagAction extends ETextAction {
         for (String line: lines) {
             Matcher matcher = pattern.matcher(line);
             if (matcher.find()) {
-                addresses.add(matcher.group(1) + ":");
+                addresses.add(matcher.group(1));
             }
         }
+        showAddresses(tagName, workspaceRoot, addresses);
+    }
+    
+    private void showAddresses(String tagName, final String workspaceRoot, List<String> lineAddresses) {
+        ArrayList<String> addresses = new ArrayList<>();
+        for (String lineAddress : lineAddresses) {
+            addresses.add(lineAddress + ":");
+        }
         
         if (addresses.size() == 0) {
             Evergreen.getInstance().showAlert("Unable to go to tag", "No definition found for \"" + tagName + "\".");
@@ -0,0 +1,400 @@
+package e.edit;
+
+import e.ptextarea.FileType;
+import e.util.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+/**
+ * Remembers the ctags(1) tags of every file in a workspace, so that Find in Files, Go to Tag, completion and the tags panel don't each have to run ctags again.
+ * 
+ * Find in Files used to run ctags on every matching file just to see whether it contained a definition, which meant thousands of short-lived processes for a big search.
+ * Here, files are tagged in batches of the same language, one ctags process per batch, with as many batches running at once as we have CPUs.
+ * Like TrigramIndex, we notice which files have changed by their size and modification time, so keeping up with the file list only means tagging the files that changed.
+ * 
+ * We keep what ctags said rather than TagReader.Tags, because what a tag means depends on the FileType it's read as.
+ * Questions about a file we haven't indexed, or that has changed since, get no answer, and the caller should ask ctags itself.
+ * 
+ * The index can be written to and read from a file.
+ * All methods are thread-safe. Running ctags happens outside the lock, so queries don't wait for indexing.
+ */
+public final class SymbolIndex {
+    private static final int FILE_FORMAT_VERSION = 1;
+    // Enough files that starting ctags is cheap in comparison, few enough that a big update keeps all the CPUs busy.
+    private static final int FILES_PER_CTAGS_RUN = 200;
+    private static final ExecutorService ctagsPool = ThreadUtilities.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), "Symbol Indexer");
+    
+    private final HashMap<String, FileSymbols> symbolsByName = new HashMap<>();
+    // The names of the files with tags for each identifier, for Go to Tag and completion.
+    private final TreeMap<String, ArrayList<String>> namesByIdentifier = new TreeMap<>();
+    
+    /**
+     * What ctags output for one file, in order (see TagReader.addTag).
+     * Not modified once it's in the index.
+     */
+    private static final class FileSymbols {
+        private final long size;
+        private final long lastModified;
+        // What we told ctags the file's language was, or "" if we let ctags guess.
+        private final String ctagsLanguage;
+        
+        private int tagCount = 0;
+        private String[] identifiers = new String[8];
+        private int[] lineNumbers = new int[8];
+        private char[] types = new char[8];
+        private String[] contexts = new String[8];
+        
+        private FileSymbols(long size, long lastModified, String ctagsLanguage) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.ctagsLanguage = ctagsLanguage;
+        }
+        
+        private void add(String identifier, int lineNumber, char type, String context) {
+            if (tagCount == identifiers.length) {
+                identifiers = Arrays.copyOf(identifiers, tagCount * 2);
+                lineNumbers = Arrays.copyOf(lineNumbers, tagCount * 2);
+                types = Arrays.copyOf(types, tagCount * 2);
+                contexts = Arrays.copyOf(contexts, tagCount * 2);
+            }
+            identifiers[tagCount] = identifier;
+            lineNumbers[tagCount] = lineNumber;
+            types[tagCount] = type;
+            contexts[tagCount] = context;
+            ++tagCount;
+        }
+        
+        // The 'S' tags just mark the next tag as static; they're not really called "static".
+        private Set<String> distinctIdentifiers() {
+            HashSet<String> result = new HashSet<>();
+            for (int i = 0; i < tagCount; ++i) {
+                if (types[i] != 'S') {
+                    result.add(identifiers[i]);
+                }
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Returns the number of files currently indexed.
+     */
+    public synchronized int size() {
+        return symbolsByName.size();
+    }
+    
+    /**
+     * Tags those of the given files, named relative to 'root', that aren't indexed or whose size or modification time has changed since they were.
+     * Gives up early if 'isStillWanted' returns false, or if we're interrupted.
+     * Returns the number of files (re)tagged.
+     */
+    public int update(Path root, Collection<String> names, BooleanSupplier isStillWanted) {
+        // Group the files that need tagging by the language we'll tell ctags they're in.
+        HashMap<String, ArrayList<String>> namesByLanguage = new HashMap<>();
+        HashMap<String, BasicFileAttributes> attributesByName = new HashMap<>();
+        for (String name : names) {
+            if (isStillWanted.getAsBoolean() == false) {
+                return 0;
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(root.resolve(name), BasicFileAttributes.class);
+            } catch (IOException ex) {
+                removeFile(name);
+                continue;
+            }
+            if (attributes.isRegularFile() == false) {
+                removeFile(name);
+                continue;
+            }
+            if (isUpToDate(name, attributes)) {
+                continue;
+            }
+            attributesByName.put(name, attributes);
+            namesByLanguage.computeIfAbsent(ctagsLanguageForFilename(name), language -> new ArrayList<>()).add(name);
+        }
+        
+        ArrayList<Future<Integer>> runs = new ArrayList<>();
+        for (Map.Entry<String, ArrayList<String>> entry : namesByLanguage.entrySet()) {
+            final String ctagsLanguage = entry.getKey();
+            final ArrayList<String> languageNames = entry.getValue();
+            for (int i = 0; i < languageNames.size(); i += FILES_PER_CTAGS_RUN) {
+                final List<String> batch = new ArrayList<>(languageNames.subList(i, Math.min(languageNames.size(), i + FILES_PER_CTAGS_RUN)));
+                runs.add(ctagsPool.submit(() -> tagFiles(root, ctagsLanguage, batch, attributesByName, isStillWanted)));
+            }
+        }
+        int taggedFileCount = 0;
+        boolean haveWarned = false;
+        for (Future<Integer> run : runs) {
+            try {
+                taggedFileCount += run.get();
+            } catch (ExecutionException ex) {
+                // Most likely ctags isn't installed, in which case every run will fail the same way.
+                if (haveWarned == false) {
+                    Log.warn("Failed to use ctags(1) to index symbols.", ex.getCause());
+                    haveWarned = true;
+                }
+            } catch (InterruptedException ex) {
+                for (Future<Integer> unfinishedRun : runs) {
+                    unfinishedRun.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return taggedFileCount;
+    }
+    
+    private static String ctagsLanguageForFilename(String name) {
+        // We only go by the name: reading every file to look for an emacs mode line would cost more than it saves.
+        // ctags guesses from the name too, but gets some of our languages wrong; it would call a ".h" file C rather than C++, for example.
+        FileType fileType = FileType.guessFileType(name, "");
+        try {
+            String ctagsLanguage = TagReader.ctagsLanguageForFileType(fileType);
+            return (ctagsLanguage != null) ? ctagsLanguage : "";
+        } catch (RuntimeException ex) {
+            // A language we don't know ctags' name for.
+            return "";
+        }
+    }
+    
+    /**
+     * Runs ctags on the given files, all in 'ctagsLanguage', and indexes what it says about each.
+     */
+    private int tagFiles(Path root, String ctagsLanguage, List<String> names, Map<String, BasicFileAttributes> attributesByName, BooleanSupplier isStillWanted) throws IOException {
+        if (isStillWanted.getAsBoolean() == false) {
+            return 0;
+        }
+        HashMap<String, FileSymbols> newSymbolsByName = new HashMap<>();
+        for (String name : names) {
+            BasicFileAttributes attributes = attributesByName.get(name);
+            newSymbolsByName.put(name, new FileSymbols(attributes.size(), attributes.lastModifiedTime().toMillis(), ctagsLanguage));
+        }
+        
+        Path listFile = null;
+        Path tagsFile = null;
+        try {
+            listFile = Files.createTempFile("e.edit.SymbolIndex-files-", ".txt");
+            tagsFile = Files.createTempFile("e.edit.SymbolIndex-tags-", ".tags");
+            Files.write(listFile, names, StandardCharsets.UTF_8);
+            TagReader.runCtags(root, ctagsLanguage.isEmpty() ? null : ctagsLanguage, Arrays.asList("-L", listFile.toString()), tagsFile);
+            
+            // Identifiers and contexts repeat a lot, so share their strings.
+            HashMap<String, String> strings = new HashMap<>();
+            try (BufferedReader in = Files.newBufferedReader(tagsFile, StandardCharsets.UTF_8)) {
+                String line = in.readLine();
+                // If ctags failed, we mustn't claim the files have no tags.
+                if (line == null || line.startsWith("!_TAG_") == false) {
+                    throw new IOException("The tags file didn't have a valid header.");
+                }
+                while ((line = in.readLine()) != null) {
+                    Matcher matcher = TagReader.TAG_LINE_PATTERN.matcher(line);
+                    if (matcher.matches() == false) {
+                        continue;
+                    }
+                    FileSymbols symbols = newSymbolsByName.get(matcher.group(2));
+                    if (symbols != null) {
+                        final String context = (matcher.group(5) != null) ? matcher.group(5) : "";
+                        symbols.add(share(strings, matcher.group(1)), Integer.parseInt(matcher.group(3)), matcher.group(4).charAt(0), share(strings, context));
+                    }
+                }
+            }
+        } finally {
+            if (listFile != null) {
+                Files.deleteIfExists(listFile);
+            }
+            if (tagsFile != null) {
+                Files.deleteIfExists(tagsFile);
+            }
+        }
+        
+        for (Map.Entry<String, FileSymbols> entry : newSymbolsByName.entrySet()) {
+            addFile(entry.getKey(), entry.getValue());
+        }
+        return names.size();
+    }
+    
+    private static String share(Map<String, String> strings, String s) {
+        String result = strings.putIfAbsent(s, s);
+        return (result != null) ? result : s;
+    }
+    
+    private synchronized boolean isUpToDate(String name, BasicFileAttributes attributes) {
+        FileSymbols symbols = symbolsByName.get(name);
+        return symbols != null && symbols.size == attributes.size() && symbols.lastModified == attributes.lastModifiedTime().toMillis();
+    }
+    
+    private synchronized void addFile(String name, FileSymbols symbols) {
+        removeFile(name);
+        symbolsByName.put(name, symbols);
+        for (String identifier : symbols.distinctIdentifiers()) {
+            namesByIdentifier.computeIfAbsent(identifier, key -> new ArrayList<>(1)).add(name);
+        }
+    }
+    
+    /**
+     * Removes the given file from the index, returning true if it was there.
+     */
+    public synchronized boolean removeFile(String name) {
+        FileSymbols symbols = symbolsByName.remove(name);
+        if (symbols == null) {
+            return false;
+        }
+        for (String identifier : symbols.distinctIdentifiers()) {
+            ArrayList<String> names = namesByIdentifier.get(identifier);
+            names.remove(name);
+            if (names.isEmpty()) {
+                namesByIdentifier.remove(identifier);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Removes every file whose name isn't in 'namesToKeep'.
+     */
+    public synchronized void retainOnly(Collection<String> namesToKeep) {
+        HashSet<String> keep = new HashSet<>(namesToKeep);
+        for (String name : new ArrayList<String>(symbolsByName.keySet())) {
+            if (keep.contains(name) == false) {
+                removeFile(name);
+            }
+        }
+    }
+    
+    /**
+     * Returns the symbols for the file called 'name' in the index, which is 'file' on disk, or null if it's not indexed or has changed since it was.
+     */
+    private FileSymbols getUpToDateSymbols(String name, Path file) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            return null;
+        }
+        synchronized (this) {
+            return isUpToDate(name, attributes) ? symbolsByName.get(name) : null;
+        }
+    }
+    
+    /**
+     * Gives 'listener' the tags of the file called 'name' in the index, which is 'file' on disk, as a TagReader reading it as 'fileType' would, and returns true.
+     * If 'fileType' is null, the tags are read as a TagReader with no FileType would read them.
+     * Returns false without calling 'listener' if the file isn't indexed, has changed since it was, or wasn't indexed as 'fileType'.
+     */
+    public boolean readTags(String name, Path file, FileType fileType, TagReader.TagListener listener) {
+        FileSymbols symbols = getUpToDateSymbols(name, file);
+        if (symbols == null) {
+            return false;
+        }
+        if (fileType != null && symbols.ctagsLanguage.equals(TagReader.ctagsLanguageForFileType(fileType)) == false) {
+            return false;
+        }
+        TagReader reader = new TagReader(fileType, listener);
+        for (int i = 0; i < symbols.tagCount; ++i) {
+            reader.addTag(symbols.identifiers[i], symbols.lineNumbers[i], symbols.types[i], symbols.contexts[i]);
+        }
+        return true;
+    }
+    
+    /**
+     * Returns the addresses ("name:line") of the tags for 'identifier', in order of name.
+     * The line numbers are those when each file was last indexed.
+     */
+    public List<String> findTags(String identifier) {
+        ArrayList<String> result = new ArrayList<>();
+        synchronized (this) {
+            ArrayList<String> names = namesByIdentifier.get(identifier);
+            if (names == null) {
+                return result;
+            }
+            names = new ArrayList<>(names);
+            Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+            for (String name : names) {
+                FileSymbols symbols = symbolsByName.get(name);
+                for (int i = 0; i < symbols.tagCount; ++i) {
+                    if (symbols.types[i] != 'S' && symbols.identifiers[i].equals(identifier)) {
+                        result.add(name + ":" + symbols.lineNumbers[i]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the identifiers of all the indexed tags that start with 'prefix', in order.
+     */
+    public synchronized List<String> listIdentifiersStartingWith(String prefix) {
+        return new ArrayList<String>(namesByIdentifier.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+    }
+    
+    /**
+     * Writes the index to the given file, via a temporary file so a reader never sees half an index.
+     */
+    public void write(Path file) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            synchronized (this) {
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeInt(symbolsByName.size());
+                for (Map.Entry<String, FileSymbols> entry : symbolsByName.entrySet()) {
+                    FileSymbols symbols = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(symbols.size);
+                    out.writeLong(symbols.lastModified);
+                    out.writeUTF(symbols.ctagsLanguage);
+                    out.writeInt(symbols.tagCount);
+                    for (int i = 0; i < symbols.tagCount; ++i) {
+                        out.writeUTF(symbols.identifiers[i]);
+                        out.writeInt(symbols.lineNumbers[i]);
+                        out.writeChar(symbols.types[i]);
+                        out.writeUTF(symbols.contexts[i]);
+                    }
+                }
+            }
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Reads an index written by write. Returns an empty index if the file doesn't exist or isn't usable.
+     */
+    public static SymbolIndex read(Path file) {
+        SymbolIndex index = new SymbolIndex();
+        if (Files.exists(file) == false) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_FORMAT_VERSION) {
+                return index;
+            }
+            HashMap<String, String> strings = new HashMap<>();
+            final int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; ++i) {
+                final String name = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+                FileSymbols symbols = new FileSymbols(size, lastModified, share(strings, in.readUTF()));
+                final int tagCount = in.readInt();
+                for (int j = 0; j < tagCount; ++j) {
+                    final String identifier = share(strings, in.readUTF());
+                    final int lineNumber = in.readInt();
+                    final char type = in.readChar();
+                    symbols.add(identifier, lineNumber, type, share(strings, in.readUTF()));
+                }
+                index.addFile(name, symbols);
+            }
+            return index;
+        } catch (Exception ex) {
+            Log.warn("Failed to read symbol index from \"" + file + "\".", ex);
+            return new SymbolIndex();
+        }
+    }
+}
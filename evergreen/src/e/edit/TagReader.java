@@ -10,7 +10,7 @@ import java.util.regex.*;
 import java.util.stream.*;
 
 public class TagReader {
-    private static final Pattern TAG_LINE_PATTERN = Pattern.compile("([^\t]+)\t(?:[^\t])+\t(\\d+);\"\t(\\w)(?:\t(.*))?");
+    static final Pattern TAG_LINE_PATTERN = Pattern.compile("([^\t]+)\t([^\t]+)\t(\\d+);\"\t(\\w)(?:\t(.*))?");
     private static final Pattern CLASS_PATTERN = Pattern.compile("(class|enum|interface|namespace|struct|union):([^\t]+).*");
     
     private TagListener listener;
@@ -18,8 +18,7 @@ public class TagReader {
     private String charsetName;
     
     public TagReader(Path file, FileType fileType, String charsetName, TagListener tagListener) {
-        this.listener = tagListener;
-        this.fileType = fileType;
+        this(fileType, tagListener);
         this.charsetName = charsetName;
         
         Path tagsFile = null;
@@ -42,7 +41,15 @@ public class TagReader {
         }
     }
     
-    private String chooseCtagsBinary() {
+    /**
+     * For passing on tags that have already been read, with addTag, as SymbolIndex does.
+     */
+    TagReader(FileType fileType, TagListener tagListener) {
+        this.listener = tagListener;
+        this.fileType = fileType;
+    }
+    
+    private static String chooseCtagsBinary() {
         // We don't cache this to give the user a chance to fix things while we're running.
         // exctags is on FreeBSD.
         for (String candidateCtags : Arrays.asList("ctags-exuberant", "exuberant-ctags", "ectags", "exctags")) {
@@ -54,6 +61,15 @@ public class TagReader {
     }
     
     private void createTagsFile(Path file, Path tagsFile) throws IOException {
+        String ctagsLanguage = (fileType != null) ? ctagsLanguageForFileType(fileType) : null;
+        runCtags(tagsFile.getParent(), ctagsLanguage, Collections.singletonList(file.toAbsolutePath().toString()), tagsFile);
+    }
+    
+    /**
+     * Runs ctags(1) in 'directory' on the files named by 'fileArguments', writing the tags to 'tagsFile'.
+     * If 'ctagsLanguage' is null, ctags guesses each file's language itself.
+     */
+    static void runCtags(Path directory, String ctagsLanguage, List<String> fileArguments, Path tagsFile) throws IOException {
         ArrayList<String> command = new ArrayList<>();
         command.add(chooseCtagsBinary());
         command.add("--c++-types=+p");
@@ -62,15 +78,15 @@ public class TagReader {
         command.add("-u");
         command.add("--regex-java=/(\\bstatic\\b)/\\1/S/");
         command.add("--regex-c++=/(\\bstatic\\b)/\\1/S/");
-        if (fileType != null) {
-            command.add("--language-force=" + ctagsLanguageForFileType(fileType));
+        if (ctagsLanguage != null) {
+            command.add("--language-force=" + ctagsLanguage);
         }
         command.add("-f");
         command.add(tagsFile.toString());
-        command.add(file.toAbsolutePath().toString());
+        command.addAll(fileArguments);
         
         ArrayList<String> errors = new ArrayList<>();
-        ProcessUtilities.backQuote(tagsFile.getParent(), command.toArray(new String[command.size()]), errors, errors);
+        ProcessUtilities.backQuote(directory, command.toArray(new String[command.size()]), errors, errors);
         // We're not actually expecting anything on stdout or stderr from ctags.
         // All the more reason to output anything it has to say!
         for (String error : errors) {
@@ -151,13 +167,20 @@ public class TagReader {
         }
         
         final String identifier = matcher.group(1);
-        final int lineNumber = Integer.parseInt(matcher.group(2));
-        final char type = matcher.group(3).charAt(0);
-        String context = matcher.group(4);
+        final int lineNumber = Integer.parseInt(matcher.group(3));
+        final char type = matcher.group(4).charAt(0);
+        String context = matcher.group(5);
         if (context == null) {
             context = "";
         }
-        
+        addTag(identifier, lineNumber, type, context);
+    }
+    
+    /**
+     * Turns one line of ctags(1) output into a Tag for the listener.
+     * Tags must be added in the order ctags output them, because a 'S' tag marks the tag after it as static.
+     */
+    void addTag(String identifier, int lineNumber, char type, String context) {
         if (type == 'S') {
             staticTagLineNumber = lineNumber;
             return;
@@ -311,6 +311,10 @@ public class TagsUpdater {
                     return;
                 }
 
+                if (textWindow.isDirty() == false && hasGTests() == false && readTagsFromSymbolIndex(textWindow, fileType)) {
+                    return;
+                }
+
                 if (textWindow.isDirty() || hasGTests()) {
                     temporaryFile = Files.createTempFile("e.edit.TagsUpdater-", "");
                     if (hasGTests()) {
@@ -342,6 +346,24 @@ public class TagsUpdater {
             }
         }
 
+        /**
+         * Uses the workspace's symbol index if it has up-to-date tags for our file, to save running ctags(1).
+         * Returns false if we need to run ctags ourselves.
+         */
+        private boolean readTagsFromSymbolIndex(ETextWindow textWindow, FileType fileType) {
+            Workspace workspace = textWindow.getWorkspace();
+            if (workspace == null) {
+                return false;
+            }
+            SymbolIndex symbolIndex = workspace.getFileList().getSymbolIndex();
+            if (symbolIndex == null) {
+                return false;
+            }
+            final String filename = textWindow.getFilename();
+            final String pathWithinWorkspace = StringUtilities.trimPrefix(filename, workspace.getRootDirectory());
+            return symbolIndex.readTags(pathWithinWorkspace, FileUtilities.pathFrom(filename), fileType, this);
+        }
+
         @Override
         protected void done() {
             if (progressTimer != null) {
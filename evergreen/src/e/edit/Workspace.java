@@ -81,6 +81,16 @@ public class Workspace extends JPanel {
         return FileUtilities.pathFrom(Evergreen.getPreferenceFilename("cached-file-list-" + name));
     }
     
+    public Path getTrigramIndexCachePath() {
+        String name = getWorkspaceName().replaceAll("[/\\\\]", " ");
+        return FileUtilities.pathFrom(Evergreen.getPreferenceFilename("cached-trigram-index-" + name));
+    }
+    
+    public Path getSymbolIndexCachePath() {
+        String name = getWorkspaceName().replaceAll("[/\\\\]", " ");
+        return FileUtilities.pathFrom(Evergreen.getPreferenceFilename("cached-symbol-index-" + name));
+    }
+    
     public void dispose() {
         fileList.dispose();
         LSP.workspaceClosed(this);
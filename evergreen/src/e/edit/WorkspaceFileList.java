@@ -8,6 +8,8 @@ import java.nio.file.attribute.*;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.Consumer;
 import java.util.regex.*;
 import java.util.stream.*;
@@ -25,6 +27,22 @@ public class WorkspaceFileList {
     
     private FileAlterationMonitor fileAlterationMonitor;
     
+    // Narrows down the files Find in Files has to search. Null until it's been read from disk.
+    private volatile TrigramIndex trigramIndex;
+    // All changes to the trigram index happen on this thread, in the order the file list changed.
+    private final ExecutorService trigramIndexExecutor;
+    // Incremented by each full scan, so an index update for an out-of-date list can give up.
+    private final AtomicInteger trigramIndexGeneration = new AtomicInteger(0);
+    
+    // The tags of every file, so we don't have to keep running ctags. Null until it's been read from disk.
+    private volatile SymbolIndex symbolIndex;
+    // All changes to the symbol index happen on this thread; the ctags runs themselves happen on SymbolIndex's pool.
+    private final ExecutorService symbolIndexExecutor;
+    // Incremented by each full scan, so an index update for an out-of-date list can give up.
+    private final AtomicInteger symbolIndexGeneration = new AtomicInteger(0);
+    // Files changed since the symbol index last caught up, so a burst of changes means one ctags run rather than one each.
+    private final LinkedHashSet<String> pendingSymbolIndexUpdates = new LinkedHashSet<>();
+    
     public WorkspaceFileList(Workspace workspace) {
         this.workspace = workspace;
         try (Stream<String> stream = Files.lines(workspace.getFileListCachePath())) {
@@ -34,6 +52,10 @@ public class WorkspaceFileList {
         } catch (Exception ex) {
             // Nothing we can do. Probably just didn't exist.
         }
+        this.trigramIndexExecutor = ThreadUtilities.newSingleThreadExecutor("Trigram index for " + workspace.getWorkspaceName());
+        trigramIndexExecutor.execute(() -> { trigramIndex = TrigramIndex.read(workspace.getTrigramIndexCachePath()); });
+        this.symbolIndexExecutor = ThreadUtilities.newSingleThreadExecutor("Symbol index for " + workspace.getWorkspaceName());
+        symbolIndexExecutor.execute(() -> { symbolIndex = SymbolIndex.read(workspace.getSymbolIndexCachePath()); });
     }
     
     public void addFileListListener(Listener l) {
@@ -50,6 +72,8 @@ public class WorkspaceFileList {
     
     public void dispose() {
         fileAlterationMonitor.dispose();
+        trigramIndexExecutor.shutdownNow();
+        symbolIndexExecutor.shutdownNow();
     }
     
     /**
@@ -107,6 +131,7 @@ public class WorkspaceFileList {
                     break;
                 }
                 fileList.remove(insertPoint);
+                updateIndexes(entry);
                 notifyListeners(l -> l.fileDeleted(entry));
             }
             return;
@@ -119,8 +144,10 @@ public class WorkspaceFileList {
                 // File isn't in our list yet.
                 int sizeBefore = fileList.size();
                 fileList.add(insertPoint, relativePath);
+                updateIndexes(relativePath);
                 notifyListeners(l -> l.fileCreated(relativePath));
             } else {
+                updateIndexes(relativePath);
                 notifyListeners(l -> l.fileChanged(relativePath));
             }
             // Add a listener firing thing here, for the specific file.
@@ -141,6 +168,124 @@ public class WorkspaceFileList {
         new FileListUpdater().execute();
     }
     
+    /**
+     * Returns those of the given files (from getListOfFilesMatching) that might contain a match for 'pattern'.
+     * The trigram index means that this is usually far fewer files than we were given, and never misses a match (even in files changed since they were indexed), but it may return the list it was given.
+     */
+    public List<String> getFilesPossiblyContaining(List<String> files, Pattern pattern) {
+        TrigramIndex index = trigramIndex;
+        return (index != null) ? index.filter(files, pattern, FileUtilities.pathFrom(workspace.getRootDirectory())) : files;
+    }
+    
+    /**
+     * Returns the workspace's symbol index, or null if it hasn't been read from disk yet.
+     * Files the index doesn't know about, or that have changed since they were indexed, should be given to TagReader instead.
+     */
+    public SymbolIndex getSymbolIndex() {
+        return symbolIndex;
+    }
+    
+    private void updateIndexes(String pathWithinWorkspace) {
+        updateTrigramIndex(pathWithinWorkspace);
+        updateSymbolIndex(pathWithinWorkspace);
+    }
+    
+    /**
+     * Updates the trigram index for a single file, in the background.
+     */
+    private void updateTrigramIndex(String pathWithinWorkspace) {
+        final Path path = FileUtilities.pathFrom(workspace.getRootDirectory(), pathWithinWorkspace);
+        trigramIndexExecutor.execute(() -> {
+            try {
+                trigramIndex.updateFile(pathWithinWorkspace, path);
+            } catch (IOException ex) {
+                // Whatever went wrong, we'll try again on the next scan.
+                trigramIndex.removeFile(pathWithinWorkspace);
+            }
+        });
+    }
+    
+    /**
+     * Brings the trigram index up to date with the given complete list of files, in the background, and saves it.
+     * Only files whose size or modification time has changed since they were indexed are read.
+     */
+    private void updateTrigramIndex(final List<String> files) {
+        final int generation = trigramIndexGeneration.incrementAndGet();
+        trigramIndexExecutor.execute(() -> {
+            final long t0 = System.nanoTime();
+            final Path root = FileUtilities.pathFrom(workspace.getRootDirectory());
+            int changedFileCount = 0;
+            for (String file : files) {
+                if (generation != trigramIndexGeneration.get() || Thread.currentThread().isInterrupted()) {
+                    // There's a newer list, or we're being disposed of.
+                    return;
+                }
+                try {
+                    if (trigramIndex.updateFile(file, root.resolve(file))) {
+                        ++changedFileCount;
+                    }
+                } catch (IOException ex) {
+                    trigramIndex.removeFile(file);
+                }
+            }
+            trigramIndex.retainOnly(files);
+            try {
+                trigramIndex.write(workspace.getTrigramIndexCachePath());
+            } catch (IOException ex) {
+                Log.warn("Failed to write trigram index for workspace \"" + workspace.getWorkspaceName() + "\".", ex);
+            }
+            Log.warn("Updating trigram index for workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(System.nanoTime() - t0) + "; (re)indexed " + changedFileCount + " of " + files.size() + " files.");
+        });
+    }
+    
+    /**
+     * Updates the symbol index for a single file, in the background.
+     */
+    private void updateSymbolIndex(String pathWithinWorkspace) {
+        synchronized (pendingSymbolIndexUpdates) {
+            pendingSymbolIndexUpdates.add(pathWithinWorkspace);
+            if (pendingSymbolIndexUpdates.size() > 1) {
+                // There's already a task on its way that will see this file too.
+                return;
+            }
+        }
+        symbolIndexExecutor.execute(() -> {
+            List<String> files;
+            synchronized (pendingSymbolIndexUpdates) {
+                files = new ArrayList<String>(pendingSymbolIndexUpdates);
+                pendingSymbolIndexUpdates.clear();
+            }
+            final Thread indexThread = Thread.currentThread();
+            symbolIndex.update(FileUtilities.pathFrom(workspace.getRootDirectory()), files, () -> !indexThread.isInterrupted());
+        });
+    }
+    
+    /**
+     * Brings the symbol index up to date with the given complete list of files, in the background, and saves it.
+     * Only files whose size or modification time has changed since they were indexed are given to ctags.
+     */
+    private void updateSymbolIndex(final List<String> files) {
+        final int generation = symbolIndexGeneration.incrementAndGet();
+        symbolIndexExecutor.execute(() -> {
+            final long t0 = System.nanoTime();
+            final Path root = FileUtilities.pathFrom(workspace.getRootDirectory());
+            // The ctags runs happen on other threads, so we have to tell them when we're being disposed of.
+            final Thread indexThread = Thread.currentThread();
+            final int changedFileCount = symbolIndex.update(root, files, () -> generation == symbolIndexGeneration.get() && !indexThread.isInterrupted());
+            if (generation != symbolIndexGeneration.get() || indexThread.isInterrupted()) {
+                // There's a newer list, or we're being disposed of.
+                return;
+            }
+            symbolIndex.retainOnly(files);
+            try {
+                symbolIndex.write(workspace.getSymbolIndexCachePath());
+            } catch (IOException ex) {
+                Log.warn("Failed to write symbol index for workspace \"" + workspace.getWorkspaceName() + "\".", ex);
+            }
+            Log.warn("Updating symbol index for workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(System.nanoTime() - t0) + "; (re)tagged " + changedFileCount + " of " + files.size() + " files.");
+        });
+    }
+    
     /**
      * Returns a list of the files matching the given regular expression.
      */
@@ -272,6 +417,14 @@ public class WorkspaceFileList {
         @Override
         public void done() {
             fireListeners(true);
+            List<String> files;
+            synchronized (WorkspaceFileList.this) {
+                files = (fileList != null) ? new ArrayList<String>(fileList) : null;
+            }
+            if (files != null) {
+                updateTrigramIndex(files);
+                updateSymbolIndex(files);
+            }
         }
     }
     
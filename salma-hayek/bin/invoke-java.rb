@@ -65,7 +65,7 @@ class InAppClient
     @host = host
   end
   
-  def sendCommandWithoutExceptionHandling(command)
+  def connect()
     IO.read(@serverPortPathname) =~ /^(.+):(\d+)$/
     host = @host != nil ? @host : $1
     require "socket"
@@ -76,8 +76,12 @@ class InAppClient
       host = "localhost"
     end
     port = $2.to_i()
+    return TCPSocket.new(host, port)
+  end
+  
+  def sendCommandWithoutExceptionHandling(command)
     secret = IO.read(@secretPathname)
-    socket = TCPSocket.new(host, port)
+    socket = connect()
     socket.puts(secret)
     socket.puts(command)
     serverOutput = socket.readlines()
@@ -9,6 +9,7 @@
 
 #include <errno.h>
 #include <fcntl.h>
+#include <poll.h>
 #include <pwd.h>
 #include <signal.h>
 #include <stdlib.h>
@@ -434,6 +435,19 @@ jint org_jessies_os_PosixJNI::get_1EXDEV() {
   return EXDEV;
 }
 
+jint org_jessies_os_PosixJNI::get_1POLLIN() {
+  return POLLIN;
+}
+jint org_jessies_os_PosixJNI::get_1POLLERR() {
+  return POLLERR;
+}
+jint org_jessies_os_PosixJNI::get_1POLLHUP() {
+  return POLLHUP;
+}
+jint org_jessies_os_PosixJNI::get_1POLLNVAL() {
+  return POLLNVAL;
+}
+
 static jint zeroOrMinusErrno(int result) {
   return result == -1 ? -errno : 0;
 }
@@ -458,6 +472,49 @@ jint org_jessies_os_PosixJNI::killpg(jint group, jint signal) {
   return zeroOrMinusErrno(::killpg(group, signal));
 }
 
+jint org_jessies_os_PosixJNI::pipe(jintArray javaFds) {
+  int fds[2];
+  if (::pipe(fds) == -1) {
+    return -errno;
+  }
+  jint result[2] = {fds[0], fds[1]};
+  m_env->SetIntArrayRegion(javaFds, 0, 2, result);
+  return 0;
+}
+
+jint org_jessies_os_PosixJNI::poll(jintArray javaFds,
+                                   jintArray javaEvents,
+                                   jintArray javaRevents,
+                                   jint fdCount,
+                                   jint timeoutMs) {
+  std::vector<jint> fds(fdCount + 1);
+  std::vector<jint> events(fdCount + 1);
+  m_env->GetIntArrayRegion(javaFds, 0, fdCount, &fds[0]);
+  m_env->GetIntArrayRegion(javaEvents, 0, fdCount, &events[0]);
+  if (m_env->ExceptionCheck()) {
+    return -1;  // It doesn't matter what we return, because a Java exception
+                // will be thrown.
+  }
+
+  std::vector<pollfd> pollFds(fdCount + 1);
+  for (jint i = 0; i < fdCount; ++i) {
+    pollFds[i].fd = fds[i];
+    pollFds[i].events = events[i];
+    pollFds[i].revents = 0;
+  }
+  const int result = ::poll(&pollFds[0], fdCount, timeoutMs);
+  if (result == -1) {
+    return -errno;
+  }
+
+  std::vector<jint> revents(fdCount + 1);
+  for (jint i = 0; i < fdCount; ++i) {
+    revents[i] = pollFds[i].revents;
+  }
+  m_env->SetIntArrayRegion(javaRevents, 0, fdCount, &revents[0]);
+  return result;
+}
+
 jint org_jessies_os_PosixJNI::tcgetpgrp(jint fd) {
   return resultOrMinusErrno(::tcgetpgrp(fd));
 }
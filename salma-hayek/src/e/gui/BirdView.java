@@ -207,6 +207,30 @@ public class BirdView extends JComponent {
         maybeRepaint();
     }
     
+    // Unmarks lines 'firstLine' to 'lastLine' inclusive.
+    public synchronized void clearMatchingLines(int firstLine, int lastLine) {
+        matchingLines.clear(firstLine, lastLine + 1);
+        maybeRepaint();
+    }
+    
+    /**
+     * Moves the marks on lines from 'lineNumber' on by 'delta' lines, to follow the text when lines are inserted (positive 'delta') or removed (negative 'delta') before 'lineNumber'.
+     * Marks on the removed lines are dropped, and the inserted lines are left unmarked.
+     */
+    public synchronized void moveMatchingLines(int lineNumber, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        final int firstAffectedLine = Math.min(lineNumber, lineNumber + delta);
+        final int end = Math.max(lineNumber, matchingLines.length());
+        BitSet moved = matchingLines.get(lineNumber, end);
+        matchingLines.clear(firstAffectedLine, end);
+        for (int i = moved.nextSetBit(0); i != -1; i = moved.nextSetBit(i + 1)) {
+            matchingLines.set(lineNumber + delta + i);
+        }
+        maybeRepaint();
+    }
+    
     public boolean getValueIsAdjusting() {
         return isAdjusting;
     }
@@ -15,6 +15,17 @@ class HyperlinkStyleApplicator extends RegularExpressionStyleApplicator {
         super(textArea, PatternUtilities.HYPERLINK_PATTERN, PStyle.HYPERLINK);
     }
     
+    @Override
+    protected boolean mightMatch(CharSequence text, int start, int end) {
+        // Every match contains "://", whose ':' is rarer than its '/'.
+        for (int i = start; i + 2 < end; ++i) {
+            if (text.charAt(i) == ':' && text.charAt(i + 1) == '/' && text.charAt(i + 2) == '/') {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     @Override
     public boolean canApplyStylingTo(PStyle style) {
         return (style == PStyle.NORMAL || style == PStyle.COMMENT);
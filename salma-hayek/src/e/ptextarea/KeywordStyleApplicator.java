@@ -2,20 +2,254 @@ package e.ptextarea;
 
 import java.util.*;
 import java.util.regex.*;
+import org.jessies.test.*;
 
 /**
  * Recognizes keywords within NORMAL text segments and styles them KEYWORD.
+ * 
+ * With the usual regular expression, which matches any word, we don't need the regular expression at all.
+ * We just walk along the segment's text a word at a time, looking each word up in a hash table that can be searched without making a String.
  */
 public class KeywordStyleApplicator extends RegularExpressionStyleApplicator {
+    private static final String WORD_REGULAR_EXPRESSION = "\\b(\\w+)\\b";
+    
     private Set<String> keywords;
     
+    // Non-null if we can find keywords without the regular expression.
+    private final KeywordTable keywordTable;
+    
     public KeywordStyleApplicator(PTextArea textArea, Set<String> keywords, String keywordRegularExpression) {
         super(textArea, keywordRegularExpression, PStyle.KEYWORD);
         this.keywords = keywords;
+        this.keywordTable = keywordRegularExpression.equals(WORD_REGULAR_EXPRESSION) ? new KeywordTable(keywords) : null;
     }
     
     @Override
     public boolean isAcceptableMatch(CharSequence line, Matcher matcher) {
         return keywords.contains(matcher.group(1));
     }
+    
+    @Override
+    public List<PLineSegment> applyStylingTo(String line, int lineStartOffset, PLineSegment segment) {
+        if (keywordTable == null) {
+            return super.applyStylingTo(line, lineStartOffset, segment);
+        }
+        final int start = segment.getOffset() - lineStartOffset;
+        final int end = start + segment.getModelTextLength();
+        ArrayList<PLineSegment> result = null;
+        int normalStart = start;
+        int i = start;
+        while (i < end) {
+            if (isWordCharacter(line.charAt(i)) == false) {
+                ++i;
+                continue;
+            }
+            final int wordStart = i;
+            while (i < end && isWordCharacter(line.charAt(i))) {
+                ++i;
+            }
+            final int wordEnd = i;
+            // \w is ASCII-only, but \b isn't: "\b(\w+)\b" doesn't match a run of ASCII word characters next to a non-ASCII letter or digit.
+            // That's rare enough in source that we leave the details of what \b thinks to java.util.regex.
+            if ((wordStart > start && line.charAt(wordStart - 1) >= 0x80) || (wordEnd < end && line.charAt(wordEnd) >= 0x80)) {
+                return super.applyStylingTo(line, lineStartOffset, segment);
+            }
+            if (keywordTable.contains(line, wordStart, wordEnd)) {
+                if (result == null) {
+                    result = new ArrayList<>();
+                }
+                if (wordStart > normalStart) {
+                    result.add(segment.subSegment(normalStart - start, wordStart - start));
+                }
+                result.add(new PTextSegment(textArea, lineStartOffset + wordStart, lineStartOffset + wordEnd, PStyle.KEYWORD));
+                normalStart = wordEnd;
+            }
+        }
+        if (result == null) {
+            return Collections.singletonList(segment);
+        }
+        if (end > normalStart) {
+            result.add(segment.subSegment(normalStart - start));
+        }
+        return result;
+    }
+    
+    // The characters matched by the regular expression \w.
+    private static boolean isWordCharacter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+    
+    /**
+     * An open-addressing hash set of keywords that can test a range of a String for membership without copying it.
+     * Keywords that aren't entirely \w characters can't match "\b(\w+)\b", so they're left out.
+     */
+    private static final class KeywordTable {
+        private final String[] table;
+        private final int mask;
+        private final boolean ignoreCase;
+        
+        KeywordTable(Set<String> keywords) {
+            // The stylers use a TreeSet with String.CASE_INSENSITIVE_ORDER for languages whose keywords aren't case-sensitive.
+            this.ignoreCase = (keywords instanceof SortedSet<?> && ((SortedSet<String>) keywords).comparator() == String.CASE_INSENSITIVE_ORDER);
+            int capacity = 16;
+            while (capacity < 2 * keywords.size()) {
+                capacity *= 2;
+            }
+            this.table = new String[capacity];
+            this.mask = capacity - 1;
+            for (String keyword : keywords) {
+                if (isWord(keyword)) {
+                    add(keyword);
+                }
+            }
+        }
+        
+        private static boolean isWord(String s) {
+            for (int i = 0; i < s.length(); ++i) {
+                if (isWordCharacter(s.charAt(i)) == false) {
+                    return false;
+                }
+            }
+            return s.length() > 0;
+        }
+        
+        private void add(String keyword) {
+            int i = hash(keyword, 0, keyword.length()) & mask;
+            while (table[i] != null) {
+                if (equals(table[i], keyword, 0, keyword.length())) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            table[i] = keyword;
+        }
+        
+        boolean contains(String s, int start, int end) {
+            for (int i = hash(s, start, end) & mask; table[i] != null; i = (i + 1) & mask) {
+                if (equals(table[i], s, start, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; ++i) {
+                h = 31 * h + fold(s.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+        
+        private boolean equals(String keyword, String s, int start, int end) {
+            if (keyword.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < keyword.length(); ++i) {
+                if (fold(keyword.charAt(i)) != fold(s.charAt(start + i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        // Only ASCII ever gets here, so ASCII case folding is all we need.
+        private char fold(char ch) {
+            return (ignoreCase && ch >= 'A' && ch <= 'Z') ? (char) (ch + ('a' - 'A')) : ch;
+        }
+    }
+    
+    // Returns the ranges of the keywords found in characters 'start' to 'end' of 'line' (which starts at offset 100), checking that the segments cover exactly that text.
+    private static List<String> findKeywords(Set<String> keywords, String line, int start, int end) {
+        final int lineStartOffset = 100;
+        KeywordStyleApplicator applicator = new KeywordStyleApplicator(null, keywords, WORD_REGULAR_EXPRESSION);
+        Assert.equals(applicator.keywordTable != null, true);
+        ArrayList<String> result = new ArrayList<>();
+        int expectedOffset = lineStartOffset + start;
+        for (PLineSegment segment : applicator.applyStylingTo(line, lineStartOffset, new PTextSegment(null, lineStartOffset + start, lineStartOffset + end, PStyle.NORMAL))) {
+            Assert.equals(segment.getOffset(), expectedOffset);
+            expectedOffset = segment.getEnd();
+            if (segment.getStyle() == PStyle.KEYWORD) {
+                result.add((segment.getOffset() - lineStartOffset) + "-" + (segment.getEnd() - lineStartOffset));
+            }
+        }
+        Assert.equals(expectedOffset, lineStartOffset + end);
+        return result;
+    }
+    
+    // Returns what findKeywords should, found the way we used to find them: by matching the regular expression against the segment's text.
+    private static List<String> findKeywordsWithRegularExpression(Set<String> keywords, String line, int start, int end) {
+        ArrayList<String> result = new ArrayList<>();
+        Matcher matcher = Pattern.compile(WORD_REGULAR_EXPRESSION).matcher(line);
+        matcher.region(start, end);
+        while (matcher.find()) {
+            if (keywords.contains(matcher.group(1))) {
+                result.add(matcher.start(1) + "-" + matcher.end(1));
+            }
+        }
+        return result;
+    }
+    
+    private static void checkKeywords(Set<String> keywords, String line, int start, int end, String... expected) {
+        Assert.equals(findKeywordsWithRegularExpression(keywords, line, start, end), Arrays.asList(expected));
+        Assert.equals(findKeywords(keywords, line, start, end), Arrays.asList(expected));
+    }
+    
+    @Test private static void testCaseSensitiveKeywords() {
+        Set<String> keywords = new HashSet<>(Arrays.asList("class", "for", "int", "_x", "#include"));
+        String line = "for (int i = 0; i < n; ++i) {";
+        checkKeywords(keywords, line, 0, line.length(), "0-3", "5-8");
+        line = "classy class Class _x x_ int2 2int";
+        checkKeywords(keywords, line, 0, line.length(), "7-12", "19-21");
+        // Keywords that aren't words can't match.
+        line = "#include <stdio.h>";
+        checkKeywords(keywords, line, 0, line.length());
+        checkKeywords(keywords, "", 0, 0);
+    }
+    
+    @Test private static void testCaseInsensitiveKeywords() {
+        Set<String> keywords = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        keywords.addAll(Arrays.asList("begin", "END", "Procedure"));
+        String line = "PROCEDURE p; Begin end; procedures";
+        checkKeywords(keywords, line, 0, line.length(), "0-9", "13-18", "19-22");
+    }
+    
+    @Test private static void testKeywordsAtSegmentEdges() {
+        Set<String> keywords = new HashSet<>(Arrays.asList("for", "if", "in"));
+        // The segment's text is all we look at, so a keyword at either edge counts even if the line carries on with more letters.
+        String line = "xforx if in";
+        checkKeywords(keywords, line, 1, 4, "1-4");
+        checkKeywords(keywords, line, 1, 5);
+        checkKeywords(keywords, line, 0, 4);
+        checkKeywords(keywords, line, 6, 8, "6-8");
+        checkKeywords(keywords, line, 5, line.length(), "6-8", "9-11");
+        checkKeywords(keywords, line, 9, line.length(), "9-11");
+    }
+    
+    @Test private static void testKeywordsNextToNonAscii() {
+        Set<String> keywords = new HashSet<>(Arrays.asList("for", "if", "caf"));
+        // \b doesn't see a boundary between an ASCII letter and a non-ASCII one, so these aren't keywords.
+        String line = "caf\u00e9 for na\u00efveif \u00e9for if";
+        checkKeywords(keywords, line, 0, line.length(), "5-8", "22-24");
+    }
+    
+    @Test private static void testKeywordsAgainstRegularExpression() {
+        Set<String> caseSensitiveKeywords = new HashSet<>(Arrays.asList("do", "if", "int", "in", "_", "x1"));
+        Set<String> caseInsensitiveKeywords = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        caseInsensitiveKeywords.addAll(caseSensitiveKeywords);
+        final String alphabet = "diInNtfx1_ .(\u00e9";
+        final Random random = new Random(1);
+        for (int i = 0; i < 2000; ++i) {
+            StringBuilder line = new StringBuilder();
+            final int length = random.nextInt(20);
+            for (int j = 0; j < length; ++j) {
+                line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            final int start = random.nextInt(length + 1);
+            final int end = start + random.nextInt(length - start + 1);
+            for (Set<String> keywords : Arrays.asList(caseSensitiveKeywords, caseInsensitiveKeywords)) {
+                Assert.equals(findKeywords(keywords, line.toString(), start, end), findKeywordsWithRegularExpression(keywords, line.toString(), start, end));
+            }
+        }
+    }
 }
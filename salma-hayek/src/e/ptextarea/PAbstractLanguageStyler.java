@@ -1,7 +1,6 @@
 package e.ptextarea;
 
 import java.util.*;
-import e.util.*;
 
 /**
  * A PAbstractLanguageStyler does the main work for most of the various
@@ -19,13 +18,18 @@ import e.util.*;
  * @author Phil Norman
  */
 public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
-    private int lastGoodLine;
-    private BitSet commentCache;
+    // The only state carried from one line to the next is whether we're in a multi-line comment.
+    private static final int IN_COMMENT = PLineStateCache.INITIAL_STATE + 1;
+    
+    private PLineStateCache lineStates;
     
     public PAbstractLanguageStyler(PTextArea textArea) {
         super(textArea);
         if (textArea != null) {
-            initCommentCache();
+            lineStates = new PLineStateCache((lineIndex, startState) -> {
+                String line = textArea.getLineList().getLineContents(lineIndex).toString();
+                return lineEndsCommented(line, startState == IN_COMMENT) ? IN_COMMENT : PLineStateCache.INITIAL_STATE;
+            });
             initTextListener();
             textArea.setTextStyler(this);
         }
@@ -101,7 +105,7 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     private void initTextListener() {
         textArea.getTextBuffer().addTextListener(new PTextListener() {
             public void textCompletelyReplaced(PTextEvent event) {
-                initCommentCache();
+                lineStates.clear();
             }
             
             public void textInserted(PTextEvent event) {
@@ -114,11 +118,6 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         });
     }
     
-    private void initCommentCache() {
-        lastGoodLine = 0;
-        commentCache = new BitSet();
-    }
-    
     public List<PLineSegment> getTextSegments(int lineIndex) {
         String line = textArea.getLineContents(lineIndex).toString();
         return getMainSegments(lineIndex, line);
@@ -216,15 +215,7 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     }
     
     private boolean startsCommented(int lineIndex) {
-        if (lastGoodLine < lineIndex) {
-            PLineList lineList = textArea.getLineList();
-            for (int i = lastGoodLine; i < lineIndex; i++) {
-                String line = lineList.getLineContents(i).toString();
-                commentCache.set(i + 1, lineEndsCommented(line, commentCache.get(i)));
-            }
-            lastGoodLine = lineIndex;
-        }
-        return commentCache.get(lineIndex);
+        return lineStates.getStateAtStartOfLine(lineIndex) == IN_COMMENT;
     }
     
     /**
@@ -280,36 +271,9 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     }
     
     private void dirtyFromOffset(PTextEvent event) {
-        if (textArea.isLineWrappingInvalid()) {
-            return;
-        }
-        
-        boolean startsOrEndsMultiLineComment = false;
-        if (supportMultiLineComments()) {
-            int HORIZON = Math.max(multiLineCommentStart().length(), multiLineCommentEnd().length());
-            CharSequence entireText = textArea.getTextBuffer();
-            String prefix = entireText.subSequence(Math.max(0, event.getOffset() - HORIZON), event.getOffset()).toString();
-            int endIndex = event.getOffset();
-            if (event.isInsert()) {
-                endIndex += event.getLength();
-            }
-            String suffix = entireText.subSequence(endIndex, Math.min(endIndex + HORIZON, entireText.length())).toString();
-            String withMiddleText = prefix + event.getCharacters() + suffix;
-            String withoutMiddleText = prefix + suffix;
-            startsOrEndsMultiLineComment = hasCommentMarker(withMiddleText) || hasCommentMarker(withoutMiddleText);
-        }
-        
-        if (hasNewline(event.getCharacters()) || startsOrEndsMultiLineComment) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
-            textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
+        // If the change opened or closed a multi-line comment, the following lines need restyling.
+        if (lineStates.textChanged(textArea.getLineList(), event) && textArea.isLineWrappingInvalid() == false) {
+            textArea.repaintFromLine(textArea.getSplitLineIndex(textArea.getLineList().getLineIndex(event.getOffset())));
         }
     }
-    
-    private boolean hasNewline(CharSequence text) {
-        return StringUtilities.contains(text, '\n');
-    }
-    
-    private boolean hasCommentMarker(String text) {
-        return text.contains(multiLineCommentStart()) || text.contains(multiLineCommentEnd());
-    }
 }
@@ -0,0 +1,75 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Styles the lines just outside a PTextArea's visible area on low-priority background threads, so they're already in the segment cache when the user scrolls to them.
+ * 
+ * Styling a line means running the text styler and every StyleApplicator's regular expression over it, and doing that for a screenful of new lines while scrolling or paging through a big file was enough to make the event dispatch thread stall.
+ * 
+ * Each time the text area is painted, it tells us which lines it showed.
+ * If that's changed, we style a screenful above and two screenfuls below, nearest lines first, in chunks shared between the pool's threads.
+ * A newer request makes older ones give up, and so does anyone waiting for the write lock, so we never hold up typing.
+ * Results from before an edit never reach the cache, because PSegmentCache.putIfUnchanged drops them.
+ */
+final class PBackgroundStyler {
+    private static final ExecutorService pool = ThreadUtilities.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), "PTextArea Background Styler", Thread.MIN_PRIORITY);
+    
+    // Small enough that the pool's threads share a screenful, big enough that a task is worth queuing.
+    private static final int LINES_PER_TASK = 16;
+    
+    private final PTextArea textArea;
+    
+    // Incremented for each request, so that tasks for lines we've scrolled away from can give up.
+    private final AtomicInteger requestNumber = new AtomicInteger();
+    
+    // The last request, so we don't repeat it every time the caret blinks.
+    // Only accessed on the event dispatch thread.
+    private int lastFirstLine = -1;
+    private int lastLastLine = -1;
+    private int lastGeneration = -1;
+    
+    PBackgroundStyler(PTextArea textArea) {
+        this.textArea = textArea;
+    }
+    
+    /**
+     * Called after painting lines 'firstLine' to 'lastLine' of 'lineCount', when the segment cache's generation was 'generation'.
+     */
+    void linesPainted(int firstLine, int lastLine, int lineCount, int generation) {
+        if (firstLine == lastFirstLine && lastLine == lastLastLine && generation == lastGeneration) {
+            return;
+        }
+        lastFirstLine = firstLine;
+        lastLastLine = lastLine;
+        lastGeneration = generation;
+        
+        final int request = requestNumber.incrementAndGet();
+        final int screenful = lastLine - firstLine + 1;
+        // Below first, because that's the usual way to read.
+        final int lastLineBelow = Math.min(lineCount - 1, lastLine + 2 * screenful);
+        for (int start = lastLine + 1; start <= lastLineBelow; start += LINES_PER_TASK) {
+            submit(request, start, Math.min(lastLineBelow, start + LINES_PER_TASK - 1));
+        }
+        final int firstLineAbove = Math.max(0, firstLine - screenful);
+        for (int end = firstLine - 1; end >= firstLineAbove; end -= LINES_PER_TASK) {
+            submit(request, Math.max(firstLineAbove, end - LINES_PER_TASK + 1), end);
+        }
+    }
+    
+    private void submit(final int request, final int firstLine, final int lastLine) {
+        pool.execute(() -> {
+            try {
+                for (int lineIndex = firstLine; lineIndex <= lastLine; ++lineIndex) {
+                    if (requestNumber.get() != request || textArea.styleLineInBackground(lineIndex) == false) {
+                        return;
+                    }
+                }
+            } catch (Exception ex) {
+                Log.warn("Background styling of lines " + firstLine + " to " + lastLine + " failed", ex);
+            }
+        });
+    }
+}
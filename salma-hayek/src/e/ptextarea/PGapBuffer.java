@@ -0,0 +1,153 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+
+/**
+ * A gap buffer: all the text in one char[] with a movable gap at the most recent edit.
+ * Edits near the previous edit are cheap; edits elsewhere cost a copy of the text between the two.
+ * This is the right choice for anything you'd normally think of as a source file.
+ * 
+ * @author Elliott Hughes
+ * @author Phil Norman
+ */
+final class PGapBuffer implements PTextStorage {
+    private static final int MIN_BUFFER_EXTENSION = 100;
+    private static final int MAX_GAP_SIZE = 1024 * 2;
+    
+    private char[] text;
+    private int gapPosition;
+    private int gapLength;
+    
+    /**
+     * Uses 'text' as the initial content, without copying it.
+     */
+    PGapBuffer(char[] text) {
+        this.text = text;
+        this.gapPosition = 0;
+        this.gapLength = 0;
+    }
+    
+    /** Moves the gap to the specified position. */
+    private void moveGap(int newPosition) {
+        if (gapPosition == newPosition) {
+            return;
+        }
+        if (newPosition < gapPosition) {
+            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
+        } else {
+            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
+        }
+        gapPosition = newPosition;
+    }
+    
+    private void changeBufferLength(int lengthChange) {
+        char[] newText = new char[text.length + lengthChange];
+        System.arraycopy(text, 0, newText, 0, gapPosition);
+        int endOffset = gapPosition + gapLength;
+        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
+        gapLength += lengthChange;
+        text = newText;
+    }
+    
+    /** Expands the buffer. */
+    private void expandBuffer(int requiredGapLength) {
+        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
+        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
+    }
+    
+    /** Shrinks the buffer. */
+    private void shrinkBuffer() {
+        if (gapLength > MAX_GAP_SIZE) {
+            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
+            changeBufferLength(desiredGapLength - gapLength);
+        }
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        moveGap(position);
+        int textLength = chars.length();
+        while (textLength > gapLength) {
+            expandBuffer(textLength);
+        }
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
+        } else {
+            // This is the price you pay for giving us a String.
+            for (int i = 0; i < textLength; ++i) {
+                text[gapPosition + i] = chars.charAt(i);
+            }
+        }
+        gapPosition += textLength;
+        gapLength -= textLength;
+    }
+    
+    public void remove(int position, int charCount) {
+        moveGap(position + charCount);
+        gapPosition -= charCount;
+        gapLength += charCount;
+        shrinkBuffer();
+    }
+    
+    public char charAt(int index) {
+        return (index < gapPosition) ? text[index] : text[index + gapLength];
+    }
+    
+    public int length() {
+        return text.length - gapLength;
+    }
+    
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, chars.length, chars, 0);
+        return new CharArrayCharSequence(chars);
+    }
+    
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+        int copyCount = 0;
+        if (start < gapPosition) {
+            copyCount = Math.min(charCount, gapPosition - start);
+            System.arraycopy(text, start, destination, destinationOffset, copyCount);
+        }
+        if (start + charCount >= gapPosition) {
+            int textPosition = Math.max(start, gapPosition) + gapLength;
+            System.arraycopy(text, textPosition, destination, destinationOffset + copyCount, charCount - copyCount);
+        }
+    }
+    
+    public int indexOf(char ch, int startIndex) {
+        final int length = length();
+        int gapBufferIndex = (startIndex < gapPosition) ? startIndex : (startIndex + gapLength);
+        for (int i = startIndex; i < length; ++i) {
+            if (i == gapPosition) {
+                gapBufferIndex = i + gapLength;
+            }
+            if (text[gapBufferIndex++] == ch) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        // Just write out the two halves as they are.
+        if (gapPosition != 0) {
+            writer.write(text, 0, gapPosition);
+        }
+        final int gapEnd = gapPosition + gapLength;
+        if (gapEnd < text.length) {
+            writer.write(text, gapEnd, text.length - gapEnd);
+        }
+    }
+    
+    public boolean isBackedBy(File file) {
+        return false;
+    }
+    
+    public String toString() {
+        StringBuilder result = new StringBuilder(length());
+        result.append(text, 0, gapPosition);
+        result.append(text, gapPosition + gapLength, text.length - gapPosition - gapLength);
+        return result.toString();
+    }
+}
@@ -5,34 +5,49 @@ import java.util.*;
 public abstract class PGenericTextStyler implements PTextStyler {
     protected PTextArea textArea;
     
-    // lastGoodLine is the index of the last line for which we are sure the lineEndContexts map is
-    // correctly populated. This means that the last line index for which we can generate correct
-    // stylings is lastGoodLine+1.
-    private int lastGoodLine;
-    private TreeMap<Integer, PSequenceMatcher.RegionEnd> lineEndContexts;
+    // A line's state says which multi-line region (if any) it starts inside.
+    // Each distinct RegionEnd gets a state, which is its index in 'regionEnds'.
+    // PLineStateCache.INITIAL_STATE is reserved for not being inside a region.
+    private PLineStateCache lineStates;
+    private final ArrayList<PSequenceMatcher.RegionEnd> regionEnds = new ArrayList<>();
+    private final HashMap<PSequenceMatcher.RegionEnd, Integer> regionEndStates = new HashMap<>();
     
     public PGenericTextStyler(PTextArea textArea) {
         this.textArea = textArea;
+        regionEnds.add(null);
         if (textArea != null) {
-            initLineEndContexts();
+            lineStates = new PLineStateCache((lineIndex, startState) -> {
+                TextSegmentListBuilder builder = new TextSegmentListBuilder(lineIndex);  // We will discard this.
+                return getState(processLine(lineIndex, getRegionEnd(startState), builder));
+            });
             initTextListener();
             textArea.setTextStyler(this);
         }
     }
     
     public List<PLineSegment> getTextSegments(int line) {
-        while ((lastGoodLine + 1) < line) {
-            // Need to bring the lineEndContexts up to the current line.
-            TextSegmentListBuilder builder = new TextSegmentListBuilder(line);  // We will discard this.
-            lineEndContexts.put(lastGoodLine + 1, processLine(lastGoodLine + 1, builder));
-            lastGoodLine++;
-        }
         TextSegmentListBuilder builder = new TextSegmentListBuilder(line);
-        lineEndContexts.put(line, processLine(line, builder));
-        lastGoodLine = Math.max(lastGoodLine, line);
+        processLine(line, getRegionEnd(lineStates.getStateAtStartOfLine(line)), builder);
         return builder.getSegmentList();
     }
     
+    private synchronized int getState(PSequenceMatcher.RegionEnd regionEnd) {
+        if (regionEnd == null) {
+            return PLineStateCache.INITIAL_STATE;
+        }
+        Integer state = regionEndStates.get(regionEnd);
+        if (state == null) {
+            state = regionEnds.size();
+            regionEnds.add(regionEnd);
+            regionEndStates.put(regionEnd, state);
+        }
+        return state;
+    }
+    
+    private synchronized PSequenceMatcher.RegionEnd getRegionEnd(int state) {
+        return regionEnds.get(state);
+    }
+    
     public boolean keywordsAreCaseSensitive() {
         return true;
     }
@@ -40,7 +55,7 @@ public abstract class PGenericTextStyler implements PTextStyler {
     private void initTextListener() {
         textArea.getTextBuffer().addTextListener(new PTextListener() {
             public void textCompletelyReplaced(PTextEvent event) {
-                initLineEndContexts();
+                lineStates.clear();
             }
             
             public void textInserted(PTextEvent event) {
@@ -66,62 +81,13 @@ public abstract class PGenericTextStyler implements PTextStyler {
         }
     }
     
-    private void initLineEndContexts() {
-        // The last good line is the index of the last line where we're sure the end state
-        // is correctly stored in lineEndContexts. When we init, we're not even sure about
-        // the first line, so the last good line is -1.
-        lastGoodLine = -1;
-        lineEndContexts = new TreeMap<Integer, PSequenceMatcher.RegionEnd>();
-    }
-    
     private void dirtyFromOffset(PTextEvent event) {
-        if (textArea.isLineWrappingInvalid()) {
-            return;
-        }
-        final int line = textArea.getLineList().getLineIndex(event.getOffset());
-        if (line >= lastGoodLine) {
-            return;
-        }
-        // If any newlines were added or removed, then just invalidate anything after here.
-        // It's easier, and is costly only in less-common cases.
-        if (containsNewline(event.getCharacters())) {
-            setLastGoodLine(line - 1);
-            // If newlines were added or removed, then the text area will be repainting everything
-            // from this point on anyway, so there's no point at all in triggering a repaint from here.
-            return;
-        }
-        // The insert or remove was purely within this line. Check whether the end style
-        // has changed or not. If it has, then invalidate everything from this point and
-        // force a repaint.
-        TextSegmentListBuilder builder = new TextSegmentListBuilder(line);
-        PSequenceMatcher.RegionEnd regionEnd = processLine(line, builder);
-        if (areEqual(regionEnd, lineEndContexts.get(line))) {
-            return; // Nothing to do - all is as it was.
-        }
-        setLastGoodLine(line - 1);
-        textArea.repaintFromLine(textArea.getSplitLineIndex(line - 1));
-    }
-    
-    private void setLastGoodLine(int lastGoodLine) {
-        this.lastGoodLine = lastGoodLine;
-        while (!lineEndContexts.isEmpty()) {
-            int top = lineEndContexts.lastKey();
-            if (top <= lastGoodLine) {
-                break;
-            }
-            lineEndContexts.remove(top);
+        // If the change started or ended a multi-line region, the following lines need restyling.
+        if (lineStates.textChanged(textArea.getLineList(), event) && textArea.isLineWrappingInvalid() == false) {
+            textArea.repaintFromLine(textArea.getSplitLineIndex(textArea.getLineList().getLineIndex(event.getOffset())));
         }
     }
     
-    private boolean containsNewline(CharSequence seq) {
-        for (int i = 0; i < seq.length(); i++) {
-            if (seq.charAt(i) == '\n') {
-                return true;
-            }
-        }
-        return false;
-    }
-    
     /**
      * This is parameterized so that we can recognize the GNU Make keyword "filter-out", and various strange GNU Assembler directives.
      * The value of the first capturing group will be tested to ensure that it's a member of the styler's keyword set.
@@ -130,9 +96,9 @@ public abstract class PGenericTextStyler implements PTextStyler {
         return "\\b(\\w+)\\b";
     }
     
-    private PSequenceMatcher.RegionEnd processLine(int line, TextSegmentListBuilder builder) {
+    // Styles 'line', which starts inside the region ended by 'endFinder' (or no region if it's null), and returns the region it ends inside.
+    private PSequenceMatcher.RegionEnd processLine(int line, PSequenceMatcher.RegionEnd endFinder, TextSegmentListBuilder builder) {
         String str = textArea.getLineList().getLineContents(line).toString();
-        PSequenceMatcher.RegionEnd endFinder = lineEndContexts.get(line - 1);
         int index = 0;
         if (endFinder != null) {
             index = endFinder.getEndIndexForLine(str);
@@ -195,8 +161,4 @@ public abstract class PGenericTextStyler implements PTextStyler {
             return list;
         }
     }
-    
-    protected static boolean areEqual(Object one, Object two) {
-        return (one == null || two == null) ? (one == two) : one.equals(two);
-    }
 }
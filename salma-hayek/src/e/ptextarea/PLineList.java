@@ -15,8 +15,10 @@ public class PLineList implements PTextListener {
     
     private final PTextBuffer text;
     
-    private ArrayList<Line> lines;
-    private int lastValidLineIndex;
+    // Line i has lines.get(i) characters, including its newline if it has one, and is lines.getTag(i) pixels wide when rendered.
+    // The start of line i is lines.prefixSum(i).
+    // Finding a line is O(log n), adding or removing lines also copies at most a chunk's worth of ints, a line costs about 8 bytes, and nothing changes it but an edit.
+    private final PrefixSumList lines = new PrefixSumList();
     
     private final ArrayList<PLineListener> listeners = new ArrayList<>();
     
@@ -29,8 +31,8 @@ public class PLineList implements PTextListener {
     public void logLineInfo() {
         Log.warn("Dumping PLineList line info:");
         for (int i = 0; i < lines.size(); i++) {
-            Line line = lines.get(i);
-            Log.warn(i + ": start " + line.getStart() + ", length " + line.getLength() + ", end " + (line.getStart() + line.getLength()) + ", width " + line.width);
+            int start = getLineStart(i);
+            Log.warn(i + ": start " + start + ", length " + lines.get(i) + ", end " + (start + lines.get(i)) + ", width " + lines.getTag(i));
         }
     }
     
@@ -54,9 +56,7 @@ public class PLineList implements PTextListener {
      * contained in the coordinates argument.
      */
     public int getIndex(PCoordinates coords) {
-        validateStartPositions(coords.getLineIndex());
-        Line line = getLine(coords.getLineIndex());
-        return line.getStart() + coords.getCharOffset();
+        return getLineStart(coords.getLineIndex()) + coords.getCharOffset();
     }
     
     /**
@@ -67,9 +67,8 @@ public class PLineList implements PTextListener {
         if (index < 0 || index >= text.length()) {
             throw new IndexOutOfBoundsException("Index " + index + " out of bounds in text of length " + text.length());
         }
-        validateStartPositions(lines.size());
         int line = getLineIndex(index);
-        int charOffset = index - getLine(line).getStart();
+        int charOffset = index - getLineStart(line);
         return new PCoordinates(line, charOffset);
     }
     
@@ -78,21 +77,7 @@ public class PLineList implements PTextListener {
      * within the underlying PTextBuffer model.
      */
     public int getLineIndex(int charIndex) {
-        int minLine = 0;
-        int maxLine = lines.size();
-        while (maxLine - minLine > 1) {
-            int midLine = (maxLine + minLine) / 2;
-            Line mid = getLine(midLine);
-            if (mid.containsIndex(charIndex)) {
-                return midLine;
-            }
-            if (charIndex < mid.getStart()) {
-                maxLine = midLine;
-            } else {
-                minLine = midLine;
-            }
-        }
-        return minLine;
+        return Math.min(lines.countNotExceeding(charIndex), lines.size() - 1);
     }
     
     /**
@@ -102,12 +87,32 @@ public class PLineList implements PTextListener {
         return lines.size();
     }
     
-    /** Returns an object representing information about the line with the given index. */
-    public Line getLine(int lineIndex) {
-        validateStartPositions(lineIndex);
+    /** Returns the character offset within the underlying PTextBuffer model of the start of the given line. */
+    public int getLineStart(int lineIndex) {
+        checkLineIndex(lineIndex);
+        return lines.prefixSum(lineIndex);
+    }
+    
+    /** Returns the number of characters in the given line, including the newline character if there is one. */
+    public int getLineLength(int lineIndex) {
+        checkLineIndex(lineIndex);
         return lines.get(lineIndex);
     }
     
+    /** Returns the offset of the end of the given line, not including any newline character. */
+    public int getLineEndOffsetBeforeTerminator(int lineIndex) {
+        final int start = getLineStart(lineIndex);
+        final int length = lines.get(lineIndex);
+        final boolean isLineTerminated = (length > 0 && text.charAt(start + length - 1) == '\n');
+        return start + (isLineTerminated ? length - 1 : length);
+    }
+    
+    private void checkLineIndex(int lineIndex) {
+        if (lineIndex < 0 || lineIndex >= lines.size()) {
+            throw new IndexOutOfBoundsException("line " + lineIndex + " not in half-open range [0.." + lines.size() + ")");
+        }
+    }
+    
     private void fireEvent(PLineEvent event) {
         for (PLineListener listener : listeners) {
             switch (event.getType()) {
@@ -133,22 +138,20 @@ public class PLineList implements PTextListener {
         int startIndex = lineIndex;
         CharSequence chars = event.getCharacters();
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
         if (newlineCount > 0) {
             int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            int endChars = line.getLength() - charOffset;  // The characters after the insert position.
-            line.setLength(charOffset + segmentLengths[0]);
+            int charOffset = event.getOffset() - getLineStart(lineIndex);
+            int endChars = lines.get(lineIndex) - charOffset;  // The characters after the insert position.
+            lines.insert(lineIndex + 1, newlineCount, 0, INVALID_WIDTH);
+            setLength(lineIndex, charOffset + segmentLengths[0]);
             for (int i = 1; i < segmentLengths.length; i++) {
-                lineIndex++;
-                line = new Line(line.getStart() + line.getLength(), segmentLengths[i]);
-                lines.add(lineIndex, line);
+                setLength(lineIndex + i, segmentLengths[i]);
             }
-            line.setLength(line.getLength() + endChars);
+            lineIndex += newlineCount;
+            setLength(lineIndex, lines.get(lineIndex) + endChars);
         } else {
-            line.setLength(line.getLength() + chars.length());
+            adjustLength(lineIndex, chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
         fireEvent(new PLineEvent(this, PLineEvent.CHANGED, startIndex, 1));
         if (newlineCount > 0) {
             fireEvent(new PLineEvent(this, PLineEvent.ADDED, startIndex + 1, newlineCount));
@@ -160,22 +163,19 @@ public class PLineList implements PTextListener {
         int lineIndex = getLineIndex(event.getOffset());
         CharSequence chars = event.getCharacters();
         int newlineCount = StringUtilities.count(chars, '\n');
-        Line line = getLine(lineIndex);
         if (newlineCount > 0) {
-            // FIXME: Elliott suggests that we might only need the last element of this array.
-            int[] segmentLengths = getLineSegmentLengths(chars, newlineCount);
-            int charOffset = event.getOffset() - line.getStart();
-            // FIXME: Elliott suggests that reordering could remove the need for the tricksy arithmetic.
-            if (segmentLengths.length > 2) {
-                lines.subList(lineIndex + 1, lineIndex + 1 + segmentLengths.length - 2).clear();
+            // Only the length of the last segment matters: it's the part of the last affected line that was removed.
+            int lastSegmentLength = 0;
+            while (chars.charAt(chars.length() - 1 - lastSegmentLength) != '\n') {
+                ++lastSegmentLength;
             }
-            int endChars = getLine(lineIndex + 1).getLength() - segmentLengths[segmentLengths.length - 1];
-            lines.remove(lineIndex + 1);
-            line.setLength(charOffset + endChars);
+            int charOffset = event.getOffset() - getLineStart(lineIndex);
+            int endChars = lines.get(lineIndex + newlineCount) - lastSegmentLength;
+            lines.remove(lineIndex + 1, newlineCount);
+            setLength(lineIndex, charOffset + endChars);
         } else {
-            line.setLength(line.getLength() - chars.length());
+            adjustLength(lineIndex, -chars.length());
         }
-        linesAreInvalidAfter(lineIndex);
         fireEvent(new PLineEvent(this, PLineEvent.CHANGED, lineIndex, 1));
         if (newlineCount > 0) {
             fireEvent(new PLineEvent(this, PLineEvent.REMOVED, lineIndex + 1, newlineCount));
@@ -200,39 +200,38 @@ public class PLineList implements PTextListener {
         fireEvent(new PLineEvent(this, PLineEvent.COMPLETELY_REPLACED, 0, lines.size()));
     }
     
-    private void linesAreInvalidAfter(int lineIndex) {
-        lastValidLineIndex = Math.min(lastValidLineIndex, lineIndex);
+    /** Changes the length of a line without changing the number of lines. */
+    private void adjustLength(int lineIndex, int delta) {
+        lines.add(lineIndex, delta);
+        lines.setTag(lineIndex, INVALID_WIDTH);
     }
     
-    private void validateStartPositions(int toLineIndex) {
-        if (toLineIndex > lastValidLineIndex) {
-            for (int i = lastValidLineIndex; i < toLineIndex; i++) {
-                // We must get the lines straight out of the ArrayList, and must not call getLine,
-                // since that in turn would call this method, resulting in an infinite recursion.
-                Line prevLine = lines.get(i);
-                Line thisLine = lines.get(i + 1);
-                thisLine.setStart(prevLine.getStart() + prevLine.getLength());
-            }
-            lastValidLineIndex = toLineIndex;
-        }
+    private void setLength(int lineIndex, int length) {
+        lines.set(lineIndex, length);
+        lines.setTag(lineIndex, INVALID_WIDTH);
     }
     
     private void generateLines() {
-        lines = new ArrayList<Line>();
+        int lineCount = 0;
+        int[] lengths = new int[16];
         int lastLineStart = 0;
         int nextNewline;
         while ((nextNewline = text.indexOf('\n', lastLineStart)) != -1) {
             // Everything from the last line start up to and including the newline is a new line.
-            lines.add(new Line(lastLineStart, nextNewline + 1 - lastLineStart));
+            if (lineCount + 1 == lengths.length) {
+                lengths = Arrays.copyOf(lengths, 2 * lengths.length);
+            }
+            lengths[lineCount++] = nextNewline + 1 - lastLineStart;
             lastLineStart = nextNewline + 1;
         }
-        lines.add(new Line(lastLineStart, text.length() - lastLineStart));
-        lastValidLineIndex = lines.size() - 1;
+        // There's always room for the last line.
+        lengths[lineCount++] = text.length() - lastLineStart;
+        lines.setAll(lengths, lineCount, INVALID_WIDTH);
     }
     
     public void invalidateWidths() {
         for (int i = 0; i < lines.size(); ++i) {
-            lines.get(i).width = INVALID_WIDTH;
+            lines.setTag(i, INVALID_WIDTH);
         }
     }
     
@@ -241,85 +240,23 @@ public class PLineList implements PTextListener {
      * any newline characters.
      */
     public CharSequence getLineContents(int lineIndex) {
-        Line line = getLine(lineIndex);
-        return text.subSequence(line.getStart(), line.getEndOffsetBeforeTerminator(text));
+        return text.subSequence(getLineStart(lineIndex), getLineEndOffsetBeforeTerminator(lineIndex));
     }
     
     /** Returns whether the render width is valid.  To be used only by the PTextArea. */
     public boolean isWidthValid(int lineIndex) {
-        return getLine(lineIndex).width != INVALID_WIDTH;
+        return getWidth(lineIndex) != INVALID_WIDTH;
     }
     
     /** Returns the render width of the text.  To be used only by the PTextArea. */
     public int getWidth(int lineIndex) {
-        return getLine(lineIndex).width;
+        checkLineIndex(lineIndex);
+        return lines.getTag(lineIndex);
     }
     
-    /**
-     * A PLineList.Line holds information about the location and length of a particular line of
-     * text.  It also contains information about how wide this line is when its text is rendered.
-     * 
-     * FIXME: we create a large number of these small but long-lived objects. Maybe PLineList should contain three int[]s instead? We could still hand a Line to callers if we wished.
-     */
-    public static class Line {
-        private int start;
-        private int length;
-        private int width;
-        
-        public Line(int start, int length) {
-            this.start = start;
-            this.length = length;
-            this.width = INVALID_WIDTH;
-        }
-        
-        /** Sets the render width of the text.  To be used only by the PTextArea. */
-        public void setWidth(int width) {
-            this.width = width;
-        }
-        
-        /** Returns the character offset within the underlying PTextBuffer model of the start of this line. */
-        public int getStart() {
-            return start;
-        }
-        
-        /** Returns the number of characters in this line, including the newline character if there is one. */
-        public int getLength() {
-            return length;
-        }
-        
-        private void setStart(int start) {
-            this.start = start;
-        }
-        
-        private void setLength(int length) {
-            this.length = length;
-            this.width = INVALID_WIDTH;
-        }
-        
-        private int getLengthBeforeTerminator(PTextBuffer text) {
-            return isLineTerminated(text) ? length - 1 : length;
-        }
-        
-        /** Returns the offset of the end of this line, not including any newline character. */
-        public int getEndOffsetBeforeTerminator(PTextBuffer text) {
-            return start + getLengthBeforeTerminator(text);
-        }
-        
-        /**
-         * Returns true if the specified character offset from the start of the underlying PTextBuffer model is
-         * held within this line.
-         */
-        private boolean containsIndex(int charIndex) {
-            return (charIndex >= start) && (charIndex < start + length);
-        }
-        
-        /** Returns true when this line is terminated by a newline character. */
-        private boolean isLineTerminated(PTextBuffer text) {
-            if (length == 0) {
-                return false;
-            } else {
-                return text.charAt(start + length - 1) == '\n';
-            }
-        }
+    /** Sets the render width of the text.  To be used only by the PTextArea. */
+    public void setWidth(int lineIndex, int width) {
+        checkLineIndex(lineIndex);
+        lines.setTag(lineIndex, width);
     }
 }
@@ -0,0 +1,256 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Remembers a styler's lexer state at the start of each line, so that styling a line doesn't mean lexing all the lines before it.
+ * 
+ * A state is a small int meaning something like "in a multi-line comment" or "in a heredoc ending with EOF".
+ * The state at the start of the first line is always INITIAL_STATE.
+ * 
+ * An edit can only change the states of the lines after it, and usually only a few of them: opening a C comment at the top of a file changes every line down to the next comment close, but no further.
+ * So rather than forgetting everything after an edit, we keep the old states (moved to follow inserted and removed lines), and when lexing from the edit reaches a line whose state is the same as before, we know the rest are still right.
+ */
+final class PLineStateCache {
+    static final int INITIAL_STATE = 0;
+    
+    interface LineLexer {
+        /**
+         * Returns the state at the start of the line after 'lineIndex', given the state at the start of 'lineIndex'.
+         */
+        int lexLine(int lineIndex, int startState);
+    }
+    
+    private final LineLexer lexer;
+    
+    // states[i] is the state at the start of line i.
+    private int[] states;
+    // The states for lines 0 to lastGoodLine are known to be correct.
+    private int lastGoodLine;
+    // The states for lines lastDirtyLine + 1 to lastCachedLine are from before the edits since lastGoodLine was last further on.
+    // Lines up to lastDirtyLine have been edited (or inserted), so their old states are useless.
+    private int lastDirtyLine;
+    private int lastCachedLine;
+    
+    PLineStateCache(LineLexer lexer) {
+        this.lexer = lexer;
+        clear();
+    }
+    
+    synchronized void clear() {
+        states = new int[1024];
+        states[0] = INITIAL_STATE;
+        lastGoodLine = 0;
+        lastDirtyLine = -1;
+        lastCachedLine = 0;
+    }
+    
+    synchronized int getStateAtStartOfLine(int lineIndex) {
+        while (lastGoodLine < lineIndex) {
+            final int nextLine = lastGoodLine + 1;
+            final int nextState = lexer.lexLine(lastGoodLine, states[lastGoodLine]);
+            if (nextLine > lastDirtyLine && nextLine <= lastCachedLine && states[nextLine] == nextState) {
+                // We've caught up with the states from before the edits, so the rest of them are still right.
+                lastGoodLine = lastCachedLine;
+            } else {
+                ensureCapacity(nextLine + 1);
+                states[nextLine] = nextState;
+                lastGoodLine = nextLine;
+            }
+        }
+        lastCachedLine = Math.max(lastCachedLine, lastGoodLine);
+        return states[lineIndex];
+    }
+    
+    /**
+     * Updates the cache after the given change, which has already been made to 'lines'.
+     * Returns true if the states of the lines after the change may have changed, in which case those lines need restyling.
+     */
+    synchronized boolean textChanged(PLineList lines, PTextEvent event) {
+        final int lineIndex = lines.getLineIndex(event.getOffset());
+        final int newlineCount = StringUtilities.count(event.getCharacters(), '\n');
+        return linesChanged(lineIndex, event.isInsert() ? newlineCount : -newlineCount);
+    }
+    
+    // Handles a change to line 'lineIndex' which also inserted (positive 'lineCountDelta') or removed (negative 'lineCountDelta') lines after it.
+    private boolean linesChanged(int lineIndex, int lineCountDelta) {
+        if (lineIndex >= lastCachedLine) {
+            // The state at the start of a line only depends on the lines before it, and we know nothing about the lines after this one.
+            return false;
+        }
+        if (lineCountDelta == 0 && lastGoodLine > lineIndex && lexer.lexLine(lineIndex, states[lineIndex]) == states[lineIndex + 1]) {
+            // Most typing doesn't change the state at the end of the line, in which case nothing after it has changed either.
+            return false;
+        }
+        
+        if (lastDirtyLine < lastGoodLine) {
+            // We've lexed past the earlier edits without catching up with the old states after them.
+            // Those old states are still from before the earlier edits, so if this change is before where we've got to, lexing from here mustn't be allowed to catch up with them.
+            if (lineIndex < lastGoodLine) {
+                lastCachedLine = lastGoodLine;
+            }
+            lastDirtyLine = -1;
+        }
+        
+        // Move the old states after the change to follow their lines.
+        // When lines are removed, the first line to move is the one after them.
+        final int firstMovedLine = lineIndex + 1 + Math.max(0, -lineCountDelta);
+        if (lastCachedLine < firstMovedLine) {
+            // The only old states we had after the change were for removed lines.
+            lastCachedLine = lineIndex;
+        } else if (lineCountDelta != 0) {
+            ensureCapacity(lastCachedLine + lineCountDelta + 1);
+            System.arraycopy(states, firstMovedLine, states, firstMovedLine + lineCountDelta, lastCachedLine - firstMovedLine + 1);
+            lastCachedLine += lineCountDelta;
+        }
+        if (lastDirtyLine >= firstMovedLine) {
+            lastDirtyLine += lineCountDelta;
+        }
+        lastDirtyLine = Math.max(lastDirtyLine, lineIndex + Math.max(0, lineCountDelta));
+        lastGoodLine = Math.min(lastGoodLine, lineIndex);
+        return true;
+    }
+    
+    private void ensureCapacity(int lineCount) {
+        if (states.length < lineCount) {
+            states = Arrays.copyOf(states, Math.max(lineCount, 2 * states.length));
+        }
+    }
+    
+    // For the tests, a lexer whose state is the depth of braces.
+    private static LineLexer makeBraceLexer(List<String> lines) {
+        return (lineIndex, startState) -> {
+            int state = startState;
+            for (char ch : lines.get(lineIndex).toCharArray()) {
+                if (ch == '{') {
+                    ++state;
+                } else if (ch == '}') {
+                    --state;
+                }
+            }
+            return state;
+        };
+    }
+    
+    // Returns the state at the start of each line (and after the last), lexing from the top.
+    private static int[] lexFromScratch(List<String> lines) {
+        final LineLexer lexer = makeBraceLexer(lines);
+        final int[] result = new int[lines.size() + 1];
+        for (int i = 0; i < lines.size(); ++i) {
+            result[i + 1] = lexer.lexLine(i, result[i]);
+        }
+        return result;
+    }
+    
+    private static void checkAllStates(PLineStateCache cache, List<String> lines) {
+        final int[] expected = lexFromScratch(lines);
+        for (int i = 0; i < lines.size(); ++i) {
+            Assert.equals(cache.getStateAtStartOfLine(i), expected[i]);
+        }
+    }
+    
+    @Test private static void testInsertedLines() {
+        ArrayList<String> lines = new ArrayList<>(Arrays.asList("a", "{", "b", "}", "c", "d"));
+        PLineStateCache cache = new PLineStateCache(makeBraceLexer(lines));
+        checkAllStates(cache, lines);
+        // Typing "x {\ny\n" at the start of line 4 leaves everything after it one brace deeper.
+        lines.set(4, "x {");
+        lines.add(5, "y");
+        lines.add(6, "c");
+        Assert.equals(cache.linesChanged(4, 2), true);
+        checkAllStates(cache, lines);
+        // Inserting lines that don't change the state moves the old states along, and they're still right.
+        lines.add(2, "z");
+        Assert.equals(cache.linesChanged(1, 1), true);
+        checkAllStates(cache, lines);
+    }
+    
+    @Test private static void testRemovedLines() {
+        ArrayList<String> lines = new ArrayList<>(Arrays.asList("a", "{", "b", "{", "c", "}", "d", "e"));
+        PLineStateCache cache = new PLineStateCache(makeBraceLexer(lines));
+        checkAllStates(cache, lines);
+        // Removing "{\nc\n" from the start of line 3 leaves everything after it one brace shallower.
+        lines.remove(3);
+        lines.remove(3);
+        Assert.equals(cache.linesChanged(3, -2), true);
+        checkAllStates(cache, lines);
+        // Removing the last lines, when we only know the states of the lines before them.
+        cache.clear();
+        Assert.equals(cache.getStateAtStartOfLine(2), 1);
+        lines.remove(5);
+        lines.remove(4);
+        Assert.equals(cache.linesChanged(3, -2), false);
+        checkAllStates(cache, lines);
+    }
+    
+    @Test private static void testMultiLineEdits() {
+        ArrayList<String> lines = new ArrayList<>(Arrays.asList("a", "{", "b", "c", "}", "d", "{", "e", "}", "f"));
+        PLineStateCache cache = new PLineStateCache(makeBraceLexer(lines));
+        checkAllStates(cache, lines);
+        // A replacement is a removal followed by an insertion, and we may not be asked for any states in between.
+        // Replace lines 2 to 4 ("b", "c", "}") with "{", "x", "y", "z".
+        lines.subList(2, 5).clear();
+        lines.add(2, "");
+        Assert.equals(cache.linesChanged(2, -2), true);
+        lines.set(2, "{");
+        lines.addAll(3, Arrays.asList("x", "y", "z"));
+        Assert.equals(cache.linesChanged(2, 3), true);
+        checkAllStates(cache, lines);
+        // An edit before one we haven't caught up with yet.
+        Assert.equals(cache.getStateAtStartOfLine(3), 2);
+        lines.set(7, "}}");
+        Assert.equals(cache.linesChanged(7, 0), true);
+        lines.set(0, "{");
+        Assert.equals(cache.linesChanged(0, 0), true);
+        checkAllStates(cache, lines);
+    }
+    
+    @Test private static void testTypingWithinALine() {
+        ArrayList<String> lines = new ArrayList<>(Arrays.asList("a", "{", "b", "}", "c"));
+        PLineStateCache cache = new PLineStateCache(makeBraceLexer(lines));
+        checkAllStates(cache, lines);
+        // The state at the end of the line doesn't change, so nothing after it needs restyling.
+        lines.set(2, "bb");
+        Assert.equals(cache.linesChanged(2, 0), false);
+        checkAllStates(cache, lines);
+        lines.set(2, "bb}");
+        Assert.equals(cache.linesChanged(2, 0), true);
+        checkAllStates(cache, lines);
+    }
+    
+    @Test private static void testAgainstLexingFromScratch() {
+        final String[] lineTexts = { "", "x", "{", "}", "{ }", "} {", "{{" };
+        final Random random = new Random(1);
+        ArrayList<String> lines = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            lines.add(lineTexts[random.nextInt(lineTexts.length)]);
+        }
+        PLineStateCache cache = new PLineStateCache(makeBraceLexer(lines));
+        for (int step = 0; step < 5000; ++step) {
+            final int lineIndex = random.nextInt(lines.size());
+            int lineCountDelta = 0;
+            final int operation = random.nextInt(3);
+            if (operation == 0) {
+                lineCountDelta = 1 + random.nextInt(3);
+                for (int i = 0; i < lineCountDelta; ++i) {
+                    lines.add(lineIndex + 1, lineTexts[random.nextInt(lineTexts.length)]);
+                }
+            } else if (operation == 1 && lineIndex + 1 < lines.size() && lines.size() > 10) {
+                lineCountDelta = -(1 + random.nextInt(Math.min(3, lines.size() - lineIndex - 1)));
+                lines.subList(lineIndex + 1, lineIndex + 1 - lineCountDelta).clear();
+            }
+            lines.set(lineIndex, lineTexts[random.nextInt(lineTexts.length)]);
+            cache.linesChanged(lineIndex, lineCountDelta);
+            // Sometimes ask about one line, leaving the rest to catch up with later; sometimes ask about them all.
+            if (random.nextInt(10) == 0) {
+                checkAllStates(cache, lines);
+            } else if (random.nextBoolean()) {
+                final int queryLine = random.nextInt(lines.size());
+                Assert.equals(cache.getStateAtStartOfLine(queryLine), lexFromScratch(lines)[queryLine]);
+            }
+        }
+        checkAllStates(cache, lines);
+    }
+}
@@ -1,6 +1,7 @@
 package e.ptextarea;
 
-import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import e.util.*;
 
 /**
@@ -25,110 +26,233 @@ import e.util.*;
  *         area.getLock().relinquishReadLock();
  *     }
  * }
- *
+ * 
  * Locks are reference counted, so it is safe to get and relinquish a lock in a nested fashion.
  * 
- * FIXME: switch to java.util.concurrent.ReentrantReadWriteLock?
+ * Rule 4 (upgrading a read lock to the write lock) is why this isn't simply a ReentrantReadWriteLock, which doesn't allow that.
+ * Instead, taking or releasing an uncontended read lock is just an atomic increment or decrement plus a thread-local count, so readers on different threads don't serialize each other.
+ * Threads only block (on a ReentrantLock's Condition) when there's a writer in the way.
+ * Like the old synchronized implementation, readers are preferred: a waiting writer doesn't stop new readers.
+ * 
+ * Very short read-only operations that can't be confused by a concurrent modification can avoid locking altogether by using an optimistic read:
+ * 
+ *     long stamp = lock.tryOptimisticRead();
+ *     Thing result = readSomethingThatCantThrow();
+ *     if (lock.validate(stamp)) {
+ *         return result;
+ *     }
+ *     // Fall back to getReadLock.
+ * 
+ * That's implemented with a StampedLock that's held for writing while anyone holds our write lock.
+ * 
+ * Contended acquisitions are timed by the "PLock read contention" and "PLock write contention" Stopwatch instances, and optimistic reads invalidated by a write are counted by getFailedOptimisticReadCount.
  * 
  * @author Phil Norman
  */
 
 public class PLock {
-    private Map<Thread, Integer> readLocks = new HashMap<>();
-    private Thread writeLock = null;
+    private static final Stopwatch readContentionStopwatch = Stopwatch.get("PLock read contention");
+    private static final Stopwatch writeContentionStopwatch = Stopwatch.get("PLock write contention");
+    private static final AtomicLong failedOptimisticReadCount = new AtomicLong();
+    
+    // The number of threads holding at least one read lock (not the number of read locks).
+    private final AtomicInteger readerCount = new AtomicInteger();
+    // Each thread's nesting depth of read locks on this PLock.
+    private final ThreadLocal<int[]> readLockDepth = new ThreadLocal<int[]>() {
+        @Override protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    
+    // Only modified while holding 'mutex', but read without it by readers on the fast path.
+    private volatile Thread writeLock = null;
     private int writeLockCount = 0;
+    // The number of threads in getWriteLock waiting for readers to leave. Readers leaving check this to know whether to wake them.
+    private final AtomicInteger waitingWriterCount = new AtomicInteger();
+    
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final Condition lockReleased = mutex.newCondition();
+    
+    // Held for writing whenever the write lock is held, so optimistic readers can tell whether a write happened.
+    private final StampedLock versionLock = new StampedLock();
+    private long versionLockStamp;
     
-    public synchronized void getReadLock() {
+    public void getReadLock() {
         Thread currentThread = Thread.currentThread();
-        final long startTimeNs = System.nanoTime();
-        boolean gotStuck = false;
-        while (canClaimReadLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get read lock.", ex);
-            }
+        int[] depth = readLockDepth.get();
+        if (depth[0] > 0) {
+            // Nested read locks always succeed: we already hold one, so no other thread can hold the write lock.
+            ++depth[0];
+            return;
         }
-        report(gotStuck, startTimeNs, "read");
-        if (readLocks.containsKey(currentThread)) {
-            readLocks.put(currentThread, 1 + readLocks.get(currentThread));
-        } else {
-            readLocks.put(currentThread, 1);
+        readerCount.incrementAndGet();
+        // If a writer claims the lock after this check, it will see our increment and wait for us.
+        if (writeLock == null || writeLock == currentThread) {
+            depth[0] = 1;
+            return;
         }
+        readerCount.decrementAndGet();
+        waitForReadLock(currentThread, depth);
     }
     
-    private boolean canClaimReadLock(Thread currentThread) {
-        return ((writeLock == null) || (writeLock == currentThread));
+    private void waitForReadLock(Thread currentThread, int[] depth) {
+        final long startTimeNs = System.nanoTime();
+        Stopwatch.Timer timer = readContentionStopwatch.start();
+        mutex.lock();
+        try {
+            // A writer waiting for upgrade might have been waiting for our back-off.
+            lockReleased.signalAll();
+            while (true) {
+                readerCount.incrementAndGet();
+                if (writeLock == null || writeLock == currentThread) {
+                    break;
+                }
+                readerCount.decrementAndGet();
+                try {
+                    lockReleased.await();
+                } catch (InterruptedException ex) {
+                    Log.warn("Interrupted while attempting to get read lock.", ex);
+                }
+            }
+        } finally {
+            mutex.unlock();
+            timer.stop();
+        }
+        report(startTimeNs, "read");
+        depth[0] = 1;
     }
     
-    public synchronized void relinquishReadLock() {
+    public void relinquishReadLock() {
         Thread currentThread = Thread.currentThread();
-        if (readLocks.containsKey(currentThread) == false) {
+        int[] depth = readLockDepth.get();
+        if (depth[0] == 0) {
             throw new RuntimeException("Cannot relinquish read lock on thread " + currentThread + " because it does not hold a lock.");
         }
-        int newLockCount = readLocks.get(currentThread) - 1;
-        if (newLockCount == 0) {
-            readLocks.remove(currentThread);
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
-        } else {
-            readLocks.put(currentThread, newLockCount);
+        if (--depth[0] == 0) {
+            readerCount.decrementAndGet();
+            // If a writer checked readerCount before our decrement, we're sure to see it waiting here.
+            if (waitingWriterCount.get() > 0) {
+                // IMPORTANT: allow a waiting writer to wake up and check if it can get the lock now.
+                signalAll();
+            }
         }
     }
     
-    public synchronized void getWriteLock() {
-        //Log.warn("getWriteLock() in thread " + Thread.currentThread());
-        //dumpLocks();
+    /**
+     * Tests whether some thread is waiting for the write lock.
+     * Background work that takes read locks over and over can check this to get out of the way, since a waiting writer doesn't stop new readers.
+     */
+    boolean hasWaitingWriter() {
+        return waitingWriterCount.get() > 0;
+    }
+    
+    public void getWriteLock() {
         Thread currentThread = Thread.currentThread();
-        final long startTimeNs = System.nanoTime();
-        boolean gotStuck = false;
-        while (canClaimWriteLock(currentThread) == false) {
-            gotStuck = true;
-            try {
-                wait();
-            } catch (InterruptedException ex) {
-                Log.warn("Interrupted while attempting to get write lock.", ex);
+        mutex.lock();
+        try {
+            if (writeLock == currentThread) {
+                ++writeLockCount;
+                return;
             }
+            // We can only get the write lock if the only reader (if any) is us.
+            final int allowedReaderCount = (readLockDepth.get()[0] > 0) ? 1 : 0;
+            long startTimeNs = 0;
+            Stopwatch.Timer timer = null;
+            waitingWriterCount.incrementAndGet();
+            while (true) {
+                if (writeLock == null) {
+                    writeLock = currentThread;
+                    // A reader incrementing readerCount after this will see writeLock and back off.
+                    if (readerCount.get() == allowedReaderCount) {
+                        break;
+                    }
+                    // Readers are preferred, so don't keep new readers waiting while we wait.
+                    writeLock = null;
+                    lockReleased.signalAll();
+                }
+                if (timer == null) {
+                    startTimeNs = System.nanoTime();
+                    timer = writeContentionStopwatch.start();
+                }
+                try {
+                    lockReleased.await();
+                } catch (InterruptedException ex) {
+                    Log.warn("Interrupted while attempting to get write lock.", ex);
+                }
+            }
+            waitingWriterCount.decrementAndGet();
+            if (timer != null) {
+                timer.stop();
+                report(startTimeNs, "write");
+            }
+            writeLockCount = 1;
+            versionLockStamp = versionLock.writeLock();
+        } finally {
+            mutex.unlock();
         }
-        report(gotStuck, startTimeNs, "write");
-        writeLock = currentThread;
-        writeLockCount++;
     }
     
-    private boolean canClaimWriteLock(Thread currentThread) {
-        if (writeLock == currentThread) {
-            return true;
-        } else if (writeLock != null) {
-            return false;
-        } else if (readLocks.size() == 0) {
-            return true;
-        } else if (readLocks.size() > 1) {
-            return false;
-        } else {
-            return readLocks.containsKey(currentThread);
+    public void relinquishWriteLock() {
+        Thread currentThread = Thread.currentThread();
+        mutex.lock();
+        try {
+            if (writeLock != currentThread) {
+                throw new RuntimeException("Cannot relinquish write lock on thread " + currentThread + " because it does not hold the lock.");
+            }
+            if (writeLockCount <= 0) {
+                throw new RuntimeException("Tried to relinquish write lock on thread " + currentThread + " while write lock count is " + writeLockCount);
+            }
+            writeLockCount--;
+            if (writeLockCount == 0) {
+                versionLock.unlockWrite(versionLockStamp);
+                writeLock = null;
+                lockReleased.signalAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+            }
+        } finally {
+            mutex.unlock();
         }
     }
     
-    public synchronized void relinquishWriteLock() {
-        //Log.warn("relinquishWriteLock() in thread " + Thread.currentThread());
-        Thread currentThread = Thread.currentThread();
-        if (writeLock != currentThread) {
-            throw new RuntimeException("Cannot relinquish write lock on thread " + currentThread + " because it does not hold the lock.");
-        }
-        if (writeLockCount <= 0) {
-            throw new RuntimeException("Tried to relinquish write lock on thread " + currentThread + " while write lock count is " + writeLockCount);
+    /**
+     * Returns a stamp for use with validate, or zero if a write is in progress (in which case validate will always fail).
+     * Taking an optimistic read never blocks and never blocks anyone else.
+     */
+    public long tryOptimisticRead() {
+        return versionLock.tryOptimisticRead();
+    }
+    
+    /**
+     * Tests whether the write lock has been held by anyone since 'stamp' was returned by tryOptimisticRead.
+     * If not, whatever was read in between is consistent.
+     * Note that holding the write lock yourself will cause validation to fail.
+     */
+    public boolean validate(long stamp) {
+        if (versionLock.validate(stamp)) {
+            return true;
         }
-        writeLockCount--;
-        if (writeLockCount == 0) {
-            writeLock = null;
-            notifyAll();  // IMPORTANT: allow other threads to wake up and check if they can get locks now.
+        if (stamp != 0) {
+            failedOptimisticReadCount.incrementAndGet();
         }
+        return false;
     }
     
-    private void report(boolean gotStuck, long startTimeNs, String type) {
-        if (gotStuck == false) {
-            return;
+    /**
+     * Returns the number of optimistic reads (over all PLocks) that failed validation and had to be retried with a real lock.
+     */
+    public static long getFailedOptimisticReadCount() {
+        return failedOptimisticReadCount.get();
+    }
+    
+    private void signalAll() {
+        mutex.lock();
+        try {
+            lockReleased.signalAll();
+        } finally {
+            mutex.unlock();
         }
+    }
+    
+    private void report(long startTimeNs, String type) {
         final long endTimeNs = System.nanoTime();
         final double duration = TimeUtilities.nsToS(endTimeNs - startTimeNs);
         if (duration < 0.1) {
@@ -136,14 +260,4 @@ public class PLock {
         }
         Log.warn("PLock: " + Thread.currentThread() + " waited to get " + type + " lock for " + TimeUtilities.nsToString(endTimeNs - startTimeNs) + ".");
     }
-    
-    private synchronized void dumpLocks() {
-        Log.warn("PLock dump...");
-        Log.warn("Write lock on " + writeLock + " (count=" + writeLockCount + ")");
-        Log.warn(readLocks.size() + " read locks:");
-        for (Thread thread : readLocks.keySet()) {
-            Log.warn("  on " + thread + " (count=" + readLocks.get(thread) + ")");
-        }
-        Log.warn("End of PLock dump.");
-    }
 }
@@ -0,0 +1,326 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A piece table: the text is described by a list of pieces, each of which
+ * refers to a run of characters in either the read-only original text or the
+ * append-only add buffer. Edits only ever touch the list of pieces, so the
+ * cost of an edit doesn't depend on how far it is from the last one, and the
+ * original text is never copied.
+ * 
+ * That makes this the right choice for huge files, particularly in
+ * conjunction with FileCharSequence, which reads the file as it's needed: opening
+ * such a file doesn't need a copy of it on the Java heap at all.
+ * 
+ * Pieces are kept in parallel arrays, sorted by the offset at which they
+ * start in the logical text, so finding the piece for an index is a binary
+ * search. We also remember the last piece we found, because most access is
+ * sequential.
+ */
+final class PPieceTable implements PTextStorage {
+    private static final int MIN_PIECE_CAPACITY = 16;
+    private static final int MIN_ADD_BUFFER_CAPACITY = 1024;
+    private static final int WRITE_CHUNK_SIZE = 8192;
+    
+    // Exactly one of these describes the original text.
+    private final char[] originalChars;
+    private final FileCharSequence originalBytes;
+    
+    private char[] addBuffer = new char[MIN_ADD_BUFFER_CAPACITY];
+    private int addBufferLength = 0;
+    
+    // Piece i covers the logical range [pieceOffsets[i], pieceOffsets[i] + pieceLengths[i]).
+    // Its characters come from [pieceSourceStarts[i], pieceSourceStarts[i] + pieceLengths[i]) of the add buffer if pieceIsAdded[i], and the original otherwise.
+    // There are no empty pieces.
+    private int pieceCount = 0;
+    private int[] pieceOffsets = new int[MIN_PIECE_CAPACITY];
+    private int[] pieceSourceStarts = new int[MIN_PIECE_CAPACITY];
+    private int[] pieceLengths = new int[MIN_PIECE_CAPACITY];
+    private boolean[] pieceIsAdded = new boolean[MIN_PIECE_CAPACITY];
+    
+    private int length = 0;
+    private int lastPieceIndex = 0;
+    
+    /**
+     * Uses 'text' as the original text, without copying it.
+     */
+    PPieceTable(char[] text) {
+        this.originalChars = text;
+        this.originalBytes = null;
+        initOriginalPiece(text.length);
+    }
+    
+    /**
+     * Uses the characters of the file in 'text' as the original text.
+     */
+    PPieceTable(FileCharSequence text) {
+        this.originalChars = null;
+        this.originalBytes = text;
+        initOriginalPiece(text.length());
+    }
+    
+    private void initOriginalPiece(int originalLength) {
+        if (originalLength > 0) {
+            insertPieceSlots(0, 1);
+            setPiece(0, 0, originalLength, false);
+            length = originalLength;
+        }
+    }
+    
+    private void setPiece(int index, int sourceStart, int pieceLength, boolean isAdded) {
+        pieceSourceStarts[index] = sourceStart;
+        pieceLengths[index] = pieceLength;
+        pieceIsAdded[index] = isAdded;
+    }
+    
+    /**
+     * Opens up 'count' uninitialized slots at 'index', growing the arrays if necessary.
+     */
+    private void insertPieceSlots(int index, int count) {
+        if (pieceCount + count > pieceLengths.length) {
+            int newCapacity = Math.max(pieceCount + count, pieceLengths.length * 2);
+            pieceOffsets = Arrays.copyOf(pieceOffsets, newCapacity);
+            pieceSourceStarts = Arrays.copyOf(pieceSourceStarts, newCapacity);
+            pieceLengths = Arrays.copyOf(pieceLengths, newCapacity);
+            pieceIsAdded = Arrays.copyOf(pieceIsAdded, newCapacity);
+        }
+        int moveCount = pieceCount - index;
+        System.arraycopy(pieceOffsets, index, pieceOffsets, index + count, moveCount);
+        System.arraycopy(pieceSourceStarts, index, pieceSourceStarts, index + count, moveCount);
+        System.arraycopy(pieceLengths, index, pieceLengths, index + count, moveCount);
+        System.arraycopy(pieceIsAdded, index, pieceIsAdded, index + count, moveCount);
+        pieceCount += count;
+    }
+    
+    private void removePieceSlots(int index, int count) {
+        int moveCount = pieceCount - (index + count);
+        System.arraycopy(pieceOffsets, index + count, pieceOffsets, index, moveCount);
+        System.arraycopy(pieceSourceStarts, index + count, pieceSourceStarts, index, moveCount);
+        System.arraycopy(pieceLengths, index + count, pieceLengths, index, moveCount);
+        System.arraycopy(pieceIsAdded, index + count, pieceIsAdded, index, moveCount);
+        pieceCount -= count;
+        lastPieceIndex = 0;
+    }
+    
+    /**
+     * Recomputes the logical offsets of all pieces from 'index' onwards.
+     */
+    private void updateOffsetsFrom(int index) {
+        int offset = (index == 0) ? 0 : (pieceOffsets[index - 1] + pieceLengths[index - 1]);
+        for (int i = index; i < pieceCount; ++i) {
+            pieceOffsets[i] = offset;
+            offset += pieceLengths[i];
+        }
+    }
+    
+    /**
+     * Returns the index of the piece containing the character at 'index', which must be in [0, length()).
+     */
+    private int findPiece(int index) {
+        int cached = lastPieceIndex;
+        if (cached < pieceCount && index >= pieceOffsets[cached] && index < pieceOffsets[cached] + pieceLengths[cached]) {
+            return cached;
+        }
+        // Sequential access usually just moves on to the next piece.
+        ++cached;
+        if (cached < pieceCount && index >= pieceOffsets[cached] && index < pieceOffsets[cached] + pieceLengths[cached]) {
+            lastPieceIndex = cached;
+            return cached;
+        }
+        int low = 0;
+        int high = pieceCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (pieceOffsets[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        lastPieceIndex = low;
+        return low;
+    }
+    
+    /**
+     * Ensures that a piece starts at logical offset 'offset', splitting a piece if necessary.
+     * Returns the index of the piece that starts there, or pieceCount if 'offset' is length().
+     */
+    private int splitAt(int offset) {
+        if (offset == length) {
+            return pieceCount;
+        }
+        int index = findPiece(offset);
+        int delta = offset - pieceOffsets[index];
+        if (delta == 0) {
+            return index;
+        }
+        insertPieceSlots(index + 1, 1);
+        setPiece(index + 1, pieceSourceStarts[index] + delta, pieceLengths[index] - delta, pieceIsAdded[index]);
+        pieceOffsets[index + 1] = offset;
+        pieceLengths[index] = delta;
+        return index + 1;
+    }
+    
+    private void appendToAddBuffer(CharSequence chars) {
+        final int charCount = chars.length();
+        if (addBufferLength + charCount > addBuffer.length) {
+            addBuffer = Arrays.copyOf(addBuffer, Math.max(addBufferLength + charCount, addBuffer.length * 2));
+        }
+        if (chars instanceof CharArrayCharSequence) {
+            ((CharArrayCharSequence) chars).copyTo(addBuffer, addBufferLength);
+        } else {
+            for (int i = 0; i < charCount; ++i) {
+                addBuffer[addBufferLength + i] = chars.charAt(i);
+            }
+        }
+        addBufferLength += charCount;
+    }
+    
+    public void insert(int position, CharSequence chars) {
+        final int charCount = chars.length();
+        if (charCount == 0) {
+            return;
+        }
+        final int sourceStart = addBufferLength;
+        appendToAddBuffer(chars);
+        
+        // Typing appends to the add buffer immediately after the previous insertion, so we can usually just extend that piece.
+        if (position > 0) {
+            int previous = findPiece(position - 1);
+            if (pieceIsAdded[previous] && pieceOffsets[previous] + pieceLengths[previous] == position && pieceSourceStarts[previous] + pieceLengths[previous] == sourceStart) {
+                pieceLengths[previous] += charCount;
+                length += charCount;
+                updateOffsetsFrom(previous + 1);
+                return;
+            }
+        }
+        
+        int index = splitAt(position);
+        insertPieceSlots(index, 1);
+        setPiece(index, sourceStart, charCount, true);
+        length += charCount;
+        updateOffsetsFrom(index);
+    }
+    
+    public void remove(int position, int charCount) {
+        if (charCount == 0) {
+            return;
+        }
+        int first = splitAt(position);
+        int end = splitAt(position + charCount);
+        removePieceSlots(first, end - first);
+        length -= charCount;
+        updateOffsetsFrom(first);
+    }
+    
+    public char charAt(int index) {
+        int piece = findPiece(index);
+        int sourceIndex = pieceSourceStarts[piece] + (index - pieceOffsets[piece]);
+        if (pieceIsAdded[piece]) {
+            return addBuffer[sourceIndex];
+        }
+        return (originalChars != null) ? originalChars[sourceIndex] : originalBytes.charAt(sourceIndex);
+    }
+    
+    public int length() {
+        return length;
+    }
+    
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, chars.length, chars, 0);
+        return new CharArrayCharSequence(chars);
+    }
+    
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+        if (charCount == 0) {
+            return;
+        }
+        int piece = findPiece(start);
+        int pieceDelta = start - pieceOffsets[piece];
+        while (charCount > 0) {
+            int copyCount = Math.min(charCount, pieceLengths[piece] - pieceDelta);
+            copySourceChars(piece, pieceSourceStarts[piece] + pieceDelta, copyCount, destination, destinationOffset);
+            destinationOffset += copyCount;
+            charCount -= copyCount;
+            pieceDelta = 0;
+            ++piece;
+        }
+    }
+    
+    private void copySourceChars(int piece, int sourceStart, int charCount, char[] destination, int destinationOffset) {
+        if (pieceIsAdded[piece]) {
+            System.arraycopy(addBuffer, sourceStart, destination, destinationOffset, charCount);
+        } else if (originalChars != null) {
+            System.arraycopy(originalChars, sourceStart, destination, destinationOffset, charCount);
+        } else {
+            originalBytes.getChars(sourceStart, charCount, destination, destinationOffset);
+        }
+    }
+    
+    public int indexOf(char ch, int startIndex) {
+        for (int piece = findPiece(startIndex); piece < pieceCount; ++piece) {
+            final int pieceStart = Math.max(startIndex, pieceOffsets[piece]);
+            final int pieceEnd = pieceOffsets[piece] + pieceLengths[piece];
+            final int sourceDelta = pieceSourceStarts[piece] - pieceOffsets[piece];
+            for (int i = pieceStart; i < pieceEnd; ++i) {
+                final int sourceIndex = i + sourceDelta;
+                final char pieceChar;
+                if (pieceIsAdded[piece]) {
+                    pieceChar = addBuffer[sourceIndex];
+                } else if (originalChars != null) {
+                    pieceChar = originalChars[sourceIndex];
+                } else {
+                    pieceChar = originalBytes.charAt(sourceIndex);
+                }
+                if (pieceChar == ch) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    public void writeTo(Writer writer) throws IOException {
+        char[] chunk = null;
+        for (int piece = 0; piece < pieceCount; ++piece) {
+            if (pieceIsAdded[piece]) {
+                writer.write(addBuffer, pieceSourceStarts[piece], pieceLengths[piece]);
+            } else if (originalChars != null) {
+                writer.write(originalChars, pieceSourceStarts[piece], pieceLengths[piece]);
+            } else {
+                // Copy the file's bytes a chunk at a time rather than materializing the whole piece.
+                if (chunk == null) {
+                    chunk = new char[WRITE_CHUNK_SIZE];
+                }
+                for (int done = 0; done < pieceLengths[piece]; done += chunk.length) {
+                    int chunkLength = Math.min(chunk.length, pieceLengths[piece] - done);
+                    originalBytes.getChars(pieceSourceStarts[piece] + done, chunkLength, chunk, 0);
+                    writer.write(chunk, 0, chunkLength);
+                }
+            }
+        }
+    }
+    
+    public boolean isBackedBy(File file) {
+        if (originalBytes == null) {
+            return false;
+        }
+        try {
+            return file.exists() && Files.isSameFile(originalBytes.getFile().toPath(), file.toPath());
+        } catch (IOException ex) {
+            // If we can't tell, assume the worst.
+            return true;
+        }
+    }
+    
+    public String toString() {
+        char[] chars = new char[length];
+        getChars(0, length, chars, 0);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,230 @@
+package e.ptextarea;
+
+import java.util.*;
+
+/**
+ * Caches the styled segments of a bounded number of lines of a PTextArea.
+ * 
+ * This used to be an unbounded TreeMap, which meant that the memory used grew with how much of the file had ever been painted.
+ * Now, when the cache is full, adding a line evicts one that hasn't been used recently (using the "clock" approximation of LRU).
+ * Lookups don't allocate: the map from line index to slot is an open-addressing hash table of primitive ints.
+ * 
+ * The capacity is the larger of the configured capacity and a few screenfuls of the text area's visible rows, so painting can never evict the lines it's painting.
+ * 
+ * All methods are synchronized, because painting and background work (such as spelling checking or indentation) both use the cache.
+ * 
+ * Lines styled in the background are added with putIfUnchanged, which drops them if the cache has been invalidated since their styling began.
+ */
+final class PSegmentCache {
+    static final int DEFAULT_CAPACITY = 2000;
+    
+    // How many screenfuls we're always willing to cache.
+    // That's the visible one, the one above and two below that PBackgroundStyler styles in advance, and one to spare.
+    private static final int VISIBLE_ROW_MULTIPLIER = 5;
+    
+    private static final int EMPTY = -1;
+    
+    private int configuredCapacity = DEFAULT_CAPACITY;
+    private int visibleRowCount = 0;
+    
+    // An open-addressing hash table with linear probing. keys[i] is EMPTY for unused slots.
+    private int[] keys;
+    private List<PLineSegment>[] values;
+    private boolean[] recentlyUsed;
+    private int size = 0;
+    private int clockHand = 0;
+    
+    // Incremented whenever lines are invalidated.
+    private int generation = 0;
+    
+    PSegmentCache() {
+        allocate(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Sets the number of lines this cache will hold when the visible area is small.
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive, but was " + capacity);
+        }
+        this.configuredCapacity = capacity;
+        reallocateIfNecessary();
+    }
+    
+    /**
+     * Tells the cache how many rows are visible, so that it can make sure it can hold them all.
+     */
+    synchronized void setVisibleRowCount(int visibleRowCount) {
+        if (this.visibleRowCount != visibleRowCount) {
+            this.visibleRowCount = visibleRowCount;
+            reallocateIfNecessary();
+        }
+    }
+    
+    private int getCapacity() {
+        return Math.max(configuredCapacity, VISIBLE_ROW_MULTIPLIER * visibleRowCount);
+    }
+    
+    private void reallocateIfNecessary() {
+        final int capacity = getCapacity();
+        // We keep the load factor at or below 1/2.
+        if (tableSizeFor(capacity) != keys.length) {
+            // The cache is only a cache, so rather than rehash, we throw everything away.
+            allocate(capacity);
+        } else {
+            while (size > capacity) {
+                evictOne();
+            }
+        }
+    }
+    
+    private static int tableSizeFor(int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        final int tableSize = tableSizeFor(capacity);
+        keys = new int[tableSize];
+        Arrays.fill(keys, EMPTY);
+        values = (List<PLineSegment>[]) new List<?>[tableSize];
+        recentlyUsed = new boolean[tableSize];
+        size = 0;
+        clockHand = 0;
+    }
+    
+    /**
+     * Returns the cached segments for the given line, or null.
+     */
+    synchronized List<PLineSegment> get(int lineIndex) {
+        final int slot = findSlot(lineIndex);
+        if (keys[slot] == EMPTY) {
+            return null;
+        }
+        recentlyUsed[slot] = true;
+        return values[slot];
+    }
+    
+    /**
+     * Tests whether the given line is cached, without counting as a use of it.
+     */
+    synchronized boolean contains(int lineIndex) {
+        return keys[findSlot(lineIndex)] != EMPTY;
+    }
+    
+    /**
+     * Returns a stamp to pass to putIfUnchanged.
+     */
+    synchronized int getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Adds the given line, unless lines have been invalidated since getGeneration returned 'generation', in which case the segments may be out of date.
+     */
+    synchronized void putIfUnchanged(int lineIndex, List<PLineSegment> segments, int generation) {
+        if (this.generation == generation) {
+            put(lineIndex, segments);
+        }
+    }
+    
+    synchronized void put(int lineIndex, List<PLineSegment> segments) {
+        int slot = findSlot(lineIndex);
+        if (keys[slot] == EMPTY) {
+            if (size >= getCapacity()) {
+                evictOne();
+                slot = findSlot(lineIndex);
+            }
+            keys[slot] = lineIndex;
+            ++size;
+        }
+        values[slot] = segments;
+        recentlyUsed[slot] = true;
+    }
+    
+    /**
+     * Removes all lines from 'lineIndex' onwards.
+     */
+    synchronized void clearFrom(int lineIndex) {
+        ++generation;
+        int slot = 0;
+        while (slot < keys.length) {
+            if (keys[slot] != EMPTY && keys[slot] >= lineIndex) {
+                // Removal can move a later entry into this slot, so look at it again.
+                removeSlot(slot);
+            } else {
+                ++slot;
+            }
+        }
+    }
+    
+    synchronized void clear() {
+        ++generation;
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, null);
+        Arrays.fill(recentlyUsed, false);
+        size = 0;
+    }
+    
+    /**
+     * Returns the slot containing 'lineIndex', or the empty slot where it would go.
+     */
+    private int findSlot(int lineIndex) {
+        final int mask = keys.length - 1;
+        int slot = hash(lineIndex) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != lineIndex) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+    
+    private static int hash(int lineIndex) {
+        // Line indexes are consecutive, so spread them out a bit (this is the multiplier from Knuth's multiplicative hashing).
+        return lineIndex * 0x9e3779b9;
+    }
+    
+    /**
+     * Evicts an entry that hasn't been used since the clock hand last passed it.
+     */
+    private void evictOne() {
+        final int mask = keys.length - 1;
+        while (true) {
+            clockHand = (clockHand + 1) & mask;
+            if (keys[clockHand] == EMPTY) {
+                continue;
+            }
+            if (recentlyUsed[clockHand]) {
+                recentlyUsed[clockHand] = false;
+            } else {
+                removeSlot(clockHand);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Empties the given slot, moving later entries back so that linear probing still finds them (Knuth's Algorithm R).
+     */
+    private void removeSlot(int slot) {
+        final int mask = keys.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != EMPTY) {
+            final int home = hash(keys[next]) & mask;
+            // Can the entry at 'next' move back into the hole? Only if its home isn't cyclically in (hole, next].
+            final boolean homeInRange = (hole <= next) ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (homeInRange == false) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                recentlyUsed[hole] = recentlyUsed[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = EMPTY;
+        values[hole] = null;
+        recentlyUsed[hole] = false;
+        --size;
+    }
+}
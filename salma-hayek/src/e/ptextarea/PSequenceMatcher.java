@@ -264,7 +264,8 @@ public interface PSequenceMatcher {
         }
         
         public boolean equals(Object otherObj) {
-            if (!(otherObj instanceof RegionEnd)) {
+            // A BashHereDocRegionEnd finds its end differently, so it's never equal to a plain RegionEnd.
+            if (otherObj == null || otherObj.getClass() != getClass()) {
                 return false;
             }
             RegionEnd other = (RegionEnd) otherObj;
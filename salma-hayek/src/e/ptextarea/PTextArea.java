@@ -19,6 +19,11 @@ import e.util.*;
 public class PTextArea extends JComponent implements PLineListener, Scrollable, ClipboardOwner {
     private static final int MIN_WIDTH = 50;
     
+    // Inserting more lines than this at once leaves them to be wrapped in the background.
+    private static final int MAX_LINES_TO_WRAP_IMMEDIATELY = 100;
+    // How long each chunk of background wrapping may hold up the event dispatch thread.
+    private static final long BACKGROUND_WRAP_CHUNK_NS = 10 * 1000 * 1000;
+    
     public static final int NO_MARGIN = -1;
     
     public static final Color LINE_NUMBERS_BACKGROUND_COLOR = new Color(0x888888);
@@ -35,17 +40,17 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     private Point bigRedArrowPoint;
 
     private PLineList lines;
-    // TODO: experiment with java.util.ArrayDeque in Java 6.
-    // But ArrayDeque wouldn't help bulk operations in the middle.
-    private List<SplitLine> splitLines;
+    private SplitLineList splitLines;
+    private final javax.swing.Timer backgroundWrapTimer = new javax.swing.Timer(0, (e) -> wrapSomeLinesInBackground());
     
     // We cache the FontMetrics for readability rather than performance.
     private final FontMetrics[] metrics = new FontMetrics[3];
     private final PTabSegment SINGLE_TAB = new PTabSegment(this, 0, 1);
     
     private PHighlightManager highlights = new PHighlightManager();
-    private PTextStyler textStyler = new PPlainTextStyler(this);
-    private List<StyleApplicator> styleApplicators;
+    // These are volatile, and the list is copy-on-write, because PBackgroundStyler uses them on other threads.
+    private volatile PTextStyler textStyler = new PPlainTextStyler(this);
+    private volatile List<StyleApplicator> styleApplicators;
     private TabStyleApplicator tabStyleApplicator = new TabStyleApplicator(this);
     
     private boolean canShowRightHandMargin = false;
@@ -53,7 +58,8 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     private ArrayList<PCaretListener> caretListeners = new ArrayList<>();
     private ArrayList<PFindListener> findListeners = new ArrayList<>();
-    private TreeMap<Integer, List<PLineSegment>> segmentCache = new TreeMap<>();
+    private final PSegmentCache segmentCache = new PSegmentCache();
+    private final PBackgroundStyler backgroundStyler = new PBackgroundStyler(this);
     
     private UnaryFunctor<String, String> pastedTextReformatter = new UnaryFunctor<String, String>() {
         public String evaluate(String s) {
@@ -181,7 +187,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     private void initStyleApplicators() {
-        styleApplicators = new ArrayList<StyleApplicator>();
+        styleApplicators = new java.util.concurrent.CopyOnWriteArrayList<StyleApplicator>();
         addStyleApplicator(new UnprintableCharacterStyleApplicator(this));
         addStyleApplicator(new HyperlinkStyleApplicator(this));
         textStyler.initStyleApplicators();
@@ -570,7 +576,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     public int getLineStartOffset(int line) {
         getLock().getReadLock();
         try {
-            return lines.getLine(line).getStart();
+            return lines.getLineStart(line);
         } finally {
             getLock().relinquishReadLock();
         }
@@ -584,7 +590,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     public int getLineEndOffsetBeforeTerminator(int line) {
         getLock().getReadLock();
         try {
-            return lines.getLine(line).getEndOffsetBeforeTerminator(getTextBuffer());
+            return lines.getLineEndOffsetBeforeTerminator(line);
         } finally {
             getLock().relinquishReadLock();
         }
@@ -778,7 +784,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
      * character we're pointing to on the returned line will behave correctly.
      */
     private int getLineIndexAtLocation(Point point) {
-        final int maxLineIndex = splitLines.size() - 1;
+        final int maxLineIndex = getSplitLineCount() - 1;
         int lineIndex = (point.y - getInsets().top) / getLineHeight();
         if (lineIndex > maxLineIndex) {
             point.x = Integer.MAX_VALUE;
@@ -828,10 +834,14 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     private final List<PLineSegment> getLineSegmentsForSplitLine(SplitLine splitLine) {
         int lineIndex = splitLine.getLineIndex();
         List<PLineSegment> segments = getLineSegments(lineIndex);
-        int index = 0;
-        ArrayList<PLineSegment> result = new ArrayList<>();
         int start = splitLine.getOffset();
         int end = start + splitLine.getLength();
+        if (start == 0 && end == lines.getLineContents(lineIndex).length()) {
+            // The line isn't wrapped, so the segments are already exactly what we want.
+            return segments;
+        }
+        int index = 0;
+        ArrayList<PLineSegment> result = new ArrayList<>();
         
         for (int i = 0; index < end && i < segments.size(); ++i) {
             PLineSegment segment = segments.get(i);
@@ -855,65 +865,104 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     // FIXME: when should you call getLineSegments, and when should you call getLineSegmentsForSplitLine?
     public List<PLineSegment> getLineSegments(int lineIndex) {
+        // Painting and the spelling checker mostly hit the cache, which is safe to read without the lock as long as nothing was written meanwhile.
+        final long stamp = getLock().tryOptimisticRead();
+        List<PLineSegment> cachedSegments = segmentCache.get(lineIndex);
+        if (cachedSegments != null && getLock().validate(stamp)) {
+            return cachedSegments;
+        }
+        
         getLock().getReadLock();
         try {
             // Return it straight away if we've already cached it.
-            synchronized (segmentCache) {
-                if (segmentCache.containsKey(lineIndex)) {
-                    return segmentCache.get(lineIndex);
-                }
+            cachedSegments = segmentCache.get(lineIndex);
+            if (cachedSegments != null) {
+                return cachedSegments;
             }
             
-            // Let the styler have the first go.
-            List<PLineSegment> segments = textStyler.getTextSegments(lineIndex);
-            
-            // Then let the style applicators add their finishing touches.
-            String line = getLineContents(lineIndex).toString();
-            for (StyleApplicator styleApplicator : styleApplicators) {
-                segments = applyStyleApplicator(styleApplicator, line, segments);
-            }
-            
-            // Finally, deal with tabs.
-            segments = applyStyleApplicator(tabStyleApplicator, line, segments);
-            synchronized (segmentCache) {
-                segmentCache.put(lineIndex, segments);
-            }
+            List<PLineSegment> segments = styleLine(lineIndex);
+            segmentCache.put(lineIndex, segments);
             return segments;
         } finally {
             getLock().relinquishReadLock();
         }
     }
     
-    private void clearSegmentCacheFrom(int lineIndex) {
-        synchronized (segmentCache) {
-            // Take a copy of the indices.  Otherwise, if we try removing stuff from the segment cache
-            // based on values taken from the sub-tree from the line index onwards, we incur a
-            // concurrent modification exception.
-            // FIXME: http://java.sun.com/j2se/1.5.0/docs/api/java/util/HashMap.html#keySet() implies that we can use Iterator.remove to avoid this copy.
-            Set<Integer> keySet = segmentCache.tailMap(lineIndex).keySet();
-            Integer[] indices = keySet.toArray(new Integer[keySet.size()]);
-            for (int index : indices) {
-                segmentCache.remove(index);
+    /**
+     * Styles the given line, if it exists and isn't already cached, and adds it to the segment cache.
+     * Only for use by class PBackgroundStyler, on its own threads.
+     * Returns false if the caller should give up, either because the line no longer exists or because someone's waiting to change the text.
+     */
+    boolean styleLineInBackground(int lineIndex) {
+        if (getLock().hasWaitingWriter()) {
+            return false;
+        }
+        getLock().getReadLock();
+        try {
+            if (lineIndex >= lines.size()) {
+                return false;
+            }
+            final int generation = segmentCache.getGeneration();
+            if (segmentCache.contains(lineIndex) == false) {
+                segmentCache.putIfUnchanged(lineIndex, styleLine(lineIndex), generation);
             }
+            return true;
+        } finally {
+            getLock().relinquishReadLock();
         }
     }
     
-    private void clearSegmentCache() {
-        synchronized (segmentCache) {
-            segmentCache.clear();
+    // Callers must hold the read lock.
+    private List<PLineSegment> styleLine(int lineIndex) {
+        // Let the styler have the first go.
+        List<PLineSegment> segments = textStyler.getTextSegments(lineIndex);
+        
+        // Then let the style applicators add their finishing touches, and finally deal with tabs.
+        // Each of the styler's segments goes through all the applicators in one pass, rather than each applicator making its own pass over the whole line.
+        // The applicators find their text in 'line', which is much quicker to match against than the text buffer.
+        String line = getLineContents(lineIndex).toString();
+        final int lineStartOffset = getLineStartOffset(lineIndex);
+        List<StyleApplicator> applicators = styleApplicators;
+        ArrayList<PLineSegment> result = new ArrayList<>(segments.size());
+        for (PLineSegment segment : segments) {
+            applyStyleApplicators(applicators, 0, line, lineStartOffset, segment, result);
         }
+        return result;
     }
     
-    private List<PLineSegment> applyStyleApplicator(StyleApplicator styleApplicator, String line, List<PLineSegment> inputSegments) {
-        List<PLineSegment> result = new ArrayList<>();
-        for (PLineSegment segment : inputSegments) {
-            if (styleApplicator.canApplyStylingTo(segment.getStyle())) {
-                result.addAll(styleApplicator.applyStylingTo(line, segment));
-            } else {
-                result.add(segment);
+    // Adds to 'result' the segments that 'segment' becomes after applicators 'firstApplicator' onwards (with the tab applicator last) have had their turns.
+    private void applyStyleApplicators(List<StyleApplicator> applicators, int firstApplicator, String line, int lineStartOffset, PLineSegment segment, List<PLineSegment> result) {
+        for (int i = firstApplicator; i <= applicators.size(); ++i) {
+            StyleApplicator styleApplicator = (i < applicators.size()) ? applicators.get(i) : tabStyleApplicator;
+            if (styleApplicator.canApplyStylingTo(segment.getStyle()) == false) {
+                continue;
+            }
+            List<PLineSegment> styledSegments = styleApplicator.applyStylingTo(line, lineStartOffset, segment);
+            if (styledSegments.size() != 1 || styledSegments.get(0) != segment) {
+                // The later applicators get their turns on each of the pieces instead.
+                for (PLineSegment styledSegment : styledSegments) {
+                    applyStyleApplicators(applicators, i + 1, line, lineStartOffset, styledSegment, result);
+                }
+                return;
             }
         }
-        return result;
+        result.add(segment);
+    }
+    
+    private void clearSegmentCacheFrom(int lineIndex) {
+        segmentCache.clearFrom(lineIndex);
+    }
+    
+    private void clearSegmentCache() {
+        segmentCache.clear();
+    }
+    
+    /**
+     * Sets the number of lines whose styled segments we keep (beyond the few screenfuls we always keep).
+     * The default is PSegmentCache.DEFAULT_CAPACITY.
+     */
+    public void setSegmentCacheCapacity(int lineCount) {
+        segmentCache.setCapacity(lineCount);
     }
     
     private void addTabbedSegments(PLineSegment segment, ArrayList<PLineSegment> target) {
@@ -950,20 +999,9 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             if (isLineWrappingInvalid()) {
                 return new PCoordinates(-1, -1);
             }
-            int min = 0;
-            int max = splitLines.size();
-            while (max - min > 1) {
-                int mid = (min + max) / 2;
-                SplitLine line = getSplitLine(mid);
-                if (line.containsIndex(this, location)) {
-                    return new PCoordinates(mid, location - line.getTextIndex(this));
-                } else if (location < line.getTextIndex(this)) {
-                    max = mid;
-                } else {
-                    min = mid;
-                }
-            }
-            return new PCoordinates(min, location - getSplitLine(min).getTextIndex(this));
+            final int lineIndex = lines.getLineIndex(location);
+            final int splitIndex = splitLines.getSplitLineIndex(lineIndex, location - lines.getLineStart(lineIndex));
+            return new PCoordinates(splitIndex, location - getSplitLine(splitIndex).getTextIndex(this));
         } finally {
             getLock().relinquishReadLock();
         }
@@ -1034,9 +1072,12 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         getLock().getReadLock();
         try {
             generateLineWrappings();
+            wrapRowsIn(oldGraphics.getClipBounds());
+            segmentCache.setVisibleRowCount(getVisibleRect().height / getLineHeight() + 1);
             
             PTextAreaRenderer renderer = new PTextAreaRenderer(this, (Graphics2D) oldGraphics);
             renderer.render();
+            styleLinesAroundVisibleArea();
             if (bigRedArrowPoint != null) {
                 renderer.drawBigRedArrowPointingAt(bigRedArrowPoint);
             }
@@ -1047,17 +1088,36 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
 
+    /**
+     * Gets the lines just outside the visible area styled in the background, so scrolling doesn't have to wait for them.
+     */
+    private void styleLinesAroundVisibleArea() {
+        if (isLineWrappingInvalid() || getSplitLineCount() == 0) {
+            return;
+        }
+        Rectangle visible = getVisibleRect();
+        final int maxSplitIndex = getSplitLineCount() - 1;
+        final int firstSplitIndex = Math.max(0, Math.min(maxSplitIndex, (visible.y - getInsets().top) / getLineHeight()));
+        final int lastSplitIndex = Math.max(0, Math.min(maxSplitIndex, (visible.y + visible.height - getInsets().top) / getLineHeight()));
+        final int firstLine = getSplitLine(firstSplitIndex).getLineIndex();
+        final int lastLine = getSplitLine(lastSplitIndex).getLineIndex();
+        backgroundStyler.linesPainted(firstLine, lastLine, lines.size(), segmentCache.getGeneration());
+    }
+    
     public void linesAdded(PLineEvent event) {
         if (isLineWrappingInvalid()) {
             return;
         }
         int lineIndex = event.getLineIndex();
         clearSegmentCacheFrom(lineIndex);
-        int splitIndex = getSplitLineIndex(lineIndex);
-        int firstSplitIndex = splitIndex;
-        changeLineIndices(lineIndex, event.getLength());
-        for (int i = 0; i < event.getLength(); i++) {
-            splitIndex += addSplitLines(lineIndex++, splitIndex);
+        int firstSplitIndex = getSplitLineIndex(lineIndex);
+        splitLines.insertLines(lineIndex, event.getLength());
+        if (event.getLength() <= MAX_LINES_TO_WRAP_IMMEDIATELY) {
+            for (int i = 0; i < event.getLength(); i++) {
+                splitLines.wrapLine(lineIndex + i);
+            }
+        } else {
+            backgroundWrapTimer.start();
         }
         updateHeight();
         repaintFromLine(firstSplitIndex);
@@ -1069,9 +1129,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
         clearSegmentCacheFrom(event.getLineIndex());
         int beginSplitIndex = getSplitLineIndex(event.getLineIndex());
-        int endSplitIndex = getSplitLineIndex(event.getLineIndex() + event.getLength());
-        removeSplitLines(beginSplitIndex, endSplitIndex);
-        changeLineIndices(event.getLineIndex() + event.getLength(), -event.getLength());
+        splitLines.removeLines(event.getLineIndex(), event.getLength());
         updateHeight();
         repaintFromLine(beginSplitIndex);
     }
@@ -1081,35 +1139,19 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         revalidateLineWrappings();
     }
     
-    private void changeLineIndices(int lineIndex, int change) {
-        for (int i = getSplitLineIndex(lineIndex); i < splitLines.size(); i++) {
-            SplitLine line = getSplitLine(i);
-            line.setLineIndex(line.getLineIndex() + change);
-        }
-    }
-    
     public void linesChanged(PLineEvent event) {
         clearSegmentCacheFrom(event.getLineIndex());
         if (isLineWrappingInvalid()) {
             return;
         }
         int lineCountChange = 0;
-        int minLine = Integer.MAX_VALUE;
-        int visibleLineCount = 0;
         for (int i = 0; i < event.getLength(); i++) {
             final int lineIndex = event.getLineIndex() + i;
             setLineWidth(lineIndex);
-            int beginSplitIndex = getSplitLineIndex(event.getLineIndex()); // FIXME: shouldn't this be "+ i" too?
-            int endSplitIndex = getSplitLineIndex(event.getLineIndex() + 1);
-            if (i == 0) {
-                minLine = beginSplitIndex;
-            }
-            int removedCount = removeSplitLines(beginSplitIndex, endSplitIndex);
-            lineCountChange -= removedCount;
-            int addedCount = addSplitLines(event.getLineIndex(), beginSplitIndex);
-            lineCountChange += addedCount;
-            visibleLineCount += addedCount;
+            lineCountChange += splitLines.wrapLine(lineIndex);
         }
+        final int minLine = getSplitLineIndex(event.getLineIndex());
+        final int visibleLineCount = getSplitLineIndex(event.getLineIndex() + event.getLength()) - minLine;
         if (lineCountChange != 0) {
             updateHeight();
             repaintFromLine(getSplitLineIndex(event.getLineIndex()));
@@ -1147,7 +1189,23 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     /** Only for use by class Rewrapper. */
     void rewrap() {
         if (isShowing()) {
-            runWithoutMovingTheVisibleArea(() -> { revalidateLineWrappings(); });
+            runWithoutMovingTheVisibleArea(() -> {
+                getLock().getWriteLock();
+                try {
+                    if (isLineWrappingInvalid()) {
+                        generateLineWrappings();
+                    } else {
+                        // Keep the current wrapping as an estimate, and only do the real work for what's on the screen.
+                        // That keeps resizing responsive however long the file is.
+                        splitLines.invalidateAll();
+                        wrapRowsIn(getVisibleRect());
+                        updateHeight();
+                        backgroundWrapTimer.start();
+                    }
+                } finally {
+                    getLock().relinquishWriteLock();
+                }
+            });
         } else {
             // We're not showing, so dump the splitLines to force regeneration next
             // time we turn visible.
@@ -1176,30 +1234,70 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         getLock().getWriteLock();
         try {
             if (isLineWrappingInvalid() && isShowing()) {
-                splitLines = new ArrayList<SplitLine>();
-                for (int i = 0; i < lines.size(); ++i) {
-                    addSplitLines(i, splitLines.size());
-                }
+                splitLines = new SplitLineList(this, lines.size());
+                wrapRowsIn(getVisibleRect());
                 updateHeight();
+                backgroundWrapTimer.start();
             }
         } finally {
             getLock().relinquishWriteLock();
         }
     }
     
+    /**
+     * Wraps the lines needed to show the given area (in our coordinates), plus a screenful either side so that scrolling doesn't immediately change the total height.
+     */
+    private void wrapRowsIn(Rectangle area) {
+        if (isLineWrappingInvalid() || area == null) {
+            return;
+        }
+        getLock().getWriteLock();
+        try {
+            final int lineHeight = getLineHeight();
+            final int top = area.y - getInsets().top;
+            final int firstRow = (top - area.height) / lineHeight;
+            final int lastRow = (top + 2 * area.height) / lineHeight;
+            if (splitLines.wrapRows(firstRow, lastRow)) {
+                updateHeight();
+            }
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
+    /**
+     * Wraps lines that aren't yet known to be correctly wrapped, a chunk at a time so the event dispatch thread stays responsive.
+     * Runs on backgroundWrapTimer until there's nothing left to do.
+     */
+    private void wrapSomeLinesInBackground() {
+        if (isLineWrappingInvalid() || isShowing() == false) {
+            backgroundWrapTimer.stop();
+            return;
+        }
+        runWithoutMovingTheVisibleArea(() -> {
+            getLock().getWriteLock();
+            try {
+                if (isLineWrappingInvalid() == false && splitLines.wrapSomeLines(System.nanoTime() + BACKGROUND_WRAP_CHUNK_NS)) {
+                    updateHeight();
+                    repaint();
+                }
+            } finally {
+                getLock().relinquishWriteLock();
+            }
+        });
+        if (isLineWrappingInvalid() || splitLines.isFullyWrapped()) {
+            backgroundWrapTimer.stop();
+        }
+    }
+    
     private void updateHeight() {
         Dimension size = getSize();
         Insets insets = getInsets();
-        size.height = getLineHeight() * splitLines.size() + insets.top + insets.bottom;
+        size.height = getLineHeight() * getSplitLineCount() + insets.top + insets.bottom;
         setSize(size);
         setPreferredSize(size);
     }
     
-    private int removeSplitLines(int beginSplitIndex, int endSplitIndex) {
-        splitLines.subList(beginSplitIndex, endSplitIndex).clear();
-        return endSplitIndex - beginSplitIndex;
-    }
-    
     public int getSplitLineIndex(int lineIndex) {
         getLock().getReadLock();
         // Ensure that the splitLines are not null before proceeding. This function can be called
@@ -1207,38 +1305,15 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         // if we don't do this.
         generateLineWrappings();
         try {
-            if (lineIndex > getSplitLine(splitLines.size() - 1).getLineIndex()) {
-                return splitLines.size();
-            }
-            int min = 0;
-            int max = splitLines.size();
-            while (max - min > 1) {
-                int mid = (min + max) / 2;
-                int midIndex = getSplitLine(mid).getLineIndex();
-                if (midIndex == lineIndex) {
-                    return backtrackToLineStart(mid);
-                } else if (midIndex > lineIndex) {
-                    max = mid;
-                } else {
-                    min = mid;
-                }
-            }
-            return backtrackToLineStart(min);
+            return splitLines.getSplitLineIndex(lineIndex);
         } finally {
             getLock().relinquishReadLock();
         }
     }
     
-    private int backtrackToLineStart(int splitIndex) {
-        while (getSplitLine(splitIndex).getOffset() > 0) {
-            splitIndex--;
-        }
-        return splitIndex;
-    }
-    
     public void logLineInfo() {
         Log.warn("Dumping PTextArea SplitLine info:");
-        for (int i = 0; i < splitLines.size(); i++) {
+        for (int i = 0; i < getSplitLineCount(); i++) {
             SplitLine line = getSplitLine(i);
             Log.warn("SplitLine " + i + ": line " + line.getLineIndex() + ", offset " + line.getOffset() + ", length " + line.getLength());
         }
@@ -1256,10 +1331,21 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         return splitLines.get(index);
     }
     
-    private int addSplitLines(int lineIndex, int index) {
-        final int initialSplitLineCount = splitLines.size();
-        if (lines.isWidthValid(lineIndex) == false) {
-            setLineWidth(lineIndex);
+    /**
+     * Returns the SplitLines that the given line should be displayed as, at the current width.
+     * There's always at least one.
+     * If the line's width isn't known, we measure it, but only record it if 'rememberWidth' is true: callers holding just the read lock mustn't modify the PLineList.
+     * Only for use by class SplitLineList.
+     */
+    SplitLine[] wrapLine(int lineIndex, boolean rememberWidth) {
+        final ArrayList<SplitLine> result = new ArrayList<>(1);
+        int lineWidth;
+        if (lines.isWidthValid(lineIndex)) {
+            lineWidth = lines.getWidth(lineIndex);
+        } else if (rememberWidth) {
+            lineWidth = setLineWidth(lineIndex);
+        } else {
+            lineWidth = measureLineWidth(lineIndex);
         }
         Insets insets = getInsets();
         int width = getWidth() - insets.left - insets.right;
@@ -1267,9 +1353,9 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             width = Integer.MAX_VALUE;  // Don't wrap if we don't have any size.
         }
         width = Math.max(width, MIN_WIDTH);  // Ensure we're at least a sensible width.
-        if (lines.getWidth(lineIndex) <= width) {
+        if (lineWidth <= width) {
             // The whole line fits.
-            splitLines.add(index, new SplitLine(lineIndex, 0, lines.getLineContents(lineIndex).length()));
+            result.add(new SplitLine(lineIndex, 0, lines.getLineContents(lineIndex).length()));
         } else {
             // The line's too long, so break it into SplitLines.
             int x = 0;
@@ -1292,16 +1378,16 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
                             }
                         }
                     }
-                    splitLines.add(index++, new SplitLine(lineIndex, lastSplitOffset, i - lastSplitOffset));
+                    result.add(new SplitLine(lineIndex, lastSplitOffset, i - lastSplitOffset));
                     lastSplitOffset = i;
                     x = addCharWidth(0, ch);
                 }
             }
-            if (x > 0) {
-                splitLines.add(index++, new SplitLine(lineIndex, lastSplitOffset, chars.length() - lastSplitOffset));
+            if (x > 0 || result.isEmpty()) {
+                result.add(new SplitLine(lineIndex, lastSplitOffset, chars.length() - lastSplitOffset));
             }
         }
-        return (splitLines.size() - initialSplitLineCount);
+        return result.toArray(new SplitLine[result.size()]);
     }
     
     /**
@@ -1327,13 +1413,19 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
-    private void setLineWidth(int lineIndex) {
+    private int setLineWidth(int lineIndex) {
+        final int width = measureLineWidth(lineIndex);
+        lines.setWidth(lineIndex, width);
+        return width;
+    }
+    
+    private int measureLineWidth(int lineIndex) {
         CharSequence chars = lines.getLineContents(lineIndex);
         int width = 0;
         for (int i = 0; i < chars.length(); ++i) {
             width = addCharWidth(width, chars.charAt(i));
         }
-        lines.getLine(lineIndex).setWidth(width);
+        return width;
     }
     
     /**
@@ -1637,92 +1729,148 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             return 0;
         }
         
-        List<PHighlight> old = getHighlightManager().getNamedHighlightsOverlapping(PFind.MatchHighlight.HIGHLIGHTER_NAME, 0, getTextBuffer().length());
-        
-        // Find all the matches, and update the set of highlights in the text area.
-        // We used to do this the brute-force way, by dropping all highlights and repopulating,
-        // but that's really very slow, particularly when the display area is large, as in involves
-        // repainting the entire text window.
-        // We could further improve the speed by only checking the area which was modified for changes
-        // in the regexp matches, rather than running regexp across the whole file. My timings suggest
-        // it takes around 1-6ms to update highlights when the regexp is "void" in this file. This
-        // seems to be OK, but in other cases it may not be. I guess for now it's not worthwhile.
+        Pattern pattern = PatternUtilities.smartCaseCompile(regularExpression);
         if (birdView != null) {
             birdView.setValueIsAdjusting(true);
         }
         try {
-            // To correctly update the birdview, we need to know which lines used to be highlighted
-            // but aren't any more. We can't just remove the matched line when we drop an old highlight,
-            // as there may be other highlights on the same line.
-            HashSet<Integer> birdViewKeepLines = new HashSet<Integer>();
-            HashSet<Integer> birdViewDeleteLines = new HashSet<Integer>();
-            ListIterator<PHighlight> oldIt = old.listIterator();
-            PHighlight oldHighlight = null;
-            int matchCount = 0;
-            Matcher matcher = PatternUtilities.smartCaseCompile(regularExpression).matcher(getTextBuffer());
-            while (matcher.find()) {
-                ++matchCount;
-                boolean done = false;
-                PHighlight highlight = new PFind.MatchHighlight(this, matcher.start(), matcher.end());
-                while (oldHighlight != null || (oldHighlight == null && oldIt.hasNext())) {
-                    if (oldHighlight == null) {
-                        oldHighlight = oldIt.next();
-                    }
-                    if (oldHighlight.getStartIndex() >= highlight.getStartIndex()) {
-                        // The new highlight is indeed new, so we break out to go deal with it.
-                        // The oldHighlight is later on in the file, so we'll keep it around
-                        // for later processing.
-                        break;
-                    }
-                    // This oldHighlight needs to be removed, as it's no longer valid.
-                    removeHighlight(oldHighlight);
-                    birdViewDeleteLines.add(getLineOfOffset(oldHighlight.getEndIndex()));
-                    oldHighlight = null;
-                }
-                int highlightLine = getLineOfOffset(matcher.end());
-                birdViewKeepLines.add(highlightLine);
-                if (!highlight.equals(oldHighlight)) {
-                    if (oldHighlight != null && oldHighlight.getStartIndex() == highlight.getStartIndex()) {
-                        // Old highlight starts at the same position, but ends elsewhere. This can happen while we're
-                        // writing the find string. In this case we must remove the old highlight and add the new one.
-                        removeHighlight(oldHighlight);
-                        oldHighlight = null;
-                        // No need to ask for the removal from birdview here, as the new highlight will be at the same position.
-                    }
+            // Rebuild the birdview from scratch, because lines with matches may have moved since we last looked.
+            if (birdView != null) {
+                birdView.clearMatchingLines();
+            }
+            return updateMatchHighlights(pattern, 0, getTextBuffer().length(), birdView);
+        } finally {
+            if (birdView != null) {
+                birdView.setValueIsAdjusting(false);
+            }
+        }
+    }
+    
+    /**
+     * Brings the highlights from findAllMatches up to date after the change described by 'event', which has already been made.
+     * Only the lines around the change are searched again, and the lines marked in the given BirdView (which can be null) are moved to follow the text.
+     * Returns false without doing anything if a match of the given regular expression could span lines, because then a change could affect matches anywhere in the file.
+     * In that case, the caller should use findAllMatches instead.
+     */
+    public boolean updateMatchesAfterChange(String regularExpression, BirdView birdView, PTextEvent event) {
+        if (regularExpression == null || regularExpression.length() == 0 || event.isCompleteReplacement() || canMatchAcrossLines(regularExpression)) {
+            return false;
+        }
+        Pattern pattern = PatternUtilities.smartCaseCompile(regularExpression);
+        getLock().getWriteLock();
+        try {
+            if (birdView != null) {
+                birdView.setValueIsAdjusting(true);
+            }
+            try {
+                // Nothing before the change has moved, so the change starts on the same line it always did.
+                final int firstChangedLine = getLineOfOffset(event.getOffset());
+                final int newlineCount = StringUtilities.count(event.getCharacters(), '\n');
+                int lastChangedLine = firstChangedLine;
+                if (event.isInsert()) {
+                    lastChangedLine += newlineCount;
                     if (birdView != null) {
-                        birdView.addMatchingLine(highlightLine);
+                        birdView.moveMatchingLines(firstChangedLine + 1, newlineCount);
                     }
-                    addHighlight(highlight);
-                } else {
-                    // We've dealt with this old highlight, as it's the same as the new one, so
-                    // drop it so that next time around the loop, we fetch the next one.
-                    oldHighlight = null;
+                } else if (birdView != null) {
+                    birdView.moveMatchingLines(firstChangedLine + newlineCount + 1, -newlineCount);
+                }
+                
+                // Search a line either side of the change too.
+                // That's for the anchors: a '$' without MULTILINE, say, also matches before the last newline in the file, so whether it matches at the end of a line can depend on the line after.
+                final int firstLine = Math.max(0, firstChangedLine - 1);
+                final int lastLine = Math.min(getLineCount() - 1, lastChangedLine + 1);
+                if (birdView != null) {
+                    birdView.clearMatchingLines(firstLine, lastLine);
+                }
+                updateMatchHighlights(pattern, getLineStartOffset(firstLine), getLineEndOffsetBeforeTerminator(lastLine), birdView);
+                return true;
+            } finally {
+                if (birdView != null) {
+                    birdView.setValueIsAdjusting(false);
                 }
             }
-            // If we've finished with the matches, we must check if there are old highlights still, which appear
-            // after the last new highlight. They must all be removed.
-            while (oldHighlight != null || oldIt.hasNext()) {
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
+    /**
+     * Matches the parts of a regular expression that could match a line terminator.
+     * This errs on the side of caution, catching things like backreferences and '\t-\r' ranges along with '\n', '\s', negated character classes, and the DOTALL flag.
+     */
+    private static final Pattern MULTI_LINE_CONSTRUCT_PATTERN = Pattern.compile("[\\n\\r\\u0085\\u2028\\u2029]|\\\\[0-9nrtfsvRHWDXpPxuc]|\\[\\^|\\(\\?[a-zA-Z-]*s|\\\\G");
+    
+    /**
+     * Tests whether a match of the given regular expression could span lines.
+     * If not, a change to the text can only affect matches on the lines it touches (and the start or end of the file).
+     */
+    private static boolean canMatchAcrossLines(String regularExpression) {
+        return MULTI_LINE_CONSTRUCT_PATTERN.matcher(regularExpression).find();
+    }
+    
+    // Brings the highlights for matches of 'pattern' between 'beginOffset' and 'endOffset' up to date, and marks the lines they're on in the given BirdView (which can be null).
+    // Returns the number of matches in that range.
+    private int updateMatchHighlights(Pattern pattern, int beginOffset, int endOffset, BirdView birdView) {
+        // A zero-length match can be at 'endOffset' itself.
+        List<PHighlight> old = getHighlightManager().getNamedHighlightsOverlapping(PFind.MatchHighlight.HIGHLIGHTER_NAME, beginOffset, endOffset + 1);
+        
+        // Find all the matches, and update the set of highlights in the text area.
+        // We used to do this the brute-force way, by dropping all highlights and repopulating,
+        // but that's really very slow, particularly when the display area is large, as in involves
+        // repainting the entire text window.
+        ListIterator<PHighlight> oldIt = old.listIterator();
+        PHighlight oldHighlight = null;
+        int matchCount = 0;
+        Matcher matcher = pattern.matcher(getTextBuffer());
+        // Look-arounds and anchors should see the whole text, not just the range we're searching.
+        matcher.region(beginOffset, endOffset);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        while (matcher.find()) {
+            ++matchCount;
+            PHighlight highlight = new PFind.MatchHighlight(this, matcher.start(), matcher.end());
+            while (oldHighlight != null || (oldHighlight == null && oldIt.hasNext())) {
                 if (oldHighlight == null) {
                     oldHighlight = oldIt.next();
                 }
+                if (oldHighlight.getStartIndex() >= highlight.getStartIndex()) {
+                    // The new highlight is indeed new, so we break out to go deal with it.
+                    // The oldHighlight is later on in the file, so we'll keep it around
+                    // for later processing.
+                    break;
+                }
+                // This oldHighlight needs to be removed, as it's no longer valid.
                 removeHighlight(oldHighlight);
-                birdViewDeleteLines.add(getLineOfOffset(oldHighlight.getEndIndex()));
                 oldHighlight = null;
             }
-            // Clear up lines in the birdview that have had highlights removed, but none kept or added.
             if (birdView != null) {
-                for (Integer line : birdViewDeleteLines) {
-                    if (!birdViewKeepLines.contains(line)) {
-                        birdView.removeMatchingLine(line);
-                    }
+                birdView.addMatchingLine(getLineOfOffset(matcher.end()));
+            }
+            if (!highlight.equals(oldHighlight)) {
+                if (oldHighlight != null && oldHighlight.getStartIndex() == highlight.getStartIndex()) {
+                    // Old highlight starts at the same position, but ends elsewhere. This can happen while we're
+                    // writing the find string. In this case we must remove the old highlight and add the new one.
+                    removeHighlight(oldHighlight);
+                    oldHighlight = null;
                 }
+                addHighlight(highlight);
+            } else {
+                // We've dealt with this old highlight, as it's the same as the new one, so
+                // drop it so that next time around the loop, we fetch the next one.
+                oldHighlight = null;
             }
-            return matchCount;
-        } finally {
-            if (birdView != null) {
-                birdView.setValueIsAdjusting(false);
+        }
+        // If we've finished with the matches, we must check if there are old highlights still, which appear
+        // after the last new highlight. They must all be removed.
+        while (oldHighlight != null || oldIt.hasNext()) {
+            if (oldHighlight == null) {
+                oldHighlight = oldIt.next();
             }
+            removeHighlight(oldHighlight);
+            oldHighlight = null;
         }
+        return matchCount;
     }
     
     public void findNext() {
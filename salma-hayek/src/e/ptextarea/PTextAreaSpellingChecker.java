@@ -5,6 +5,8 @@ import java.awt.event.*;
 import java.awt.image.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import javax.swing.*;
 import e.gui.*;
 import e.util.*;
@@ -12,8 +14,19 @@ import e.util.*;
 public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider {
     private static final String HIGHLIGHTER_NAME = "PTextAreaSpellingChecker";
     
+    // Checks of whole files take turns on this thread, though each one's words are checked in parallel by SpellingChecker.
+    private static final ExecutorService executor = ThreadUtilities.newSingleThreadExecutor("Spell-Checker Thread");
+    
+    // A check of the whole file looks at this much text at a time, so it can give up between pieces.
+    private static final int CHARACTERS_PER_PIECE = 32 * 1024;
+    
     private PTextArea component;
     
+    // Incremented for each check of the whole file, so that an older one that's still going can give up.
+    private final AtomicInteger fullCheckNumber = new AtomicInteger();
+    // Incremented for each change to the text, so that a check of the whole file can tell whether the piece it checked has changed since.
+    private final AtomicInteger changeCount = new AtomicInteger();
+    
     public PTextAreaSpellingChecker(PTextArea component) {
         this.component = component;
         initPopUpMenu();
@@ -128,16 +141,19 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
     
     /** Notification that some text has been inserted into the PText. */
     public void textInserted(PTextEvent event) {
+        changeCount.incrementAndGet();
         checkSpelling(event);
     }
     
     /** Notification that some text has been removed from the PText. */
     public void textRemoved(PTextEvent event) {
+        changeCount.incrementAndGet();
         checkSpelling(event);
     }
     
     /** Notification that all of the text held within the PText object has been completely replaced. */
     public void textCompletelyReplaced(PTextEvent event) {
+        changeCount.incrementAndGet();
         checkSpelling(event);
     }
     
@@ -169,14 +185,64 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
     }
     
     /**
-     * Checks the spelling of all the text. Runs in a new thread, because
-     * it can take a second or more for a large file.
+     * Checks the spelling of all the text. Runs on a background thread, because
+     * it can take a while for a large file. Any earlier check of all the text
+     * that's still going is abandoned, as is this one if our window is closed.
      */
     public void checkSpelling() {
-        new Thread(() -> {
-            PTextBuffer buffer = component.getTextBuffer();
-            checkSpelling(buffer, 0, buffer.length());
-        }, "Spell-Checker Thread").start();
+        final int checkNumber = fullCheckNumber.incrementAndGet();
+        executor.execute(() -> {
+            int fromIndex = 0;
+            while (fromIndex != -1 && checkNumber == fullCheckNumber.get() && component.isDisplayable()) {
+                fromIndex = checkSpellingOfPiece(fromIndex);
+            }
+        });
+    }
+    
+    /**
+     * Checks the piece of text starting at 'fromIndex', returning where the
+     * next piece starts, or -1 if this was the last piece.
+     */
+    private int checkSpellingOfPiece(int fromIndex) {
+        final PTextBuffer buffer = component.getTextBuffer();
+        
+        // Copy the piece, so we don't hold the lock while we wait for the spelling checker.
+        final int changeCountBefore;
+        final int length;
+        final int toIndex;
+        final String text;
+        component.getLock().getReadLock();
+        try {
+            changeCountBefore = changeCount.get();
+            length = buffer.length();
+            if (fromIndex >= length) {
+                return -1;
+            }
+            // Don't split a word between pieces.
+            int end = Math.min(length, fromIndex + CHARACTERS_PER_PIECE);
+            while (end < length && Character.isWhitespace(buffer.charAt(end)) == false) {
+                ++end;
+            }
+            toIndex = end;
+            text = buffer.subSequence(fromIndex, toIndex).toString();
+        } finally {
+            component.getLock().relinquishReadLock();
+        }
+        
+        List<Range> misspellings = findMisspellings(text, fromIndex);
+        
+        component.getLock().getWriteLock();
+        try {
+            if (changeCount.get() != changeCountBefore) {
+                // The offsets we found may no longer be right, so try this piece again.
+                // The words will all be in the spelling checker's cache now, so that's quick.
+                return fromIndex;
+            }
+            replaceHighlights(fromIndex, toIndex, misspellings);
+        } finally {
+            component.getLock().relinquishWriteLock();
+        }
+        return (toIndex < length) ? toIndex : -1;
     }
     
     /** Ensures that there are no spelling-related highlights in the given range. */
@@ -226,40 +292,54 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
     }
     
     private void checkSpelling(PTextBuffer buffer, int fromIndex, int toIndex) {
-        int checkCount = 0;
-        int misspellingCount = 0;
-        
-        SpellingChecker spellingChecker = SpellingChecker.getSharedSpellingCheckerInstance();
-        
+        List<Range> misspellings = findMisspellings(buffer.subSequence(fromIndex, toIndex), fromIndex);
+        replaceHighlights(fromIndex, toIndex, misspellings);
+    }
+    
+    private void replaceHighlights(int fromIndex, int toIndex, List<Range> misspellings) {
         removeExistingHighlightsForRange(fromIndex, toIndex);
+        for (Range misspelling : misspellings) {
+            component.addHighlight(new UnderlineHighlight(component, misspelling.getStart(), misspelling.getEnd()));
+        }
+    }
+    
+    /**
+     * Returns the ranges of the misspelled words in 'text', which starts at
+     * offset 'textOffset' in the buffer. All the words are given to the
+     * spelling checker at once, which is much quicker than one at a time.
+     */
+    private List<Range> findMisspellings(CharSequence text, int textOffset) {
+        ArrayList<Range> ranges = new ArrayList<>();
+        ArrayList<String> words = new ArrayList<>();
         
         // Breaks the given range up into words, where a changeOfCase or the presence_of_underscores constitutes a word boundary.
-        int start = fromIndex;
+        final int toIndex = text.length();
+        int start = 0;
         int rememberedCase = UNKNOWN_CASE;
         while (start < toIndex) {
             // Skip uncheckable junk.
-            while (start < toIndex && Character.isLetterOrDigit(buffer.charAt(start)) == false) {
+            while (start < toIndex && Character.isLetterOrDigit(text.charAt(start)) == false) {
               start++;
             }
             
             // Skip numbers, including hexadecimal numbers (which we assume start with the decimal digit '0').
             // None of these are (or contain) words to be checked: 1234, 0x1234, 0xdeadbeef, 0x1234fffe.
             char currentChar;
-            if (start < toIndex && Character.isDigit(currentChar = buffer.charAt(start))) {
+            if (start < toIndex && Character.isDigit(currentChar = text.charAt(start))) {
                 String allowedDigits = "0123456789";
                 ++start;
-                if (currentChar == '0' && start < toIndex && buffer.charAt(start) == 'x') {
+                if (currentChar == '0' && start < toIndex && text.charAt(start) == 'x') {
                     allowedDigits = "0123456789abcdefABCDEF";
                     ++start;
                 }
-                while (start < toIndex && allowedDigits.indexOf(buffer.charAt(start)) != -1) {
+                while (start < toIndex && allowedDigits.indexOf(text.charAt(start)) != -1) {
                     ++start;
                 }
             }
             
             // Extract a word.
             int finish = start;
-            while (finish < toIndex && isWordCharacter(currentChar = buffer.charAt(finish))) {
+            while (finish < toIndex && isWordCharacter(currentChar = text.charAt(finish))) {
                 int previousCase = rememberedCase;
                 int thisCase = (Character.isLowerCase(currentChar) ? LOWER_CASE : (Character.isUpperCase(currentChar) ? UPPER_CASE : UNKNOWN_CASE));
                 rememberedCase = thisCase;
@@ -279,7 +359,7 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
             }
             
             // Don't include a final ', because it's not an apostrophe.
-            if (finish > start + 1 && buffer.charAt(finish - 1) == '\'') {
+            if (finish > start + 1 && text.charAt(finish - 1) == '\'') {
                 --finish;
             }
             
@@ -292,7 +372,7 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
                 continue;
             }
             
-            String word = buffer.subSequence(start, finish).toString();
+            String word = text.subSequence(start, finish).toString();
             
             // Ignore all-capital words less than 7 characters, on the assumption that they're acronyms.
             // I'm not sure 7 characters isn't too many, but that's what Mac OS' native spelling checker uses.
@@ -307,15 +387,20 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
             }
             
             //System.err.println(">>" + word + " " + wordLength);
-            checkCount++;
-            if (spellingChecker.isMisspelledWord(word, component.getFileType())) {
-                misspellingCount++;
-                //System.err.println("Misspelled word \"" + word + "\"");
-                component.addHighlight(new UnderlineHighlight(component, start, finish));
-            }
+            ranges.add(new Range(textOffset + start, textOffset + finish));
+            words.add(word);
             
             start = finish;
         }
+        
+        Set<String> misspelledWords = SpellingChecker.getSharedSpellingCheckerInstance().getMisspelledWords(words, component.getFileType());
+        ArrayList<Range> result = new ArrayList<>();
+        for (int i = 0; i < words.size(); ++i) {
+            if (misspelledWords.contains(words.get(i))) {
+                result.add(ranges.get(i));
+            }
+        }
+        return result;
     }
     
     /**
@@ -38,6 +38,17 @@ import javax.swing.event.ChangeListener;
  * CHARSET_PROPERTY, which will have been initialized to correspond to the
  * encoding the file had when read from disk, or UTF-8 if this is a new file.
  * 
+ * The characters themselves live in a PTextStorage. Normally that's a gap
+ * buffer, but files of PIECE_TABLE_THRESHOLD bytes or more get a piece table
+ * instead, so edits far apart don't cost huge copies. If such a file is plain
+ * ASCII with Unix line endings, the piece table reads straight from the file
+ * as it needs to (see FileCharSequence), so opening it doesn't need a copy on
+ * the Java heap. We never let such text into the undo buffer, so reverting to
+ * such a file (which is undoable) copies it like any other.
+ * Appending to such a file behind our back is harmless, but rewriting it while
+ * it's open changes the text we show, and truncating it loses the end of it,
+ * so we only do this for files far too large to be anything you'd edit by hand.
+ * 
  * @author Elliott Hughes
  * @author Phil Norman
  */
@@ -46,12 +57,12 @@ public class PTextBuffer implements CharSequence {
     public static final String INDENTATION_PROPERTY = "IndentationProperty";
     public static final String LINE_ENDING_PROPERTY = "LineEndingProperty";
     
-    private static final int MIN_BUFFER_EXTENSION = 100;
-    private static final int MAX_GAP_SIZE = 1024 * 2;
+    /**
+     * Files at least this large (in bytes) are stored in a PPieceTable rather than a PGapBuffer.
+     */
+    private static final long PIECE_TABLE_THRESHOLD = 32 * 1024 * 1024;
     
-    private char[] text = new char[0];
-    private int gapPosition;
-    private int gapLength;
+    private PTextStorage storage = new PGapBuffer(new char[0]);
     private ArrayList<PTextListener> textListeners = new ArrayList<>();
     private PAnchorSet anchorSet = new PAnchorSet();
     private Undoer undoBuffer = new Undoer();
@@ -156,22 +167,36 @@ public class PTextBuffer implements CharSequence {
     public void readFromFile(File file, SelectionSetter undoSelSetter, SelectionSetter doSelSetter) {
         getLock().getWriteLock();
         try {
-            // Read all the bytes in.
-            final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
+            final boolean isHuge = (file.length() >= PIECE_TABLE_THRESHOLD);
+            // An undoable read's text ends up in the undo buffer, where detachFrom can't reach it, so only an initial load can read from the file as it goes.
+            final FileCharSequence fileChars = (isHuge && undoSelSetter == null) ? FileCharSequence.openIfPlainAscii(file) : null;
             
-            // Decode the raw bytes into characters.
-            final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteBuffer.capacity());
-            final String encoding = decoder.getEncodingName();
-            char[] chars = decoder.getCharArray();
-            if (decoder.sawCarriageReturns()) {
-                chars = fixLineEndings(chars);
-            } else {
+            final CharSequence chars;
+            final PTextStorage newStorage;
+            if (fileChars != null) {
+                // There's nothing to decode and no line endings to fix, so there's no need to read the whole file in.
+                putProperty(CHARSET_PROPERTY, "UTF-8");
                 putProperty(LINE_ENDING_PROPERTY, "\n");
+                chars = fileChars;
+                newStorage = new PPieceTable(fileChars);
+            } else {
+                // Read all the bytes in, and decode them into characters.
+                final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
+                final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteBuffer.capacity());
+                final String encoding = decoder.getEncodingName();
+                char[] charArray = decoder.getCharArray();
+                if (decoder.sawCarriageReturns()) {
+                    charArray = fixLineEndings(charArray);
+                } else {
+                    putProperty(LINE_ENDING_PROPERTY, "\n");
+                }
+                
+                // Use the characters and the inferred encoding.
+                putProperty(CHARSET_PROPERTY, encoding);
+                chars = new CharArrayCharSequence(charArray);
+                newStorage = isHuge ? new PPieceTable(charArray) : new PGapBuffer(charArray);
             }
-            
-            // Use the characters and the inferred encoding.
-            putProperty(CHARSET_PROPERTY, encoding);
-            setText(chars, undoSelSetter, doSelSetter);
+            setText(chars, newStorage, undoSelSetter, doSelSetter);
             // For newly-opened files the following is a no-op, but it becomes important when we
             // revert to disk. In any case, after we've just filled the buffer from whatever the
             // file contents are on disk, it's guaranteed to be clean. So set it so.
@@ -203,6 +228,7 @@ public class PTextBuffer implements CharSequence {
      * whatever's already there.
      */
     public void writeToFile(File file) {
+        detachFrom(file);
         FileOutputStream openFile = null;
         try {
             openFile = new FileOutputStream(file);
@@ -219,6 +245,22 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    /**
+     * Ensures that our storage doesn't read from 'file', which is about to be overwritten.
+     * Writing a file while we're still reading the text from it would corrupt the text.
+     * Only the storage can read from a file: readFromFile never uses a FileCharSequence for text that goes into the undo buffer, and replace copies the text it removes.
+     */
+    private void detachFrom(File file) {
+        getLock().getWriteLock();
+        try {
+            if (storage.isBackedBy(file)) {
+                storage = new PPieceTable(copyCharArray(0, length()));
+            }
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
     /**
      * Switch charset encoding if the encoding works.
      */
@@ -253,14 +295,8 @@ public class PTextBuffer implements CharSequence {
             
             String lineEnding = (String) getProperty(LINE_ENDING_PROPERTY);
             if (lineEnding.equals("\n")) {
-                // Just write out the two halves as they are.
-                if (gapPosition != 0) {
-                    writer.write(text, 0, gapPosition);
-                }
-                final int gapEnd = gapPosition + gapLength;
-                if (gapEnd < text.length) {
-                    writer.write(text, gapEnd, text.length - gapEnd);
-                }
+                // Just write out the characters as they are.
+                storage.writeTo(writer);
             } else {
                 // Split our internal content into lines, and write them
                 // out individually. Expensive, but why aren't you using
@@ -281,19 +317,16 @@ public class PTextBuffer implements CharSequence {
     
     /**
      * Sets the text, replacing anything that was here before.
-     * Note that this method does not copy the given char[].
+     * 'newStorage' must contain exactly the characters in 'charSeq', and is used directly unless the replacement is to be undoable.
      */
-    private void setText(char[] text, SelectionSetter undoSelSetter, SelectionSetter doSelSetter) {
+    private void setText(CharSequence charSeq, PTextStorage newStorage, SelectionSetter undoSelSetter, SelectionSetter doSelSetter) {
         getLock().getWriteLock();
         try {
-            CharSequence charSeq = new CharArrayCharSequence(text);
             if (undoSelSetter == null) {
                 // If we have no undo selection setter, we don't want to even consider this an
                 // undoable action (presumably because it's the first time we've opened this file,
                 // and undoing that would result in us having an empty buffer, which is just weird).
-                this.text = text;
-                gapPosition = 0;
-                gapLength = 0;
+                this.storage = newStorage;
             } else {
                 // If we have an undo selection setter, that's a clear indication that we want to
                 // consider the text replacement as an undoable action, so let's do that.
@@ -326,15 +359,7 @@ public class PTextBuffer implements CharSequence {
             }
             char[] result = new char[charCount];
             try {
-                int copyCount = 0;
-                if (start < gapPosition) {
-                    copyCount = Math.min(charCount, gapPosition - start);
-                    System.arraycopy(text, start, result, 0, copyCount);
-                }
-                if (start + charCount >= gapPosition) {
-                    int textPosition = Math.max(start, gapPosition) + gapLength;
-                    System.arraycopy(text, textPosition, result, copyCount, result.length - copyCount);
-                }
+                storage.getChars(start, charCount, result, 0);
             } catch (ArrayIndexOutOfBoundsException ex) {
                 Log.warn("Requested get text from " + start + ", length " + charCount + "; size is " + length() +".", ex);
             }
@@ -344,42 +369,6 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
-    /** Moves the gap to the specified position. */
-    private void moveGap(int newPosition) {
-        if (gapPosition == newPosition) {
-            return;
-        }
-        if (newPosition < gapPosition) {
-            System.arraycopy(text, newPosition, text, newPosition + gapLength, gapPosition - newPosition);
-        } else {
-            System.arraycopy(text, gapPosition + gapLength, text, gapPosition, newPosition - gapPosition);
-        }
-        gapPosition = newPosition;
-    }
-    
-    private void changeBufferLength(int lengthChange) {
-        char[] newText = new char[text.length + lengthChange];
-        System.arraycopy(text, 0, newText, 0, gapPosition);
-        int endOffset = gapPosition + gapLength;
-        System.arraycopy(text, endOffset, newText, endOffset + lengthChange, text.length - endOffset);
-        gapLength += lengthChange;
-        text = newText;
-    }
-    
-    /** Expands the buffer. */
-    private void expandBuffer(int requiredGapLength) {
-        int desiredGapIncrease = requiredGapLength + Math.min(MAX_GAP_SIZE, requiredGapLength);
-        changeBufferLength(Math.max(MIN_BUFFER_EXTENSION, desiredGapIncrease));
-    }
-    
-    /** Shrinks the buffer. */
-    private void shrinkBuffer() {
-        if (gapLength > MAX_GAP_SIZE) {
-            int desiredGapLength = Math.max(MIN_BUFFER_EXTENSION, gapLength - MAX_GAP_SIZE);
-            changeBufferLength(desiredGapLength - gapLength);
-        }
-    }
-    
     public void replace(SelectionSetter beforeCaret, int position, int removeCount, CharSequence add, SelectionSetter afterCaret) {
         getLock().getWriteLock();
         try {
@@ -401,30 +390,13 @@ public class PTextBuffer implements CharSequence {
     
     /** Special remove method used by the undo buffer. */
     private void removeWithoutUndo(int position, CharSequence chars) {
-        moveGap(position + chars.length());
-        gapPosition -= chars.length();
-        gapLength += chars.length();
-        shrinkBuffer();
+        storage.remove(position, chars.length());
         fireTextEvent(new PTextEvent(this, PTextEvent.REMOVE, position, chars));
     }
     
     /** Special insertion method used by the undo buffer. */
     private void insertWithoutUndo(int position, CharSequence chars) {
-        moveGap(position);
-        int textLength = chars.length();
-        while (textLength > gapLength) {
-            expandBuffer(textLength);
-        }
-        if (chars instanceof CharArrayCharSequence) {
-            ((CharArrayCharSequence) chars).copyTo(text, gapPosition);
-        } else {
-            // This is the price you pay for giving us a String.
-            for (int i = 0; i < chars.length(); ++i) {
-                text[gapPosition + i] = chars.charAt(i);
-            }
-        }
-        gapPosition += textLength;
-        gapLength -= textLength;
+        storage.insert(position, chars);
         fireTextEvent(new PTextEvent(this, PTextEvent.INSERT, position, chars));
     }
     
@@ -433,7 +405,7 @@ public class PTextBuffer implements CharSequence {
         if (index < 0 || index >= length()) {
             throwIOOBE(index);
         }
-        return (index < gapPosition) ? text[index] : text[index + gapLength];
+        return storage.charAt(index);
     }
     
     private void throwIOOBE(int index) {
@@ -453,19 +425,12 @@ public class PTextBuffer implements CharSequence {
         } else if (startIndex >= length()) {
             return -1;
         }
-        
-        int gapBufferIndex = (startIndex < gapPosition) ? startIndex : (startIndex + gapLength);
-        for (int i = startIndex; i < length(); ++i) {
-            if (text[gapBufferIndex++] == ch) {
-                return i;
-            }
-        }
-        return -1;
+        return storage.indexOf(ch, startIndex);
     }
     
     /** Returns the number of characters in the text area.  Part of the CharSequence interface. */
     public int length() {
-        return text.length - gapLength;
+        return storage.length();
     }
     
     /**
@@ -483,10 +448,7 @@ public class PTextBuffer implements CharSequence {
     public String toString() {
         getLock().getReadLock();
         try {
-            StringBuilder result = new StringBuilder();
-            result.append(text, 0, gapPosition);
-            result.append(text, gapPosition + gapLength, text.length - gapPosition - gapLength);
-            return result.toString();
+            return storage.toString();
         } finally {
             getLock().relinquishReadLock();
         }
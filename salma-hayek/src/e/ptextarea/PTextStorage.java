@@ -0,0 +1,45 @@
+package e.ptextarea;
+
+import java.io.*;
+
+/**
+ * The character storage behind a PTextBuffer. PTextBuffer takes care of
+ * locking, undo, and listeners; implementations of this interface just hold
+ * characters.
+ * 
+ * There are two implementations: PGapBuffer, which is best for the files we
+ * usually edit, and PPieceTable, which avoids copying huge files onto the heap.
+ */
+interface PTextStorage extends CharSequence {
+    /**
+     * Inserts 'chars' so that its first character ends up at 'position'.
+     */
+    public void insert(int position, CharSequence chars);
+    
+    /**
+     * Removes 'charCount' characters starting at 'position'.
+     */
+    public void remove(int position, int charCount);
+    
+    /**
+     * Copies 'charCount' characters starting at 'start' into 'destination' at 'destinationOffset'.
+     */
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset);
+    
+    /**
+     * Returns the index of the first occurrence of 'ch' at or after 'startIndex', or -1.
+     * The caller guarantees that 0 <= startIndex < length().
+     */
+    public int indexOf(char ch, int startIndex);
+    
+    /**
+     * Writes all the characters to 'writer', without translating line endings.
+     */
+    public void writeTo(Writer writer) throws IOException;
+    
+    /**
+     * Tests whether this storage still reads from 'file' (through a FileCharSequence).
+     * Such storage must be copied before anyone overwrites the file.
+     */
+    public boolean isBackedBy(File file);
+}
@@ -19,6 +19,11 @@ public class PreprocessorStyleApplicator extends RegularExpressionStyleApplicato
         this.isObjectiveC = isObjectiveC;
     }
     
+    @Override
+    protected boolean mightMatch(CharSequence text, int start, int end) {
+        return contains(text, start, end, '#');
+    }
+    
     @Override
     public boolean isAcceptableMatch(CharSequence line, Matcher matcher) {
         // FIXME:
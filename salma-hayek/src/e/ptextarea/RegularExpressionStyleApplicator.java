@@ -24,8 +24,30 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
     }
     
     public List<PLineSegment> applyStylingTo(String line, PLineSegment segment) {
+        CharSequence text = segment.getCharSequence();
+        if (mightMatch(text, 0, text.length()) == false) {
+            return Collections.singletonList(segment);
+        }
+        return applyStylingTo(line, pattern.matcher(text), 0, segment);
+    }
+    
+    @Override
+    public List<PLineSegment> applyStylingTo(String line, int lineStartOffset, PLineSegment segment) {
+        // Matching in the String is quicker than matching in the text buffer.
+        // The region's default opaque, anchoring bounds make it behave just like the segment's text on its own.
+        final int start = segment.getOffset() - lineStartOffset;
+        final int end = start + segment.getModelTextLength();
+        if (mightMatch(line, start, end) == false) {
+            return Collections.singletonList(segment);
+        }
+        Matcher matcher = pattern.matcher(line);
+        matcher.region(start, end);
+        return applyStylingTo(line, matcher, start, segment);
+    }
+    
+    // 'matcher' is looking at the segment's text, which starts at 'textStart' in whatever it's matching.
+    private List<PLineSegment> applyStylingTo(String line, Matcher matcher, int textStart, PLineSegment segment) {
         ArrayList<PLineSegment> result = new ArrayList<>();
-        Matcher matcher = pattern.matcher(segment.getCharSequence());
         int normalStart = 0;
         int offset = segment.getOffset();
         while (matcher.find()) {
@@ -36,8 +58,8 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
                     Log.warn("RegularExpressionStyleApplicator for \"" + pattern + "\" disabled because it has no capturing group.");
                     continue;
                 }
-                final int matchStart = matcher.start(1);
-                final int matchEnd = matcher.end(1);
+                final int matchStart = matcher.start(1) - textStart;
+                final int matchEnd = matcher.end(1) - textStart;
                 if (matchStart > normalStart) {
                     result.add(segment.subSegment(normalStart, matchStart));
                 }
@@ -45,6 +67,10 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
                 normalStart = matchEnd;
             }
         }
+        if (result.isEmpty()) {
+            // Nothing matched, so save the caller from copying anything.
+            return Collections.singletonList(segment);
+        }
         if (segment.getModelTextLength() > normalStart) {
             result.add(segment.subSegment(normalStart));
         }
@@ -59,6 +85,28 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
         return result;
     }
     
+    /**
+     * Override this with a quick test that's true of any text containing a
+     * match, such as whether it contains a character every match needs, so
+     * that most text doesn't need to be matched against the regular expression.
+     * 'start' and 'end' delimit the text to be tested within 'text'.
+     */
+    protected boolean mightMatch(CharSequence text, int start, int end) {
+        return true;
+    }
+    
+    /**
+     * Tests whether 'ch' occurs between 'start' and 'end' in 'text'.
+     */
+    protected static boolean contains(CharSequence text, int start, int end, char ch) {
+        for (int i = start; i < end; ++i) {
+            if (text.charAt(i) == ch) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     /**
      * Override this if you need to make a test that you can't express in the
      * regular expression. The keyword styler, for example, uses a regular
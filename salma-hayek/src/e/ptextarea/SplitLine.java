@@ -6,13 +6,15 @@ package e.ptextarea;
  * 
  * Note that in a file with no wrapped lines, all the SplitLine information is totally superfluous:
  * 
- * Every 'lineIndex' is the SplitLine's index in PTextArea.splitLines.
+ * Every 'lineIndex' is the SplitLine's row index in the PTextArea.
  * Every 'offset' is 0.
  * Every 'length' is the line length - 1 (because SplitLine's length doesn't include '\n's for some reason).
+ * 
+ * SplitLineList takes advantage of that by only creating SplitLines when they're asked for.
  */
 final class SplitLine {
     // This run's line number in the PLineList.
-    private int lineIndex;
+    private final int lineIndex;
     // This run's offset into the PLineList's line.
     private final int offset;
     // This run's number of characters of the PLineList's line.
@@ -36,12 +38,8 @@ final class SplitLine {
         return length;
     }
     
-    public void setLineIndex(int lineIndex) {
-        this.lineIndex = lineIndex;
-    }
-    
     public int getTextIndex(PTextArea textArea) {
-        return textArea.getLineList().getLine(lineIndex).getStart() + offset;
+        return textArea.getLineList().getLineStart(lineIndex) + offset;
     }
     
     public boolean containsIndex(PTextArea textArea, int charIndex) {
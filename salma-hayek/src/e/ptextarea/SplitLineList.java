@@ -0,0 +1,243 @@
+package e.ptextarea;
+
+import e.util.*;
+
+/**
+ * The sequence of SplitLines (display rows) in a PTextArea, materialized lazily.
+ * 
+ * Rather than holding a SplitLine for every row, we hold the number of rows each line in the PLineList wraps to, in a PrefixSumList, so converting between row indexes and line indexes is O(log n), and inserting or removing lines doesn't mean rebuilding anything.
+ * SplitLines are created on demand from that, and only the most recently wrapped line's are kept.
+ * 
+ * A line's row count may be an estimate: when the wrapping width changes or a whole new text arrives, we don't want to measure every line before we can paint anything.
+ * Lines whose count is an estimate are "unwrapped"; the PTextArea wraps the lines it's about to show with wrapRows, and the rest a chunk at a time with wrapSomeLines.
+ * A line's estimate is whatever it used to be, or one row for a line we've never seen, which is usually right.
+ * 
+ * The caller is responsible for holding the PTextArea's lock.
+ * Only the methods that wrap lines (and those that note changes) need the write lock: size, get, and getSplitLineIndex don't modify the row counts, so they're safe for any number of readers at once.
+ * When asked for a row of an unwrapped line, they work out that line's SplitLines without recording them, and clamp to the rows the line really has.
+ */
+final class SplitLineList {
+    // A line's tag in rowCounts is the wrapGeneration it was last wrapped in.
+    private static final int NEVER_WRAPPED = -1;
+    
+    /**
+     * The SplitLines of one line, as an immutable pair so readers can share it without a lock of its own.
+     */
+    private static final class WrappedLine {
+        private final int lineIndex;
+        private final SplitLine[] splitLines;
+        
+        private WrappedLine(int lineIndex, SplitLine[] splitLines) {
+            this.lineIndex = lineIndex;
+            this.splitLines = splitLines;
+        }
+    }
+    
+    private final PTextArea textArea;
+    
+    // The number of rows each line occupies, tagged with the wrapGeneration it was last wrapped in.
+    private final PrefixSumList rowCounts = new PrefixSumList();
+    // Bumping this marks every line as unwrapped at once.
+    private int wrapGeneration = 0;
+    private int unwrappedCount;
+    // No line before this one is unwrapped.
+    private int firstUnwrappedLine;
+    
+    // The SplitLines of the most recently wrapped line. Painting asks for consecutive rows, so this is enough to avoid wrapping a line once per row.
+    private volatile WrappedLine lastWrappedLine;
+    
+    /**
+     * Creates a list for a text area whose PLineList has 'lineCount' lines, none of them wrapped yet.
+     */
+    SplitLineList(PTextArea textArea, int lineCount) {
+        this.textArea = textArea;
+        insertLines(0, lineCount);
+    }
+    
+    /**
+     * Returns the total number of rows.
+     */
+    int size() {
+        return rowCounts.sum();
+    }
+    
+    /**
+     * Returns the SplitLine for the given row.
+     * If the row's line is unwrapped, its row count is only an estimate, so the row we return may not be the one that will be at 'splitIndex' once the line's wrapped.
+     * That's why callers should use wrapRows before asking for rows they intend to show.
+     */
+    SplitLine get(int splitIndex) {
+        if (splitIndex < 0 || splitIndex >= size()) {
+            throw new IndexOutOfBoundsException("split line " + splitIndex + " not in half-open range [0.." + size() + ")");
+        }
+        final int lineIndex = rowCounts.countNotExceeding(splitIndex);
+        if (rowCounts.get(lineIndex) == 1 && isUnwrapped(lineIndex) == false) {
+            // The overwhelmingly common case: the line fits, and there's nothing to remember.
+            return new SplitLine(lineIndex, 0, textArea.getLineList().getLineContents(lineIndex).length());
+        }
+        final SplitLine[] splitLines = getSplitLines(lineIndex);
+        final int row = splitIndex - rowCounts.prefixSum(lineIndex);
+        // An unwrapped line may really have fewer rows than we thought, in which case the caller gets the last one.
+        return splitLines[Math.min(row, splitLines.length - 1)];
+    }
+    
+    /**
+     * Returns the index of the first row of the given line, or size() if there is no such line.
+     */
+    int getSplitLineIndex(int lineIndex) {
+        if (lineIndex >= rowCounts.size()) {
+            return size();
+        }
+        return rowCounts.prefixSum(lineIndex);
+    }
+    
+    /**
+     * Returns the index of the row containing the character at 'charOffset' in line 'lineIndex'.
+     */
+    int getSplitLineIndex(int lineIndex, int charOffset) {
+        final int firstRow = getSplitLineIndex(lineIndex);
+        final int rowCount = rowCounts.get(lineIndex);
+        if (rowCount == 1 && isUnwrapped(lineIndex) == false) {
+            return firstRow;
+        }
+        final SplitLine[] splitLines = getSplitLines(lineIndex);
+        // An unwrapped line's SplitLines may not agree with its estimated row count, and we mustn't return a row belonging to the next line.
+        int row = Math.min(splitLines.length, rowCount) - 1;
+        while (row > 0 && splitLines[row].getOffset() > charOffset) {
+            --row;
+        }
+        return firstRow + row;
+    }
+    
+    /**
+     * Notes that 'count' unwrapped lines have been inserted at 'lineIndex'.
+     */
+    void insertLines(int lineIndex, int count) {
+        rowCounts.insert(lineIndex, count, 1, NEVER_WRAPPED);
+        unwrappedCount += count;
+        firstUnwrappedLine = Math.min(firstUnwrappedLine, lineIndex);
+        linesChanged();
+    }
+    
+    /**
+     * Notes that 'count' lines starting at 'lineIndex' have been removed.
+     */
+    void removeLines(int lineIndex, int count) {
+        for (int i = lineIndex; i < lineIndex + count; ++i) {
+            if (isUnwrapped(i)) {
+                --unwrappedCount;
+            }
+        }
+        rowCounts.remove(lineIndex, count);
+        firstUnwrappedLine = Math.min(firstUnwrappedLine, lineIndex);
+        linesChanged();
+    }
+    
+    /**
+     * Marks every line as needing to be wrapped again, keeping the current row counts as estimates.
+     */
+    void invalidateAll() {
+        ++wrapGeneration;
+        unwrappedCount = rowCounts.size();
+        firstUnwrappedLine = 0;
+        linesChanged();
+    }
+    
+    /**
+     * Wraps line 'lineIndex' now, returning the change in its number of rows.
+     * Requires the write lock.
+     */
+    int wrapLine(int lineIndex) {
+        final SplitLine[] splitLines = textArea.wrapLine(lineIndex, true);
+        if (isUnwrapped(lineIndex)) {
+            rowCounts.setTag(lineIndex, wrapGeneration);
+            --unwrappedCount;
+        }
+        lastWrappedLine = new WrappedLine(lineIndex, splitLines);
+        final int change = splitLines.length - rowCounts.get(lineIndex);
+        if (change != 0) {
+            rowCounts.add(lineIndex, change);
+        }
+        return change;
+    }
+    
+    /**
+     * Wraps the lines covering rows 'firstRow' to 'lastRow' (inclusive), as they are once those lines are wrapped.
+     * Returns true if that changed the number of rows.
+     * Requires the write lock.
+     */
+    boolean wrapRows(int firstRow, int lastRow) {
+        boolean changed = false;
+        while (true) {
+            int rowCount = size();
+            if (rowCount == 0) {
+                return changed;
+            }
+            int firstLine = rowCounts.countNotExceeding(Math.max(0, Math.min(firstRow, rowCount - 1)));
+            int lastLine = rowCounts.countNotExceeding(Math.max(0, Math.min(lastRow, rowCount - 1)));
+            boolean changedThisTime = false;
+            for (int line = firstLine; line <= lastLine; ++line) {
+                if (isUnwrapped(line) && wrapLine(line) != 0) {
+                    // Wrapping a line changes which lines the rows cover, so start again.
+                    changedThisTime = true;
+                    break;
+                }
+            }
+            if (changedThisTime == false) {
+                return changed;
+            }
+            changed = true;
+        }
+    }
+    
+    /**
+     * Wraps unwrapped lines until there are none left or System.nanoTime() passes 'deadlineNs'.
+     * Returns true if that changed the number of rows.
+     * Requires the write lock.
+     */
+    boolean wrapSomeLines(long deadlineNs) {
+        boolean changed = false;
+        int line = firstUnwrappedLine;
+        final int lineCount = rowCounts.size();
+        while (unwrappedCount > 0 && line < lineCount) {
+            if (isUnwrapped(line)) {
+                changed |= (wrapLine(line) != 0);
+                // Checking the time is more expensive than wrapping a typical line, so only do it every so often.
+                if ((unwrappedCount % 256) == 0 && System.nanoTime() > deadlineNs) {
+                    break;
+                }
+            }
+            ++line;
+        }
+        firstUnwrappedLine = line;
+        return changed;
+    }
+    
+    /**
+     * Tests whether every line's row count is known to be correct.
+     */
+    boolean isFullyWrapped() {
+        return (unwrappedCount == 0);
+    }
+    
+    private boolean isUnwrapped(int lineIndex) {
+        return (rowCounts.getTag(lineIndex) != wrapGeneration);
+    }
+    
+    /**
+     * Returns the SplitLines for the given line, without recording anything about it (other than in the cache), so it's safe under the read lock.
+     */
+    private SplitLine[] getSplitLines(int lineIndex) {
+        WrappedLine wrappedLine = lastWrappedLine;
+        if (wrappedLine == null || wrappedLine.lineIndex != lineIndex) {
+            // Replacing the whole pair in one write means a concurrent reader sees either the old line's SplitLines or the new line's, never a mixture.
+            wrappedLine = new WrappedLine(lineIndex, textArea.wrapLine(lineIndex, false));
+            lastWrappedLine = wrappedLine;
+        }
+        return wrappedLine.splitLines;
+    }
+    
+    private void linesChanged() {
+        lastWrappedLine = null;
+    }
+}
@@ -11,6 +11,16 @@ public interface StyleApplicator {
      */
     public List<PLineSegment> applyStylingTo(String line, PLineSegment normalSegment);
     
+    /**
+     * Like applyStylingTo(String, PLineSegment), but also told the offset of
+     * the start of 'line' in the text, so that the segment's characters can be
+     * found in 'line' rather than read back out of the text buffer. PTextArea
+     * uses this one.
+     */
+    public default List<PLineSegment> applyStylingTo(String line, int lineStartOffset, PLineSegment normalSegment) {
+        return applyStylingTo(line, normalSegment);
+    }
+    
     /**
      * Tests whether this style applicator works on the given style.
      * applyStylingTo will only be passed segments of a style for which
@@ -12,6 +12,11 @@ public class TabStyleApplicator extends RegularExpressionStyleApplicator {
         super(textArea, TAB_PATTERN, PStyle.NORMAL);
     }
     
+    @Override
+    protected boolean mightMatch(CharSequence text, int start, int end) {
+        return contains(text, start, end, '\t');
+    }
+    
     @Override
     protected PLineSegment makeNewSegment(PTextArea textArea, Matcher matcher, int start, int end, PStyle style) {
         return new PTabSegment(textArea, start, end);
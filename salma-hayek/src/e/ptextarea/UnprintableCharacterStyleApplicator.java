@@ -12,6 +12,17 @@ public class UnprintableCharacterStyleApplicator extends RegularExpressionStyleA
         super(textArea, UNPRINTABLE_CHARACTER_PATTERN, PStyle.UNPRINTABLE);
     }
     
+    @Override
+    protected boolean mightMatch(CharSequence text, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            final char ch = text.charAt(i);
+            if ((ch < ' ' && ch != '\t') || ch == '\u007f') {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     @Override
     protected PTextSegment makeNewSegment(PTextArea textArea, Matcher matcher, int start, int end, PStyle style) {
         return new UnprintableCharacterTextSegment(textArea, start, end, style);
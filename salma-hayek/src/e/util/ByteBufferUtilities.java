@@ -2,6 +2,8 @@ package e.util;
 
 import java.io.*;
 import java.nio.*;
+import java.util.stream.*;
+import org.jessies.test.*;
 
 public final class ByteBufferUtilities {
     /**
@@ -11,8 +13,12 @@ public final class ByteBufferUtilities {
     public static ByteBuffer readFile(File file) throws IOException {
         DataInputStream dataInputStream = null;
         try {
-            // FIXME: this is broken for files larger than 4GiB.
-            int byteCount = (int) file.length();
+            final long fileLength = file.length();
+            if (fileLength > Integer.MAX_VALUE) {
+                // A byte[] can't hold it, and truncating the length would silently read only part of the file.
+                throw new IOException("\"" + file + "\" is too large (" + fileLength + " bytes) to read into memory.");
+            }
+            int byteCount = (int) fileLength;
             
             // Always read the whole file in rather than using memory mapping.
             // Windows' file system semantics also mean that there's a period after a search finishes but before the buffer is actually unmapped where you can't write to the file (see Sun bug 6359560).
@@ -31,6 +37,55 @@ public final class ByteBufferUtilities {
         }
     }
     
+    /**
+     * Tests whether the first 'byteCount' bytes of the given ByteBuffer are all printable ASCII or whitespace other than '\r'.
+     * Such a buffer can be used as text with a cast per byte, without paying for a decoder or a char[] copy.
+     * This uses the same range as ByteBufferDecoder's ASCII fast path.
+     */
+    public static boolean isPlainAsciiByteBuffer(ByteBuffer byteBuffer, final int byteCount) {
+        if (byteCount < PARALLEL_SCAN_CHUNK_SIZE) {
+            return isPlainAscii(byteBuffer, 0, byteCount);
+        }
+        // The caller is usually the event dispatch thread opening a file, so check a big buffer a chunk per core rather than making it wait for one core to do the lot.
+        final int chunkCount = (int) (((long) byteCount + PARALLEL_SCAN_CHUNK_SIZE - 1) / PARALLEL_SCAN_CHUNK_SIZE);
+        return IntStream.range(0, chunkCount).parallel().allMatch(chunk -> {
+            final int start = chunk * PARALLEL_SCAN_CHUNK_SIZE;
+            return isPlainAscii(byteBuffer, start, (int) Math.min(byteCount, (long) start + PARALLEL_SCAN_CHUNK_SIZE));
+        });
+    }
+    
+    private static final int PARALLEL_SCAN_CHUNK_SIZE = 4 * 1024 * 1024;
+    
+    // Eight copies of a byte, for testing all the bytes of a long at once.
+    private static final long ONE_BYTES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    
+    /**
+     * Implements isPlainAsciiByteBuffer for the bytes [start, end), eight at a time where possible.
+     * Only absolute gets are used, so any number of threads can scan the same buffer at once.
+     */
+    private static boolean isPlainAscii(ByteBuffer byteBuffer, int start, int end) {
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            final long word = byteBuffer.getLong(i);
+            // Once we know no byte has its top bit set, hasZeroByte is exact, so this is the same test as the one below.
+            if ((word & HIGH_BITS) != 0 || hasZeroByte(word) || hasZeroByte(word ^ (ONE_BYTES * Ascii.DEL)) || hasZeroByte(word ^ (ONE_BYTES * '\r'))) {
+                return false;
+            }
+        }
+        for (; i < end; ++i) {
+            final byte b = byteBuffer.get(i);
+            if (b <= 0 || b >= Ascii.DEL || b == '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean hasZeroByte(long word) {
+        return ((word - ONE_BYTES) & ~word & HIGH_BITS) != 0;
+    }
+    
     /**
      * Checks the first 16 bytes of the given ByteBuffer for a 0 byte.
      * FIXME: this is a poor heuristic for anyone using UTF-16.
@@ -45,6 +100,20 @@ public final class ByteBufferUtilities {
         return false;
     }
     
+    @Test private static void testIsPlainAsciiByteBuffer() {
+        final byte[] bytes = "#include <stdio.h>\n\tint main() { return 0; }\n".getBytes();
+        Assert.equals(isPlainAsciiByteBuffer(ByteBuffer.wrap(bytes), bytes.length), true);
+        // A bad byte must be caught whether it's in a whole word or in the tail, and whichever byte of its word it is.
+        for (byte bad : new byte[] { 0, '\r', (byte) Ascii.DEL, (byte) 0x80, (byte) 0xff }) {
+            for (int i = 0; i < bytes.length; ++i) {
+                final byte[] copy = bytes.clone();
+                copy[i] = bad;
+                Assert.equals(isPlainAsciiByteBuffer(ByteBuffer.wrap(copy), copy.length), false);
+                Assert.equals(isPlainAsciiByteBuffer(ByteBuffer.wrap(copy), i), true);
+            }
+        }
+    }
+    
     private ByteBufferUtilities() {
     }
 }
@@ -0,0 +1,135 @@
+package e.util;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * A Fenwick tree (or binary indexed tree) over a sequence of non-negative ints.
+ * Changing a value, summing a prefix, and finding the element containing a given offset into the concatenated sequence are all O(log n).
+ * Inserting or removing elements isn't supported; rebuild the tree instead, which is O(n).
+ * 
+ * The classic use is line start offsets: store the line lengths, and the start of line i is prefixSum(i).
+ * 
+ * This class keeps only the tree, not the values themselves, which callers usually have anyway.
+ */
+public final class FenwickTree {
+    // tree[i] (1-based) holds the sum of the values in (i - lowestOneBit(i), i].
+    private int[] tree = new int[1];
+    private int size = 0;
+    
+    /**
+     * Replaces the contents of this tree with the first 'count' elements of 'values'.
+     */
+    public void rebuild(int[] values, int count) {
+        if (tree.length < count + 1) {
+            tree = new int[Math.max(count + 1, tree.length * 2)];
+        }
+        size = count;
+        System.arraycopy(values, 0, tree, 1, count);
+        for (int i = 1; i <= count; ++i) {
+            int parent = i + (i & -i);
+            if (parent <= count) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of elements.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Adds 'delta' to the element at 'index'.
+     */
+    public void add(int index, int delta) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + size + ")");
+        }
+        for (int i = index + 1; i <= size; i += (i & -i)) {
+            tree[i] += delta;
+        }
+    }
+    
+    /**
+     * Returns the sum of the first 'count' elements.
+     */
+    public int prefixSum(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("count " + count + " not in closed range [0.." + size + "]");
+        }
+        int result = 0;
+        for (int i = count; i > 0; i -= (i & -i)) {
+            result += tree[i];
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the largest count such that prefixSum(count) <= sum.
+     * If you think of the elements as lengths laid end to end, that's the index of the element containing offset 'sum'.
+     * The result is size() if 'sum' is at or beyond the total.
+     */
+    public int countNotExceeding(int sum) {
+        if (sum < 0) {
+            return 0;
+        }
+        int position = 0;
+        for (int step = Integer.highestOneBit(Math.max(size, 1)); step != 0; step >>= 1) {
+            int next = position + step;
+            if (next <= size && tree[next] <= sum) {
+                position = next;
+                sum -= tree[next];
+            }
+        }
+        return position;
+    }
+    
+    @Test private static void testFenwickTree() {
+        FenwickTree tree = new FenwickTree();
+        int[] lengths = new int[] { 4, 1, 7, 3, 0 };
+        tree.rebuild(lengths, lengths.length);
+        Assert.equals(tree.size(), 5);
+        Assert.equals(tree.prefixSum(0), 0);
+        Assert.equals(tree.prefixSum(1), 4);
+        Assert.equals(tree.prefixSum(3), 12);
+        Assert.equals(tree.prefixSum(5), 15);
+        Assert.equals(tree.countNotExceeding(0), 0);
+        Assert.equals(tree.countNotExceeding(3), 0);
+        Assert.equals(tree.countNotExceeding(4), 1);
+        Assert.equals(tree.countNotExceeding(11), 2);
+        Assert.equals(tree.countNotExceeding(14), 3);
+        Assert.equals(tree.countNotExceeding(15), 5);
+        Assert.equals(tree.countNotExceeding(100), 5);
+        tree.add(1, 5);
+        Assert.equals(tree.prefixSum(2), 10);
+        Assert.equals(tree.countNotExceeding(9), 1);
+        Assert.equals(tree.countNotExceeding(10), 2);
+    }
+    
+    @Test private static void testFenwickTreeAgainstArray() {
+        Random random = new Random(0);
+        int[] values = new int[1000];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = random.nextInt(10);
+        }
+        FenwickTree tree = new FenwickTree();
+        tree.rebuild(values, values.length);
+        for (int i = 0; i < 1000; ++i) {
+            int index = random.nextInt(values.length);
+            values[index] += 1;
+            tree.add(index, 1);
+        }
+        int sum = 0;
+        for (int i = 0; i < values.length; ++i) {
+            Assert.equals(tree.prefixSum(i), sum);
+            if (values[i] > 0) {
+                Assert.equals(tree.countNotExceeding(sum), i);
+            }
+            sum += values[i];
+        }
+        Assert.equals(tree.prefixSum(values.length), sum);
+    }
+}
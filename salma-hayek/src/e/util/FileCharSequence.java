@@ -0,0 +1,238 @@
+package e.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import org.jessies.test.*;
+
+/**
+ * Wraps a file of plain ASCII as a CharSequence, one char per byte, reading the bytes as they're needed.
+ * Nothing is decoded or copied up front, which matters when the file is huge.
+ * See ByteBufferUtilities.isPlainAsciiByteBuffer for what counts as plain ASCII.
+ * 
+ * We don't map the file. Touching a page of a mapping that's beyond the end of a file that's since been
+ * truncated (a log that's been rotated, say) faults, and the JVM reports that asynchronously, so there's
+ * no way to recover. A read just comes up short instead, and the bytes that have gone read as U+FFFD,
+ * so the text can still be shown until it's reloaded. A mapping is also limited to 2GiB, but so is a
+ * CharSequence.
+ * 
+ * The most recently used blocks of the file are cached, because most access is sequential or close to
+ * the last access. We read with a RandomAccessFile rather than a FileChannel because interrupting a
+ * thread that's reading from a FileChannel closes the channel for everyone.
+ */
+public final class FileCharSequence implements CharSequence {
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int CACHED_BLOCK_COUNT = 32;
+    private static final int SCAN_CHUNK_SIZE = 1024 * 1024;
+    
+    private static final class Block {
+        private final int index;
+        private final byte[] bytes;
+        // Fewer than bytes.length if the file's shrunk since we opened it.
+        private final int byteCount;
+        
+        private Block(int index, byte[] bytes, int byteCount) {
+            this.index = index;
+            this.bytes = bytes;
+            this.byteCount = byteCount;
+        }
+    }
+    
+    private final File file;
+    private final int count;
+    
+    // Guarded by 'this', like 'blocks' and 'hasReportedLostBytes'.
+    private final RandomAccessFile randomAccessFile;
+    private final LinkedHashMap<Integer, Block> blocks = new LinkedHashMap<Integer, Block>(CACHED_BLOCK_COUNT, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > CACHED_BLOCK_COUNT;
+        }
+    };
+    private boolean hasReportedLostBytes = false;
+    
+    // The block we used last, so that sequential access doesn't have to take the lock.
+    private volatile Block lastBlock;
+    
+    private FileCharSequence(File file, int count) throws IOException {
+        this.file = file;
+        this.count = count;
+        // The file is closed when we're garbage collected.
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+    }
+    
+    /**
+     * Returns a sequence of the characters in 'file', or null if it isn't plain ASCII.
+     * Throws an IOException if the file can't be read, or is too large for a CharSequence.
+     */
+    public static FileCharSequence openIfPlainAscii(File file) throws IOException {
+        final long byteCount = file.length();
+        if (byteCount > Integer.MAX_VALUE) {
+            throw new IOException("\"" + file + "\" is too large (" + byteCount + " bytes) to edit.");
+        }
+        return isPlainAsciiFile(file.toPath(), (int) byteCount) ? new FileCharSequence(file, (int) byteCount) : null;
+    }
+    
+    /**
+     * Tests whether the first 'byteCount' bytes of 'path' are plain ASCII, a chunk per core, because the caller is usually the event dispatch thread.
+     * A file that's shorter than we expected doesn't count.
+     */
+    private static boolean isPlainAsciiFile(Path path, final int byteCount) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final int chunkCount = (int) (((long) byteCount + SCAN_CHUNK_SIZE - 1) / SCAN_CHUNK_SIZE);
+            return IntStream.range(0, chunkCount).parallel().allMatch(chunk -> {
+                final long start = (long) chunk * SCAN_CHUNK_SIZE;
+                final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(SCAN_CHUNK_SIZE, byteCount - start));
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, start + buffer.position()) == -1) {
+                            return false;
+                        }
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return ByteBufferUtilities.isPlainAsciiByteBuffer(buffer, buffer.capacity());
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+    
+    /**
+     * Returns the file whose characters these are.
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    public char charAt(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + count + ")");
+        }
+        final Block block = getBlock(index / BLOCK_SIZE);
+        final int blockOffset = index % BLOCK_SIZE;
+        return (blockOffset < block.byteCount) ? (char) (block.bytes[blockOffset] & 0xff) : '\ufffd';
+    }
+    
+    public int length() {
+        return count;
+    }
+    
+    public CharSequence subSequence(int start, int end) {
+        char[] chars = new char[end - start];
+        getChars(start, chars.length, chars, 0);
+        return new CharArrayCharSequence(chars);
+    }
+    
+    /**
+     * Copies 'charCount' chars starting at 'start' into 'destination' at 'destinationOffset'.
+     */
+    public void getChars(int start, int charCount, char[] destination, int destinationOffset) {
+        while (charCount > 0) {
+            final Block block = getBlock(start / BLOCK_SIZE);
+            final int blockOffset = start % BLOCK_SIZE;
+            final int copyCount = Math.min(charCount, BLOCK_SIZE - blockOffset);
+            for (int i = 0; i < copyCount; ++i) {
+                destination[destinationOffset + i] = (blockOffset + i < block.byteCount) ? (char) (block.bytes[blockOffset + i] & 0xff) : '\ufffd';
+            }
+            start += copyCount;
+            charCount -= copyCount;
+            destinationOffset += copyCount;
+        }
+    }
+    
+    private Block getBlock(int blockIndex) {
+        final Block last = lastBlock;
+        if (last != null && last.index == blockIndex) {
+            return last;
+        }
+        synchronized (this) {
+            Block block = blocks.get(blockIndex);
+            if (block == null) {
+                block = readBlock(blockIndex);
+                blocks.put(blockIndex, block);
+            }
+            lastBlock = block;
+            return block;
+        }
+    }
+    
+    private Block readBlock(int blockIndex) {
+        final long start = (long) blockIndex * BLOCK_SIZE;
+        final byte[] bytes = new byte[(int) Math.min(BLOCK_SIZE, count - start)];
+        int byteCount = 0;
+        try {
+            randomAccessFile.seek(start);
+            while (byteCount < bytes.length) {
+                final int n = randomAccessFile.read(bytes, byteCount, bytes.length - byteCount);
+                if (n == -1) {
+                    break;
+                }
+                byteCount += n;
+            }
+        } catch (IOException ex) {
+            // Whatever we couldn't read is as lost as if the file had been truncated.
+            reportLostBytes(ex);
+        }
+        if (byteCount < bytes.length) {
+            reportLostBytes(null);
+        }
+        return new Block(blockIndex, bytes, byteCount);
+    }
+    
+    private void reportLostBytes(IOException ex) {
+        if (hasReportedLostBytes == false) {
+            hasReportedLostBytes = true;
+            Log.warn("\"" + file + "\" has shrunk or become unreadable since it was opened; the missing text will read as U+FFFD.", ex);
+        }
+    }
+    
+    public String toString() {
+        char[] chars = new char[count];
+        getChars(0, count, chars, 0);
+        return new String(chars);
+    }
+    
+    @Test private static void testOpenIfPlainAscii() throws IOException {
+        final Path file = Files.createTempFile("FileCharSequenceTest", null);
+        try {
+            Files.write(file, "hello\tworld\n".getBytes("US-ASCII"));
+            Assert.equals(openIfPlainAscii(file.toFile()).toString(), "hello\tworld\n");
+            Files.write(file, "hello\r\nworld\r\n".getBytes("US-ASCII"));
+            Assert.equals(openIfPlainAscii(file.toFile()), null);
+            Files.write(file, "café\n".getBytes("UTF-8"));
+            Assert.equals(openIfPlainAscii(file.toFile()), null);
+        } finally {
+            Files.delete(file);
+        }
+    }
+    
+    @Test private static void testTruncatedFile() throws IOException {
+        final Path file = Files.createTempFile("FileCharSequenceTest", null);
+        try {
+            // Several blocks, so that some of them are still cached and some aren't when the file's truncated.
+            final byte[] bytes = new byte[5 * BLOCK_SIZE + 10];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = (byte) ('a' + i % 26);
+            }
+            Files.write(file, bytes);
+            final FileCharSequence chars = openIfPlainAscii(file.toFile());
+            Assert.equals(chars.length(), bytes.length);
+            Assert.equals(chars.charAt(BLOCK_SIZE + 1), (char) bytes[BLOCK_SIZE + 1]);
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.setLength(2 * BLOCK_SIZE + 10);
+            }
+            Assert.equals(chars.length(), bytes.length);
+            Assert.equals(chars.charAt(BLOCK_SIZE + 1), (char) bytes[BLOCK_SIZE + 1]);
+            Assert.equals(chars.charAt(2 * BLOCK_SIZE + 9), (char) bytes[2 * BLOCK_SIZE + 9]);
+            Assert.equals(chars.charAt(2 * BLOCK_SIZE + 10), '\ufffd');
+            Assert.equals(chars.charAt(bytes.length - 1), '\ufffd');
+            Assert.equals(chars.subSequence(2 * BLOCK_SIZE + 8, 2 * BLOCK_SIZE + 12).toString(), new String(bytes, 2 * BLOCK_SIZE + 8, 2, "US-ASCII") + "\ufffd\ufffd");
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
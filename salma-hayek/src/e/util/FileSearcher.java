@@ -1,18 +1,68 @@
 package e.util;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.regex.*;
 import java.util.stream.*;
+import org.jessies.test.*;
 
+/**
+ * Searches files for lines matching a regular expression, reporting matches as ":<line number>:<line>".
+ * 
+ * Files are searched as raw UTF-8 bytes rather than decoded into a String per line.
+ * If every match of the pattern must contain some literal text, we look for that with Boyer-Moore-Horspool, and only decode and run the regular expression on lines containing it.
+ * Most searches are for something like an identifier, so most lines are never decoded at all.
+ * Otherwise, we decode the whole file once and run the regular expression over each line's region of that.
+ * 
+ * Files containing a NUL byte near the start, or that aren't valid UTF-8 where we look at them, are assumed to be binary.
+ * 
+ * A FileSearcher is immutable apart from per-thread scratch space, so one instance can be shared by all the threads searching for the same pattern.
+ */
 public class FileSearcher {
+    // Files larger than this are mapped rather than read. See ByteBufferUtilities.readFile for why we don't just map everything.
+    private static final int MAP_THRESHOLD = 1024 * 1024;
+    
+    // How much of a file we look at for a NUL byte before deciding it's text. This is what grep(1) does too.
+    private static final int BINARY_SNIFF_BYTE_COUNT = 8 * 1024;
+    
+    // Each searching thread reads files into the same array rather than allocating one per file.
+    private static final ThreadLocal<byte[]> readBuffers = new ThreadLocal<byte[]>() {
+        @Override protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+    
     private final Pattern pattern;
     
+    // The UTF-8 encoding of text every match must contain, or null if there's no such text.
+    private final byte[] literal;
+    // Whether 'literal' should be compared ignoring ASCII case, as Pattern.CASE_INSENSITIVE does.
+    private final boolean ignoreCase;
+    // How far Boyer-Moore-Horspool can skip given the (folded) byte under the end of the literal.
+    private final int[] skips;
+    
+    private final ThreadLocal<LineMatcher> lineMatchers = new ThreadLocal<LineMatcher>() {
+        @Override protected LineMatcher initialValue() {
+            return new LineMatcher();
+        }
+    };
+    
     /** Creates a new FileSearcher for finding the given Pattern. */
     public FileSearcher(Pattern pattern) {
         this.pattern = pattern;
+        this.ignoreCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        String requiredLiteral = findRequiredLiteral(pattern.pattern(), pattern.flags());
+        if (requiredLiteral != null) {
+            this.literal = foldCase(requiredLiteral.getBytes(StandardCharsets.UTF_8));
+            this.skips = makeSkipTable(literal);
+        } else {
+            this.literal = null;
+            this.skips = null;
+        }
     }
     
     /**
@@ -20,34 +70,456 @@ public class FileSearcher {
      * Returns false if unable to search; true otherwise.
      */
     public boolean searchFile(Path file, Collection<String> matches) throws IOException {
-        CountingMatcher matcher = new CountingMatcher(matches);
-        try (Stream<String> stream = Files.lines(file, StandardCharsets.UTF_8)) {
-            stream.forEach(v -> matcher.tryMatch(v));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                // Too big for a ByteBuffer, and too rare to be worth mapping a piece at a time.
+                return searchLines(file, matches);
+            }
+            ByteBuffer bytes;
+            if (size > MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                byte[] buffer = readBuffers.get();
+                if (buffer.length < size) {
+                    buffer = new byte[(int) size];
+                    readBuffers.set(buffer);
+                }
+                bytes = ByteBuffer.wrap(buffer, 0, (int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) != -1) {
+                }
+                // The file may have shrunk since we asked its size.
+                bytes.flip();
+            }
+            return searchBytes(bytes, matches);
+        }
+    }
+    
+    /**
+     * Searches 'file' a decoded line at a time, which is slower but works for files of any size.
+     * Returns false if the file isn't valid UTF-8, which we take as a sign that it's binary; true otherwise.
+     */
+    private boolean searchLines(Path file, Collection<String> matches) throws IOException {
+        final Matcher matcher = pattern.matcher("");
+        final int[] lineNumber = new int[1];
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            lines.forEach(line -> {
+                ++lineNumber[0];
+                if (matcher.reset(line).find()) {
+                    matches.add(":" + lineNumber[0] + ":" + line);
+                }
+            });
         } catch (UncheckedIOException ex) {
-            // These happen when there's some error in decoding the charset. We'll treat this as being
-            // a sign that the file is a binary file.
+            // This is how decoding errors are reported.
             return false;
         }
         return true;
     }
     
     /**
-     * CountingMatcher matches a sequence of lines, appending any matches to the 'matches' collection.
-     * This is for use with a streamed line reader.
+     * Searches the bytes between the given buffer's position and limit, which should be UTF-8 text.
+     * Returns false if the bytes look binary; true otherwise.
+     */
+    boolean searchBytes(ByteBuffer bytes, Collection<String> matches) {
+        final int start = bytes.position();
+        final int end = bytes.limit();
+        for (int i = start; i < Math.min(end, start + BINARY_SNIFF_BYTE_COUNT); ++i) {
+            if (bytes.get(i) == 0) {
+                return false;
+            }
+        }
+        LineMatcher lineMatcher = lineMatchers.get();
+        if (literal == null) {
+            return lineMatcher.matchAllLines(bytes, start, end, matches);
+        }
+        
+        int lineNumber = 1;
+        int lineStart = start;
+        int position = start;
+        while (true) {
+            final int hit = indexOfLiteral(bytes, position, end);
+            if (hit == -1) {
+                return true;
+            }
+            // Catch up with the line containing the hit.
+            for (int i = lineStart; i < hit; ++i) {
+                final byte b = bytes.get(i);
+                if (b == '\n' || (b == '\r' && (i + 1 >= end || bytes.get(i + 1) != '\n'))) {
+                    ++lineNumber;
+                    lineStart = i + 1;
+                }
+            }
+            int lineEnd = hit;
+            while (lineEnd < end && bytes.get(lineEnd) != '\n' && bytes.get(lineEnd) != '\r') {
+                ++lineEnd;
+            }
+            if (lineMatcher.matchLine(bytes, lineStart, lineEnd, lineNumber, matches) == false) {
+                return false;
+            }
+            // Carry on from the end of the line, leaving its terminator to be counted by the catching up.
+            position = lineEnd;
+            if (position >= end) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Returns the index of the first occurrence of 'literal' in bytes [from, to), or -1.
+     */
+    private int indexOfLiteral(ByteBuffer bytes, int from, int to) {
+        final int last = literal.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (j >= 0 && fold(bytes.get(i + j)) == literal[j]) {
+                --j;
+            }
+            if (j < 0) {
+                return i;
+            }
+            i += skips[fold(bytes.get(i + last)) & 0xff];
+        }
+        return -1;
+    }
+    
+    private static int[] makeSkipTable(byte[] literal) {
+        int[] skips = new int[256];
+        Arrays.fill(skips, literal.length);
+        for (int i = 0; i < literal.length - 1; ++i) {
+            skips[literal[i] & 0xff] = literal.length - 1 - i;
+        }
+        return skips;
+    }
+    
+    private byte fold(byte b) {
+        return (ignoreCase && b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+    
+    private byte[] foldCase(byte[] bytes) {
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = fold(bytes[i]);
+        }
+        return bytes;
+    }
+    
+    /**
+     * Decodes lines and runs the pattern on them. Each thread has its own, so it can reuse its buffers.
+     */
+    private class LineMatcher {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+        private final Matcher matcher = pattern.matcher("");
+        private CharBuffer chars = CharBuffer.allocate(1024);
+        
+        /**
+         * Decodes bytes [start, end) into 'chars', returning false if they're not valid UTF-8.
+         */
+        private boolean decode(ByteBuffer bytes, int start, int end) {
+            ByteBuffer in = bytes.duplicate();
+            in.limit(end).position(start);
+            // UTF-8 never needs more chars than bytes.
+            if (chars.capacity() < end - start) {
+                chars = CharBuffer.allocate(end - start);
+            }
+            chars.clear();
+            decoder.reset();
+            if (decoder.decode(in, chars, true).isError() || decoder.flush(chars).isError()) {
+                return false;
+            }
+            chars.flip();
+            return true;
+        }
+        
+        private boolean matchLine(ByteBuffer bytes, int start, int end, int lineNumber, Collection<String> matches) {
+            if (decode(bytes, start, end) == false) {
+                return false;
+            }
+            if (matcher.reset(chars).find()) {
+                matches.add(":" + lineNumber + ":" + chars);
+            }
+            return true;
+        }
+        
+        private boolean matchAllLines(ByteBuffer bytes, int start, int end, Collection<String> matches) {
+            if (decode(bytes, start, end) == false) {
+                return false;
+            }
+            matcher.reset(chars);
+            final int charCount = chars.length();
+            int lineNumber = 1;
+            int lineStart = 0;
+            while (lineStart < charCount) {
+                int lineEnd = lineStart;
+                while (lineEnd < charCount && chars.get(lineEnd) != '\n' && chars.get(lineEnd) != '\r') {
+                    ++lineEnd;
+                }
+                // The default anchoring and opaque bounds make the region behave like a String containing just this line.
+                if (matcher.region(lineStart, lineEnd).find()) {
+                    matches.add(":" + lineNumber + ":" + chars.subSequence(lineStart, lineEnd));
+                }
+                ++lineNumber;
+                lineStart = lineEnd + 1;
+                if (lineEnd + 1 < charCount && chars.get(lineEnd) == '\r' && chars.get(lineEnd + 1) == '\n') {
+                    ++lineStart;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Returns the longest text that must appear in any match of the given regular expression, or null if we can't tell.
+     * This is deliberately conservative: anything we don't fully understand (alternation, embedded flags, and so on) gives null.
      */
-    public class CountingMatcher {
-        private int line = 0;
-        private Collection<String> matches;
+    static String findRequiredLiteral(String regex, int flags) {
+        if ((flags & Pattern.LITERAL) != 0) {
+            return regex.isEmpty() ? null : regex;
+        }
+        if ((flags & (Pattern.COMMENTS | Pattern.CANON_EQ | Pattern.UNICODE_CASE)) != 0) {
+            return null;
+        }
+        if (regex.contains("|") || regex.contains("(?")) {
+            return null;
+        }
+        return new RequiredLiteralFinder(regex).find();
+    }
+    
+    private static class RequiredLiteralFinder {
+        private final String regex;
+        private final StringBuilder run = new StringBuilder();
+        private String best = "";
         
-        public CountingMatcher(Collection<String> matches) {
-            this.matches = matches;
+        private RequiredLiteralFinder(String regex) {
+            this.regex = regex;
+        }
+        
+        private String find() {
+            final int length = regex.length();
+            int i = 0;
+            while (i < length) {
+                final char ch = regex.charAt(i);
+                if (ch == '\\' && i + 1 < length && regex.charAt(i + 1) == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end == -1) {
+                        end = length;
+                    }
+                    String quoted = regex.substring(i + 2, end);
+                    i = Math.min(end + 2, length);
+                    if (quoted.isEmpty()) {
+                        continue;
+                    }
+                    // Only the last quoted character can be affected by a following quantifier.
+                    run.append(quoted, 0, quoted.length() - 1);
+                    i = appendLiteral(i, quoted.charAt(quoted.length() - 1));
+                } else if (ch == '\\' && i + 1 < length && Character.isLetterOrDigit(regex.charAt(i + 1)) == false) {
+                    i = appendLiteral(i + 2, regex.charAt(i + 1));
+                } else if (ch == '\\') {
+                    endRun();
+                    i = skipQuantifier(regex, skipEscape(regex, i));
+                } else if (ch == '[') {
+                    endRun();
+                    i = skipQuantifier(regex, skipCharacterClass(regex, i));
+                } else if (ch == '(') {
+                    endRun();
+                    i = skipQuantifier(regex, skipGroup(regex, i));
+                } else if (ch == '.' || ch == '^' || ch == '$' || Character.isSurrogate(ch)) {
+                    endRun();
+                    i = skipQuantifier(regex, i + 1);
+                } else {
+                    i = appendLiteral(i + 1, ch);
+                }
+            }
+            endRun();
+            return best.isEmpty() ? null : best;
         }
         
-        public void tryMatch(String str) {
-            line++;
-            if (pattern.matcher(str).find()) {
-                matches.add(":" + line + ":" + str);
+        /**
+         * Adds the literal character 'ch', which is followed by regex[i..], to the current run, taking any quantifier into account.
+         * Returns the index of the next thing in the regular expression.
+         */
+        private int appendLiteral(int i, char ch) {
+            final char next = (i < regex.length()) ? regex.charAt(i) : 0;
+            if (next == '*' || next == '?' || (next == '{' && regex.startsWith("{0", i))) {
+                // The character is optional, so the run ends before it.
+                endRun();
+            } else if (next == '+' || next == '{') {
+                // The character is required, but whatever follows needn't be adjacent to it.
+                run.append(ch);
+                endRun();
+            } else {
+                run.append(ch);
+            }
+            return skipQuantifier(regex, i);
+        }
+        
+        private void endRun() {
+            if (run.length() > best.length()) {
+                best = run.toString();
+            }
+            run.setLength(0);
+        }
+    }
+    
+    private static int skipQuantifier(String regex, int i) {
+        final int length = regex.length();
+        if (i < length && (regex.charAt(i) == '*' || regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+            ++i;
+        } else if (i < length && regex.charAt(i) == '{') {
+            i = skipPast(regex, i, '}');
+        } else {
+            return i;
+        }
+        // Reluctant and possessive quantifiers.
+        if (i < length && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+            ++i;
+        }
+        return i;
+    }
+    
+    /**
+     * Returns the index after the escape sequence starting with the backslash at regex[i].
+     */
+    private static int skipEscape(String regex, int i) {
+        final int length = regex.length();
+        final char kind = regex.charAt(i + 1);
+        int j = i + 2;
+        if (kind == '0') {
+            for (int digits = 0; digits < 3 && j < length && regex.charAt(j) >= '0' && regex.charAt(j) <= '7'; ++digits) {
+                ++j;
+            }
+        } else if (kind >= '1' && kind <= '9') {
+            while (j < length && Character.isDigit(regex.charAt(j))) {
+                ++j;
+            }
+        } else if (kind == 'x') {
+            j = (j < length && regex.charAt(j) == '{') ? skipPast(regex, j, '}') : j + 2;
+        } else if (kind == 'u') {
+            j += 4;
+        } else if (kind == 'c') {
+            j += 1;
+        } else if (kind == 'p' || kind == 'P') {
+            j = (j < length && regex.charAt(j) == '{') ? skipPast(regex, j, '}') : j + 1;
+        } else if (kind == 'N' || kind == 'b' || kind == 'B') {
+            j = (j < length && regex.charAt(j) == '{') ? skipPast(regex, j, '}') : j;
+        } else if (kind == 'k') {
+            j = skipPast(regex, j, '>');
+        }
+        return Math.min(j, length);
+    }
+    
+    /**
+     * Returns the index after the character class starting at regex[i].
+     */
+    private static int skipCharacterClass(String regex, int i) {
+        final int length = regex.length();
+        int depth = 0;
+        int j = i;
+        while (j < length) {
+            final char ch = regex.charAt(j);
+            if (ch == '\\') {
+                j += 2;
+                continue;
+            }
+            if (ch == '[') {
+                ++depth;
+                ++j;
+                // A ']' straight after the opening '[' or '[^' is literal.
+                if (j < length && regex.charAt(j) == '^') {
+                    ++j;
+                }
+                if (j < length && regex.charAt(j) == ']') {
+                    ++j;
+                }
+                continue;
+            }
+            ++j;
+            if (ch == ']' && --depth == 0) {
+                return j;
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Returns the index after the group starting at regex[i].
+     */
+    private static int skipGroup(String regex, int i) {
+        final int length = regex.length();
+        int depth = 0;
+        int j = i;
+        while (j < length) {
+            final char ch = regex.charAt(j);
+            if (ch == '\\') {
+                j = (j + 1 < length && regex.charAt(j + 1) == 'Q') ? skipPast(regex, j, 'E') : j + 2;
+            } else if (ch == '[') {
+                j = skipCharacterClass(regex, j);
+            } else {
+                ++j;
+                if (ch == '(') {
+                    ++depth;
+                } else if (ch == ')' && --depth == 0) {
+                    return j;
+                }
+            }
+        }
+        return length;
+    }
+    
+    private static int skipPast(String regex, int i, char ch) {
+        final int index = regex.indexOf(ch, i);
+        return (index == -1) ? regex.length() : index + 1;
+    }
+    
+    @Test private static void testFindRequiredLiteral() {
+        Assert.equals(findRequiredLiteral("hello", 0), "hello");
+        Assert.equals(findRequiredLiteral("\\bgetFoo\\(", 0), "getFoo(");
+        Assert.equals(findRequiredLiteral("ab*cdef", 0), "cdef");
+        Assert.equals(findRequiredLiteral("abc+de", 0), "abc");
+        Assert.equals(findRequiredLiteral("colou?r", 0), "colo");
+        Assert.equals(findRequiredLiteral("x{0,3}yz", 0), "yz");
+        Assert.equals(findRequiredLiteral("[a-z]+Exception\\s", 0), "Exception");
+        Assert.equals(findRequiredLiteral("(foo)?barbaz", 0), "barbaz");
+        Assert.equals(findRequiredLiteral("\\x41\\u0042cd", 0), "cd");
+        Assert.equals(findRequiredLiteral("\\p{Alpha}ab", 0), "ab");
+        Assert.equals(findRequiredLiteral("\\Qa.b\\E*", 0), "a.");
+        Assert.equals(findRequiredLiteral("a.b", Pattern.LITERAL), "a.b");
+        Assert.equals(findRequiredLiteral("foo|bar", 0), null);
+        Assert.equals(findRequiredLiteral("(?i)foo", 0), null);
+        Assert.equals(findRequiredLiteral(".*", 0), null);
+    }
+    
+    private static List<String> search(String regex, String text) {
+        ArrayList<String> matches = new ArrayList<>();
+        boolean wasText = new FileSearcher(PatternUtilities.smartCaseCompile(regex)).searchBytes(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), matches);
+        return wasText ? matches : null;
+    }
+    
+    @Test private static void testSearchBytes() {
+        final String text = "int x;\nString hello = \"world\";\r\nHello again\rx = hello;\n\nbye\u00e9 hello";
+        Assert.equals(search("hello", text), Arrays.asList(":2:String hello = \"world\";", ":3:Hello again", ":4:x = hello;", ":6:bye\u00e9 hello"));
+        Assert.equals(search("Hello", text), Arrays.asList(":3:Hello again"));
+        Assert.equals(search("^x", text), Arrays.asList(":4:x = hello;"));
+        Assert.equals(search("o+\\b", text), Arrays.asList(":2:String hello = \"world\";", ":3:Hello again", ":4:x = hello;", ":6:bye\u00e9 hello"));
+        Assert.equals(search("h.*o;$", text), Arrays.asList(":4:x = hello;"));
+        Assert.equals(search("nothing", text), Arrays.asList());
+        Assert.equals(search("hello", "hello\u0000") == null, true);
+    }
+    
+    @Test private static void testSearchLines() throws IOException {
+        // Files too big to search as bytes are searched a line at a time, and should give the same answers.
+        final String text = "int x;\nString hello = \"world\";\r\nHello again\rx = hello;\n\nbye\u00e9 hello";
+        final Path file = Files.createTempFile("FileSearcherTest", null);
+        try {
+            Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+            for (String regex : Arrays.asList("hello", "Hello", "^x", "o+\\b", "h.*o;$", "nothing")) {
+                ArrayList<String> matches = new ArrayList<>();
+                Assert.equals(new FileSearcher(PatternUtilities.smartCaseCompile(regex)).searchLines(file, matches), true);
+                Assert.equals(matches, search(regex, text));
             }
+            Files.write(file, new byte[] { 'h', 'i', (byte) 0xff, '\n' });
+            Assert.equals(new FileSearcher(Pattern.compile("hi")).searchLines(file, new ArrayList<String>()), false);
+        } finally {
+            Files.delete(file);
         }
     }
 }
@@ -7,7 +7,7 @@ import java.awt.image.*;
 import java.lang.reflect.*;
 import java.net.URI;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
 import javax.swing.*;
 import javax.swing.border.*;
 import javax.swing.event.*;
@@ -623,21 +623,22 @@ public class GuiUtilities {
         scrollBar.getModel().removeChangeListener(changeListener);
     }
     
-    public static final void waitForWindowToDisappear(final Component window) {
-        final CountDownLatch done = new CountDownLatch(1);
+    /**
+     * Returns a future that completes (on the event dispatch thread) when 'window' stops showing.
+     * Callers that want to wait for a window can chain on this rather than tying up a thread.
+     */
+    public static final CompletableFuture<Void> whenWindowDisappears(final Component window) {
+        final CompletableFuture<Void> disappeared = new CompletableFuture<>();
         // FIXME: is this really the easiest way to watch for the component being removed from the hierarchy?
         window.addHierarchyListener(new HierarchyListener() {
             public void hierarchyChanged(HierarchyEvent e) {
                 if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && window.isShowing() == false) {
-                    done.countDown();
+                    window.removeHierarchyListener(this);
+                    disappeared.complete(null);
                 }
             }
         });
-        try {
-            done.await();
-        } catch (InterruptedException ex) {
-            Log.warn("InterruptedException while waiting for window to be closed", ex);
-        }
+        return disappeared;
     }
     
     // The quitHandlerLambda should return true to quit, false to cancel the quit.
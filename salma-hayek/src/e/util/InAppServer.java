@@ -3,8 +3,12 @@ package e.util;
 import java.io.*;
 import java.lang.reflect.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * If your application wants to provide a simple server that users (or scripts)
@@ -14,18 +18,37 @@ import java.util.*;
  * 
  * Evergreen uses this so you can open files from the shell, and Terminator uses it
  * so that successive invocations don't need to start a new VM.
+ * 
+ * A client sends the secret from the secret file on a line, and then a request on
+ * a line, and reads the response until we close the connection. A command can
+ * return a CompletionStage rather than void, in which case we don't close the
+ * connection until it completes. That lets a command wait for something like a
+ * window being closed without tying up a thread.
+ * 
+ * All the connections are served by one thread, using non-blocking I/O. The
+ * commands themselves run on a pool of threads, because they often need to wait
+ * for the event dispatch thread.
  */
 public final class InAppServer {
+    // We've always used the platform's default charset for requests and responses.
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final int INPUT_BUFFER_SIZE = 4096;
+    // Requests are a line of arguments; anything longer than this isn't a request.
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    
     private String fullName;
     private File secretFile;
     private SecureRandom secureRandom = new SecureRandom();
-    private String secret;
+    private volatile String secret;
     
     // I think that having a generic constructor provides all the safety we
     // can get from generics, and that keeping the type information here would
     // only add inconvenience because we'd need to make this a generic class.
-    private Class<?> exportedInterface;
     private Object handler;
+    private final HashMap<String, Method> commands = new HashMap<>();
+    
+    private ExecutorService handlerPool;
+    private Dispatcher dispatcher;
     
     /**
      * 'handler' can be of any type that implements 'exportedInterface', but
@@ -34,8 +57,12 @@ public final class InAppServer {
      */
     public <T> InAppServer(String name, String portFilename, InetAddress inetAddress, Class<T> exportedInterface, T handler) {
         this.fullName = name + "Server";
-        this.exportedInterface = exportedInterface;
         this.handler = handler;
+        for (Method method : exportedInterface.getMethods()) {
+            if (method.getReturnType() == void.class || CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+                commands.put(method.getName(), method);
+            }
+        }
         
         // In the absence of authentication, we shouldn't risk starting a server as root.
         if (System.getProperty("user.name").equals("root")) {
@@ -46,7 +73,9 @@ public final class InAppServer {
         try {
             File portFile = FileUtilities.fileFromString(portFilename);
             secretFile = new File(portFile.getPath() + ".secret");
-            Thread serverThread = new Thread(new ConnectionAccepter(portFile, inetAddress), fullName);
+            handlerPool = ThreadUtilities.newCachedThreadPool(fullName + "-Handler");
+            dispatcher = new Dispatcher(portFile, inetAddress);
+            Thread serverThread = new Thread(dispatcher, fullName);
             // If there are no other threads left, the InApp server shouldn't keep us alive.
             serverThread.setDaemon(true);
             serverThread.start();
@@ -56,36 +85,46 @@ public final class InAppServer {
         writeNewSecret();
     }
     
-    private void writeNewSecret() {
+    private synchronized void writeNewSecret() {
         secret = Long.toString(secureRandom.nextLong());
         StringUtilities.writeFile(secretFile, secret);
     }
     
-    public boolean handleCommand(String line, PrintWriter out) {
+    /**
+     * Handles the request 'line', writing any output to 'out'.
+     * Returns a CompletionStage that completes when the request has been handled.
+     * That's usually already the case, unless the command returned a CompletionStage of its own.
+     */
+    private CompletionStage<?> handleCommand(String line, PrintWriter out) {
         String[] split = line.split("[\t ]");
         String commandName = split[0];
         
         try {
-            Method[] methods = exportedInterface.getMethods();
-            for (Method method : methods) {
-                if (method.getName().equals(commandName) && method.getReturnType() == void.class) {
-                    return invokeMethod(line, out, method, split);
-                }
+            Method method = commands.get(commandName);
+            if (method == null) {
+                throw new NoSuchMethodException();
+            }
+            Object result = invokeMethod(line, out, method, split);
+            if (result instanceof CompletionStage) {
+                return ((CompletionStage<?>) result).exceptionally((th) -> {
+                    reportFailure(line, out, th);
+                    return null;
+                });
             }
-            throw new NoSuchMethodException();
         } catch (NoSuchMethodException nsmex) {
             out.println(fullName + ": didn't understand request \"" + line + "\".");
         } catch (Exception ex) {
-            Log.warn(fullName + ": exception thrown while handling command \"" + line + "\".", ex);
-            out.println(fullName + ": request denied \"" + line + "\" (" + ex.toString() + ").");
-        } finally {
-            out.flush();
-            out.close();
+            reportFailure(line, out, ex);
         }
-        return false;
+        return CompletableFuture.completedFuture(null);
     }
     
-    private boolean invokeMethod(String line, PrintWriter out, Method method, String[] fields) throws IllegalAccessException, InvocationTargetException {
+    private void reportFailure(String line, PrintWriter out, Throwable th) {
+        Log.warn(fullName + ": exception thrown while handling command \"" + line + "\".", th);
+        out.println(fullName + ": request denied \"" + line + "\" (" + th.toString() + ").");
+    }
+    
+    private Object invokeMethod(String line, PrintWriter out, Method method, String[] fields) throws IllegalAccessException, InvocationTargetException {
         ArrayList<Object> methodArguments = new ArrayList<>();
         
         Class<?>[] parameterTypes = method.getParameterTypes();
@@ -105,20 +144,30 @@ public final class InAppServer {
             }
         }
         
-        method.invoke(handler, methodArguments.toArray());
-        return true;
+        return method.invoke(handler, methodArguments.toArray());
     }
     
-    private class ConnectionAccepter implements Runnable {
-        private ServerSocket socket;
+    /**
+     * Accepts connections, and does all the reading and writing for them.
+     * Everything that happens to a Connection happens on this thread, so the handler threads post tasks rather than touching connections themselves.
+     */
+    private class Dispatcher implements Runnable {
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private int connectionCount = 0;
         
-        private ConnectionAccepter(File portFile, InetAddress inetAddress) throws IOException {
-            this.socket = new ServerSocket();
-            socket.bind(new InetSocketAddress(inetAddress, 0));
+        private Dispatcher(File portFile, InetAddress inetAddress) throws IOException {
+            this.selector = Selector.open();
+            this.serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(inetAddress, 0));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             writeHostAndPortToFile(portFile, inetAddress);
         }
         
         private void writeHostAndPortToFile(File portFile, InetAddress inetAddress) {
+            ServerSocket socket = serverChannel.socket();
             if (inetAddress == null) {
                 try {
                     inetAddress = InetAddress.getLocalHost();
@@ -134,82 +183,292 @@ public final class InAppServer {
             StringUtilities.writeFile(portFile, host + ":" + port + "\n");
         }
         
-        public void run() {
-            acceptConnections();
+        /**
+         * Arranges for 'task' to be run on the dispatcher's thread. Can be called from any thread.
+         */
+        private void post(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
         }
         
-        private void acceptConnections() {
+        public void run() {
             for (;;) {
                 try {
-                    String handlerName = fullName + "-Handler-" + Thread.activeCount();
-                    new Thread(new ClientHandler(socket.accept()), handlerName).start();
+                    selector.select();
+                    for (Runnable task; (task = tasks.poll()) != null; ) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() == false) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptConnection();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isWritable()) {
+                                connection.writeOutput();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.readInput();
+                            }
+                        }
+                    }
                 } catch (Exception ex) {
-                    Log.warn(fullName + ": exception accepting connection.", ex);
+                    Log.warn(fullName + ": exception in dispatcher.", ex);
                 }
             }
         }
+        
+        private void acceptConnection() throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            // Responses are often a line and then the end of the response, and we don't want Nagle's algorithm to hold back the second until the client acknowledges the first.
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key, fullName + "-Client-" + (++connectionCount)));
+        }
     }
     
-    private final class ClientHandler implements Runnable {
-        private Socket client;
+    /**
+     * One client's connection. Only used on the dispatcher's thread, except for send and post.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String name;
         
-        private BufferedReader in;
-        private PrintWriter out;
+        private final ByteBuffer inputBytes = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        private final ByteArrayOutputStream currentLine = new ByteArrayOutputStream();
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
         
-        private ClientHandler(Socket client) {
-            this.client = client;
-        }
+        private boolean isAuthenticated = false;
+        private boolean isBusy = false;
+        private int requestCount = 0;
+        private boolean clientHasFinishedSending = false;
+        private boolean shouldCloseAfterOutput = false;
+        private boolean isClosed = false;
         
-        public void run() {
-            handleClient();
+        private Connection(SocketChannel channel, SelectionKey key, String name) {
+            this.channel = channel;
+            this.key = key;
+            this.name = name;
         }
         
-        private void handleClient() {
+        private void readInput() {
+            int byteCount;
             try {
-                this.in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                this.out = new PrintWriter(new OutputStreamWriter(client.getOutputStream()));
-                if (authenticateClient()) {
-                    handleRequest();
+                inputBytes.clear();
+                byteCount = channel.read(inputBytes);
+            } catch (IOException ex) {
+                Log.warn(name + ": failure reading client request.", ex);
+                close();
+                return;
+            }
+            if (byteCount == -1) {
+                // We've had everything the client will send, but we can still send the responses.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                clientHasFinishedSending = true;
+                handleLines();
+                return;
+            }
+            inputBytes.flip();
+            while (inputBytes.hasRemaining()) {
+                byte b = inputBytes.get();
+                if (b == '\n') {
+                    String line = new String(currentLine.toByteArray(), CHARSET);
+                    lines.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+                    currentLine.reset();
+                } else if (currentLine.size() < MAX_LINE_LENGTH) {
+                    currentLine.write(b);
+                } else {
+                    Log.warn(name + ": line too long; closing connection.");
+                    close();
+                    return;
                 }
-                out.flush();
-                out.close();
-                in.close();
-            } catch (Exception ex) {
-                Log.warn(Thread.currentThread().getName() + ": failure handling client request.", ex);
-            } finally {
-                closeClientSocket();
             }
+            handleLines();
+        }
+        
+        /**
+         * Handles the lines we've read, in order, one at a time.
+         */
+        private void handleLines() {
+            while (isBusy == false && isClosed == false && shouldCloseAfterOutput == false && lines.isEmpty() == false) {
+                String line = lines.poll();
+                if (isAuthenticated == false) {
+                    authenticate(line);
+                } else if (line.length() == 0) {
+                    Log.warn(name + ": ignoring empty request.");
+                    closeAfterOutput();
+                } else {
+                    handleRequest(line);
+                }
+            }
+            if (isBusy == false && lines.isEmpty() && clientHasFinishedSending) {
+                if (isAuthenticated && requestCount == 0) {
+                    Log.warn(name + ": ignoring empty request.");
+                }
+                closeAfterOutput();
+            }
+        }
+        
+        private void authenticate(String line) {
+            if (line.equals(secret) == false) {
+                Log.warn(name + ": failed authentication attempt with \"" + line + "\".");
+                queueOutput("Authentication failed\n");
+                closeAfterOutput();
+                return;
+            }
+            isAuthenticated = true;
+            // Writing the new secret means touching the disk, so we don't do it on the dispatcher's thread.
+            isBusy = true;
+            handlerPool.execute(() -> {
+                writeNewSecret();
+                dispatcher.post(() -> {
+                    queueOutput("Authentication OK\n");
+                    isBusy = false;
+                    handleLines();
+                });
+            });
         }
         
-        private void closeClientSocket() {
+        private void handleRequest(String line) {
+            ++requestCount;
+            isBusy = true;
+            final ResponseWriter response = new ResponseWriter(this);
+            handlerPool.execute(() -> {
+                final PrintWriter out = new PrintWriter(response, true);
+                CompletionStage<?> completion = handleCommand(line, out);
+                completion.whenComplete((result, th) -> {
+                    response.finish();
+                });
+            });
+        }
+        
+        /**
+         * Invoked (on any thread) when a request's response is complete.
+         */
+        private void requestFinished() {
+            dispatcher.post(() -> {
+                isBusy = false;
+                closeAfterOutput();
+            });
+        }
+        
+        /**
+         * Sends 'text' to the client. Can be called from any thread.
+         */
+        private void send(String text) {
+            final byte[] bytes = text.getBytes(CHARSET);
+            dispatcher.post(() -> {
+                queueOutput(bytes);
+            });
+        }
+        
+        private void queueOutput(String text) {
+            queueOutput(text.getBytes(CHARSET));
+        }
+        
+        private void queueOutput(byte[] bytes) {
+            if (isClosed) {
+                return;
+            }
+            output.add(ByteBuffer.wrap(bytes));
+            writeOutput();
+        }
+        
+        private void closeAfterOutput() {
+            shouldCloseAfterOutput = true;
+            writeOutput();
+        }
+        
+        private void writeOutput() {
+            if (isClosed) {
+                return;
+            }
             try {
-                client.close();
+                while (output.isEmpty() == false) {
+                    ByteBuffer buffer = output.peek();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        // The socket's full; we'll carry on when it's writable.
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    output.poll();
+                }
             } catch (IOException ex) {
-                Log.warn(Thread.currentThread().getName() + ": failed to close client socket.", ex);
+                Log.warn(name + ": failure writing response.", ex);
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (shouldCloseAfterOutput) {
+                close();
             }
         }
         
-        private boolean authenticateClient() throws IOException {
-            String line = in.readLine();
-            if (line == null || line.equals(secret) == false) {
-                Log.warn(Thread.currentThread().getName() + ": failed authentication attempt with \"" + line + "\".");
-                out.println("Authentication failed");
-                return false;
+        private void close() {
+            if (isClosed) {
+                return;
             }
-            writeNewSecret();
-            out.println("Authentication OK");
-            return true;
+            isClosed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.warn(name + ": failed to close client socket.", ex);
+            }
+        }
+    }
+    
+    /**
+     * Collects a command's output, and sends it to the client each time it's flushed.
+     * A PrintWriter with automatic flushing sends each line as it's printed.
+     */
+    private static final class ResponseWriter extends Writer {
+        private final Connection connection;
+        private final StringBuilder pending = new StringBuilder();
+        private boolean isFinished = false;
+        
+        private ResponseWriter(Connection connection) {
+            this.connection = connection;
         }
-            
-        private void handleRequest() throws IOException {
-            String line = in.readLine();
-            if (line == null || line.length() == 0) {
-                Log.warn(Thread.currentThread().getName() + ": ignoring empty request.");
+        
+        @Override public synchronized void write(char[] chars, int offset, int length) {
+            if (isFinished) {
                 return;
             }
-            if (handleCommand(line, out) == false) {
-                out.println(Thread.currentThread().getName() + ": didn't understand request \"" + line + "\".");
+            pending.append(chars, offset, length);
+        }
+        
+        @Override public synchronized void flush() {
+            if (pending.length() > 0) {
+                connection.send(pending.toString());
+                pending.setLength(0);
+            }
+        }
+        
+        @Override public void close() {
+            // The response is finished when the command's finished, not when it closes its PrintWriter.
+            flush();
+        }
+        
+        private synchronized void finish() {
+            if (isFinished) {
+                return;
             }
+            flush();
+            isFinished = true;
+            connection.requestFinished();
         }
     }
 }
@@ -0,0 +1,492 @@
+package e.util;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * A list of non-negative ints that can sum any prefix, and find the element containing a given offset into the concatenated sequence, like FenwickTree.
+ * Unlike FenwickTree, elements can be inserted and removed without rebuilding everything.
+ * 
+ * The classic use is line start offsets: store the line lengths, and the start of line i is prefixSum(i).
+ * Each element also has a "tag", an int that isn't summed, for callers with a second per-element value (such as a line's width).
+ * 
+ * The elements are kept in order in chunks of at most CHUNK_CAPACITY. Each chunk has an array of its elements' running sums and an array of their tags, so an element costs about 8 bytes.
+ * A FenwickTree over the chunks' sizes and another over their sums find the chunk for an index or an offset in O(log n), and a binary search finds the element within the chunk.
+ * Changing, inserting or removing elements touches one chunk and the trees, which is O(CHUNK_CAPACITY + log n), plus the number of elements inserted or removed.
+ * Only adding, removing or merging chunks rebuilds the trees, which is O(n / CHUNK_CAPACITY), and that happens at most once every CHUNK_CAPACITY / 2 or so single-element edits.
+ * 
+ * Queries don't modify anything, so any number of threads can make them at once, as long as nothing is changing the list.
+ */
+public final class PrefixSumList {
+    private static final int CHUNK_CAPACITY = 1024;
+    
+    private final int chunkCapacity;
+    
+    // Chunk c holds chunkSizes[c] elements, and is never empty.
+    // Element i of chunk c has tag chunkTags[c][i], and chunkEnds[c][i] is the sum of elements 0 to i of the chunk.
+    // A chunk's arrays grow as needed, up to chunkCapacity.
+    private int chunkCount = 0;
+    private int[] chunkSizes = new int[16];
+    private int[][] chunkEnds = new int[16][];
+    private int[][] chunkTags = new int[16][];
+    
+    // Over chunkSizes and the chunks' sums, respectively.
+    private final FenwickTree sizeTree = new FenwickTree();
+    private final FenwickTree sumTree = new FenwickTree();
+    
+    private int size = 0;
+    private int sum = 0;
+    
+    public PrefixSumList() {
+        this(CHUNK_CAPACITY);
+    }
+    
+    // The tests use tiny chunks, so that a few elements are enough to exercise splitting and merging them.
+    private PrefixSumList(int chunkCapacity) {
+        this.chunkCapacity = chunkCapacity;
+    }
+    
+    /**
+     * Returns the number of elements.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Returns the sum of all the elements.
+     */
+    public int sum() {
+        return sum;
+    }
+    
+    /**
+     * Replaces the contents of this list with the first 'count' elements of 'newValues', each with tag 'tag'.
+     */
+    public void setAll(int[] newValues, int count, int tag) {
+        chunkCount = 0;
+        chunkSizes = new int[16];
+        chunkEnds = new int[16][];
+        chunkTags = new int[16][];
+        final int[] tags = new int[count];
+        Arrays.fill(tags, tag);
+        insertChunks(0, newValues, tags, count);
+        rebuildTrees();
+        size = count;
+        sum = 0;
+        for (int i = 0; i < count; ++i) {
+            sum += newValues[i];
+        }
+    }
+    
+    /**
+     * Inserts 'count' elements with value 'value' and tag 'tag' before the element at 'index'.
+     */
+    public void insert(int index, int count, int value, int tag) {
+        checkCount(index);
+        if (count <= 0) {
+            return;
+        }
+        final boolean isAppend = (index == size);
+        size += count;
+        sum += count * value;
+        if (chunkCount == 0) {
+            final int[] values = new int[count];
+            final int[] tags = new int[count];
+            Arrays.fill(values, value);
+            Arrays.fill(tags, tag);
+            insertChunks(0, values, tags, count);
+            rebuildTrees();
+            return;
+        }
+        // Inserting after the last element means appending to the last chunk.
+        final int chunk = isAppend ? chunkCount - 1 : chunkContaining(index);
+        final int position = index - sizeTree.prefixSum(chunk);
+        final int chunkSize = chunkSizes[chunk];
+        if (chunkSize + count > chunkCapacity) {
+            // Replace the chunk with as many chunks as it takes to hold its elements and the new ones.
+            final int newSize = chunkSize + count;
+            final int[] values = new int[newSize];
+            final int[] tags = new int[newSize];
+            copyChunk(chunk, 0, position, values, tags, 0);
+            Arrays.fill(values, position, position + count, value);
+            Arrays.fill(tags, position, position + count, tag);
+            copyChunk(chunk, position, chunkSize, values, tags, position + count);
+            removeChunkSlots(chunk, 1);
+            insertChunks(chunk, values, tags, newSize);
+            rebuildTrees();
+            return;
+        }
+        int[] ends = chunkEnds[chunk];
+        int[] tags = chunkTags[chunk];
+        if (chunkSize + count > ends.length) {
+            final int newLength = Math.min(chunkCapacity, Math.max(chunkSize + count, ends.length + (ends.length >> 1)));
+            ends = chunkEnds[chunk] = Arrays.copyOf(ends, newLength);
+            tags = chunkTags[chunk] = Arrays.copyOf(tags, newLength);
+        }
+        System.arraycopy(ends, position, ends, position + count, chunkSize - position);
+        System.arraycopy(tags, position, tags, position + count, chunkSize - position);
+        int end = (position == 0) ? 0 : ends[position - 1];
+        for (int i = position; i < position + count; ++i) {
+            end += value;
+            ends[i] = end;
+            tags[i] = tag;
+        }
+        for (int i = position + count; i < chunkSize + count; ++i) {
+            ends[i] += count * value;
+        }
+        chunkSizes[chunk] += count;
+        sizeTree.add(chunk, count);
+        sumTree.add(chunk, count * value);
+    }
+    
+    /**
+     * Removes the 'count' elements starting at 'index'.
+     */
+    public void remove(int index, int count) {
+        checkCount(index);
+        checkCount(index + count);
+        if (count <= 0) {
+            return;
+        }
+        final int firstChunk = chunkContaining(index);
+        int position = index - sizeTree.prefixSum(firstChunk);
+        int chunk = firstChunk;
+        int remaining = count;
+        int removedSum = 0;
+        boolean haveRemovedChunks = false;
+        while (remaining > 0) {
+            final int chunkSize = chunkSizes[chunk];
+            final int removeCount = Math.min(remaining, chunkSize - position);
+            final int[] ends = chunkEnds[chunk];
+            final int[] tags = chunkTags[chunk];
+            final int chunkRemovedSum = ends[position + removeCount - 1] - ((position == 0) ? 0 : ends[position - 1]);
+            System.arraycopy(ends, position + removeCount, ends, position, chunkSize - position - removeCount);
+            System.arraycopy(tags, position + removeCount, tags, position, chunkSize - position - removeCount);
+            for (int i = position; i < chunkSize - removeCount; ++i) {
+                ends[i] -= chunkRemovedSum;
+            }
+            chunkSizes[chunk] -= removeCount;
+            remaining -= removeCount;
+            removedSum += chunkRemovedSum;
+            if (chunkSizes[chunk] == 0) {
+                removeChunkSlots(chunk, 1);
+                haveRemovedChunks = true;
+            } else {
+                ++chunk;
+            }
+            position = 0;
+        }
+        size -= count;
+        sum -= removedSum;
+        // Any chunks we removed from and didn't empty are [firstChunk, chunk), and there are at most two of them.
+        // Merge them with a neighbor if they've got small, doing the later one first so as not to move the earlier one.
+        boolean haveMergedChunks = (chunk - 1 > firstChunk) && mergeIfSmall(chunk - 1);
+        haveMergedChunks |= (chunk > firstChunk) && mergeIfSmall(firstChunk);
+        if (haveRemovedChunks || haveMergedChunks || chunk - 1 > firstChunk) {
+            rebuildTrees();
+        } else {
+            sizeTree.add(firstChunk, -count);
+            sumTree.add(firstChunk, -removedSum);
+        }
+    }
+    
+    /**
+     * Returns the element at 'index'.
+     */
+    public int get(int index) {
+        checkIndex(index);
+        final int chunk = chunkContaining(index);
+        final int position = index - sizeTree.prefixSum(chunk);
+        final int[] ends = chunkEnds[chunk];
+        return ends[position] - ((position == 0) ? 0 : ends[position - 1]);
+    }
+    
+    /**
+     * Returns the tag of the element at 'index'.
+     */
+    public int getTag(int index) {
+        checkIndex(index);
+        final int chunk = chunkContaining(index);
+        return chunkTags[chunk][index - sizeTree.prefixSum(chunk)];
+    }
+    
+    /**
+     * Sets the tag of the element at 'index'.
+     */
+    public void setTag(int index, int tag) {
+        checkIndex(index);
+        final int chunk = chunkContaining(index);
+        chunkTags[chunk][index - sizeTree.prefixSum(chunk)] = tag;
+    }
+    
+    /**
+     * Sets the element at 'index' to 'value'.
+     */
+    public void set(int index, int value) {
+        add(index, value - get(index));
+    }
+    
+    /**
+     * Adds 'delta' to the element at 'index'.
+     */
+    public void add(int index, int delta) {
+        checkIndex(index);
+        final int chunk = chunkContaining(index);
+        final int[] ends = chunkEnds[chunk];
+        for (int i = index - sizeTree.prefixSum(chunk); i < chunkSizes[chunk]; ++i) {
+            ends[i] += delta;
+        }
+        sumTree.add(chunk, delta);
+        sum += delta;
+    }
+    
+    /**
+     * Returns the sum of the first 'count' elements.
+     */
+    public int prefixSum(int count) {
+        checkCount(count);
+        if (count == size) {
+            return sum;
+        }
+        final int chunk = chunkContaining(count);
+        final int position = count - sizeTree.prefixSum(chunk);
+        return sumTree.prefixSum(chunk) + ((position == 0) ? 0 : chunkEnds[chunk][position - 1]);
+    }
+    
+    /**
+     * Returns the largest count such that prefixSum(count) <= sum.
+     * If you think of the elements as lengths laid end to end, that's the index of the element containing offset 'sum'.
+     * The result is size() if 'sum' is at or beyond the total.
+     */
+    public int countNotExceeding(int sum) {
+        if (sum < 0) {
+            return 0;
+        }
+        // Every chunk before this one fits, and this one doesn't.
+        final int chunk = sumTree.countNotExceeding(sum);
+        if (chunk == chunkCount) {
+            return size;
+        }
+        final int offset = sum - sumTree.prefixSum(chunk);
+        // Count the chunk's elements that fit, which are those that end at or before the offset. Zero-length elements at the offset always do.
+        final int[] ends = chunkEnds[chunk];
+        int low = 0;
+        int high = chunkSizes[chunk];
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (ends[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return sizeTree.prefixSum(chunk) + low;
+    }
+    
+    /**
+     * Returns the index of the chunk holding the element at 'index', which must be in [0, size()).
+     */
+    private int chunkContaining(int index) {
+        // Chunks are never empty, so this is the chunk whose elements start at or before 'index' and end after it.
+        return sizeTree.countNotExceeding(index);
+    }
+    
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + " not in half-open range [0.." + size() + ")");
+        }
+    }
+    
+    private void checkCount(int count) {
+        if (count < 0 || count > size()) {
+            throw new IndexOutOfBoundsException("count " + count + " not in closed range [0.." + size() + "]");
+        }
+    }
+    
+    /**
+     * Copies the values and tags of elements [from, to) of 'chunk' into 'values' and 'tags' at 'offset'.
+     */
+    private void copyChunk(int chunk, int from, int to, int[] values, int[] tags, int offset) {
+        final int[] ends = chunkEnds[chunk];
+        for (int i = from; i < to; ++i) {
+            values[offset + i - from] = ends[i] - ((i == 0) ? 0 : ends[i - 1]);
+        }
+        System.arraycopy(chunkTags[chunk], from, tags, offset, to - from);
+    }
+    
+    /**
+     * Merges 'chunk' with a neighbor if it's small and they'd fit in one chunk, and returns whether it did.
+     * The caller must rebuild the trees if so.
+     */
+    private boolean mergeIfSmall(int chunk) {
+        if (chunkSizes[chunk] >= chunkCapacity / 4) {
+            return false;
+        }
+        final int first;
+        if (chunk + 1 < chunkCount && chunkSizes[chunk] + chunkSizes[chunk + 1] <= chunkCapacity) {
+            first = chunk;
+        } else if (chunk > 0 && chunkSizes[chunk - 1] + chunkSizes[chunk] <= chunkCapacity) {
+            first = chunk - 1;
+        } else {
+            return false;
+        }
+        final int firstSize = chunkSizes[first];
+        final int mergedSize = firstSize + chunkSizes[first + 1];
+        final int[] values = new int[mergedSize];
+        final int[] tags = new int[mergedSize];
+        copyChunk(first, 0, firstSize, values, tags, 0);
+        copyChunk(first + 1, 0, mergedSize - firstSize, values, tags, firstSize);
+        removeChunkSlots(first, 2);
+        insertChunks(first, values, tags, mergedSize);
+        return true;
+    }
+    
+    /**
+     * Inserts chunks holding the first 'count' elements of 'values' and 'tags' before chunk 'at'.
+     * The elements are shared out evenly between as few chunks as will hold them, and each chunk's arrays are exactly full.
+     * The caller must rebuild the trees.
+     */
+    private void insertChunks(int at, int[] values, int[] tags, int count) {
+        final int newChunkCount = (count + chunkCapacity - 1) / chunkCapacity;
+        insertChunkSlots(at, newChunkCount);
+        for (int i = 0; i < newChunkCount; ++i) {
+            final int start = (int) ((long) count * i / newChunkCount);
+            final int end = (int) ((long) count * (i + 1) / newChunkCount);
+            final int[] ends = new int[end - start];
+            int total = 0;
+            for (int j = start; j < end; ++j) {
+                total += values[j];
+                ends[j - start] = total;
+            }
+            chunkSizes[at + i] = end - start;
+            chunkEnds[at + i] = ends;
+            chunkTags[at + i] = Arrays.copyOfRange(tags, start, end);
+        }
+    }
+    
+    private void insertChunkSlots(int at, int count) {
+        if (chunkCount + count > chunkSizes.length) {
+            final int newCapacity = Math.max(chunkCount + count, chunkSizes.length + (chunkSizes.length >> 1));
+            chunkSizes = Arrays.copyOf(chunkSizes, newCapacity);
+            chunkEnds = Arrays.copyOf(chunkEnds, newCapacity);
+            chunkTags = Arrays.copyOf(chunkTags, newCapacity);
+        }
+        System.arraycopy(chunkSizes, at, chunkSizes, at + count, chunkCount - at);
+        System.arraycopy(chunkEnds, at, chunkEnds, at + count, chunkCount - at);
+        System.arraycopy(chunkTags, at, chunkTags, at + count, chunkCount - at);
+        chunkCount += count;
+    }
+    
+    private void removeChunkSlots(int at, int count) {
+        System.arraycopy(chunkSizes, at + count, chunkSizes, at, chunkCount - at - count);
+        System.arraycopy(chunkEnds, at + count, chunkEnds, at, chunkCount - at - count);
+        System.arraycopy(chunkTags, at + count, chunkTags, at, chunkCount - at - count);
+        chunkCount -= count;
+        // Let the arrays of the removed chunks be collected.
+        Arrays.fill(chunkEnds, chunkCount, chunkCount + count, null);
+        Arrays.fill(chunkTags, chunkCount, chunkCount + count, null);
+    }
+    
+    private void rebuildTrees() {
+        sizeTree.rebuild(chunkSizes, chunkCount);
+        final int[] chunkSums = new int[chunkCount];
+        for (int chunk = 0; chunk < chunkCount; ++chunk) {
+            chunkSums[chunk] = chunkEnds[chunk][chunkSizes[chunk] - 1];
+        }
+        sumTree.rebuild(chunkSums, chunkCount);
+    }
+    
+    @Test private static void testPrefixSumList() {
+        PrefixSumList list = new PrefixSumList();
+        int[] lengths = new int[] { 4, 1, 7, 3, 0 };
+        list.setAll(lengths, lengths.length, -1);
+        Assert.equals(list.size(), 5);
+        Assert.equals(list.sum(), 15);
+        Assert.equals(list.prefixSum(0), 0);
+        Assert.equals(list.prefixSum(1), 4);
+        Assert.equals(list.prefixSum(3), 12);
+        Assert.equals(list.countNotExceeding(3), 0);
+        Assert.equals(list.countNotExceeding(4), 1);
+        Assert.equals(list.countNotExceeding(14), 3);
+        Assert.equals(list.countNotExceeding(15), 5);
+        Assert.equals(list.countNotExceeding(100), 5);
+        list.insert(1, 2, 10, 7);
+        Assert.equals(list.size(), 7);
+        Assert.equals(list.get(1), 10);
+        Assert.equals(list.getTag(2), 7);
+        Assert.equals(list.getTag(3), -1);
+        Assert.equals(list.prefixSum(3), 24);
+        Assert.equals(list.countNotExceeding(24), 3);
+        list.remove(0, 3);
+        Assert.equals(list.size(), 4);
+        Assert.equals(list.get(0), 1);
+        Assert.equals(list.sum(), 11);
+        list.set(3, 5);
+        list.add(0, 2);
+        Assert.equals(list.prefixSum(4), 18);
+    }
+    
+    @Test private static void testPrefixSumListAgainstArrayList() {
+        checkAgainstArrayList(new PrefixSumList());
+        // With tiny chunks, the same edits split, merge, add and remove lots of chunks.
+        checkAgainstArrayList(new PrefixSumList(8));
+    }
+    
+    private static void checkAgainstArrayList(PrefixSumList list) {
+        Random random = new Random(0);
+        ArrayList<Integer> values = new ArrayList<>();
+        ArrayList<Integer> tags = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            final int operation = random.nextInt(4);
+            if (operation == 0 || values.isEmpty()) {
+                final int index = random.nextInt(values.size() + 1);
+                final int count = 1 + random.nextInt(20);
+                final int value = random.nextInt(5);
+                list.insert(index, count, value, i);
+                for (int j = 0; j < count; ++j) {
+                    values.add(index, value);
+                    tags.add(index, i);
+                }
+            } else if (operation == 1) {
+                final int index = random.nextInt(values.size());
+                final int count = random.nextInt(Math.min(15, values.size() - index) + 1);
+                list.remove(index, count);
+                values.subList(index, index + count).clear();
+                tags.subList(index, index + count).clear();
+            } else {
+                final int index = random.nextInt(values.size());
+                final int value = random.nextInt(5);
+                list.set(index, value);
+                values.set(index, value);
+            }
+            if (i % 250 == 0) {
+                checkSame(list, values, tags);
+            }
+        }
+        checkSame(list, values, tags);
+        list.remove(0, values.size());
+        values.clear();
+        tags.clear();
+        checkSame(list, values, tags);
+        list.insert(0, 3, 2, 1);
+        Assert.equals(list.prefixSum(2), 4);
+        Assert.equals(list.countNotExceeding(5), 2);
+    }
+    
+    private static void checkSame(PrefixSumList list, ArrayList<Integer> values, ArrayList<Integer> tags) {
+        Assert.equals(list.size(), values.size());
+        int sum = 0;
+        for (int i = 0; i < values.size(); ++i) {
+            Assert.equals(list.get(i), (int) values.get(i));
+            Assert.equals(list.getTag(i), (int) tags.get(i));
+            Assert.equals(list.prefixSum(i), sum);
+            if (values.get(i) > 0) {
+                Assert.equals(list.countNotExceeding(sum), i);
+            }
+            sum += values.get(i);
+        }
+        Assert.equals(list.sum(), sum);
+        Assert.equals(list.prefixSum(values.size()), sum);
+    }
+}
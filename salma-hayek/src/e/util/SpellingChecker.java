@@ -4,27 +4,43 @@ import e.ptextarea.FileType;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.regex.*;
 
 /**
- * Uses an ispell(1)-compatible back end to check spelling.
+ * Uses ispell(1)-compatible back ends to check spelling.
+ * 
+ * Asking a back end about a word means a round trip to another process, so we try hard not to.
+ * We remember the answers for lots of words, across runs.
+ * Callers with many words to check (such as a whole file) should use getMisspelledWords, which asks about each unknown word once, in pipelined batches spread across several back ends.
  */
 public class SpellingChecker {
-    private static final SpellingChecker instance = new SpellingChecker();
     private static final boolean DEBUGGING = false;
     
     private static final Stopwatch stopwatch = Stopwatch.get("SpellingChecker");
     
-    private static WordCache wordCache = new WordCache();
+    // Each back end is a separate process with its own copy of the dictionary, so we don't want many.
+    private static final int MAX_BACK_END_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    
+    // We write a whole batch of requests before reading any responses, so a batch has to fit in the pipe to the back end.
+    // Otherwise we could block writing to a back end that's blocked writing responses we're not yet reading.
+    // Pipes hold at least 4KiB, and we don't check words longer than 80 characters.
+    private static final int WORDS_PER_BATCH = 32;
+    
+    private static final ExecutorService batchExecutor = ThreadUtilities.newFixedThreadPool(MAX_BACK_END_COUNT, "SpellingChecker");
+    private static final ScheduledExecutorService wordCacheWriter = ThreadUtilities.newSingleThreadScheduledExecutor("SpellingChecker Cache Writer");
+    
+    private static final WordCache wordCache = new WordCache();
     
     /**
      * Caches whether or not the last MAX_ENTRIES words were spelled correctly or incorrectly.
      */
     private static class WordCache extends LinkedHashMap<String, Boolean> {
-        private static final int MAX_ENTRIES = 4096;
+        private static final int MAX_ENTRIES = 65536;
         
         public WordCache() {
-            super(MAX_ENTRIES);
+            super(MAX_ENTRIES, 0.75f, true);
         }
         
         @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
@@ -32,9 +48,21 @@ public class SpellingChecker {
         }
     }
     
-    private Process ispell;
-    private PrintWriter out;
-    private BufferedReader in;
+    // This must come after the fields above, because the constructor uses them.
+    private static final SpellingChecker instance = new SpellingChecker();
+    
+    // The command that starts a back end, or null if we couldn't find one that works.
+    private String[] backEndCommand;
+    // The first back end's greeting, which identifies its version (and so, roughly, its dictionary).
+    private String backEndGreeting;
+    
+    private final LinkedBlockingQueue<BackEnd> idleBackEnds = new LinkedBlockingQueue<>();
+    // The number of back ends running, idle or not.
+    private final AtomicInteger backEndCount = new AtomicInteger();
+    // Lowered if we fail to start a back end, so we don't keep trying.
+    private volatile int maxBackEndCount = MAX_BACK_END_COUNT;
+    
+    private final AtomicBoolean wordCacheWriteIsPending = new AtomicBoolean(false);
     
     /** Returns the single instance of SpellingChecker. */
     public static synchronized SpellingChecker getSharedSpellingCheckerInstance() {
@@ -63,57 +91,289 @@ public class SpellingChecker {
     /** Attempts to connect to the given command-line spelling checker, which must be compatible with ispell's -a mode. */
     private boolean connectTo(String[] execArguments) {
         try {
+            BackEnd backEnd = new BackEnd(execArguments);
+            backEndCommand = execArguments;
+            backEndGreeting = backEnd.greeting;
+            backEndCount.incrementAndGet();
+            idleBackEnds.add(backEnd);
+            readWordCache();
+            return true;
+        } catch (IOException ex) {
+            Log.warn("SpellingChecker: couldn't start " + execArguments[0] + " (" + ex.getMessage() + "), though it was on the path.");
+            return false;
+        }
+    }
+    
+    /**
+     * A running back end, in ispell's -a mode.
+     */
+    private class BackEnd {
+        private final Process ispell;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private final String greeting;
+        
+        BackEnd(String[] execArguments) throws IOException {
             ispell = Runtime.getRuntime().exec(execArguments);
             in = new BufferedReader(new InputStreamReader(ispell.getInputStream()));
             out = new PrintWriter(ispell.getOutputStream());
             
-            String greeting = in.readLine();
+            greeting = in.readLine();
             if (greeting == null || greeting.startsWith("@(#) International Ispell ") == false) {
+                ispell.destroy();
                 throw new IOException("Garbled ispell response: " + greeting);
             }
             out.println("!"); // Set terse mode.
             out.flush();
-            return true;
-        } catch (IOException ex) {
-            Log.warn("SpellingChecker: couldn't start " + execArguments[0] + " (" + ex.getMessage() + "), though it was on the path.");
-            ispell = null;
-            in = null;
-            out = null;
-            return false;
+        }
+        
+        /**
+         * Returns whether each of the given words is misspelled.
+         * All the requests go out before we read any of the responses, so we only wait for the back end once.
+         */
+        boolean[] checkWords(List<String> words) throws IOException {
+            Stopwatch.Timer timer = stopwatch.start();
+            try {
+                for (String word : words) {
+                    String request = "^" + word;
+                    debug(request);
+                    out.println(request);
+                }
+                out.flush();
+                boolean[] result = new boolean[words.size()];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = readResponse(words.get(i), null);
+                }
+                return result;
+            } finally {
+                timer.stop();
+            }
+        }
+        
+        /**
+         * Tests whether 'word' is misspelled, adding any suggested corrections to 'returnSuggestions' if it's not null.
+         */
+        boolean checkWord(String word, Collection<String> returnSuggestions) throws IOException {
+            Stopwatch.Timer timer = stopwatch.start();
+            try {
+                String request = "^" + word;
+                debug(request);
+                out.println(request);
+                out.flush();
+                return readResponse(word, returnSuggestions);
+            } finally {
+                timer.stop();
+            }
+        }
+        
+        private boolean readResponse(String word, Collection<String> returnSuggestions) throws IOException {
+            // ispell's response will be one of:
+            // 1. a blank line (meaning "correctly spelled"),
+            // 2. lines beginning with [&?#] containing suggested corrections, followed by a blank line.
+            String response = in.readLine();
+            if (response == null) {
+                throw new EOFException("lost connection to back end");
+            }
+            
+            // A blank line means "correctly spelled".
+            if (response.length() == 0) {
+                debug("\"" + word + "\" response length == 0");
+                return false;
+            }
+            
+            // &: near-miss
+            // ?: guess
+            // #: no suggestions
+            boolean misspelled = true;
+            while (response != null && response.length() > 0 && "&?#+-".indexOf(response.charAt(0)) != -1) {
+                debug(" " + response);
+                
+                if (response.charAt(0) == '&' && isCorrectIgnoringCase(word, response)) {
+                    misspelled = false;
+                }
+                
+                if (returnSuggestions != null) {
+                    fillCollectionWithSuggestions(response, returnSuggestions);
+                }
+                
+                response = in.readLine();
+            }
+            
+            if (response == null) {
+                throw new EOFException("lost connection to back end");
+            }
+            if (response.length() != 0) {
+                Log.warn("SpellingChecker: garbled response: \"" + response + "\"");
+            }
+            
+            return misspelled;
+        }
+        
+        void destroy() {
+            ispell.destroy();
         }
     }
     
+    /**
+     * Returns an idle back end, starting another if they're all busy and we're allowed more.
+     * Returns null if there's no back end, or we're interrupted while waiting for one.
+     */
+    private BackEnd borrowBackEnd() {
+        if (backEndCommand == null) {
+            debug("no back end");
+            return null;
+        }
+        try {
+            while (true) {
+                BackEnd backEnd = idleBackEnds.poll();
+                if (backEnd != null) {
+                    return backEnd;
+                }
+                final int count = backEndCount.get();
+                if (count < maxBackEndCount && backEndCount.compareAndSet(count, count + 1)) {
+                    try {
+                        return new BackEnd(backEndCommand);
+                    } catch (IOException ex) {
+                        Log.warn("SpellingChecker: couldn't start another " + backEndCommand[0] + " (" + ex.getMessage() + ").");
+                        backEndCount.decrementAndGet();
+                        maxBackEndCount = count;
+                        if (count == 0) {
+                            return null;
+                        }
+                    }
+                }
+                // Wait for a busy one, checking now and again that there still are some.
+                backEnd = idleBackEnds.poll(100, TimeUnit.MILLISECONDS);
+                if (backEnd != null) {
+                    return backEnd;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+    
+    private void returnBackEnd(BackEnd backEnd) {
+        idleBackEnds.add(backEnd);
+    }
+    
+    // Called instead of returnBackEnd if we had trouble talking to 'backEnd'.
+    private void discardBackEnd(BackEnd backEnd, IOException ex) {
+        // What do we know, other than we failed to get an answer?
+        // We can't trust the back end to be in step with us any more, so we stop talking to it.
+        Log.warn("SpellingChecker: I/O error.", ex);
+        backEnd.destroy();
+        backEndCount.decrementAndGet();
+    }
+    
     /**
      * Tests whether the given word is misspelled.
      * If ispell is unavailable, no words are considered misspelled.
      * We only ask ispell about any given word at most once: the
      * word cache is used to save on expensive inter-process communication.
      */
-    public synchronized boolean isMisspelledWord(String word, FileType fileType) {
-        if (ispell == null) {
-            debug("ispell == null");
-            return false;
+    public boolean isMisspelledWord(String word, FileType fileType) {
+        return getMisspelledWords(Collections.singletonList(word), fileType).isEmpty() == false;
+    }
+    
+    /**
+     * Returns those of 'words' that are misspelled.
+     * This is much quicker than calling isMisspelledWord for each word, because words that aren't in the cache are sent to the back ends in batches, in parallel.
+     */
+    public Set<String> getMisspelledWords(Collection<String> words, FileType fileType) {
+        HashSet<String> result = new HashSet<>();
+        if (backEndCommand == null) {
+            debug("no back end");
+            return result;
         }
         
-        word = word.toLowerCase();
-        
-        // Check the exceptions lists first...
-        if (isException(word, fileType)) {
-            return false;
+        InheritingSet exceptions = getExceptionsFor(fileType);
+        LinkedHashSet<String> unknownWords = new LinkedHashSet<>();
+        ArrayList<String> wordsToAskAbout = new ArrayList<>();
+        for (String word : words) {
+            final String lowerCaseWord = word.toLowerCase();
+            
+            // Check the exceptions lists first...
+            if (exceptions.contains(lowerCaseWord)) {
+                continue;
+            }
+            
+            // ...then the word cache...
+            Boolean cachedResult;
+            synchronized (wordCache) {
+                cachedResult = wordCache.get(lowerCaseWord);
+            }
+            if (cachedResult == null) {
+                unknownWords.add(lowerCaseWord);
+                wordsToAskAbout.add(word);
+            } else if (cachedResult) {
+                result.add(word);
+            }
         }
-        
-        // ...then the word cache...
-        Boolean cachedResult = wordCache.get(word);
-        if (cachedResult != null) {
-            return cachedResult;
+        if (unknownWords.isEmpty()) {
+            return result;
         }
         
         // ...and only then give in and ask the spelling checker.
-        // We copy the word into a new string to avoid accidental retention
-        // of character arrays representing documents in their entirety.
-        boolean misspelled = isMisspelledWordAccordingToIspell(word, null);
-        wordCache.put(new String(word), Boolean.valueOf(misspelled));
-        return misspelled;
+        Map<String, Boolean> answers = askBackEnds(new ArrayList<String>(unknownWords));
+        for (String word : wordsToAskAbout) {
+            if (answers.getOrDefault(word.toLowerCase(), Boolean.FALSE)) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+    
+    // Asks the back ends about 'words', which should all be lowercase, and adds the answers to the word cache.
+    private Map<String, Boolean> askBackEnds(List<String> words) {
+        ConcurrentHashMap<String, Boolean> answers = new ConcurrentHashMap<>();
+        if (words.size() <= WORDS_PER_BATCH) {
+            // Not worth another thread.
+            askBackEnd(words, answers);
+        } else {
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < words.size(); i += WORDS_PER_BATCH) {
+                final List<String> batch = words.subList(i, Math.min(words.size(), i + WORDS_PER_BATCH));
+                futures.add(batchExecutor.submit(() -> {
+                    askBackEnd(batch, answers);
+                }));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                Log.warn("SpellingChecker: failed to check words.", ex);
+            }
+        }
+        synchronized (wordCache) {
+            for (Map.Entry<String, Boolean> answer : answers.entrySet()) {
+                // We copy the word into a new string to avoid accidental retention
+                // of character arrays representing documents in their entirety.
+                wordCache.put(new String(answer.getKey()), answer.getValue());
+            }
+        }
+        writeWordCacheSoon();
+        return answers;
+    }
+    
+    private void askBackEnd(List<String> words, Map<String, Boolean> answers) {
+        BackEnd backEnd = borrowBackEnd();
+        if (backEnd == null) {
+            return;
+        }
+        try {
+            boolean[] misspelled = backEnd.checkWords(words);
+            for (int i = 0; i < misspelled.length; ++i) {
+                answers.put(words.get(i), Boolean.valueOf(misspelled[i]));
+            }
+            returnBackEnd(backEnd);
+        } catch (IOException ex) {
+            discardBackEnd(backEnd, ex);
+        }
     }
     
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -151,14 +411,6 @@ public class SpellingChecker {
     // that this one is initialized later.
     private static final InheritingSet USER_DEFINED_EXCEPTIONS = getUserDefinedExceptions(GENERAL_PURPOSE_EXCEPTIONS);
     
-    /**
-     * Tests whether the text component we're checking declares the given word
-     * as a spelling exception in its language.
-     */
-    private boolean isException(String word, FileType fileType) {
-        return getExceptionsFor(fileType).contains(word);
-    }
-    
     private InheritingSet getExceptionsFor(FileType fileType) {
         InheritingSet exceptions;
         synchronized (SPELLING_EXCEPTIONS_MAP) {
@@ -210,6 +462,10 @@ public class SpellingChecker {
         return FileUtilities.getUserHomeDirectory() + File.separator + ".org.jessies.spelling-exceptions";
     }
     
+    private static String getWordCacheFilename() {
+        return FileUtilities.getUserHomeDirectory() + File.separator + ".org.jessies.spelling-cache";
+    }
+    
     private static String getSpellingExceptionsFilename(String name) {
         return System.getProperty("org.jessies.supportRoot") + File.separator + "lib" + File.separator + "data" + File.separator + name;
     }
@@ -228,9 +484,69 @@ public class SpellingChecker {
     
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     
-    public synchronized String[] getSuggestionsFor(String misspelledWord) {
+    // The word cache file's first line is the back end's greeting, because a different back end might disagree with the cached answers.
+    // Each following line is a word, preceded by '-' if it's misspelled or '+' if it isn't.
+    // The least recently used words come first, so they're the first to go when the cache is full.
+    
+    private void readWordCache() {
+        final String filename = getWordCacheFilename();
+        if (!FileUtilities.exists(filename)) {
+            return;
+        }
+        String[] lines = StringUtilities.readLinesFromFile(filename);
+        if (lines.length == 0 || lines[0].equals(backEndGreeting) == false) {
+            return;
+        }
+        synchronized (wordCache) {
+            for (int i = 1; i < lines.length; ++i) {
+                final String line = lines[i];
+                if (line.length() > 1 && (line.charAt(0) == '-' || line.charAt(0) == '+')) {
+                    wordCache.put(line.substring(1), Boolean.valueOf(line.charAt(0) == '-'));
+                }
+            }
+        }
+    }
+    
+    // We write the cache a while after it changes, so that checking several files in a row only writes it once.
+    private void writeWordCacheSoon() {
+        if (wordCacheWriteIsPending.compareAndSet(false, true)) {
+            wordCacheWriter.schedule(() -> {
+                wordCacheWriteIsPending.set(false);
+                writeWordCache();
+            }, 10, TimeUnit.SECONDS);
+        }
+    }
+    
+    private void writeWordCache() {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add(backEndGreeting);
+        synchronized (wordCache) {
+            for (Map.Entry<String, Boolean> entry : wordCache.entrySet()) {
+                lines.add((entry.getValue() ? "-" : "+") + entry.getKey());
+            }
+        }
+        String error = StringUtilities.writeFile(FileUtilities.fileFromString(getWordCacheFilename()), lines);
+        if (error != null) {
+            Log.warn("SpellingChecker: failed to write word cache to \"" + getWordCacheFilename() + "\" (" + error + ").");
+        }
+    }
+    
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    
+    public String[] getSuggestionsFor(String misspelledWord) {
+        BackEnd backEnd = borrowBackEnd();
+        if (backEnd == null) {
+            return new String[0];
+        }
         ArrayList<String> suggestions = new ArrayList<>();
-        boolean isMisspelled = isMisspelledWordAccordingToIspell(misspelledWord, suggestions);
+        boolean isMisspelled;
+        try {
+            isMisspelled = backEnd.checkWord(misspelledWord, suggestions);
+            returnBackEnd(backEnd);
+        } catch (IOException ex) {
+            discardBackEnd(backEnd, ex);
+            isMisspelled = false;
+        }
         if (isMisspelled == false) {
             return new String[0];
         }
@@ -248,7 +564,9 @@ public class SpellingChecker {
         
         // The word cache only contains lowercase words.
         final String lowerCaseWord = word.toLowerCase();
-        wordCache.remove(lowerCaseWord);
+        synchronized (wordCache) {
+            wordCache.remove(lowerCaseWord);
+        }
         
         // Add the word to the personal dictionary.
         USER_DEFINED_EXCEPTIONS.add(lowerCaseWord);
@@ -261,63 +579,6 @@ public class SpellingChecker {
         }
     }
     
-    private boolean isMisspelledWordAccordingToIspell(String word, Collection<String> returnSuggestions) {
-        Stopwatch.Timer timer = stopwatch.start();
-        try {
-            // Send the word to ispell for checking.
-            String request = "^" + word;
-            debug(request);
-            out.println(request);
-            out.flush();
-            
-            // ispell's response will be one of:
-            // 1. a blank line (meaning "correctly spelled"),
-            // 2. lines beginning with [&?#] containing suggested corrections, followed by a blank line.
-            String response = in.readLine();
-            if (response == null) {
-                Log.warn("SpellingChecker: lost connection to back end.");
-                return false;
-            }
-            
-            // A blank line means "correctly spelled".
-            if (response.length() == 0) {
-                debug("\"" + word + "\" response length == 0");
-                return false;
-            }
-            
-            // &: near-miss
-            // ?: guess
-            // #: no suggestions
-            boolean misspelled = true;
-            while (response != null && response.length() > 0 && "&?#+-".indexOf(response.charAt(0)) != -1) {
-                debug(" " + response);
-                
-                if (response.charAt(0) == '&' && isCorrectIgnoringCase(word, response)) {
-                    misspelled = false;
-                }
-                
-                if (returnSuggestions != null) {
-                    fillCollectionWithSuggestions(response, returnSuggestions);
-                }
-                
-                response = in.readLine();
-            }
-            
-            if (response != null && response.length() != 0) {
-                Log.warn("SpellingChecker: garbled response: \"" + response + "\"");
-            }
-            
-            return misspelled;
-        } catch (IOException ex) {
-            // What do we know, other than we failed to get an answer?
-            // Should we stop talking to ispell?
-            Log.warn("SpellingChecker: I/O error.", ex);
-            return false;
-        } finally {
-            timer.stop();
-        }
-    }
-    
     /**
      * Tests whether a spelling would be correct if we didn't care about case.
      * In code, case is often dependent on naming conventions rather than
@@ -23,6 +23,34 @@ public class ThreadUtilities {
         });
     }
     
+    /**
+     * Returns an Executor like {@link #newSingleThreadExecutor(String)}, except that
+     * the worker thread exits after 'keepAliveSeconds' without work, and a new one
+     * is started when there's more. Useful for executors that are usually idle.
+     */
+    public static ExecutorService newSingleThreadExecutor(final String threadName, long keepAliveSeconds) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, keepAliveSeconds, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory() {
+            public String newThreadName() {
+                return threadName;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    /**
+     * Returns a ScheduledExecutorService that uses a single worker thread, just like
+     * {@link Executors#newSingleThreadScheduledExecutor}. The worker thread
+     * will have the given name.
+     */
+    public static ScheduledExecutorService newSingleThreadScheduledExecutor(final String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory() {
+            public String newThreadName() {
+                return threadName;
+            }
+        });
+    }
+    
     /**
      * Returns an Executor that uses a fixed-size pool of worker thread, just like
      * {@link Executors#newFixedThreadPool}. The worker thread's name is
@@ -33,6 +61,43 @@ public class ThreadUtilities {
         return Executors.newFixedThreadPool(size, new NamedThreadFactory(poolName));
     }
     
+    /**
+     * Returns an Executor like {@link #newFixedThreadPool(int, String)}, except
+     * that the worker threads have the given priority. Thread.MIN_PRIORITY is
+     * useful for speculative work that shouldn't compete with the user.
+     */
+    public static ExecutorService newFixedThreadPool(int size, String poolName, int priority) {
+        return Executors.newFixedThreadPool(size, new NamedThreadFactory(poolName, priority));
+    }
+    
+    /**
+     * Returns an Executor that creates worker threads as needed and reuses idle ones,
+     * just like {@link Executors#newCachedThreadPool}. The worker threads are named
+     * poolName-thread-N, like those of {@link #newFixedThreadPool}.
+     */
+    public static ExecutorService newCachedThreadPool(String poolName) {
+        return Executors.newCachedThreadPool(new NamedThreadFactory(poolName));
+    }
+    
+    /**
+     * Returns a work-stealing ForkJoinPool with the given parallelism. The
+     * worker threads are daemons named poolName-thread-N, like those of
+     * {@link #newFixedThreadPool}.
+     */
+    public static ForkJoinPool newForkJoinPool(int parallelism, String poolName) {
+        final String namePrefix = poolName + "-thread-";
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(namePrefix + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY);
+                return thread;
+            }
+        }, null, false);
+    }
+    
     private static abstract class DaemonThreadFactory implements ThreadFactory {
         public abstract String newThreadName();
         
@@ -52,13 +117,25 @@ public class ThreadUtilities {
     private static class NamedThreadFactory extends DaemonThreadFactory {
         private final AtomicInteger threadNumber = new AtomicInteger(1);
         private final String namePrefix;
+        private final int priority;
         
         NamedThreadFactory(String poolName) {
+            this(poolName, Thread.NORM_PRIORITY);
+        }
+        
+        NamedThreadFactory(String poolName, int priority) {
             this.namePrefix = poolName + "-thread-";
+            this.priority = priority;
         }
         
         public String newThreadName() {
             return namePrefix + threadNumber.getAndIncrement();
          }
+        
+        @Override public Thread newThread(Runnable r) {
+            Thread thread = super.newThread(r);
+            thread.setPriority(priority);
+            return thread;
+        }
     }
 }
@@ -0,0 +1,438 @@
+package e.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.test.*;
+
+/**
+ * Remembers which three-byte sequences ("trigrams") occur in each of a set of files, so that a search can skip files that can't possibly match.
+ * This is the technique described in Russ Cox's "Regular Expression Matching with a Trigram Index".
+ * 
+ * Files are identified by name (typically relative to a workspace root), and are indexed by their UTF-8 bytes with ASCII letters folded to lower case, so one index serves both case-sensitive and case-insensitive searches.
+ * A pattern's candidate files are those containing every trigram of the literal text FileSearcher knows any match must contain.
+ * Files we haven't indexed (because they're too large, or because we haven't got to them yet) are always candidates, so the index only ever narrows a search, never changes its result.
+ * For the same reason, before we rule a file out, we check that its size and modification time are still the ones we indexed; a file that's changed since (and is presumably waiting for updateFile) is a candidate.
+ * 
+ * Each file gets a new id whenever it's (re)indexed, and ids only increase, so posting lists stay sorted just by appending.
+ * Old ids are marked dead rather than removed from the posting lists, and we renumber when there are too many dead ones.
+ * 
+ * The index can be written to and read from a file; updateFile notices which files changed since then by their size and modification time.
+ * All methods are thread-safe. Reading files happens outside the lock, so searches using the index don't wait for indexing.
+ */
+public final class TrigramIndex {
+    // Bigger files are left unindexed, and so are always candidates.
+    private static final int MAX_INDEXED_FILE_SIZE = 1024 * 1024;
+    // Matches FileSearcher's idea of a binary file.
+    private static final int BINARY_SNIFF_BYTE_COUNT = 8 * 1024;
+    private static final int FILE_FORMAT_VERSION = 1;
+    
+    // Per-id state.
+    private String[] names = new String[64];
+    private long[] sizes = new long[64];
+    private long[] lastModifiedTimes = new long[64];
+    private final BitSet liveIds = new BitSet();
+    private int nextId = 0;
+    
+    private final HashMap<String, Integer> idsByName = new HashMap<>();
+    private final HashMap<Integer, PostingList> postingLists = new HashMap<>();
+    
+    private static final class PostingList {
+        private int[] ids = new int[4];
+        private int size = 0;
+        
+        private void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+    
+    /**
+     * Returns the number of files currently indexed.
+     */
+    public synchronized int size() {
+        return idsByName.size();
+    }
+    
+    /**
+     * Indexes the given file under the given name, unless it's already indexed and its size and modification time are unchanged.
+     * Returns true if the index changed.
+     */
+    public boolean updateFile(String name, Path file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return removeFile(name);
+        }
+        final long size = attributes.size();
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        synchronized (this) {
+            Integer id = idsByName.get(name);
+            if (id != null && sizes[id] == size && lastModifiedTimes[id] == lastModified) {
+                return false;
+            }
+        }
+        if (attributes.isRegularFile() == false || size > MAX_INDEXED_FILE_SIZE) {
+            return removeFile(name);
+        }
+        int[] trigrams = trigramsOf(ByteBuffer.wrap(Files.readAllBytes(file)));
+        addFile(name, size, lastModified, trigrams);
+        return true;
+    }
+    
+    /**
+     * Removes the given file from the index, returning true if it was there.
+     */
+    public synchronized boolean removeFile(String name) {
+        Integer id = idsByName.remove(name);
+        if (id == null) {
+            return false;
+        }
+        liveIds.clear(id);
+        names[id] = null;
+        compactIfWorthwhile();
+        return true;
+    }
+    
+    /**
+     * Removes every file whose name isn't in 'namesToKeep'.
+     */
+    public synchronized void retainOnly(Collection<String> namesToKeep) {
+        HashSet<String> keep = new HashSet<>(namesToKeep);
+        for (String name : new ArrayList<String>(idsByName.keySet())) {
+            if (keep.contains(name) == false) {
+                removeFile(name);
+            }
+        }
+    }
+    
+    private synchronized void addFile(String name, long size, long lastModified, int[] trigrams) {
+        removeFile(name);
+        final int id = nextId++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+            sizes = Arrays.copyOf(sizes, id * 2);
+            lastModifiedTimes = Arrays.copyOf(lastModifiedTimes, id * 2);
+        }
+        names[id] = name;
+        sizes[id] = size;
+        lastModifiedTimes[id] = lastModified;
+        liveIds.set(id);
+        idsByName.put(name, id);
+        for (int trigram : trigrams) {
+            PostingList postingList = postingLists.get(trigram);
+            if (postingList == null) {
+                postingList = new PostingList();
+                postingLists.put(trigram, postingList);
+            }
+            postingList.add(id);
+        }
+    }
+    
+    /**
+     * Returns those of 'candidates' that might contain a match for 'pattern', in the same order.
+     * If the index can't help with this pattern, 'candidates' itself is returned.
+     * The names are resolved against 'root' to check whether files the index would rule out have changed since they were indexed.
+     */
+    public List<String> filter(List<String> candidates, Pattern pattern, Path root) {
+        String literal = FileSearcher.findRequiredLiteral(pattern.pattern(), pattern.flags());
+        if (literal == null) {
+            return candidates;
+        }
+        int[] trigrams = trigramsOf(ByteBuffer.wrap(literal.getBytes(StandardCharsets.UTF_8)));
+        if (trigrams.length == 0) {
+            return candidates;
+        }
+        // The candidates the index rules out, with the size and modification time they had when they were indexed.
+        final boolean[] isCandidate = new boolean[candidates.size()];
+        final int[] ruledOut = new int[candidates.size()];
+        final long[] ruledOutSizes = new long[candidates.size()];
+        final long[] ruledOutLastModifiedTimes = new long[candidates.size()];
+        int ruledOutCount = 0;
+        synchronized (this) {
+            BitSet matchingIds = findIdsContainingAll(trigrams);
+            for (int i = 0; i < isCandidate.length; ++i) {
+                Integer id = idsByName.get(candidates.get(i));
+                if (id == null || matchingIds.get(id)) {
+                    isCandidate[i] = true;
+                } else {
+                    ruledOut[ruledOutCount] = i;
+                    ruledOutSizes[ruledOutCount] = sizes[id];
+                    ruledOutLastModifiedTimes[ruledOutCount] = lastModifiedTimes[id];
+                    ++ruledOutCount;
+                }
+            }
+        }
+        // Checking the files is outside the lock, like reading them in updateFile.
+        for (int j = 0; j < ruledOutCount; ++j) {
+            final int i = ruledOut[j];
+            isCandidate[i] = hasChanged(root.resolve(candidates.get(i)), ruledOutSizes[j], ruledOutLastModifiedTimes[j]);
+        }
+        ArrayList<String> result = new ArrayList<>();
+        for (int i = 0; i < isCandidate.length; ++i) {
+            if (isCandidate[i]) {
+                result.add(candidates.get(i));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Tests whether 'file' no longer has the given size and modification time. A file we can't look at counts as changed.
+     */
+    private static boolean hasChanged(Path file, long size, long lastModified) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() != size || attributes.lastModifiedTime().toMillis() != lastModified;
+        } catch (IOException ex) {
+            return true;
+        }
+    }
+    
+    private BitSet findIdsContainingAll(int[] trigrams) {
+        BitSet result = new BitSet();
+        PostingList[] lists = new PostingList[trigrams.length];
+        for (int i = 0; i < trigrams.length; ++i) {
+            lists[i] = postingLists.get(trigrams[i]);
+            if (lists[i] == null) {
+                // No file contains this trigram.
+                return result;
+            }
+        }
+        // Start from the rarest trigram, and check each of its files against the others.
+        Arrays.sort(lists, (lhs, rhs) -> Integer.compare(lhs.size, rhs.size));
+        int[] positions = new int[lists.length];
+        nextId:
+        for (int i = 0; i < lists[0].size; ++i) {
+            final int id = lists[0].ids[i];
+            for (int j = 1; j < lists.length; ++j) {
+                PostingList list = lists[j];
+                while (positions[j] < list.size && list.ids[positions[j]] < id) {
+                    ++positions[j];
+                }
+                if (positions[j] == list.size) {
+                    break nextId;
+                }
+                if (list.ids[positions[j]] != id) {
+                    continue nextId;
+                }
+            }
+            result.set(id);
+        }
+        result.and(liveIds);
+        return result;
+    }
+    
+    /**
+     * Returns the sorted distinct trigrams in the given bytes, or none if they look binary.
+     * Trigrams spanning a line terminator are omitted, because we search a line at a time.
+     */
+    static int[] trigramsOf(ByteBuffer bytes) {
+        final int byteCount = bytes.remaining();
+        for (int i = 0; i < Math.min(byteCount, BINARY_SNIFF_BYTE_COUNT); ++i) {
+            if (bytes.get(i) == 0) {
+                return new int[0];
+            }
+        }
+        int[] trigrams = new int[Math.max(0, byteCount - 2)];
+        int count = 0;
+        int trigram = 0;
+        int validByteCount = 0;
+        for (int i = 0; i < byteCount; ++i) {
+            int b = bytes.get(i) & 0xff;
+            if (b == '\n' || b == '\r') {
+                validByteCount = 0;
+                continue;
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            trigram = ((trigram << 8) | b) & 0xffffff;
+            if (++validByteCount >= 3) {
+                trigrams[count++] = trigram;
+            }
+        }
+        Arrays.sort(trigrams, 0, count);
+        int distinctCount = 0;
+        for (int i = 0; i < count; ++i) {
+            if (distinctCount == 0 || trigrams[distinctCount - 1] != trigrams[i]) {
+                trigrams[distinctCount++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinctCount);
+    }
+    
+    /**
+     * Renumbers the live ids from zero once more than half the ids are dead.
+     */
+    private void compactIfWorthwhile() {
+        final int liveCount = idsByName.size();
+        if (nextId < 1024 || nextId - liveCount < liveCount) {
+            return;
+        }
+        int[] newIds = new int[nextId];
+        int newNextId = 0;
+        for (int id = 0; id < nextId; ++id) {
+            if (liveIds.get(id)) {
+                newIds[id] = newNextId;
+                names[newNextId] = names[id];
+                sizes[newNextId] = sizes[id];
+                lastModifiedTimes[newNextId] = lastModifiedTimes[id];
+                idsByName.put(names[newNextId], newNextId);
+                ++newNextId;
+            } else {
+                newIds[id] = -1;
+            }
+        }
+        Arrays.fill(names, newNextId, nextId, null);
+        nextId = newNextId;
+        liveIds.clear();
+        liveIds.set(0, nextId);
+        // Renumbering preserves order, so the posting lists stay sorted.
+        Iterator<PostingList> it = postingLists.values().iterator();
+        while (it.hasNext()) {
+            PostingList postingList = it.next();
+            int newSize = 0;
+            for (int i = 0; i < postingList.size; ++i) {
+                final int newId = newIds[postingList.ids[i]];
+                if (newId != -1) {
+                    postingList.ids[newSize++] = newId;
+                }
+            }
+            postingList.size = newSize;
+            if (newSize == 0) {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Writes the index to the given file, via a temporary file so a reader never sees half an index.
+     */
+    public void write(Path file) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            synchronized (this) {
+                // Dead ids are written as null names, and skipped on reading.
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeInt(nextId);
+                for (int id = 0; id < nextId; ++id) {
+                    out.writeBoolean(liveIds.get(id));
+                    if (liveIds.get(id)) {
+                        out.writeUTF(names[id]);
+                        out.writeLong(sizes[id]);
+                        out.writeLong(lastModifiedTimes[id]);
+                    }
+                }
+                out.writeInt(postingLists.size());
+                for (Map.Entry<Integer, PostingList> entry : postingLists.entrySet()) {
+                    PostingList postingList = entry.getValue();
+                    out.writeInt(entry.getKey());
+                    out.writeInt(postingList.size);
+                    for (int i = 0; i < postingList.size; ++i) {
+                        out.writeInt(postingList.ids[i]);
+                    }
+                }
+            }
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Reads an index written by write. Returns an empty index if the file doesn't exist or isn't usable.
+     */
+    public static TrigramIndex read(Path file) {
+        TrigramIndex index = new TrigramIndex();
+        if (Files.exists(file) == false) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_FORMAT_VERSION) {
+                return index;
+            }
+            final int idCount = in.readInt();
+            index.names = new String[Math.max(64, idCount)];
+            index.sizes = new long[index.names.length];
+            index.lastModifiedTimes = new long[index.names.length];
+            for (int id = 0; id < idCount; ++id) {
+                if (in.readBoolean()) {
+                    index.names[id] = in.readUTF();
+                    index.sizes[id] = in.readLong();
+                    index.lastModifiedTimes[id] = in.readLong();
+                    index.liveIds.set(id);
+                    index.idsByName.put(index.names[id], id);
+                }
+            }
+            index.nextId = idCount;
+            final int postingListCount = in.readInt();
+            for (int i = 0; i < postingListCount; ++i) {
+                final int trigram = in.readInt();
+                PostingList postingList = new PostingList();
+                postingList.size = in.readInt();
+                postingList.ids = new int[Math.max(4, postingList.size)];
+                for (int j = 0; j < postingList.size; ++j) {
+                    postingList.ids[j] = in.readInt();
+                }
+                index.postingLists.put(trigram, postingList);
+            }
+            return index;
+        } catch (Exception ex) {
+            Log.warn("Failed to read trigram index from \"" + file + "\".", ex);
+            return new TrigramIndex();
+        }
+    }
+    
+    @Test private static void testTrigramsOf() {
+        Assert.equals(trigramsOf(ByteBuffer.wrap("ab".getBytes())).length, 0);
+        Assert.equals(trigramsOf(ByteBuffer.wrap("abcab".getBytes())).length, 3);
+        // Case is folded, duplicates are removed, and line terminators break trigrams.
+        Assert.equals(trigramsOf(ByteBuffer.wrap("ABC\nabc\r\nab".getBytes())).length, 1);
+        Assert.equals(trigramsOf(ByteBuffer.wrap("abc\u0000def".getBytes())).length, 0);
+    }
+    
+    @Test private static void testFilter() throws IOException {
+        Path directory = Files.createTempDirectory("TrigramIndexTest");
+        try {
+            Files.write(directory.resolve("a"), "public class Hello {\n}\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(directory.resolve("b"), "hello, world\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(directory.resolve("c"), "goodbye\n".getBytes(StandardCharsets.UTF_8));
+            TrigramIndex index = new TrigramIndex();
+            for (String name : Arrays.asList("a", "b", "c")) {
+                Assert.equals(index.updateFile(name, directory.resolve(name)), true);
+            }
+            Assert.equals(index.updateFile("a", directory.resolve("a")), false);
+            List<String> all = Arrays.asList("a", "b", "c", "unindexed");
+            Assert.equals(index.filter(all, PatternUtilities.smartCaseCompile("hello"), directory), Arrays.asList("a", "b", "unindexed"));
+            Assert.equals(index.filter(all, PatternUtilities.smartCaseCompile("class\\s+Hel"), directory), Arrays.asList("a", "unindexed"));
+            Assert.equals(index.filter(all, PatternUtilities.smartCaseCompile("nowhere"), directory), Arrays.asList("unindexed"));
+            Assert.equals(index.filter(all, PatternUtilities.smartCaseCompile("o|x"), directory), all);
+            
+            // A file that's changed since it was indexed is a candidate until it's indexed again.
+            Files.write(directory.resolve("c"), "hello, goodbye\n".getBytes(StandardCharsets.UTF_8));
+            Assert.equals(index.filter(all, PatternUtilities.smartCaseCompile("hello"), directory), Arrays.asList("a", "b", "c", "unindexed"));
+            
+            Files.write(directory.resolve("c"), "hello again, and goodbye\n".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(directory.resolve("c"), FileTime.fromMillis(0));
+            Assert.equals(index.updateFile("c", directory.resolve("c")), true);
+            index.removeFile("a");
+            Path indexFile = directory.resolve("index");
+            index.write(indexFile);
+            index = TrigramIndex.read(indexFile);
+            Assert.equals(index.size(), 2);
+            Assert.equals(index.filter(all, PatternUtilities.smartCaseCompile("hello"), directory), Arrays.asList("a", "b", "c", "unindexed"));
+            Assert.equals(index.filter(all, PatternUtilities.smartCaseCompile("goodbye"), directory), Arrays.asList("a", "c", "unindexed"));
+        } finally {
+            for (String name : Arrays.asList("a", "b", "c", "index")) {
+                Files.deleteIfExists(directory.resolve(name));
+            }
+            Files.delete(directory);
+        }
+    }
+}
@@ -82,6 +82,15 @@ public class Posix {
     /** Posix.waitpid flag to also return if a child is merely stopped. */
     public static final int WUNTRACED = PosixJNI.get_WUNTRACED();
     
+    /** Posix.poll event bit for data to read. */
+    public static final int POLLIN = PosixJNI.get_POLLIN();
+    /** Posix.poll event bit for an error; only returned in 'revents'. */
+    public static final int POLLERR = PosixJNI.get_POLLERR();
+    /** Posix.poll event bit for a hang-up; only returned in 'revents'. */
+    public static final int POLLHUP = PosixJNI.get_POLLHUP();
+    /** Posix.poll event bit for an invalid file descriptor; only returned in 'revents'. */
+    public static final int POLLNVAL = PosixJNI.get_POLLNVAL();
+    
     /**
      * Closes the file descriptor 'fd'.
      * Returns 0 on success, -errno on error.
@@ -118,6 +127,32 @@ public class Posix {
         return PosixJNI.killpg(group, signal);
     }
     
+    /**
+     * Creates a pipe, storing the file descriptors for its read and write ends in fds[0] and fds[1].
+     * Returns 0 on success, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/pipe.html
+     */
+    public static int pipe(int[] fds) {
+        if (fds.length < 2) {
+            throw new IllegalArgumentException("fds.length must be at least 2; fds.length=" + fds.length);
+        }
+        return PosixJNI.pipe(fds);
+    }
+    
+    /**
+     * Waits for any of the first 'fdCount' file descriptors in 'fds' to become ready for the corresponding 'events'.
+     * On return, each element of 'revents' holds the events that occurred on the corresponding file descriptor.
+     * Waits for at most 'timeoutMs' milliseconds, or indefinitely if 'timeoutMs' is negative.
+     * Returns the number of file descriptors with events (0 on timeout), -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/poll.html
+     */
+    public static int poll(int[] fds, int[] events, int[] revents, int fdCount, int timeoutMs) {
+        if (fdCount < 0 || fdCount > fds.length || fdCount > events.length || fdCount > revents.length) {
+            throw new IllegalArgumentException("fdCount out of bounds; fds.length=" + fds.length + ", events.length=" + events.length + ", revents.length=" + revents.length + ", fdCount=" + fdCount);
+        }
+        return PosixJNI.poll(fds, events, revents, fdCount, timeoutMs);
+    }
+    
     /**
      * Reads 'byteCount' bytes from file descriptor 'fd' into 'buffer' at 'bufferOffset'.
      * Returns the number of bytes read, -errno on error.
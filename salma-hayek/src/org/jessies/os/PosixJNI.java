@@ -75,6 +75,11 @@ class PosixJNI {
     static native int get_WNOHANG();
     static native int get_WUNTRACED();
     
+    static native int get_POLLIN();
+    static native int get_POLLERR();
+    static native int get_POLLHUP();
+    static native int get_POLLNVAL();
+    
     static native int get_E2BIG();
     static native int get_EACCES();
     static native int get_EADDRINUSE();
@@ -167,6 +172,8 @@ class PosixJNI {
     static native Passwd getpwuid(int uid);
     static native int kill(int pid, int signal);
     static native int killpg(int group, int signal);
+    static native int pipe(int[] fds);
+    static native int poll(int[] fds, int[] events, int[] revents, int fdCount, int timeoutMs);
     static native int read(int fd, byte[] buffer, int bufferOffset, int byteCount);
     static native String strerror(int errno);
     static native int tcgetpgrp(int fd);
@@ -1,6 +1,7 @@
 package terminator;
 
 import java.awt.Color;
+import java.io.*;
 import java.util.*;
 
 public class Palettes {
@@ -214,6 +215,19 @@ public class Palettes {
         @Override public String toString() {
             return "Ink[" + get() + "]";
         }
+        
+        // Two inks are equal if they get their color the same way, so that equal Styles can share an id.
+        @Override public boolean equals(Object obj) {
+            if (obj instanceof Ink == false) {
+                return false;
+            }
+            Ink ink = (Ink) obj;
+            return index == ink.index && Objects.equals(fixedColor, ink.fixedColor) && Objects.equals(colorSetting, ink.colorSetting);
+        }
+        
+        @Override public int hashCode() {
+            return Objects.hash(index, fixedColor, colorSetting);
+        }
     }
     
     public static Ink getInk(int index) {
@@ -232,6 +246,40 @@ public class Palettes {
         return new Ink(TerminatorPreferences.FOREGROUND_COLOR);
     }
     
+    /**
+     * Writes 'ink' (which may be null) so that readInk can recreate it, preserving how it gets its color.
+     */
+    public static void writeInk(DataOutput out, Ink ink) throws IOException {
+        if (ink == null) {
+            out.writeByte(0);
+        } else if (ink.fixedColor != null) {
+            out.writeByte(1);
+            out.writeInt(ink.fixedColor.getRGB());
+        } else if (ink.colorSetting != null) {
+            out.writeByte(2);
+            out.writeUTF(ink.colorSetting);
+        } else {
+            out.writeByte(3);
+            out.writeInt(ink.index);
+        }
+    }
+    
+    public static Ink readInk(DataInput in) throws IOException {
+        final int kind = in.readByte();
+        switch (kind) {
+        case 0:
+            return null;
+        case 1:
+            return new Ink(new Color(in.readInt(), true));
+        case 2:
+            return new Ink(in.readUTF());
+        case 3:
+            return new Ink(in.readInt());
+        default:
+            throw new IOException("unknown ink kind " + kind);
+        }
+    }
+    
     /**
      * Returns the color corresponding to 'index' (0-255).
      * 
@@ -2,40 +2,82 @@ package terminator;
 
 import e.gui.*;
 import e.util.*;
-import java.awt.event.*;
 import java.io.*;
+import java.nio.charset.*;
 import java.text.*;
 import java.util.*;
-import javax.swing.Timer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
 
 /**
  * Logs terminal output to a file.
  * Logging can be temporarily suspended.
  * If the terminal logs directory does not exist or we can't open the log file for some other reason, logging is automatically suspended, and can't be un-suspended.
+ * 
+ * We log the bytes the process wrote, before we decode them, so the log is exactly what the terminal saw (unless we had to drop some, as explained below).
+ * The reader thread just copies each read onto a queue; all the terminals' logs are written (and, optionally, gzip-compressed) on a single logging thread.
+ * So logging never makes the reader wait for the disk, or for a lock. If the disk falls MAX_PENDING_BYTES behind, we drop reads rather than let the queue grow without limit, and note in the log how many bytes are missing at that point.
+ * Closing hands the rest of the work (writing everything and finishing the file, including the gzip trailer) to the logging thread without waiting for it.
+ * A shutdown hook waits for that to happen for every log, since the logging thread is a daemon.
+ * Each log file is limited to MAX_LOG_FILE_BYTES bytes of output; after that we start a new file with a numeric suffix.
  */
 public class TerminalLogWriter {
     // We can't use ':' to separate the hours, minutes, and seconds because it's not allowed on all file systems.
     private static final DateFormat FILENAME_TIMESTAMP_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HHmmss.SSSZ");
     
-    private String info = "(not logging)";
-    private Writer writer;
-    private Writer suspendedWriter;
-    private Timer flushTimer;
+    private static final long MAX_LOG_FILE_BYTES = 256L * 1024 * 1024;
+    // We flush a second after output, rather than after every write, which would ruin the compression and cost a system call per read.
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // How much output may be queued for a single log before we start dropping reads.
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+    // How long we wait at exit for the logging thread to close the logs, in case the disk has gone away.
+    private static final long CLOSE_TIMEOUT_MS = 10 * 1000;
     
-    public TerminalLogWriter(List<String> command) {
-        // Establish the invariant that writer != null.
-        // suspendedWriter is still null - when we're not suspended.
-        this.writer = NullWriter.INSTANCE;
-        this.flushTimer = new Timer(1000, new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                flush();
+    private static final ScheduledExecutorService loggingExecutor = ThreadUtilities.newSingleThreadScheduledExecutor("Terminal Logging");
+    
+    // The logs whose files haven't been closed yet, for the shutdown hook.
+    private static final Set<TerminalLogWriter> openWriters = Collections.newSetFromMap(new ConcurrentHashMap<TerminalLogWriter, Boolean>());
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (TerminalLogWriter writer : openWriters) {
+                writer.close();
             }
-        });
-        flushTimer.setRepeats(false);
-        // If the user has chosen to disable terminal logging, just leave the NullWriter in place.
-        // Note that this has to occur after the 'flushTimer' initialisation has taken place, otherwise the
-        // 'append' method will throw a null pointer exception, which will prevent the terminal from being
-        // redrawn correctly.
+            // The logging thread runs tasks in order, so once this has run, so have all the closes.
+            try {
+                loggingExecutor.submit(() -> {}).get(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception ex) {
+                Log.warn("Exception occurred waiting for terminal logs to close.", ex);
+            }
+        }, "Terminal Log Closer"));
+    }
+    
+    private volatile String info = "(not logging)";
+    private volatile boolean suspended = false;
+    private volatile boolean closed = false;
+    
+    // Reads waiting to be written, and whether the logging thread already has a drain queued.
+    private final ConcurrentLinkedQueue<byte[]> pendingOutput = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainIsScheduled = new AtomicBoolean(false);
+    // How many bytes are in pendingOutput.
+    private final AtomicLong pendingByteCount = new AtomicLong(0);
+    // How many bytes we've dropped since we last queued a note saying so.
+    private final AtomicLong droppedByteCount = new AtomicLong(0);
+    
+    // Set up by initLogging. 'out' is null if we're not logging.
+    // After construction, these are only used on the logging thread.
+    private File logsDirectory;
+    private String logFileStem;
+    private String logFileExtension;
+    private boolean compress;
+    private int logFileNumber = 1;
+    private long logFileByteCount = 0;
+    private OutputStream out;
+    private boolean flushIsScheduled = false;
+    
+    public TerminalLogWriter(List<String> command) {
+        // If the user has chosen to disable terminal logging, just leave 'out' null.
         if (!Terminator.getPreferences().getBoolean(TerminatorPreferences.LOG_TERMINAL_ACTIVITY)) {
             return;
         }
@@ -44,14 +86,21 @@ public class TerminalLogWriter {
         } catch (Throwable th) {
             SimpleDialog.showDetails(null, "Couldn't Open Log File", th);
         }
+        if (out != null) {
+            openWriters.add(this);
+        }
     }
     
-    private synchronized static File makeLogFilename(File logsDirectory, String commandLine, int truncationLength) {
+    private synchronized static String makeLogFileStem(String commandLine, int truncationLength) {
         String mostInterestingPartOfCommandLine = commandLine.substring(0, truncationLength);
         String suffix = StringUtilities.urlEncode(mostInterestingPartOfCommandLine);
         String timestamp = FILENAME_TIMESTAMP_FORMATTER.format(new Date());
-        String leafname = timestamp + "-" + suffix + ".txt";
-        return new File(logsDirectory, leafname);
+        return timestamp + "-" + suffix;
+    }
+    
+    private File getLogFile() {
+        String numberSuffix = (logFileNumber == 1) ? "" : ("-" + logFileNumber);
+        return new File(logsDirectory, logFileStem + numberSuffix + logFileExtension);
     }
     
     private void initLogging(String commandLine) throws IOException {
@@ -73,16 +122,17 @@ public class TerminalLogWriter {
             this.info = "(\"" + logsDirectoryName + "\" is not writable)";
             return;
         }
+        this.logsDirectory = logsDirectory;
+        this.compress = Terminator.getPreferences().getBoolean(TerminatorPreferences.COMPRESS_TERMINAL_LOGS);
+        this.logFileExtension = compress ? ".txt.gz" : ".txt";
         
         // Try to create a log file.
         // We'll keep truncating the name until we either succeed or there's no name left.
         // This avoids assumptions about maximum filename or path lengths.
         for (int truncationLength = commandLine.length(); truncationLength >= 0; --truncationLength) {
-            File logFile = makeLogFilename(logsDirectory, commandLine, truncationLength);
+            this.logFileStem = makeLogFileStem(commandLine, truncationLength);
             try {
-                this.info = "(\"" + logFile + "\" could not be opened for writing)";
-                this.writer = new BufferedWriter(new FileWriter(logFile));
-                this.info = logFile.toString();
+                openLogFile();
                 return;
             } catch (IOException ex) {
                 if (truncationLength == 0) {
@@ -93,29 +143,147 @@ public class TerminalLogWriter {
         }
     }
     
-    public void append(char[] chars, int charCount, boolean sawNewline) throws IOException {
-        writer.write(chars, 0, charCount);
-        if (sawNewline) {
-            flushTimer.restart();
+    private void openLogFile() throws IOException {
+        File logFile = getLogFile();
+        this.info = "(\"" + logFile + "\" could not be opened for writing)";
+        OutputStream fileOut = new FileOutputStream(logFile);
+        try {
+            // With syncFlush, flush writes out everything compressed so far, so a log being written is still readable with zcat.
+            this.out = compress ? new GZIPOutputStream(fileOut, BUFFER_SIZE, true) : new BufferedOutputStream(fileOut, BUFFER_SIZE);
+        } catch (IOException ex) {
+            fileOut.close();
+            throw ex;
         }
+        this.logFileByteCount = 0;
+        this.info = logFile.toString();
     }
     
-    public void flush() {
+    /**
+     * Logs 'count' bytes of output from 'bytes', starting at 'offset'.
+     * This just copies the bytes onto a queue, so it's cheap enough for the reader thread.
+     * If the logging thread has fallen too far behind, the bytes are dropped instead.
+     */
+    public void append(byte[] bytes, int offset, int count) {
+        if (count == 0 || suspended || closed || logFileStem == null) {
+            return;
+        }
+        // A single read larger than the limit is still logged if nothing else is waiting.
+        final long pending = pendingByteCount.get();
+        if (pending > 0 && pending + count > MAX_PENDING_BYTES) {
+            droppedByteCount.addAndGet(count);
+            return;
+        }
+        queueDroppedByteNote();
+        pendingByteCount.addAndGet(count);
+        pendingOutput.add(Arrays.copyOfRange(bytes, offset, offset + count));
+        scheduleDrain();
+    }
+    
+    /**
+     * Queues a note of how many bytes we've dropped since the last note, if any, so the log shows where its gaps are.
+     */
+    private void queueDroppedByteNote() {
+        final long dropped = droppedByteCount.getAndSet(0);
+        if (dropped > 0) {
+            final String note = "\r\n[Terminator: " + dropped + " bytes of output weren't logged because the log couldn't be written fast enough.]\r\n";
+            final byte[] noteBytes = note.getBytes(StandardCharsets.UTF_8);
+            pendingByteCount.addAndGet(noteBytes.length);
+            pendingOutput.add(noteBytes);
+        }
+    }
+    
+    private void scheduleDrain() {
+        if (drainIsScheduled.compareAndSet(false, true)) {
+            loggingExecutor.execute(() -> {
+                drain();
+            });
+        }
+    }
+    
+    /**
+     * Writes everything that's been queued. Runs on the logging thread.
+     */
+    private void drain() {
+        // Clearing the flag before we look at the queue means that anything added after we've finished gets a drain of its own.
+        drainIsScheduled.set(false);
+        for (byte[] bytes; (bytes = pendingOutput.poll()) != null; ) {
+            write(bytes);
+            pendingByteCount.addAndGet(-bytes.length);
+        }
+        if (flushIsScheduled == false && out != null) {
+            flushIsScheduled = true;
+            loggingExecutor.schedule(() -> {
+                flushIsScheduled = false;
+                flushLogFile();
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void write(byte[] bytes) {
+        if (out == null) {
+            return;
+        }
         try {
-            writer.flush();
+            if (logFileByteCount > 0 && logFileByteCount + bytes.length > MAX_LOG_FILE_BYTES) {
+                // Start a new file.
+                out.close();
+                out = null;
+                ++logFileNumber;
+                openLogFile();
+            }
+            out.write(bytes);
+            logFileByteCount += bytes.length;
+        } catch (IOException ex) {
+            Log.warn("Exception occurred writing log file \"" + info + "\"; no longer logging.", ex);
+            closeLogFile();
+            info = "(couldn't write to \"" + getLogFile() + "\")";
+        }
+    }
+    
+    private void flushLogFile() {
+        try {
+            if (out != null) {
+                out.flush();
+            }
         } catch (Throwable th) {
             Log.warn("Exception occurred flushing log writer \"" + info + "\".", th);
         }
     }
     
-    public void close() {
+    private void closeLogFile() {
         try {
-            suspend(false);
-            writer.close();
-            writer = NullWriter.INSTANCE;
+            if (out != null) {
+                out.close();
+            }
         } catch (Throwable th) {
             Log.warn("Exception occurred closing log writer \"" + info + "\".", th);
         }
+        out = null;
+    }
+    
+    /**
+     * Arranges for everything logged so far to be written to the file soon, without waiting for it.
+     */
+    public void flush() {
+        loggingExecutor.execute(() -> {
+            drain();
+            flushLogFile();
+        });
+    }
+    
+    /**
+     * Stops logging, and arranges for everything logged so far to be written and the file closed, without waiting for it.
+     * This is called on the event dispatch thread when a terminal is closed, and the disk might be slow or gone.
+     * Calling this more than once is harmless.
+     */
+    public void close() {
+        closed = true;
+        loggingExecutor.execute(() -> {
+            queueDroppedByteNote();
+            drain();
+            closeLogFile();
+            openWriters.remove(this);
+        });
     }
     
     public String getInfo() {
@@ -124,38 +292,10 @@ public class TerminalLogWriter {
     
     public void suspend(boolean shouldSuspend) {
         flush();
-        if (shouldSuspend == isSuspended()) {
-            return;
-        }
-        if (shouldSuspend) {
-            suspendedWriter = writer;
-            writer = NullWriter.INSTANCE;
-        } else {
-            writer = suspendedWriter;
-            suspendedWriter = null;
-        }
+        suspended = shouldSuspend;
     }
     
     public boolean isSuspended() {
-        return (suspendedWriter != null);
-    }
-    
-    public static class NullWriter extends Writer {
-        public static final Writer INSTANCE = new NullWriter();
-        
-        private NullWriter() {
-        }
-        
-        @Override public void close() {
-        }
-        
-        @Override public void flush() {
-        }
-        
-        @Override public void write(int c) {
-        }
-        
-        @Override public void write(char[] buffer, int offset, int byteCount) {
-        }
+        return suspended;
     }
 }
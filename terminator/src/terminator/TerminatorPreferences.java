@@ -29,6 +29,8 @@ public class TerminatorPreferences extends Preferences {
     public static final String PALETTE = "palette";
     public static final String SCROLL_ON_KEY_PRESS = "scrollKey";
     public static final String SCROLL_ON_TTY_OUTPUT = "scrollTtyOutput";
+    public static final String SCROLLBACK_LINES_IN_MEMORY = "scrollbackLinesInMemory";
+    public static final String SCROLLBACK_MEGABYTES_ON_DISK = "scrollbackMegabytesOnDisk";
     public static final String VISUAL_BELL = "visualBell";
     
     /**
@@ -48,6 +50,7 @@ public class TerminatorPreferences extends Preferences {
      * Users may wish to disable this functionality for security reasons (eg company laptops).
      */
     public static final String LOG_TERMINAL_ACTIVITY = "logTerminalActivity";
+    public static final String COMPRESS_TERMINAL_LOGS = "compressTerminalLogs";
 
     /**
      * Whether or not to allow shell commands to alter the system clipboard via OSC control codes
@@ -59,6 +62,12 @@ public class TerminatorPreferences extends Preferences {
      */
     public static final String ENABLE_TERMINAL_CLIPBOARD_ACCESS = "enableTerminalClipboardAccess";
     
+    /**
+     * Whether to read all terminals' output with one thread waiting in poll(2) and a small pool processing it, rather than a thread per terminal.
+     * This only affects terminals opened after it's changed.
+     */
+    public static final String MULTIPLEX_PTY_INPUT = "multiplexPtyInput";
+    
     private static final Color CREAM = new Color(0xfefaea);
     private static final Color LIGHT_BLUE = new Color(0xb3d4ff);
     private static final Color NEAR_BLACK = new Color(0x181818);
@@ -86,11 +95,15 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Behavior", ALWAYS_SHOW_TABS, Boolean.FALSE, "Always show tab bar");
         addPreference("Behavior", SCROLL_ON_KEY_PRESS, Boolean.TRUE, "Scroll to bottom on key press");
         addPreference("Behavior", SCROLL_ON_TTY_OUTPUT, Boolean.FALSE, "Scroll to bottom on output");
+        addPreference("Behavior", SCROLLBACK_LINES_IN_MEMORY, Integer.valueOf(10000), "Scrollback lines kept in memory (older lines go to disk)");
+        addPreference("Behavior", SCROLLBACK_MEGABYTES_ON_DISK, Integer.valueOf(1024), "Compressed scrollback kept on disk, in MiB (the oldest is discarded)");
         addPreference("Behavior", HIDE_MOUSE_WHEN_TYPING, Boolean.TRUE, "Hide mouse when typing");
         addPreference("Behavior", VISUAL_BELL, Boolean.TRUE, "Visual bell (as opposed to no bell)");
         addPreference("Behavior", USE_ALT_AS_META, Boolean.FALSE, "Use alt key as meta key (for Emacs)");
         addPreference("Behavior", LOG_TERMINAL_ACTIVITY, Boolean.TRUE, "Log terminal activity in $HOME/.terminator/logs/");
+        addPreference("Behavior", COMPRESS_TERMINAL_LOGS, Boolean.FALSE, "Compress terminal logs (gzip)");
         addPreference("Behavior", ENABLE_TERMINAL_CLIPBOARD_ACCESS, Boolean.FALSE, "Enable clipboard access from terminal commands");
+        addPreference("Behavior", MULTIPLEX_PTY_INPUT, Boolean.FALSE, "Share reader threads between terminals (for many tabs)");
         addPreference("Behavior", ERROR_LINK_CMD, "", "Error link handling script");
         
         addPreference("Appearance", ANTI_ALIAS, Boolean.TRUE, "Anti-alias text");
@@ -3,6 +3,7 @@ package terminator;
 import e.util.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Improves the performance of opening a new shell from the command line or
@@ -10,9 +11,12 @@ import java.util.*;
  * We allow the socket to tell us to execute arbitrary code.
  * This is only OK because we trust the file security on the secret file.
  * We don't accept connections except from localhost.
+ * 
+ * parseCommandLine's response isn't complete until the window it opened is closed, so that "terminator -e" can wait for the command.
+ * We return a future for that, rather than blocking one of InAppServer's threads for the life of the window.
  */
 public class TerminatorServer {
-    public void parseCommandLine(PrintWriter out, String line) {
+    public CompletableFuture<Void> parseCommandLine(PrintWriter out, String line) {
         ArrayList<String> arguments = new ArrayList<>();
         String[] encodedArguments = line.split(" ");
         for (String encodedArgument : encodedArguments) {
@@ -25,13 +29,13 @@ public class TerminatorServer {
         PrintWriter err = out;
         TerminatorOpener opener = new TerminatorOpener(arguments, err);
         if (opener.showUsageIfRequested(out)) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         TerminatorFrame window = opener.openFromBackgroundThread();
         if (window == null) {
             // Any syntax error will have been reported.
-            return;
+            return CompletableFuture.completedFuture(null);
         }
-        GuiUtilities.waitForWindowToDisappear(window);
+        return GuiUtilities.whenWindowDisappears(window);
     }
 }
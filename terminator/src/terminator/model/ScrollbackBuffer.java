@@ -0,0 +1,535 @@
+package terminator.model;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+import terminator.*;
+
+/**
+ * Holds all of a terminal's lines: the scroll buffer and the lines on the display.
+ * 
+ * The most recent lines are kept in memory, in a circular array, so adding a line at the end never shifts the history.
+ * (Inserting or removing a line near the end only shifts the lines after it, which are all on the display.)
+ * 
+ * Once more than the configured number of lines are in memory, the oldest are compressed, a segment at a time, and appended to a temporary file.
+ * Those lines can still be read, so they can still be displayed, searched, and selected, but they're read-only.
+ * That's fine, because a terminal can't change a line once it's scrolled off the top of the display.
+ * The most recently read segments are cached, so scrolling through or searching the history only decompresses each segment once.
+ * 
+ * The disk space is limited too. We spill into a series of SPILL_FILE_COUNT-ish files, and once they hold more than the configured limit, we delete the oldest.
+ * Its lines don't go away (that would renumber every line), but they read back as empty lines, as they would if reading them had failed.
+ * 
+ * Because nothing before a spilled line can change, its start index (see TerminalModel.getStartIndex) can't change either.
+ * We make sure it's right before we spill it, and keep it with the line.
+ * 
+ * The start indexes of the lines in memory come from a Fenwick tree of their lengths, indexed like the circular array.
+ * TerminalModel tells us when lines may have changed length, and we catch up before we next need a start index.
+ * That's cheap because only the lines on the display can change.
+ * When lines are spilled, their lengths are removed from the tree and added to spilledCharCount instead, so nothing else moves.
+ * Going from a character index back to a line is a search of the tree, or of the segments' start indexes and then a single segment.
+ * Character indexes are longs, because a long-running terminal can produce more than 2^31 characters; the tree only covers the lines in memory, so its ints are enough.
+ * 
+ * If we can't write to the temporary file, we log a warning and keep everything in memory, as we always used to.
+ */
+final class ScrollbackBuffer {
+    static final int SEGMENT_LINE_COUNT = 1024;
+    
+    // We always keep at least this many lines in memory, so we can't spill any of the display, even in the tallest window.
+    private static final int MIN_IN_MEMORY_LINE_LIMIT = 1000;
+    
+    private static final int CACHED_SEGMENT_COUNT = 8;
+    
+    // We start a new spill file once the current one holds this fraction of the limit, so deleting the oldest frees a useful amount of space without throwing away too much history at once.
+    private static final int SPILL_FILE_COUNT = 4;
+    
+    // One of the temporary files the segments are written to.
+    private static class SpillFile {
+        private final Path path;
+        private final FileChannel channel;
+        private long length = 0;
+        
+        private SpillFile(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+    
+    // Each segment's position in its spill file.
+    private static class Segment {
+        // Null once the file has been deleted to make room.
+        private SpillFile file;
+        private final long fileOffset;
+        private final int byteCount;
+        private final long firstLineStartIndex;
+        
+        private Segment(SpillFile file, long fileOffset, int byteCount, long firstLineStartIndex) {
+            this.file = file;
+            this.fileOffset = fileOffset;
+            this.byteCount = byteCount;
+            this.firstLineStartIndex = firstLineStartIndex;
+        }
+    }
+    
+    private int inMemoryLineLimit;
+    private long maxSpilledByteCount;
+    
+    // The in-memory lines, as a circular array: line 'spilledLineCount() + i' is lines[(head + i) & (lines.length - 1)].
+    private TextLine[] lines = new TextLine[64];
+    private int head = 0;
+    private int inMemoryLineCount = 0;
+    
+    // lengths[i] is the lengthIncludingNewline of lines[i] when we last looked, or 0 for an empty slot; lengthTree is a Fenwick tree of the same values.
+    private int[] lengths = new int[64];
+    private final FenwickTree lengthTree = new FenwickTree();
+    // The in-memory index of the first line whose length we need to check, or Integer.MAX_VALUE if they're all up to date.
+    private int firstStaleLength = 0;
+    private boolean lengthTreeNeedsRebuild = true;
+    
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    // The number of characters (including newlines) in the spilled lines, which is also the start index of the first in-memory line.
+    private long spilledCharCount = 0;
+    // Oldest first. The segments of the first file start at segments.get(firstSegmentOnDisk).
+    private final ArrayDeque<SpillFile> spillFiles = new ArrayDeque<>();
+    private int firstSegmentOnDisk = 0;
+    private long spilledByteCount = 0;
+    private boolean spillingFailed = false;
+    
+    // Recently-read segments, least recently used first.
+    private final LinkedHashMap<Integer, TextLine[]> segmentCache = new LinkedHashMap<Integer, TextLine[]>(CACHED_SEGMENT_COUNT, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, TextLine[]> eldest) {
+            return size() > CACHED_SEGMENT_COUNT;
+        }
+    };
+    
+    ScrollbackBuffer(int inMemoryLineLimit, int megabytesOnDisk) {
+        this.inMemoryLineLimit = Math.max(inMemoryLineLimit, MIN_IN_MEMORY_LINE_LIMIT);
+        this.maxSpilledByteCount = Math.max(megabytesOnDisk, 1) * 1024L * 1024L;
+    }
+    
+    int size() {
+        return spilledLineCount() + inMemoryLineCount;
+    }
+    
+    /**
+     * Returns the number of lines that have been moved to disk. These are always the first lines.
+     */
+    int spilledLineCount() {
+        return segments.size() * SEGMENT_LINE_COUNT;
+    }
+    
+    TextLine get(int index) {
+        checkIndex(index);
+        final int spilledLineCount = spilledLineCount();
+        if (index >= spilledLineCount) {
+            return lines[physicalIndex(index - spilledLineCount)];
+        }
+        final int segmentIndex = index / SEGMENT_LINE_COUNT;
+        TextLine[] segmentLines = segmentCache.get(segmentIndex);
+        if (segmentLines == null) {
+            segmentLines = readSegment(segmentIndex);
+            segmentCache.put(segmentIndex, segmentLines);
+        }
+        return segmentLines[index % SEGMENT_LINE_COUNT];
+    }
+    
+    void set(int index, TextLine line) {
+        final int inMemoryIndex = inMemoryIndex(index);
+        lines[physicalIndex(inMemoryIndex)] = line;
+        lengthsChangedFromInMemoryIndex(inMemoryIndex);
+    }
+    
+    void add(TextLine line) {
+        ensureCapacity();
+        lines[physicalIndex(inMemoryLineCount)] = line;
+        lengthsChangedFromInMemoryIndex(inMemoryLineCount);
+        ++inMemoryLineCount;
+    }
+    
+    void add(int index, TextLine line) {
+        if (index == size()) {
+            add(line);
+            return;
+        }
+        final int inMemoryIndex = inMemoryIndex(index);
+        ensureCapacity();
+        // Shift the lines after 'index' along by one.
+        for (int i = inMemoryLineCount; i > inMemoryIndex; --i) {
+            lines[physicalIndex(i)] = lines[physicalIndex(i - 1)];
+        }
+        lines[physicalIndex(inMemoryIndex)] = line;
+        lengthsChangedFromInMemoryIndex(inMemoryIndex);
+        ++inMemoryLineCount;
+    }
+    
+    TextLine remove(int index) {
+        final int inMemoryIndex = inMemoryIndex(index);
+        final TextLine result = lines[physicalIndex(inMemoryIndex)];
+        for (int i = inMemoryIndex; i < inMemoryLineCount - 1; ++i) {
+            lines[physicalIndex(i)] = lines[physicalIndex(i + 1)];
+        }
+        lines[physicalIndex(inMemoryLineCount - 1)] = null;
+        setLength(physicalIndex(inMemoryLineCount - 1), 0);
+        lengthsChangedFromInMemoryIndex(inMemoryIndex);
+        --inMemoryLineCount;
+        return result;
+    }
+    
+    /**
+     * Notes that the lines from 'index' on may have changed length.
+     */
+    void lengthsChangedFrom(int index) {
+        lengthsChangedFromInMemoryIndex(Math.max(index - spilledLineCount(), 0));
+    }
+    
+    private void lengthsChangedFromInMemoryIndex(int inMemoryIndex) {
+        firstStaleLength = Math.min(firstStaleLength, inMemoryIndex);
+    }
+    
+    /**
+     * Returns the index in characters of the start of the given line, counting a newline at the end of each line.
+     */
+    long getStartIndex(int index) {
+        checkIndex(index);
+        final int spilledLineCount = spilledLineCount();
+        if (index < spilledLineCount) {
+            return get(index).getLineStartIndex();
+        }
+        updateLengths();
+        return spilledCharCount + inMemoryPrefixSum(index - spilledLineCount);
+    }
+    
+    /**
+     * Returns the index of the last line that starts at or before 'charIndex'.
+     * That's the line containing 'charIndex', unless it's past the end, in which case it's the last line.
+     */
+    int getLineIndexContaining(long charIndex) {
+        if (charIndex < 0) {
+            return 0;
+        }
+        if (charIndex < spilledCharCount) {
+            // Find the segment without reading any, then search its lines.
+            int lowSegment = 0;
+            int highSegment = segments.size();
+            while (highSegment - lowSegment > 1) {
+                final int midSegment = (lowSegment + highSegment) >>> 1;
+                if (segments.get(midSegment).firstLineStartIndex <= charIndex) {
+                    lowSegment = midSegment;
+                } else {
+                    highSegment = midSegment;
+                }
+            }
+            int lowLine = lowSegment * SEGMENT_LINE_COUNT;
+            int highLine = lowLine + SEGMENT_LINE_COUNT;
+            while (highLine - lowLine > 1) {
+                final int midLine = (lowLine + highLine) >>> 1;
+                if (get(midLine).getLineStartIndex() <= charIndex) {
+                    lowLine = midLine;
+                } else {
+                    highLine = midLine;
+                }
+            }
+            return lowLine;
+        }
+        updateLengths();
+        // Only the lines in memory are in the tree, so an offset from the first of them that doesn't fit in an int is past the end anyway.
+        final int offset = (int) Math.min(charIndex - spilledCharCount, Integer.MAX_VALUE);
+        // The lines from 'head' to the end of the array come first, then any that have wrapped around to the start.
+        final int beforeHead = lengthTree.prefixSum(head);
+        final int fromHead = lengthTree.prefixSum(lines.length) - beforeHead;
+        int inMemoryIndex;
+        if (offset < fromHead) {
+            inMemoryIndex = lengthTree.countNotExceeding(beforeHead + offset) - head;
+        } else {
+            inMemoryIndex = lines.length - head + lengthTree.countNotExceeding(offset - fromHead);
+        }
+        return spilledLineCount() + Math.max(Math.min(inMemoryIndex, inMemoryLineCount - 1), 0);
+    }
+    
+    /**
+     * Checks the start indexes we'd return against a simple walk over the lines in memory, throwing if they disagree.
+     * This is slow, and only for debugging.
+     */
+    void checkStartIndexes() {
+        long expectedStartIndex = spilledCharCount;
+        for (int i = spilledLineCount(); i < size(); ++i) {
+            if (getStartIndex(i) != expectedStartIndex) {
+                throw new RuntimeException("line " + i + " should start at " + expectedStartIndex + " but getStartIndex says " + getStartIndex(i));
+            }
+            if (getLineIndexContaining(expectedStartIndex) != i) {
+                throw new RuntimeException("character " + expectedStartIndex + " should be on line " + i + " but getLineIndexContaining says " + getLineIndexContaining(expectedStartIndex));
+            }
+            expectedStartIndex += get(i).lengthIncludingNewline();
+        }
+    }
+    
+    /**
+     * Returns the total length of the first 'count' lines in memory.
+     */
+    private int inMemoryPrefixSum(int count) {
+        if (head + count <= lines.length) {
+            return lengthTree.prefixSum(head + count) - lengthTree.prefixSum(head);
+        }
+        return lengthTree.prefixSum(lines.length) - lengthTree.prefixSum(head) + lengthTree.prefixSum(head + count - lines.length);
+    }
+    
+    /**
+     * Brings lengths and lengthTree up to date with the lines.
+     */
+    private void updateLengths() {
+        if (lengthTreeNeedsRebuild) {
+            Arrays.fill(lengths, 0);
+            for (int i = 0; i < inMemoryLineCount; ++i) {
+                lengths[physicalIndex(i)] = lines[physicalIndex(i)].lengthIncludingNewline();
+            }
+            lengthTree.rebuild(lengths, lengths.length);
+            lengthTreeNeedsRebuild = false;
+        } else {
+            for (int i = firstStaleLength; i < inMemoryLineCount; ++i) {
+                setLength(physicalIndex(i), lines[physicalIndex(i)].lengthIncludingNewline());
+            }
+        }
+        firstStaleLength = Integer.MAX_VALUE;
+    }
+    
+    private void setLength(int physicalIndex, int length) {
+        if (lengthTreeNeedsRebuild == false && lengths[physicalIndex] != length) {
+            lengthTree.add(physicalIndex, length - lengths[physicalIndex]);
+        }
+        lengths[physicalIndex] = length;
+    }
+    
+    /**
+     * Removes all the lines, and the spill file.
+     */
+    void clear() {
+        lines = new TextLine[64];
+        head = 0;
+        inMemoryLineCount = 0;
+        lengths = new int[64];
+        lengthTreeNeedsRebuild = true;
+        firstStaleLength = 0;
+        segments.clear();
+        segmentCache.clear();
+        spilledCharCount = 0;
+        closeSpillFiles();
+    }
+    
+    void dispose() {
+        clear();
+        // Anything added after we're disposed (by output already on its way to the model, say) stays in memory.
+        spillingFailed = true;
+    }
+    
+    /**
+     * Moves whole segments of old lines to disk while we have more in memory than we should.
+     * Lines at or after 'firstMutableLineIndex' (the first line of the display) are never moved, because they can still change.
+     */
+    void spillIfNecessary(int firstMutableLineIndex) {
+        if (spillingFailed) {
+            return;
+        }
+        // We don't spill as soon as we reach the limit, so we're not spilling a segment's worth for every few lines of output.
+        while (inMemoryLineCount > inMemoryLineLimit + SEGMENT_LINE_COUNT && spilledLineCount() + SEGMENT_LINE_COUNT <= firstMutableLineIndex) {
+            try {
+                spillSegment();
+            } catch (IOException ex) {
+                Log.warn("Couldn't write old terminal lines to disk; keeping them in memory instead", ex);
+                spillingFailed = true;
+                if (segments.isEmpty()) {
+                    closeSpillFiles();
+                }
+                return;
+            }
+        }
+    }
+    
+    private void spillSegment() throws IOException {
+        SpillFile spillFile = spillFiles.peekLast();
+        if (spillFile == null || spillFile.length >= maxSpilledByteCount / SPILL_FILE_COUNT) {
+            final Path path = Files.createTempFile("terminator-scrollback-", ".tmp");
+            spillFile = new SpillFile(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE));
+            spillFiles.addLast(spillFile);
+        }
+        
+        // Fix up the start indexes, and build a table of the segment's distinct styles, so we only write each once.
+        long startIndex = spilledCharCount;
+        HashMap<Style, Integer> styleIds = new HashMap<>();
+        ArrayList<Style> styles = new ArrayList<>();
+        for (int i = 0; i < SEGMENT_LINE_COUNT; ++i) {
+            TextLine line = lines[physicalIndex(i)];
+            line.setLineStartIndex(startIndex);
+            startIndex += line.lengthIncludingNewline();
+            line.collectStyles(styleIds, styles);
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED)))) {
+            out.writeInt(styles.size());
+            for (Style style : styles) {
+                Palettes.writeInk(out, style.getRawForeground());
+                Palettes.writeInk(out, style.getRawBackground());
+                out.writeInt(style.getAttributes());
+            }
+            for (int i = 0; i < SEGMENT_LINE_COUNT; ++i) {
+                lines[physicalIndex(i)].writeTo(out, styleIds);
+            }
+        }
+        
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        final long fileOffset = spillFile.length;
+        while (buffer.hasRemaining()) {
+            spillFile.length += spillFile.channel.write(buffer, spillFile.length);
+        }
+        segments.add(new Segment(spillFile, fileOffset, buffer.capacity(), spilledCharCount));
+        spilledByteCount += buffer.capacity();
+        
+        // Only now that the segment is safely written can we forget the lines.
+        // Their lengths move from the tree to spilledCharCount, so the start indexes of the lines still in memory don't change.
+        for (int i = 0; i < SEGMENT_LINE_COUNT; ++i) {
+            lines[physicalIndex(i)] = null;
+            setLength(physicalIndex(i), 0);
+        }
+        head = physicalIndex(SEGMENT_LINE_COUNT);
+        inMemoryLineCount -= SEGMENT_LINE_COUNT;
+        spilledCharCount = startIndex;
+        if (firstStaleLength != Integer.MAX_VALUE) {
+            firstStaleLength = Math.max(firstStaleLength - SEGMENT_LINE_COUNT, 0);
+        }
+        
+        // We never delete the file we're writing to, so we can go over the limit by up to a file's worth.
+        while (spilledByteCount > maxSpilledByteCount && spillFiles.size() > 1) {
+            deleteOldestSpillFile();
+        }
+    }
+    
+    /**
+     * Deletes the oldest spill file, so its segments read back as empty lines.
+     */
+    private void deleteOldestSpillFile() {
+        final SpillFile oldest = spillFiles.removeFirst();
+        while (firstSegmentOnDisk < segments.size() && segments.get(firstSegmentOnDisk).file == oldest) {
+            segments.get(firstSegmentOnDisk).file = null;
+            segmentCache.remove(firstSegmentOnDisk);
+            ++firstSegmentOnDisk;
+        }
+        spilledByteCount -= oldest.length;
+        closeSpillFile(oldest);
+    }
+    
+    private TextLine[] readSegment(int segmentIndex) {
+        final Segment segment = segments.get(segmentIndex);
+        if (segment.file == null) {
+            // We deleted these lines to stay within the limit.
+            return makeEmptySegment(segmentIndex);
+        }
+        try {
+            if (segment.file.channel.isOpen() == false) {
+                throw new IOException("the spill file has been closed");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(segment.byteCount);
+            while (buffer.hasRemaining()) {
+                if (segment.file.channel.read(buffer, segment.fileOffset + buffer.position()) == -1) {
+                    throw new EOFException();
+                }
+            }
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(buffer.array())))) {
+                final Style[] styles = new Style[in.readInt()];
+                for (int i = 0; i < styles.length; ++i) {
+                    final Palettes.Ink foreground = Palettes.readInk(in);
+                    final Palettes.Ink background = Palettes.readInk(in);
+                    styles[i] = Style.makeStyle(foreground, background, in.readInt());
+                }
+                final TextLine[] result = new TextLine[SEGMENT_LINE_COUNT];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = TextLine.readFrom(in, styles);
+                }
+                return result;
+            }
+        } catch (IOException ex) {
+            Log.warn("Couldn't read old terminal lines from \"" + segment.file.path + "\"", ex);
+            // Blank lines are the best we can do.
+            return makeEmptySegment(segmentIndex);
+        }
+    }
+    
+    /**
+     * Returns blank lines to stand in for a segment we can't read.
+     * We no longer know how long each of its lines was, but we do know their total, because that's the difference between this segment's start index and the next's.
+     * Sharing that total out between the blank lines keeps every character index in the gap pointing at a line long enough to contain it, and keeps the lines after the gap where they were.
+     */
+    private TextLine[] makeEmptySegment(int segmentIndex) {
+        final long firstLineStartIndex = segments.get(segmentIndex).firstLineStartIndex;
+        final long endIndex = (segmentIndex + 1 < segments.size()) ? segments.get(segmentIndex + 1).firstLineStartIndex : spilledCharCount;
+        // Every line has at least its newline, so each share is at least 1.
+        final long charCount = endIndex - firstLineStartIndex;
+        final TextLine[] result = new TextLine[SEGMENT_LINE_COUNT];
+        long lineStartIndex = firstLineStartIndex;
+        for (int i = 0; i < result.length; ++i) {
+            final long nextLineStartIndex = firstLineStartIndex + charCount * (i + 1) / SEGMENT_LINE_COUNT;
+            result[i] = new TextLine(Palettes.getBackgroundInk());
+            result[i].setLineStartIndex(lineStartIndex);
+            final char[] spaces = new char[(int) (nextLineStartIndex - lineStartIndex - 1)];
+            if (spaces.length > 0) {
+                Arrays.fill(spaces, ' ');
+                result[i].insertTextAt(0, new String(spaces), Style.getDefaultStyle());
+            }
+            lineStartIndex = nextLineStartIndex;
+        }
+        return result;
+    }
+    
+    private void closeSpillFiles() {
+        for (SpillFile spillFile : spillFiles) {
+            closeSpillFile(spillFile);
+        }
+        spillFiles.clear();
+        firstSegmentOnDisk = 0;
+        spilledByteCount = 0;
+    }
+    
+    private static void closeSpillFile(SpillFile spillFile) {
+        try {
+            // The file was opened DELETE_ON_CLOSE.
+            spillFile.channel.close();
+        } catch (IOException ex) {
+            Log.warn("Couldn't close \"" + spillFile.path + "\"", ex);
+        }
+    }
+    
+    private void ensureCapacity() {
+        if (inMemoryLineCount < lines.length) {
+            return;
+        }
+        TextLine[] newLines = new TextLine[lines.length * 2];
+        for (int i = 0; i < inMemoryLineCount; ++i) {
+            newLines[i] = lines[physicalIndex(i)];
+        }
+        lines = newLines;
+        head = 0;
+        lengths = new int[lines.length];
+        lengthTreeNeedsRebuild = true;
+    }
+    
+    private int physicalIndex(int inMemoryIndex) {
+        return (head + inMemoryIndex) & (lines.length - 1);
+    }
+    
+    private int inMemoryIndex(int index) {
+        checkIndex(index);
+        final int inMemoryIndex = index - spilledLineCount();
+        if (inMemoryIndex < 0) {
+            throw new IllegalArgumentException("line " + index + " has been moved to disk and can't be changed");
+        }
+        return inMemoryIndex;
+    }
+    
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + " not in [0, " + size() + ")");
+        }
+    }
+}
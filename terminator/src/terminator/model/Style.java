@@ -1,12 +1,26 @@
 package terminator.model;
 
 import java.awt.*;
+import java.util.*;
 import terminator.*;
 
 /**
  * Objects of this class are immutable.
+ * The first MAX_INTERNED_STYLES distinct styles are also interned, and each has a small integer id, so a TextLine can store its styles as runs of ids.
+ * Palette colors mean most terminals only ever use a few hundred distinct styles, but a program using 24-bit color can make a new style for every character, so we can't intern them all.
+ * Once the table is full, makeStyle returns styles that aren't interned (see isInterned), and TextLine keeps those itself.
+ * Interned styles are never forgotten, because any TextLine might still refer to one by id.
  */
 public final class Style {
+    private static final int MAX_INTERNED_STYLES = 16 * 1024;
+    private static final int NOT_INTERNED = -1;
+    
+    // All the styles we've interned, both by value and by id.
+    // These need to be initialized before DEFAULT_STYLE.
+    // Rendering looks styles up by id for every run it draws, so stylesById is republished on every change and can be read without locking.
+    private static final HashMap<Style, Style> internedStyles = new HashMap<>();
+    private static volatile Style[] stylesById = new Style[64];
+    
     private static final Style DEFAULT_STYLE = makeStyle(null, null, 0);
     
     public static final int BOLD = (1 << 0);
@@ -27,6 +41,7 @@ public final class Style {
     private final Palettes.Ink foreground;
     private final Palettes.Ink background;
     private final int attributes;
+    private int id = NOT_INTERNED;
     
     @Override public String toString() {
         return "Style[foreground=" + foreground + ", background=" + background + ", attributes=" + Integer.toHexString(attributes) + "]";
@@ -66,6 +81,28 @@ public final class Style {
         this.attributes = attributes;
     }
     
+    /**
+     * Returns this style's id, which is the same for all equal interned styles.
+     * Only meaningful if isInterned.
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Tests whether this style has an id that forId will map back to it.
+     */
+    public boolean isInterned() {
+        return (id != NOT_INTERNED);
+    }
+    
+    /**
+     * Returns the style with the given id.
+     */
+    public static Style forId(int id) {
+        return stylesById[id];
+    }
+    
     public int getAttributes() {
         return attributes;
     }
@@ -95,6 +132,21 @@ public final class Style {
     }
     
     public static Style makeStyle(Palettes.Ink foreground, Palettes.Ink background, int attributes) {
-        return new Style(foreground, background, attributes);
+        Style style = new Style(foreground, background, attributes);
+        synchronized (internedStyles) {
+            Style interned = internedStyles.get(style);
+            if (interned == null && internedStyles.size() >= MAX_INTERNED_STYLES) {
+                return style;
+            }
+            if (interned == null) {
+                style.id = internedStyles.size();
+                Style[] newStylesById = (style.id < stylesById.length) ? stylesById : Arrays.copyOf(stylesById, 2 * stylesById.length);
+                newStylesById[style.id] = style;
+                stylesById = newStylesById;
+                internedStyles.put(style, style);
+                interned = style;
+            }
+            return interned;
+        }
     }
 }
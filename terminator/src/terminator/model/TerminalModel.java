@@ -9,15 +9,17 @@ import terminator.view.*;
 import terminator.*;
 
 public class TerminalModel {
+    // Whether checkInvariant actually checks anything. It's too slow to leave on.
+    private static final boolean DEBUG = false;
+    
     private TerminalView view;
     private int width;
     private int height;
-    private ArrayList<TextLine> textLines = new ArrayList<>();
+    private ScrollbackBuffer textLines = new ScrollbackBuffer(Terminator.getPreferences().getInt(TerminatorPreferences.SCROLLBACK_LINES_IN_MEMORY), Terminator.getPreferences().getInt(TerminatorPreferences.SCROLLBACK_MEGABYTES_ON_DISK));
     private Style currentStyle = Style.getDefaultStyle();
     private int firstScrollLineIndex;
     private int lastScrollLineIndex;
     private Location cursorPosition;
-    private int lastValidStartIndex = 0;
     private boolean insertMode = false;
     private ArrayList<Integer> tabPositions = new ArrayList<>();
     private int maxLineWidth = width;
@@ -102,13 +104,9 @@ public class TerminalModel {
     }
     
     public void checkInvariant() {
-        int highestStartLineIndex = -1;
-        for (int lineNumber = 0; lineNumber <= lastValidStartIndex; ++ lineNumber) {
-            int thisStartLineIndex = textLines.get(lineNumber).getLineStartIndex();
-            if (thisStartLineIndex <= highestStartLineIndex) {
-                throw new RuntimeException("the lineStartIndex must increase monotonically as the line number increases");
-            }
-            highestStartLineIndex = thisStartLineIndex;
+        if (DEBUG) {
+            // ScrollbackBuffer checks the lines it moves to disk, which can't change afterwards, so this only checks the lines in memory.
+            textLines.checkStartIndexes();
         }
     }
     
@@ -128,15 +126,18 @@ public class TerminalModel {
         // multiple physical lines, and the cursor may not be on the
         // first of those lines. Ideally we should keep all pertinent
         // lines. Unfortunately, I can't see how we'd know.
-        ArrayList<TextLine> retainedLines = new ArrayList<>(textLines.subList(cursorPosition.getLineIndex(), textLines.size()));
+        ArrayList<TextLine> retainedLines = new ArrayList<>();
+        for (int i = cursorPosition.getLineIndex(); i < textLines.size(); ++i) {
+            retainedLines.add(textLines.get(i));
+        }
         
         // Revert to just the right number of empty lines to fill the
         // current window size.
-        // Using a new ArrayList ensures we free space without risking
-        // expensive nulling-out of now-unused elements. The assumption
-        // being that we're most likely to be asked to clear the
-        // scrollback when it's insanely large.
-        textLines = new ArrayList<TextLine>();
+        // Clearing the ScrollbackBuffer frees its space (and its spill file)
+        // without risking expensive nulling-out of now-unused elements.
+        // The assumption being that we're most likely to be asked to clear
+        // the scrollback when it's insanely large.
+        textLines.clear();
         setSize(width, view.getVisibleSizeInCharacters().height);
         maxLineWidth = width;
         
@@ -286,9 +287,8 @@ public class TerminalModel {
     }
     
     /** Returns the start character index of the indexed line. */
-    public int getStartIndex(int lineIndex) {
-        ensureValidStartIndex(lineIndex);
-        return getTextLine(lineIndex).getLineStartIndex();
+    public long getStartIndex(int lineIndex) {
+        return textLines.getStartIndex(lineIndex);
     }
     
     /**
@@ -296,45 +296,29 @@ public class TerminalModel {
      * If the index is actually larger than the screen area, returns a 'fake' location to the right
      * of the end of the last line.
      */
-    public Location getLocationFromCharIndex(int charIndex) {
-        int lowLine = 0;
-        int highLine = textLines.size();
-        
-        while (highLine - lowLine > 1) {
-            int midLine = (lowLine + highLine) / 2;
-            int mid = getStartIndex(midLine);
-            if (mid <= charIndex) {
-                lowLine = midLine;
-            } else {
-                highLine = midLine;
-            }
-        }
-        return new Location(lowLine, charIndex - getStartIndex(lowLine));
+    public Location getLocationFromCharIndex(long charIndex) {
+        final int lineIndex = textLines.getLineIndexContaining(charIndex);
+        return new Location(lineIndex, (int) Math.min(charIndex - getStartIndex(lineIndex), Integer.MAX_VALUE));
     }
     
     /** Returns the char index equivalent to the given Location. */
-    public int getCharIndexFromLocation(Location location) {
+    public long getCharIndexFromLocation(Location location) {
         return getStartIndex(location.getLineIndex()) + location.getCharOffset();
     }
     
     /** Returns the count of all characters in the buffer, including NLs. */
-    public int length() {
+    public long length() {
         int lastIndex = textLines.size() - 1;
         return getStartIndex(lastIndex) + getLineLength(lastIndex);
     }
     
+    /**
+     * Notes that the start index of the given line, and of the lines after it, may have changed.
+     * That is, the line before it may have changed length, so we tell the ScrollbackBuffer to check from there.
+     * It'll update the start indexes when they're next needed.
+     */
     private void lineIsDirty(int dirtyLineIndex) {
-        lastValidStartIndex = Math.min(lastValidStartIndex, dirtyLineIndex + 1);
-    }
-    
-    private void ensureValidStartIndex(int lineIndex) {
-        if (lineIndex > lastValidStartIndex) {
-            for (int i = lastValidStartIndex; i < lineIndex; i++) {
-                TextLine line = getTextLine(i);
-                getTextLine(i + 1).setLineStartIndex(line.getLineStartIndex() + line.lengthIncludingNewline());
-            }
-            lastValidStartIndex = lineIndex;
-        }
+        textLines.lengthsChangedFrom(dirtyLineIndex - 1);
     }
     
     public int getLineCount() {
@@ -347,6 +331,7 @@ public class TerminalModel {
         for (int i = 0; i < height; i++) {
             getTextLine(firstLineToClear + i).clear();
         }
+        lineIsDirty(firstLineToClear + 1);
         view.repaint();
     }
     
@@ -363,7 +348,7 @@ public class TerminalModel {
         return cursorPosition;
     }
     
-    public void processActions(TerminalAction[] actions) {
+    public void processActions(Collection<TerminalAction> actions) {
         firstLineChanged = Integer.MAX_VALUE;
         boolean wereAtBottom = view.isAtBottom();
         boolean needsScroll = false;
@@ -432,6 +417,7 @@ public class TerminalModel {
             linesChangedFrom(index);
             cursorPosition = new Location(index, cursorPosition.getCharOffset());
         }
+        textLines.spillIfNecessary(getFirstDisplayLine());
         checkInvariant();
     }
     
@@ -753,6 +739,13 @@ public class TerminalModel {
         checkInvariant();
     }
     
+    /**
+     * Releases the disk space used for the scroll buffer. Invoked when the terminal is closed.
+     */
+    public void dispose() {
+        textLines.dispose();
+    }
+    
     public void setWindowTitle(String newWindowTitle) {
         JTerminalPane terminalPane = (JTerminalPane) SwingUtilities.getAncestorOfClass(JTerminalPane.class, view);
         terminalPane.setTerminalName(newWindowTitle);
@@ -1,5 +1,6 @@
 package terminator.model;
 
+import java.io.*;
 import java.util.*;
 import terminator.Palettes;
 
@@ -22,7 +23,8 @@ public class TextLine {
     // The default background, used beyond the last character of the line.
     private Palettes.Ink background;
     // The index in characters into the containing buffer of the first character of this line.
-    private int lineStartIndex;
+    // A long, because a terminal that's been running long enough can have written more than 2^31 characters.
+    private long lineStartIndex;
     
     // The characters on this line.
     // An immutable String may seem like an odd choice, but we've tried StringBuilder too.
@@ -31,36 +33,168 @@ public class TextLine {
     // In terms of code, there's nothing in it; the StringBuilder delete and insert methods are arguably more readable, but that only affects a handful of lines.
     // All in all, then, String is actually the best choice in our current environment.
     // (If we switched rendering over to AttributedCharacterIterator or something else that didn't require a String, that might change the balance.)
+    // Strings are also compact: a line of ASCII costs one byte per character.
     private String text;
     
-    // The styles to be applied to the characters on this line.
-    // styles == null => all characters use the default style.
-    // Otherwise, styles.length == text.length(), and the style information for text.charAt(i) is styles[i] (never null).
-    private Style[] styles;
+    // 'text' with the tabs turned into spaces, as returned by getString.
+    // This is the same String as 'text' unless the line contains tabs, and null when it needs recomputing.
+    private String displayText;
+    
+    // The styles to be applied to the characters on this line, run-length encoded.
+    // styleRuns == null => all characters use the default style.
+    // Otherwise, run i covers the characters from styleRuns[2*i - 2] (or 0) up to (but not including) styleRuns[2*i], and has the style with run id styleRuns[2*i + 1] (see runIdFor).
+    // The runs cover the whole text, there's at least one, and adjacent runs always have different styles.
+    // Since a line is typically a handful of runs, this is much smaller than a Style reference per character.
+    private int[] styleRuns;
+    
+    // The styles used by this line that Style couldn't intern, which have negative run ids.
+    // Normally null.
+    private Style[] uninternedStyles;
+    
+    // Incremented whenever the text, styles, or background change, so TerminalView can tell whether the pixels it has for this line are still good.
+    private int modificationCount;
     
     public TextLine(Palettes.Ink bg) {
         background = bg;
         clear();
     }
     
+    /**
+     * Adds any of this line's styles not already in 'styleIds' to both 'styleIds' and 'styleTable', so that writeTo can refer to styles by their index in 'styleTable'.
+     */
+    void collectStyles(Map<Style, Integer> styleIds, List<Style> styleTable) {
+        if (styleRuns == null) {
+            return;
+        }
+        for (int i = 1; i < styleRuns.length; i += 2) {
+            Style style = styleForRunId(styleRuns[i]);
+            if (styleIds.containsKey(style) == false) {
+                styleIds.put(style, styleTable.size());
+                styleTable.add(style);
+            }
+        }
+    }
+    
+    /**
+     * Writes this line for ScrollbackBuffer, with its styles as runs of indexes into a table built by collectStyles.
+     */
+    void writeTo(DataOutputStream out, Map<Style, Integer> styleIds) throws IOException {
+        Palettes.writeInk(out, background);
+        out.writeLong(lineStartIndex);
+        // Not writeUTF, which is limited to 64KiB.
+        out.writeInt(text.length());
+        out.writeChars(text);
+        if (styleRuns == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(styleRuns.length / 2);
+        for (int i = 0; i < styleRuns.length; i += 2) {
+            out.writeInt(styleRuns[i]);
+            out.writeInt(styleIds.get(styleForRunId(styleRuns[i + 1])));
+        }
+    }
+    
+    static TextLine readFrom(DataInputStream in, Style[] styleTable) throws IOException {
+        TextLine line = new TextLine(Palettes.readInk(in));
+        line.lineStartIndex = in.readLong();
+        final char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = in.readChar();
+        }
+        line.setText(new String(chars));
+        final int runCount = in.readInt();
+        if (runCount > 0) {
+            line.styleRuns = new int[runCount * 2];
+            for (int i = 0; i < line.styleRuns.length; i += 2) {
+                line.styleRuns[i] = in.readInt();
+                line.styleRuns[i + 1] = line.runIdFor(styleTable[in.readInt()]);
+            }
+        }
+        return line;
+    }
+    
     public Palettes.Ink getBackground() {
         return background == null ? Palettes.getBackgroundInk() : background;
     }
     
     public void setBackground(Palettes.Ink bg) {
         background = bg;
+        ++modificationCount;
     }
     
-    public int getLineStartIndex() {
+    public long getLineStartIndex() {
         return lineStartIndex;
     }
     
-    public void setLineStartIndex(int lineStartIndex) {
+    public void setLineStartIndex(long lineStartIndex) {
         this.lineStartIndex = lineStartIndex;
     }
     
     public Style getStyleAt(int index) {
-        return (styles == null) ? Style.getDefaultStyle() : styles[index];
+        return (styleRuns == null) ? Style.getDefaultStyle() : styleForRunId(styleRuns[findRun(index) + 1]);
+    }
+    
+    /**
+     * Returns the id to use in styleRuns for 'style': its id if it's interned, or the complement of its index in uninternedStyles (which we add it to if necessary) if not.
+     */
+    private int runIdFor(Style style) {
+        if (style.isInterned()) {
+            return style.getId();
+        }
+        final int count = (uninternedStyles == null) ? 0 : uninternedStyles.length;
+        for (int i = 0; i < count; ++i) {
+            if (uninternedStyles[i].equals(style)) {
+                return ~i;
+            }
+        }
+        uninternedStyles = (uninternedStyles == null) ? new Style[1] : Arrays.copyOf(uninternedStyles, count + 1);
+        uninternedStyles[count] = style;
+        return ~count;
+    }
+    
+    private Style styleForRunId(int runId) {
+        return (runId >= 0) ? Style.forId(runId) : uninternedStyles[~runId];
+    }
+    
+    /**
+     * Removes the styles no run uses any more from uninternedStyles, so that a line that's repeatedly redrawn in ever-changing colors doesn't accumulate them.
+     */
+    private void discardUnusedUninternedStyles() {
+        if (uninternedStyles == null) {
+            return;
+        }
+        final int[] newIndexes = new int[uninternedStyles.length];
+        Arrays.fill(newIndexes, -1);
+        final ArrayList<Style> usedStyles = new ArrayList<>();
+        for (int i = 1; styleRuns != null && i < styleRuns.length; i += 2) {
+            if (styleRuns[i] < 0) {
+                final int oldIndex = ~styleRuns[i];
+                if (newIndexes[oldIndex] == -1) {
+                    newIndexes[oldIndex] = usedStyles.size();
+                    usedStyles.add(uninternedStyles[oldIndex]);
+                }
+                styleRuns[i] = ~newIndexes[oldIndex];
+            }
+        }
+        uninternedStyles = usedStyles.isEmpty() ? null : usedStyles.toArray(new Style[usedStyles.size()]);
+    }
+    
+    /**
+     * Returns the index in styleRuns of the run containing the character at 'index'.
+     */
+    private int findRun(int index) {
+        int low = 0;
+        int high = styleRuns.length / 2 - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (styleRuns[2 * mid] <= index) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return 2 * low;
     }
     
     /**
@@ -79,16 +213,10 @@ public class TextLine {
             throw new AssertionError("start=" + start + " end=" + end + " length()=" + length());
         }
         // If we have no styling, only caller can affect styling of a run.
-        if (styles == null) {
+        if (styleRuns == null) {
             return end;
         }
-        Style toMatch = styles[start];
-        for (int i = start + 1; i < end; i++) {
-            if (!toMatch.equals(styles[i])) {
-                return i;
-            }
-        }
-        return end;
+        return Math.min(styleRuns[findRun(start)], end);
     }
     
     /**
@@ -97,12 +225,23 @@ public class TextLine {
      * This isn't called toString because you need to come here and think about whether you want this method or getTabbedString instead.
      */
     public String getString() {
-        return text.replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+        if (displayText == null) {
+            // String.replace returns the same String if there's nothing to replace, so this only costs us anything if there are tabs.
+            displayText = text.replace(TAB_START, ' ').replace(TAB_CONTINUE, ' ');
+        }
+        return displayText;
     }
     
     public String getSubstring(int beginIndex, int endIndex) {
         return getString().substring(beginIndex, endIndex);
     }
+    
+    /**
+     * Copies the characters from 'beginIndex' up to 'endIndex' of getString into 'dst', without allocating anything.
+     */
+    public void getChars(int beginIndex, int endIndex, char[] dst) {
+        getString().getChars(beginIndex, endIndex, dst, 0);
+    }
 
     /** Returns the text, with all the tabs put back in for use with clipboard stuff. */
     public String getTabbedString(int start, int end) {
@@ -159,8 +298,23 @@ public class TextLine {
     }
     
     public void clear() {
-        text = "";
-        styles = null;
+        setText("");
+        styleRuns = null;
+        uninternedStyles = null;
+    }
+    
+    private void setText(String newText) {
+        text = newText;
+        displayText = null;
+        ++modificationCount;
+    }
+    
+    /**
+     * Returns a count that changes whenever anything that affects how this line looks changes.
+     * (Our styles only ever change along with our text.)
+     */
+    public int getModificationCount() {
+        return modificationCount;
     }
     
     public void killText(int startIndex, int endIndex) {
@@ -168,8 +322,9 @@ public class TextLine {
             return;
         }
         endIndex = Math.min(endIndex, text.length());
-        text = text.substring(0, startIndex) + text.substring(endIndex);
-        removeStyleData(startIndex, endIndex);
+        final int oldLength = text.length();
+        setText(text.substring(0, startIndex) + text.substring(endIndex));
+        replaceStyleData(oldLength, startIndex, endIndex - startIndex, 0, Style.getDefaultStyle());
     }
     
     public void insertTabAt(int offset, int tabLength, Style style) {
@@ -186,19 +341,21 @@ public class TextLine {
     /** Inserts text at the given position, moving anything already there further to the right. */
     public void insertTextAt(int offset, String newText, Style style) {
         ensureOffsetIsOK(offset);
-        text = text.substring(0, offset) + newText + text.substring(offset);
-        insertStyleData(offset, newText.length(), style);
+        final int oldLength = text.length();
+        setText(text.substring(0, offset) + newText + text.substring(offset));
+        replaceStyleData(oldLength, offset, 0, newText.length(), style);
     }
     
     /** Writes text at the given position, overwriting anything underneath. */
     public void writeTextAt(int offset, String newText, Style style) {
         ensureOffsetIsOK(offset);
+        final int oldLength = text.length();
         if (offset + newText.length() < text.length()) {
-            text = text.substring(0, offset) + newText + text.substring(offset + newText.length());
+            setText(text.substring(0, offset) + newText + text.substring(offset + newText.length()));
         } else {
-            text = text.substring(0, offset) + newText;
+            setText(text.substring(0, offset) + newText);
         }
-        overwriteStyleData(offset, newText.length(), style);
+        replaceStyleData(oldLength, offset, Math.min(newText.length(), oldLength - offset), newText.length(), style);
     }
     
     private void ensureOffsetIsOK(int offset) {
@@ -214,54 +371,60 @@ public class TextLine {
         char[] pad = new char[count];
         Arrays.fill(pad, ' ');
         int oldTextLength = text.length();
-        text += new String(pad);
+        setText(text + new String(pad));
         // Even an empty line can have a background color; make sure we use it.
-        insertStyleData(oldTextLength, count, Style.makeStyle(null, background, 0));
+        replaceStyleData(oldTextLength, oldTextLength, 0, count, Style.makeStyle(null, background, 0));
     }
     
-    private void overwriteStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
+    /**
+     * Updates the style runs for a change to the text, where 'removeCount' characters at 'offset' (of 'oldLength') were replaced by 'insertCount' characters in 'style'.
+     * This allocates a new array for the runs, but we only get here when the text has changed, and that's allocated a new String anyway.
+     */
+    private void replaceStyleData(int oldLength, int offset, int removeCount, int insertCount, Style style) {
+        if (styleRuns == null && (style == Style.getDefaultStyle() || insertCount == 0)) {
             return;
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, oldStyleData.length);
-        }
-        Arrays.fill(styles, offset, offset + count, value);
-    }
-    
-    private void insertStyleData(int offset, int count, Style value) {
-        if (styles == null && value.equals(Style.getDefaultStyle())) {
-            return;
+        final int styleId = runIdFor(style);
+        final int[] oldRuns = (styleRuns != null) ? styleRuns : new int[] { oldLength, Style.getDefaultStyle().getId() };
+        // There can be at most two more runs than before: one for the new text, and one from splitting a run around it.
+        final int[] newRuns = new int[oldRuns.length + 4];
+        int newLength = 0;
+        // The runs before the change.
+        for (int i = 0, runStart = 0; i < oldRuns.length && runStart < offset; runStart = oldRuns[i], i += 2) {
+            newLength = appendRun(newRuns, newLength, Math.min(oldRuns[i], offset), oldRuns[i + 1]);
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        if (oldStyleData != null) {
-            System.arraycopy(oldStyleData, 0, styles, 0, offset);
-            System.arraycopy(oldStyleData, offset, styles, offset + count, oldStyleData.length - offset);
+        // The new text.
+        newLength = appendRun(newRuns, newLength, offset + insertCount, styleId);
+        // The runs after the change, moved along to make room for the new text.
+        final int delta = insertCount - removeCount;
+        for (int i = 0; i < oldRuns.length; i += 2) {
+            if (oldRuns[i] > offset + removeCount) {
+                newLength = appendRun(newRuns, newLength, oldRuns[i] + delta, oldRuns[i + 1]);
+            }
         }
-        Arrays.fill(styles, offset, offset + count, value);
-    }
-    
-    private void removeStyleData(int startIndex, int endIndex) {
-        if (styles == null) {
-            return;
+        if (newLength == 0 || (newLength == 2 && newRuns[1] == Style.getDefaultStyle().getId())) {
+            styleRuns = null;
+        } else {
+            styleRuns = Arrays.copyOf(newRuns, newLength);
         }
-        Style[] oldStyleData = maybeResizeStyleData();
-        // insert and overwrite can get here when oldStyleData is null, but remove can't.
-        System.arraycopy(oldStyleData, 0, styles, 0, startIndex);
-        System.arraycopy(oldStyleData, endIndex, styles, startIndex, oldStyleData.length - endIndex);
+        discardUnusedUninternedStyles();
     }
     
     /**
-     * Ensures that the "styles" array is the right size for the current "text".
-     * You should only call this if you know that the line requires non-default styling.
+     * Appends a run ending at 'runEnd' to 'runs' (of which 'length' elements are used), merging it with the previous run if it has the same style, and ignoring it if it's empty.
+     * Returns the new number of elements used.
      */
-    private Style[] maybeResizeStyleData() {
-        Style[] oldStyleData = styles;
-        if (styles == null || styles.length != text.length()) {
-            styles = new Style[text.length()];
-            Arrays.fill(styles, 0, styles.length, Style.getDefaultStyle());
+    private static int appendRun(int[] runs, int length, int runEnd, int styleId) {
+        final int runStart = (length == 0) ? 0 : runs[length - 2];
+        if (runEnd <= runStart) {
+            return length;
+        }
+        if (length > 0 && runs[length - 1] == styleId) {
+            runs[length - 2] = runEnd;
+            return length;
         }
-        return oldStyleData;
+        runs[length] = runEnd;
+        runs[length + 1] = styleId;
+        return length + 2;
     }
 }
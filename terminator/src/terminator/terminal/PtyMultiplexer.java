@@ -0,0 +1,161 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.jessies.os.*;
+
+/**
+ * Reads the output of many terminals' processes with one thread waiting for output and a small pool of threads processing it.
+ * 
+ * Otherwise, each TerminalControl has its own reader thread, which spends almost all its time blocked in read(2).
+ * With dozens of tabs, that's dozens of parked threads.
+ * Here, one thread waits in poll(2) on all the ptys at once.
+ * When a pty has output, the poll thread stops watching it and hands its TerminalControl to the pool, which reads and processes what's available, and then hands it back.
+ * So each terminal's output is still read and processed by one thread at a time, in order, and a busy terminal can't hold up the poll thread.
+ * A pool thread never waits for the EDT to catch up with a terminal's output: instead, that terminal isn't handed back until it has, so a flood of output in one terminal can't tie up the pool and starve the others.
+ * 
+ * A pty that's hung up (or gone wrong) with no output left is dropped, and its TerminalControl told there's no more input, without another read.
+ * 
+ * If poll(2) itself keeps failing, we wait longer and longer between attempts, rather than spinning and filling the log.
+ * 
+ * The poll thread also watches a pipe, which we write to to wake it up when it has a pty to add.
+ */
+final class PtyMultiplexer {
+    private static PtyMultiplexer instance;
+    
+    private final ExecutorService readerPool;
+    
+    // wakeUpPipe[0] is the read end, which the poll thread watches, and wakeUpPipe[1] is the write end.
+    private final int[] wakeUpPipe = new int[2];
+    // We only write to the pipe if it's empty, so it can never fill up and block the writer.
+    private final AtomicBoolean wakeUpIsPending = new AtomicBoolean(false);
+    private static final byte[] WAKE_UP_BYTE = new byte[1];
+    
+    private static final long MIN_POLL_RETRY_DELAY_MS = 10;
+    private static final long MAX_POLL_RETRY_DELAY_MS = 5000;
+    
+    // Terminals that have been read and should be watched again.
+    private final ConcurrentLinkedQueue<TerminalControl> newlyWatched = new ConcurrentLinkedQueue<>();
+    
+    static synchronized PtyMultiplexer getInstance() throws IOException {
+        if (instance == null) {
+            instance = new PtyMultiplexer();
+        }
+        return instance;
+    }
+    
+    private PtyMultiplexer() throws IOException {
+        int rc = Posix.pipe(wakeUpPipe);
+        if (rc < 0) {
+            throw new IOException("pipe(2) failed: " + Errno.toString(-rc));
+        }
+        // Processing output is mostly CPU-bound, so there's no point having more threads than CPUs.
+        // Reading is the only thing that waits, and poll(2) has told us it won't.
+        this.readerPool = ThreadUtilities.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), "Pty Reader");
+        Thread pollThread = new Thread(() -> {
+            pollLoop();
+        }, "Pty Poller");
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+    
+    /**
+     * Starts (or resumes) watching 'control's pty for output.
+     * When there's output, control.readAvailableInput will be invoked on one of the pool's threads.
+     * If that returns false, we stop watching, until someone calls this again.
+     */
+    void watch(TerminalControl control) {
+        newlyWatched.add(control);
+        if (wakeUpIsPending.compareAndSet(false, true)) {
+            int rc;
+            do {
+                rc = Posix.write(wakeUpPipe[1], WAKE_UP_BYTE, 0, 1);
+            } while (rc == -Errno.EINTR);
+            if (rc < 0) {
+                Log.warn("Couldn't wake up pty poller: " + Errno.toString(-rc));
+            }
+        }
+    }
+    
+    private void pollLoop() {
+        // Only accessed on the poll thread.
+        ArrayList<TerminalControl> watched = new ArrayList<>();
+        int[] fds = new int[0];
+        int[] events = new int[0];
+        int[] revents = new int[0];
+        byte[] wakeUpBytes = new byte[16];
+        int consecutiveFailureCount = 0;
+        while (true) {
+            for (TerminalControl control; (control = newlyWatched.poll()) != null; ) {
+                watched.add(control);
+            }
+            
+            // The wake-up pipe goes first, followed by the ptys in the same order as 'watched'.
+            final int fdCount = watched.size() + 1;
+            if (fds.length < fdCount) {
+                final int newLength = Math.max(fdCount, fds.length * 2);
+                fds = new int[newLength];
+                events = new int[newLength];
+                revents = new int[newLength];
+            }
+            fds[0] = wakeUpPipe[0];
+            events[0] = Posix.POLLIN;
+            for (int i = 1; i < fdCount; ++i) {
+                fds[i] = watched.get(i - 1).getPtyFd();
+                events[i] = Posix.POLLIN;
+            }
+            
+            final int readyCount = Posix.poll(fds, events, revents, fdCount, -1);
+            if (readyCount == -Errno.EINTR) {
+                continue;
+            }
+            if (readyCount < 0) {
+                // poll(2) reports problems with individual fds in 'revents', so this is something like running out of memory.
+                // That may not clear up soon, so back off exponentially, and only log the first failure of each run and then every time the number doubles.
+                ++consecutiveFailureCount;
+                if (Integer.bitCount(consecutiveFailureCount) == 1) {
+                    Log.warn("poll(2) failed: " + Errno.toString(-readyCount) + " (" + StringUtilities.pluralize(consecutiveFailureCount, "consecutive failure", "consecutive failures") + ")");
+                }
+                final long delayMs = Math.min(MIN_POLL_RETRY_DELAY_MS << Math.min(consecutiveFailureCount - 1, 20), MAX_POLL_RETRY_DELAY_MS);
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException ex) {
+                    Log.warn("Interrupted while waiting to retry poll(2)", ex);
+                    return;
+                }
+                continue;
+            }
+            consecutiveFailureCount = 0;
+            
+            if (revents[0] != 0) {
+                // Empty the pipe before we clear the flag, so the next wake-up writes to the pipe again.
+                // Anything added to newlyWatched before the flag is cleared is picked up at the top of the loop.
+                Posix.read(wakeUpPipe[0], wakeUpBytes, 0, wakeUpBytes.length);
+                wakeUpIsPending.set(false);
+            }
+            
+            // Hand the ready ptys to the pool, and stop watching them until they're handed back.
+            // A hang-up often comes with the process' last output, so we only treat it as the end once there's nothing left to read.
+            // Reading then would just fail with EIO (or EBADF, for POLLNVAL), which isn't worth a stack trace in the log.
+            int stillWatchedCount = 0;
+            for (int i = 1; i < fdCount; ++i) {
+                final TerminalControl control = watched.get(i - 1);
+                if ((revents[i] & Posix.POLLIN) != 0) {
+                    readerPool.execute(() -> {
+                        if (control.readAvailableInput()) {
+                            watch(control);
+                        }
+                    });
+                } else if ((revents[i] & (Posix.POLLERR | Posix.POLLHUP | Posix.POLLNVAL)) != 0) {
+                    control.handleEndOfInput();
+                } else {
+                    watched.set(stillWatchedCount++, control);
+                }
+            }
+            watched.subList(stillWatchedCount, watched.size()).clear();
+        }
+    }
+}
@@ -3,6 +3,8 @@ package terminator.terminal;
 import e.util.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
@@ -21,11 +23,19 @@ public class TerminalControl {
     public static final String CHARSET_NAME = "UTF-8";
     
     // This should be around your system's pipe size.
-    // Too much larger and you'll waste time copying unused char[].
+    // Too much larger and you'll waste cache on buffer that's never used.
     // Too much smaller and you'll waste time making excessive system calls reading just part of what's available.
     // FIXME: add a JNI call to return PIPE_BUF? (It's not strictly required to be the value we're looking for, but it probably is.)
     private static final int INPUT_BUFFER_SIZE = 8192;
     
+    // We apply pending actions to the model at most this often, so a flood of output costs one model update and repaint per frame, not one per read.
+    private static final long FRAME_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(16);
+    
+    // If the EDT falls this far behind, the reader thread waits for it to catch up.
+    private static final int MAX_PENDING_ACTIONS = 65536;
+    
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 10;
+    
     // We use "new String" here because we're going to use reference equality later to recognize Terminator-supplied defaults.
     private static final String TERMINATOR_DEFAULT_SHELL = new String(System.getenv("SHELL"));
     
@@ -42,11 +52,17 @@ public class TerminalControl {
     private boolean processIsRunning;
     private boolean processHasBeenDestroyed = false;
     
-    private InputStreamReader in;
+    private InputStream in;
     private OutputStream out;
     
+    // The reader thread reads bytes straight into inputBytes, and decodes them into inputChars.
+    // Both buffers are reused for every read, and inputBytes keeps any incomplete multi-byte character until the next read.
+    private CharsetDecoder decoder;
+    private final ByteBuffer inputBytes = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+    private final CharBuffer inputChars = CharBuffer.allocate(INPUT_BUFFER_SIZE);
+    
     private ExecutorService writerExecutor;
-    private Thread readerThread;
+    private boolean readingHasStarted = false;
     
     private int characterSet;
     private char[] g = new char[4];
@@ -55,14 +71,29 @@ public class TerminalControl {
     
     private TerminalLogWriter terminalLogWriter;
     
-    private StringBuilder lineBuffer = new StringBuilder();
+    private final StringBuilder lineBuffer = new StringBuilder();
     
-    private EscapeParser escapeParser;
+    private final EscapeParser escapeParser = new EscapeParser();
     
-    // Buffer of TerminalActions to perform.
+    // Buffer of TerminalActions to perform, accumulated while processing a single read.
     private ArrayList<TerminalAction> terminalActions = new ArrayList<>();
-    // Semaphore to prevent us from overrunning the EDT.
-    private Semaphore flowControl = new Semaphore(30);
+    
+    // The actions from all reads since the EDT last applied them to the model.
+    // The reader thread appends to pendingActions, and once per frame the EDT swaps it with the empty drainingActions.
+    // All three fields are guarded by pendingActionsLock.
+    private final Object pendingActionsLock = new Object();
+    private ArrayList<TerminalAction> pendingActions = new ArrayList<>();
+    private ArrayList<TerminalAction> drainingActions = new ArrayList<>();
+    private boolean frameIsScheduled = false;
+    // Set when a PtyMultiplexer pool thread stopped reading because the EDT had fallen behind, so the next frame should hand us back to the multiplexer.
+    private boolean watchWhenDrained = false;
+    
+    // Whether our output is read by the PtyMultiplexer rather than a reader thread of our own.
+    private boolean isMultiplexed = false;
+    
+    // Only accessed on the EDT.
+    private long lastFrameNs = 0;
+    private javax.swing.Timer frameTimer;
     
     public TerminalControl(JTerminalPane pane, TerminalModel model) {
         reset();
@@ -93,9 +124,11 @@ public class TerminalControl {
         this.ptyProcess = new PtyProcess(executable, argv, workingDirectory);
         this.processIsRunning = true;
         Log.warn("Created " + ptyProcess + " and logging to " + terminalLogWriter.getInfo());
-        this.in = new InputStreamReader(ptyProcess.getInputStream(), CHARSET_NAME);
+        this.in = ptyProcess.getInputStream();
+        this.decoder = Charset.forName(CHARSET_NAME).newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
         this.out = ptyProcess.getOutputStream();
-        writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"));
+        // Most terminals are idle most of the time, so we let the writer thread go until there's more typing.
+        writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"), WRITER_KEEP_ALIVE_SECONDS);
     }
     
     public static ArrayList<String> getDefaultShell() {
@@ -120,7 +153,7 @@ public class TerminalControl {
      * invoked when all the user interface stuff is set up.
      */
     public void start() {
-        if (readerThread != null) {
+        if (readingHasStarted) {
             // Detaching a tab causes start to be invoked again, but we shouldn't do anything.
             return;
         }
@@ -130,7 +163,19 @@ public class TerminalControl {
             return;
         }
         
-        readerThread = startThread("Reader", new ReaderRunnable());
+        readingHasStarted = true;
+        if (Terminator.getPreferences().getBoolean(TerminatorPreferences.MULTIPLEX_PTY_INPUT)) {
+            try {
+                // Set before we're watched, so the multiplexer's threads see it.
+                isMultiplexed = true;
+                PtyMultiplexer.getInstance().watch(this);
+                return;
+            } catch (Throwable th) {
+                isMultiplexed = false;
+                Log.warn("Couldn't use shared pty reader for " + ptyProcess + "; falling back to a reader thread", th);
+            }
+        }
+        startThread("Reader", new ReaderRunnable());
     }
     
     private Thread startThread(String name, Runnable runnable) {
@@ -147,19 +192,8 @@ public class TerminalControl {
     private class ReaderRunnable implements Runnable {
         public void run() {
             try {
-                while (true) {
-                    char[] chars = new char[INPUT_BUFFER_SIZE];
-                    int readCount = in.read(chars, 0, chars.length);
-                    if (readCount == -1) {
-                        Log.warn("read returned -1 from " + ptyProcess);
-                        return; // This isn't going to fix itself!
-                    }
-                    
-                    try {
-                        processBuffer(chars, readCount);
-                    } catch (Throwable th) {
-                        Log.warn("Problem processing output from " + ptyProcess, th);
-                    }
+                while (readInput()) {
+                    // readInput does all the work.
                 }
             } catch (Throwable th) {
                 Log.warn("Problem reading output from " + ptyProcess, th);
@@ -171,6 +205,81 @@ public class TerminalControl {
         }
     }
     
+    int getPtyFd() {
+        return ptyProcess.getFd();
+    }
+    
+    /**
+     * Reads and processes the output the PtyMultiplexer has told us is waiting.
+     * Returns true if the multiplexer should carry on watching for output.
+     * Returns false if there won't be any more, or if the EDT has fallen too far behind, in which case processPendingActions will ask the multiplexer to watch us again once it's caught up.
+     * Unlike our own reader thread, the multiplexer's threads are shared, so they mustn't wait for the EDT.
+     */
+    boolean readAvailableInput() {
+        try {
+            if (readInput()) {
+                synchronized (pendingActionsLock) {
+                    if (pendingActions.size() < MAX_PENDING_ACTIONS) {
+                        return true;
+                    }
+                    watchWhenDrained = true;
+                    return false;
+                }
+            }
+        } catch (Throwable th) {
+            Log.warn("Problem reading output from " + ptyProcess, th);
+        }
+        handleEndOfInput();
+        return false;
+    }
+    
+    /**
+     * Invoked when the PtyMultiplexer stops watching us for good, either because a read found the end of file or because poll(2) reported a hang-up or error with nothing left to read.
+     */
+    void handleEndOfInput() {
+        // Waiting for the process could take a while, and we shouldn't hold up the poll thread or the other terminals sharing the multiplexer's threads.
+        startThread("Reaper", () -> {
+            handleProcessTermination();
+        });
+    }
+    
+    /**
+     * Reads whatever output there is (waiting if there isn't any yet), and processes it.
+     * Returns false at end of file.
+     */
+    private boolean readInput() throws IOException {
+        int readCount = in.read(inputBytes.array(), inputBytes.position(), inputBytes.remaining());
+        if (readCount <= 0) {
+            // A zero-byte read means end of file, just as much as -1 does.
+            // Either way, this isn't going to fix itself!
+            Log.warn("read returned " + readCount + " from " + ptyProcess);
+            return false;
+        }
+        // The log gets the bytes exactly as the process wrote them.
+        terminalLogWriter.append(inputBytes.array(), inputBytes.position(), readCount);
+        inputBytes.position(inputBytes.position() + readCount);
+        
+        try {
+            decodeAndProcessInput();
+        } catch (Throwable th) {
+            Log.warn("Problem processing output from " + ptyProcess, th);
+        }
+        return true;
+    }
+    
+    private void decodeAndProcessInput() throws IOException {
+        inputBytes.flip();
+        CoderResult result;
+        do {
+            // A multi-byte character split across reads stays in inputBytes until we've read the rest of it.
+            result = decoder.decode(inputBytes, inputChars, false);
+            inputChars.flip();
+            processBuffer(inputChars.array(), inputChars.limit());
+            inputChars.clear();
+        } while (result.isOverflow());
+        inputBytes.compact();
+    }
+    
     public void invokeCharacterSet(int index) {
         this.characterSet = index;
     }
@@ -234,7 +343,7 @@ public class TerminalControl {
     private void handleProcessTermination() {
         processIsRunning = false;
 
-        // The readerThread will have shut itself down by now.
+        // The reader will have shut itself down by now.
         // We need to handle the writer ExecutorService ourselves.
         if (writerExecutor != null) {
             writerExecutor.shutdownNow();
@@ -280,6 +389,8 @@ public class TerminalControl {
     
     public void announceConnectionLost(String message) {
         try {
+            final byte[] messageBytes = message.getBytes(CHARSET_NAME);
+            terminalLogWriter.append(messageBytes, 0, messageBytes.length);
             final char[] buffer = message.toCharArray();
             processBuffer(buffer, buffer.length);
             pane.getTerminalView().setCursorVisible(false);
@@ -299,21 +410,28 @@ public class TerminalControl {
                 return "TerminalAction[Size change to " + sizeInChars + "]";
             }
         };
-        model.processActions(new TerminalAction[] { sizeChangeAction });
+        model.processActions(Collections.singletonList(sizeChangeAction));
         // Notify the pty that the size has changed.
         ptyProcess.sendResizeNotification(sizeInChars, sizeInPixels);
     }
     
     private synchronized void processBuffer(char[] buffer, int size) throws IOException {
-        boolean sawNewline = false;
-        for (int i = 0; i < size; ++i) {
-            char ch = buffer[i];
-            if (ch == '\n') {
-                sawNewline = true;
+        int i = 0;
+        while (i < size) {
+            if (SHOW_ASCII_RENDITION == false && escapeParser.isActive() == false) {
+                // Plain text is by far the most common case, so we copy whole runs of it at once.
+                int runEnd = i;
+                while (runEnd < size && buffer[runEnd] >= ' ') {
+                    ++runEnd;
+                }
+                if (runEnd > i) {
+                    lineBuffer.append(buffer, i, runEnd - i);
+                    i = runEnd;
+                    continue;
+                }
             }
-            processChar(ch);
+            processChar(buffer[i++]);
         }
-        terminalLogWriter.append(buffer, size, sawNewline);
         flushLineBuffer();
         flushTerminalActions();
         fireChangeListeners();
@@ -324,27 +442,74 @@ public class TerminalControl {
             return;
         }
         
-        final TerminalAction[] actions = terminalActions.toArray(new TerminalAction[terminalActions.size()]);
+        synchronized (pendingActionsLock) {
+            // Don't let a flood of output get arbitrarily far ahead of the EDT.
+            // (The EDT itself can't wait for itself, though, and a multiplexed terminal stops reading instead; see readAvailableInput.)
+            while (pendingActions.size() >= MAX_PENDING_ACTIONS && EventQueue.isDispatchThread() == false && isMultiplexed == false) {
+                try {
+                    pendingActionsLock.wait();
+                } catch (InterruptedException ex) {
+                    Log.warn("Interrupted while waiting to flush terminal actions for " + ptyProcess, ex);
+                    break;
+                }
+            }
+            pendingActions.addAll(terminalActions);
+            if (frameIsScheduled == false) {
+                frameIsScheduled = true;
+                GuiUtilities.invokeLater(() -> {
+                    processPendingActions();
+                });
+            }
+        }
         terminalActions.clear();
+    }
+    
+    /**
+     * Applies all the actions that have accumulated since the last frame to the model in one go.
+     * If the last frame was very recent, we wait until it's time for the next one, so more can accumulate.
+     * Because the model only updates the view at the end of processActions, this also collapses all the intermediate cursor movements and line changes into one repaint.
+     */
+    private void processPendingActions() {
+        final long nsUntilNextFrame = lastFrameNs + FRAME_INTERVAL_NS - System.nanoTime();
+        if (nsUntilNextFrame > 0) {
+            if (frameTimer == null) {
+                frameTimer = new javax.swing.Timer(0, (e) -> {
+                    processPendingActions();
+                });
+                frameTimer.setRepeats(false);
+            }
+            frameTimer.setInitialDelay((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(nsUntilNextFrame)));
+            frameTimer.restart();
+            return;
+        }
         
-        boolean didAcquire = false;
+        final ArrayList<TerminalAction> actions;
+        final boolean shouldWatch;
+        synchronized (pendingActionsLock) {
+            actions = pendingActions;
+            pendingActions = drainingActions;
+            drainingActions = actions;
+            frameIsScheduled = false;
+            shouldWatch = watchWhenDrained;
+            watchWhenDrained = false;
+            pendingActionsLock.notifyAll();
+        }
+        if (shouldWatch) {
+            try {
+                PtyMultiplexer.getInstance().watch(this);
+            } catch (IOException ex) {
+                // We can only get here if the multiplexer already exists, so this can't happen.
+                Log.warn("Couldn't resume reading output from " + ptyProcess, ex);
+            }
+        }
+        lastFrameNs = System.nanoTime();
         try {
-            flowControl.acquire();
-            didAcquire = true;
-            GuiUtilities.invokeLater(() -> {
-                try {
-                    model.processActions(actions);
-                } catch (Throwable th) {
-                    Log.warn("Couldn't process terminal actions for " + ptyProcess, th);
-                } finally {
-                    flowControl.release();
-                }
-            });
+            model.processActions(actions);
         } catch (Throwable th) {
-            Log.warn("Couldn't flush terminal actions for " + ptyProcess, th);
-            if (didAcquire) {
-                flowControl.release();
-            }
+            Log.warn("Couldn't process terminal actions for " + ptyProcess, th);
+        } finally {
+            // The reader thread won't see this list again until after the next swap.
+            actions.clear();
         }
     }
     
@@ -368,18 +533,19 @@ public class TerminalControl {
         
         if (ch == Ascii.ESC) {
             flushLineBuffer();
-            // If the old escape sequence is interrupted; we start a new one.
-            if (escapeParser != null) {
+            if (escapeParser.isInOperatingSystemCommand()) {
+                // This should be the ESC of an ST (ESC \), which terminates an OSC as an alternative to BEL.
+                processEscape();
+            } else if (escapeParser.isActive()) {
+                // If the old escape sequence is interrupted; we start a new one.
                 Log.warn("Escape parser discarded with string \"" + escapeParser + "\"");
             }
-            escapeParser = new EscapeParser();
+            escapeParser.start();
             return;
         }
-        if (escapeParser != null && countsTowardsEscapeSequence(ch)) {
-            escapeParser.addChar(ch);
-            if (escapeParser.isComplete()) {
+        if (escapeParser.isActive() && countsTowardsEscapeSequence(ch)) {
+            if (escapeParser.addChar(ch)) {
                 processEscape();
-                escapeParser = null;
             }
         } else if (ch == Ascii.LF || ch == Ascii.CR || ch == Ascii.BS || ch == Ascii.HT || ch == Ascii.VT) {
             flushLineBuffer();
@@ -439,7 +605,7 @@ public class TerminalControl {
         }
         
         final String line = lineBuffer.toString();
-        lineBuffer = new StringBuilder();
+        lineBuffer.setLength(0);
         
         doStep();
         
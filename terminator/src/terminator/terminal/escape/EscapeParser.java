@@ -6,6 +6,14 @@ import terminator.terminal.*;
 
 /**
 
+Recognizes escape sequences, one character at a time.
+TerminalControl starts us when it sees ESC, and gives us each following character until we say the sequence is complete.
+It then asks us for the corresponding TerminalAction.
+
+This is a table-driven state machine in the style of Paul Williams' parser for DEC's ANSI-compatible terminals (https://vt100.net/emu/dec_ansi_parser), though we only have the states we need.
+For each state and character, the table gives us the next state and what to do with the character.
+TerminalControl reuses a single parser for every sequence, and numeric parameters are accumulated as their digits arrive, so nothing is allocated until we make the TerminalAction.
+
 Stuff we're unsure about:
 G - process graphics.
 
@@ -13,115 +21,180 @@ G - process graphics.
 */
 
 public class EscapeParser {
-    private boolean isComplete = false;
-    private String sequence = "";
-
-    private SequenceRecognizer seqRecognizer;
+    /**
+     * The value of an omitted numeric parameter, such as the first parameter of "ESC [ ; 5 H".
+     */
+    public static final int OMITTED = -1;
+    
+    // xterm ignores parameters after the 30th; we ignore them after the 32nd.
+    private static final int MAX_PARAMETER_COUNT = 32;
+    // Larger values are clamped, so that junk can't overflow an int.
+    private static final int MAX_PARAMETER_VALUE = 65535;
+    
+    private static final String SINGLE_CHAR_SEQUENCES = "6789=>DEHMZcno";
     
-    private static final HashMap<Character, SequenceRecognizer> SEQ_RECOGNIZERS = new HashMap<>();
+    // The states. IDLE means we're not in an escape sequence.
+    private static final int IDLE = 0;
+    // We've seen ESC, and nothing else.
+    private static final int ESCAPE = 1;
+    // We've seen ESC and the first of a two-character sequence, such as ESC ( B.
+    private static final int TWO_CHAR = 2;
+    // We've seen ESC [, and are waiting for the final character.
+    private static final int CSI = 3;
+    // We've seen ESC ], and are reading the OSC number.
+    private static final int OSC_NUMBER = 4;
+    // We've seen ESC ] and a number and ';', and are reading the OSC string.
+    private static final int OSC_STRING = 5;
+    private static final int STATE_COUNT = 6;
+    
+    // The actions. Every action appends the character to the sequence.
+    private static final int COLLECT = 0;
+    private static final int PARAMETER_DIGIT = 1;
+    private static final int PARAMETER_SEPARATOR = 2;
+    // The sequence is complete.
+    private static final int DISPATCH = 3;
+    
+    // Characters from 128 up all behave the same, so they share the last column.
+    private static final int COLUMN_COUNT = 129;
+    
+    // Indexed by state * COLUMN_COUNT + column, each entry is the next state in the high nybble and the action in the low nybble.
+    private static final byte[] TRANSITIONS = new byte[STATE_COUNT * COLUMN_COUNT];
     static {
-        addSequenceRecognizers("6789=>DEHMZcno", new SingleCharSequenceRecognizer());
-        addSequenceRecognizers("#()*+$@", new TwoCharSequenceRecognizer());
-        addSequenceRecognizers("[", new CSISequenceRecognizer());
-        addSequenceRecognizers("]", new XTermSequenceRecognizer());
+        setTransitions(IDLE, 0, COLUMN_COUNT - 1, DISPATCH, IDLE);
+        
+        setTransitions(ESCAPE, 0, COLUMN_COUNT - 1, DISPATCH, IDLE);
+        setTransitions(ESCAPE, "#()*+$@", COLLECT, TWO_CHAR);
+        setTransitions(ESCAPE, "[", COLLECT, CSI);
+        setTransitions(ESCAPE, "]", COLLECT, OSC_NUMBER);
+        
+        setTransitions(TWO_CHAR, 0, COLUMN_COUNT - 1, DISPATCH, IDLE);
+        
+        // A CSI sequence ends with a character from '@' onwards, or with a control character.
+        // Anything else in between that isn't part of a parameter is a private marker (such as '?') or an intermediate (such as ' ').
+        setTransitions(CSI, 0, COLUMN_COUNT - 1, DISPATCH, IDLE);
+        setTransitions(CSI, ' ', '?', COLLECT, CSI);
+        setTransitions(CSI, '0', '9', PARAMETER_DIGIT, CSI);
+        // We treat ':' sub-parameter separators, as in "ESC [ 38:5:196 m", like ';'.
+        setTransitions(CSI, ";:", PARAMETER_SEPARATOR, CSI);
+        
+        // An OSC sequence is a number, optionally followed by ';' and a string terminated by BEL.
+        // TerminalControl also completes the sequence if it sees the ESC of an ST.
+        setTransitions(OSC_NUMBER, 0, COLUMN_COUNT - 1, DISPATCH, IDLE);
+        setTransitions(OSC_NUMBER, '0', '9', PARAMETER_DIGIT, OSC_NUMBER);
+        setTransitions(OSC_NUMBER, ";", COLLECT, OSC_STRING);
+        setTransitions(OSC_STRING, 0, COLUMN_COUNT - 1, COLLECT, OSC_STRING);
+        setTransitions(OSC_STRING, 0, ' ' - 1, DISPATCH, IDLE);
     }
-    private static void addSequenceRecognizers(String chars, SequenceRecognizer recognizer) {
-        for (int i = 0; i < chars.length(); i++) {
-            SEQ_RECOGNIZERS.put(chars.charAt(i), recognizer);
+    
+    private static void setTransitions(int state, int firstColumn, int lastColumn, int action, int nextState) {
+        for (int column = firstColumn; column <= lastColumn; ++column) {
+            TRANSITIONS[state * COLUMN_COUNT + column] = (byte) ((nextState << 4) | action);
         }
     }
     
-    public void addChar(char ch) {
-        sequence += ch;
-        if (sequence.length() == 1) {
-            seqRecognizer = SEQ_RECOGNIZERS.get(ch);
-            if (seqRecognizer == null) {
-                Log.warn("No SequenceRecognizer for ESC '" + ch + "'");
-            }
+    private static void setTransitions(int state, String chars, int action, int nextState) {
+        for (int i = 0; i < chars.length(); ++i) {
+            setTransitions(state, chars.charAt(i), chars.charAt(i), action, nextState);
         }
-        isComplete = (seqRecognizer == null) ? true : seqRecognizer.isAtEnd(sequence);
     }
     
-    public boolean isComplete() {
-        return isComplete;
-    }
+    private int state = IDLE;
+    private final StringBuilder sequence = new StringBuilder();
+    private final int[] parameters = new int[MAX_PARAMETER_COUNT];
+    private int parameterCount = 0;
     
-    public TerminalAction getAction(TerminalControl terminalControl) {
-        //Log.warn("Getting action for ESC sequence \"" + StringUtilities.escapeForJava(sequence) + "\"");
-        return (seqRecognizer == null) ? null : seqRecognizer.getTerminalAction(terminalControl, sequence);
+    /**
+     * Starts a new sequence, discarding any incomplete one. Invoked when TerminalControl sees ESC.
+     */
+    public void start() {
+        state = ESCAPE;
+        sequence.setLength(0);
+        parameterCount = 0;
     }
     
-    @Override public String toString() {
-        return sequence;
+    /**
+     * Tests whether we're part-way through a sequence.
+     */
+    public boolean isActive() {
+        return (state != IDLE);
     }
     
-    private interface SequenceRecognizer {
-        public boolean isAtEnd(String sequence);
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence);
+    /**
+     * Tests whether we're part-way through an OSC sequence, which an ESC should complete rather than interrupt.
+     */
+    public boolean isInOperatingSystemCommand() {
+        return (state == OSC_NUMBER || state == OSC_STRING);
     }
     
-    private static class SingleCharSequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            return (sequence.length() == 1);
-        }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new SingleCharEscapeAction(terminalControl, sequence.charAt(0));
+    /**
+     * Adds the next character of the sequence, returning true if that completes it.
+     */
+    public boolean addChar(char ch) {
+        final int transition = TRANSITIONS[state * COLUMN_COUNT + Math.min(ch, COLUMN_COUNT - 1)];
+        final int action = transition & 0xf;
+        state = transition >> 4;
+        if (action == PARAMETER_DIGIT) {
+            addParameterDigit(ch - '0');
+        } else if (action == PARAMETER_SEPARATOR) {
+            addParameterSeparator();
         }
+        sequence.append(ch);
+        return (action == DISPATCH);
     }
     
-    private static class TwoCharSequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            return (sequence.length() == 2);
-        }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new TwoCharEscapeAction(terminalControl, sequence);
+    private void addParameterDigit(int digit) {
+        if (parameterCount == 0) {
+            parameters[parameterCount++] = OMITTED;
         }
+        final int index = parameterCount - 1;
+        final int value = (parameters[index] == OMITTED) ? 0 : parameters[index];
+        parameters[index] = Math.min(value * 10 + digit, MAX_PARAMETER_VALUE);
     }
     
-    private static class CSISequenceRecognizer implements SequenceRecognizer {
-        public boolean isAtEnd(String sequence) {
-            // We don't need to check for sequence.length() == 0, since SequenceRecognizers are always
-            // created after the first char has been read.
-            if (sequence.length() == 1) {
-                return false;
-            }
-            char endChar = sequence.charAt(sequence.length() - 1);
-            return (endChar < ' ' || endChar >= '@');
+    private void addParameterSeparator() {
+        if (parameterCount == 0) {
+            parameters[parameterCount++] = OMITTED;
         }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new CSIEscapeAction(terminalControl, sequence);
+        if (parameterCount < MAX_PARAMETER_COUNT) {
+            parameters[parameterCount++] = OMITTED;
         }
     }
     
-    private static class XTermSequenceRecognizer implements SequenceRecognizer {
-        private boolean isInInitialNumber = true;
-
-        public boolean isAtEnd(String sequence) {
-            // We don't need to check for sequence.length() == 0, since SequenceRecognizers are always
-            // created after the first char has been read.
-            if (sequence.length() == 1) {
-                return false;
-            }
-            char endChar = sequence.charAt(sequence.length() - 1);
-            if (endChar < ' ') {
-                return true;
-            }
-            if (isInInitialNumber) {
-                if (endChar == ';') {
-                    isInInitialNumber = false;
-                    return false;
-                } else if (Character.isDigit(endChar) == false) {
-                    return true;
-                }
-            }
-            return (endChar < ' ');
+    /**
+     * Returns the action for the sequence just completed, or null if there's nothing to do.
+     */
+    public TerminalAction getAction(TerminalControl terminalControl) {
+        //Log.warn("Getting action for ESC sequence \"" + StringUtilities.escapeForJava(sequence.toString()) + "\"");
+        if (sequence.length() == 0) {
+            return null;
         }
-        
-        public TerminalAction getTerminalAction(TerminalControl terminalControl, String sequence) {
-            return new XTermEscapeAction(terminalControl, sequence);
+        final char introducer = sequence.charAt(0);
+        switch (introducer) {
+        case '[':
+            return new CSIEscapeAction(terminalControl, sequence.toString(), Arrays.copyOf(parameters, parameterCount));
+        case ']':
+            return new XTermEscapeAction(terminalControl, sequence.toString());
+        case '#':
+        case '(':
+        case ')':
+        case '*':
+        case '+':
+        case '$':
+        case '@':
+            return new TwoCharEscapeAction(terminalControl, sequence.toString());
+        case '\\':
+            // ST, which ends an OSC string (see TerminalControl).
+            return null;
+        default:
+            if (SINGLE_CHAR_SEQUENCES.indexOf(introducer) != -1) {
+                return new SingleCharEscapeAction(terminalControl, introducer);
+            }
+            Log.warn("Unrecognized escape sequence ESC '" + introducer + "'");
+            return null;
         }
     }
+    
+    @Override public String toString() {
+        return sequence.toString();
+    }
 }
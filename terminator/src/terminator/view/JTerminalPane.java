@@ -746,6 +746,7 @@ public class JTerminalPane extends JPanel {
     public void doCloseAction() {
         destroyProcess();
         control.getTerminalLogWriter().close();
+        view.getModel().dispose();
         host.closeTerminalPane(this);
     }
     
@@ -0,0 +1,139 @@
+package terminator.view;
+
+import e.util.*;
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+import terminator.model.*;
+
+/**
+ * Keeps the pixels of the rows a TerminalView most recently painted, so it only has to draw the text of rows that have changed.
+ * 
+ * There's one image, with a slot for each row that fits in the visible area (plus one for a partially-visible row).
+ * Line i always lives in slot i % slotCount, so when the view scrolls, the lines that are still visible keep their pixels and just get copied to their new place.
+ * Each slot remembers what was drawn there: which TextLine (and its modification count), and which find matches and URL were highlighted on it.
+ * A full-screen program like vim or htop typically changes a handful of rows per frame, and the rest are copied.
+ * 
+ * The selection and the cursor aren't cached, because they're drawn on top of the rows.
+ */
+final class RowImageCache {
+    // Things that affect every row; if any of these change, we start again.
+    // Only the vertical position of 'area' can change without affecting the rows, because each slot's row is drawn relative to its own top.
+    private Rectangle area = new Rectangle();
+    private int rowHeight;
+    private int scale;
+    private Font font;
+    private Color background;
+    private boolean antiAlias;
+    
+    private BufferedImage image;
+    private Graphics2D imageGraphics;
+    private int slotCount;
+    
+    // What's in each slot.
+    private int[] lineIndexes = new int[0];
+    private TextLine[] textLines = new TextLine[0];
+    private int[] modificationCounts = new int[0];
+    private Range[][] findMatches = new Range[0][];
+    private Range[] urls = new Range[0];
+    
+    /**
+     * Throws away all the cached rows, because something that affects how every row looks (such as the palette) has changed.
+     */
+    void invalidate() {
+        Arrays.fill(textLines, null);
+    }
+    
+    /**
+     * Gets ready to paint rows of height 'rowHeight' in the view's visible area, 'visibleRect'.
+     * Returns false if we can't cache rows for this Graphics, in which case the caller should draw directly.
+     */
+    boolean prepare(Graphics2D g, Rectangle visibleRect, int rowHeight, Font font, Color background, boolean antiAlias) {
+        // We can only copy pixels exactly if each of our pixels is a whole number of device pixels.
+        AffineTransform transform = g.getTransform();
+        final double scaleX = transform.getScaleX();
+        if (scaleX != transform.getScaleY() || scaleX != Math.rint(scaleX) || scaleX < 1 || transform.getShearX() != 0 || transform.getShearY() != 0) {
+            return false;
+        }
+        if (visibleRect.isEmpty()) {
+            return false;
+        }
+        final int newScale = (int) scaleX;
+        final int newSlotCount = (visibleRect.height + rowHeight - 1) / rowHeight + 1;
+        if (image == null || visibleRect.x != area.x || visibleRect.width != area.width || rowHeight != this.rowHeight || newScale != scale || newSlotCount != slotCount) {
+            GraphicsConfiguration configuration = g.getDeviceConfiguration();
+            if (configuration == null) {
+                return false;
+            }
+            dispose();
+            this.area = new Rectangle(visibleRect.x, 0, visibleRect.width, visibleRect.height);
+            this.rowHeight = rowHeight;
+            this.scale = newScale;
+            this.slotCount = newSlotCount;
+            this.image = configuration.createCompatibleImage(visibleRect.width * scale, slotCount * rowHeight * scale, Transparency.OPAQUE);
+            this.imageGraphics = image.createGraphics();
+            this.lineIndexes = new int[slotCount];
+            this.textLines = new TextLine[slotCount];
+            this.modificationCounts = new int[slotCount];
+            this.findMatches = new Range[slotCount][];
+            this.urls = new Range[slotCount];
+        }
+        if (font.equals(this.font) == false || background.equals(this.background) == false || antiAlias != this.antiAlias) {
+            this.font = font;
+            this.background = background;
+            this.antiAlias = antiAlias;
+            GuiUtilities.setTextAntiAliasing(imageGraphics, antiAlias);
+            invalidate();
+        }
+        return true;
+    }
+    
+    /**
+     * Returns a Graphics for drawing line 'lineIndex', whose top is at 'rowTop' in the view, in view coordinates.
+     * The row has already been cleared to the background color.
+     * Returns null if the row we have is still good, and needn't be drawn again.
+     */
+    Graphics2D startRow(int lineIndex, int rowTop, TextLine textLine, Range[] lineFindMatches, Range url) {
+        final int slot = lineIndex % slotCount;
+        if (lineIndexes[slot] == lineIndex && textLines[slot] == textLine && modificationCounts[slot] == textLine.getModificationCount() && findMatches[slot] == lineFindMatches && urls[slot] == url) {
+            return null;
+        }
+        lineIndexes[slot] = lineIndex;
+        textLines[slot] = textLine;
+        modificationCounts[slot] = textLine.getModificationCount();
+        findMatches[slot] = lineFindMatches;
+        urls[slot] = url;
+        
+        imageGraphics.setTransform(new AffineTransform());
+        imageGraphics.scale(scale, scale);
+        imageGraphics.translate(-area.x, slot * rowHeight - rowTop);
+        // Nothing we draw for this row should spill into the neighboring slots.
+        imageGraphics.setClip(area.x, rowTop, area.width, rowHeight);
+        imageGraphics.setFont(font);
+        imageGraphics.setColor(background);
+        imageGraphics.fillRect(area.x, rowTop, area.width, rowHeight);
+        return imageGraphics;
+    }
+    
+    /**
+     * Copies line 'lineIndex' from its slot to 'rowTop' in the view.
+     */
+    void drawRow(Graphics2D g, int lineIndex, int rowTop) {
+        final int sourceTop = (lineIndex % slotCount) * rowHeight * scale;
+        g.drawImage(image, area.x, rowTop, area.x + area.width, rowTop + rowHeight, 0, sourceTop, area.width * scale, sourceTop + rowHeight * scale, null);
+    }
+    
+    /**
+     * Releases the image. We'll make a new one if we're asked to paint again.
+     */
+    void dispose() {
+        if (imageGraphics != null) {
+            imageGraphics.dispose();
+        }
+        imageGraphics = null;
+        image = null;
+        slotCount = 0;
+        font = null;
+    }
+}
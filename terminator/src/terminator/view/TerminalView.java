@@ -40,19 +40,24 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private BirdView birdView;
     private FindBirdsEye birdsEye;
     
-    // Size may be smaller than model's lines. Elements may be null, but should not be empty.
-    // FIXME: this is a mistake:
-    // 1. Lines with matches/URLs are very rare, so we shouldn't waste space on lines with no matches.
-    // 2. We should use List<Range> rather than Range[].
-    // 3. Using null instead of an empty array or list is gross (but any fix for #1 probably fixes this).
-    private final ArrayList<Range[]> urlMatches = new ArrayList<>();
-    private final ArrayList<Range[]> findMatches = new ArrayList<>();
+    // The find matches on each line, keyed by line index.
+    // Lines with matches are rare, so we only have entries for those, and the arrays are never empty.
+    // Being sorted lets findNext and findPrevious go straight to the next line with a match.
+    // (We don't keep URLs here; UrlHighlighter finds them when the mouse is over their line.)
+    private final TreeMap<Integer, Range[]> findMatches = new TreeMap<>();
+    // The total number of Ranges in findMatches.
+    private int findMatchCount = 0;
     
     // If non-null, the row of this is urlMouseLocation.getLineIndex()
     private Range urlUnderMouse = null;
     // Init line index to 0 so we never need to check if it's a valid line index, but don't have a valid char offset.
     private Location urlMouseLocation = new Location(0, -1);
     
+    // Reused by paintComponent for the characters of each run, so drawing a line doesn't allocate a String per run.
+    private char[] runChars = new char[256];
+    // The rows we've already drawn, so paintComponent only has to draw the ones that have changed.
+    private final RowImageCache rowCache = new RowImageCache();
+    
     // The following constants define how the 'output truncated' watermark is displayed.
     // Processes running in Terminator can output arbitrary text, and as we don't line-wrap,
     // this can cause the terminal window to get an unbounded width. Java does not correctly
@@ -203,7 +208,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         TerminatorPreferences preferences = Terminator.getPreferences();
         setFont(preferences.getFont(TerminatorPreferences.FONT));
         setBackground(preferences.getColor(TerminatorPreferences.BACKGROUND_COLOR));
+        // The palette and the default colors may have changed too.
+        rowCache.invalidate();
         sizeChanged();
+        repaint();
     }
     
     public BirdsEye getBirdsEye() {
@@ -581,45 +589,40 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         return new Dimension(width, height);
     }
     
-    public void setUrlMatches(int lineIndex, Range[] matches) {
-        resizeAndSet(urlMatches, lineIndex, matches);
-        if (lineIndex == urlMouseLocation.getLineIndex()) {
-            urlUnderMouse = getUrlForLocation(urlMouseLocation);
-        }
-    }
-    
     public void setFindMatches(int lineIndex, Range[] matches) {
-        resizeAndSet(findMatches, lineIndex, matches);
+        final Range[] oldMatches = findMatches.put(lineIndex, matches);
+        findMatchCount += matches.length - ((oldMatches != null) ? oldMatches.length : 0);
         birdView.addMatchingLine(lineIndex);
     }
     
-    private static <T> void resizeAndSet(ArrayList<T> list, int index, T element) {
-        if (list.size() <= index) {
-            list.ensureCapacity(index);
-            for (int i = list.size(); i <= index; ++i) {
-                list.add(null);
-            }
-        }
-        list.set(index, element);
+    /**
+     * Returns the number of find matches currently highlighted, however they were found.
+     */
+    public int getFindMatchCount() {
+        return findMatchCount;
     }
     
     public void removeFindMatches() {
         findMatches.clear();
+        findMatchCount = 0;
         birdView.clearMatchingLines();
         repaint();
     }
     
     private void redoHighlightsFrom(int firstLineIndex) {
         removeHighlightsFrom(firstLineIndex);
-        urlHighlighter.addHighlightsFrom(this, firstLineIndex);
+        if (urlMouseLocation.getLineIndex() >= firstLineIndex) {
+            // The line under the mouse may have changed, and its URLs with it.
+            urlUnderMouse = getUrlForLocation(urlMouseLocation);
+        }
         findHighlighter.addHighlightsFrom(this, firstLineIndex);
     }
     
     public void removeHighlightsFrom(int firstLineIndex) {
         if (firstLineIndex == 0) {
             urlUnderMouse = null;
-            urlMatches.clear();
             findMatches.clear();
+            findMatchCount = 0;
             birdView.clearMatchingLines();
             repaint();
             return;
@@ -627,14 +630,12 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         
         birdView.setValueIsAdjusting(true);
         try {
-            for (int i = urlMatches.size() - 1; i >= firstLineIndex; --i) {
-                urlMatches.remove(i);
-            }
-            // We use a backwards loop because going forwards results in N array copies if we're removing N lines.
-            for (int i = findMatches.size() - 1; i >= firstLineIndex; --i) {
-                findMatches.remove(i);
-                birdView.removeMatchingLine(i);
+            SortedMap<Integer, Range[]> removedFindMatches = findMatches.tailMap(firstLineIndex);
+            for (Map.Entry<Integer, Range[]> entry : removedFindMatches.entrySet()) {
+                birdView.removeMatchingLine(entry.getKey());
+                findMatchCount -= entry.getValue().length;
             }
+            removedFindMatches.clear();
             repaintFromLine(firstLineIndex);
         } finally {
             birdView.setValueIsAdjusting(false);
@@ -659,42 +660,35 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     /**
-     * Searches from startLine to endLine inclusive, incrementing the
-     * current line by 'direction', looking for a line with a find highlight.
-     * When one is found, we scroll there.
+     * Scrolls to the first match on the given line, if there is such a line.
      */
-    private void findAgain(int startLine, int endLine, int direction) {
-        if (direction != 1 && direction != -1) {
-            throw new IllegalArgumentException("Invalid direction: " + direction);
-        }
-        for (int i = startLine; i != endLine; i += direction) {
-            Range[] matches = matchesForLine(i);
-            if (matches != null) {
-                scrollTo(i, matches[0].getStart(), matches[0].getEnd());
-                birdsEye.setCurrentLineIndex(i);
-                // Highlight the new match in the bird view as well as in the text itself.
-                birdView.repaint();
-                return;
-            }
+    private void findAgain(Integer lineIndex) {
+        if (lineIndex == null) {
+            return;
         }
+        Range[] matches = findMatches.get(lineIndex);
+        scrollTo(lineIndex, matches[0].getStart(), matches[0].getEnd());
+        birdsEye.setCurrentLineIndex(lineIndex);
+        // Highlight the new match in the bird view as well as in the text itself.
+        birdView.repaint();
     }
     
     private Range[] matchesForLine(int i) {
-        return i >= findMatches.size() ? null : findMatches.get(i);
+        return findMatches.get(i);
     }
     
     /**
      * Scrolls the display down to the next highlight of the given class not currently on the display.
      */
     public void findNext() {
-        findAgain(getLastVisibleLine() + 1, getModel().getLineCount() + 1, 1);
+        findAgain(findMatches.ceilingKey(getLastVisibleLine() + 1));
     }
     
     /**
      * Scrolls the display up to the next highlight of the given class not currently on the display.
      */
     public void findPrevious() {
-        findAgain(getFirstVisibleLine() - 1, -1, -1);
+        findAgain(findMatches.floorKey(getFirstVisibleLine() - 1));
     }
     
     public JViewport getViewport() {
@@ -716,10 +710,10 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     private Range getUrlForLocation(Location location) {
         int line = location.getLineIndex();
         int offset = location.getCharOffset();
-        if (line >= urlMatches.size() || urlMatches.get(line) == null) {
+        if (line < 0 || line >= model.getLineCount()) {
             return null;
         }
-        for (Range r : urlMatches.get(line)) {
+        for (Range r : urlHighlighter.getUrls(model.getDisplayTextLine(line))) {
             // Optimization: URLs are in order.
             if (r.getStart() > offset) {
                 return null;
@@ -863,69 +857,50 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             final Location selectionEnd = selectionHighlighter.getEnd();
             final boolean hasSelection = selectionStart != null;
             
+            // Rows that haven't changed since we last painted them can be copied rather than drawn, unless we're near the watermark.
+            final boolean antiAlias = Terminator.getPreferences().getBoolean(TerminatorPreferences.ANTI_ALIAS);
+            final Rectangle visibleRect = getVisibleRect();
+            final boolean useRowCache = visibleRect.x + visibleRect.width <= TRUNCATION_WATERMARK_BEGIN_X && rowCache.prepare(g, visibleRect, charUnitSize.height, getFont(), getBackground(), antiAlias);
+            
+            // FIXME: this is likely to want some tuning; in particular, we might need to distinguish between light-on-dark and dark-on-light color schemes.
+            Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
+            selectionColor = new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128);
+            
             for (int i = firstTextLine; i <= lastTextLine; i++) {
-                boolean drawCursor = (shouldShowCursor() && i == cursorPosition.getLineIndex());
-                int x = insets.left;
                 int baseline = insets.top + charUnitSize.height * (i + 1) - metrics.getMaxDescent();
                 TextLine textLine = model.getDisplayTextLine(i);
                 final int length = textLine.length();
-                int urlStart = length;
-                int urlEnd = length;
-                if (urlUnderMouse != null && i == urlMouseLocation.getLineIndex()) {
-                    urlStart = urlUnderMouse.getStart();
-                    urlEnd = urlUnderMouse.getEnd();
-                }
+                Range url = (urlUnderMouse != null && i == urlMouseLocation.getLineIndex()) ? urlUnderMouse : null;
                 Range[] findResults = matchesForLine(i);
-                int findIndex = -1;
-                int findStart = 0, findEnd = -1;
-                for (int start = 0, end, done; start < length && x < maxX; start = done) {
-                    if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
-                        findStart = findResults[findIndex].getStart();
-                        findEnd = findResults[findIndex].getEnd();
-                    }
-                    end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
-                    done = textLine.getRunLimit(start, end);
-                    String text = textLine.getSubstring(start, done);
-                    Style style = textLine.getStyleAt(start);
-                    boolean isUrl = urlStart <= start && start < urlEnd;
-                    boolean isFind = findStart <= start && start < findEnd;
-                    x += paintStyledText(g, metrics, text, style, x, baseline, isUrl, isFind);
-                    if (drawCursor && cursorPosition.charOffsetInRange(start, done)) {
-                        paintCursor(g, textLine.getSubstring(cursorPosition.getCharOffset(), cursorPosition.getCharOffset() + 1), baseline);
-                        drawCursor = false;
+                if (useRowCache) {
+                    final int rowTop = insets.top + charUnitSize.height * i;
+                    Graphics2D rowGraphics = rowCache.startRow(i, rowTop, textLine, findResults, url);
+                    if (rowGraphics != null) {
+                        paintLine(rowGraphics, metrics, textLine, url, findResults, baseline, visibleRect.x + visibleRect.width, charUnitSize.height);
                     }
+                    rowCache.drawRow(g, i, rowTop);
+                } else {
+                    paintLine(g, metrics, textLine, url, findResults, baseline, maxX, charUnitSize.height);
                 }
-                Color lineBG = textLine.getBackground().get();
-                if (x < maxX && !getBackground().equals(lineBG)) {
-                    // Fill the rest of the line with line's default background
-                    g.setColor(lineBG);
-                    g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, charUnitSize.height);
-                }
-                if (drawCursor) {
+                if (shouldShowCursor() && i == cursorPosition.getLineIndex()) {
                     // A cursor at the end of the line is in a position past the end of the text.
-                    paintCursor(g, "", baseline);
+                    final int cursorOffset = cursorPosition.getCharOffset();
+                    paintCursor(g, (cursorOffset < length) ? textLine.getSubstring(cursorOffset, cursorOffset + 1) : "", baseline);
                 }
                 if (hasSelection && selectionStart.getLineIndex() <= i && i <= selectionEnd.getLineIndex()) {
                     boolean blockMode = selectionHighlighter.isBlockMode();
                     int start = getLineStart(blockMode, selectionStart, selectionEnd, i);
                     int end = getLineEnd(blockMode, selectionStart, selectionEnd, i);
                     boolean toEnd = blockMode == false && selectionEnd.getLineIndex() != i;
-                    String paddedLine = textLine.getString();
-                    if (end > length) {
-                        final int charactersOfPaddingRequired = end - length;
-                        // See getCharUnitSize for the 'W'.
-                        paddedLine += StringUtilities.nCopies(charactersOfPaddingRequired, 'W');
-                    }
-
-                    // FIXME: this is likely to want some tuning; in particular, we might need to distinguish between light-on-dark and dark-on-light color schemes.
-                    Color selectionColor = Terminator.getPreferences().getColor(TerminatorPreferences.SELECTION_COLOR);
-                    g.setColor(new Color(selectionColor.getRed(), selectionColor.getGreen(), selectionColor.getBlue(), 128));
-
-                    x = insets.left + (start == 0 ? 0 : metrics.stringWidth(paddedLine.substring(0, start)));
+                    
+                    g.setColor(selectionColor);
+                    
+                    int startX = widthOfPaddedLine(metrics, textLine, start);
+                    int x = insets.left + startX;
                     int y = baseline - metrics.getMaxAscent() - metrics.getLeading();
-                    int w = toEnd ? maxX - x : metrics.stringWidth(paddedLine.substring(start, end));
+                    int w = toEnd ? maxX - x : widthOfPaddedLine(metrics, textLine, end) - startX;
                     int h = charUnitSize.height;
-
+                    
                     g.fillRect(x, y, w, h);
                 }
             }
@@ -934,6 +909,52 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         }
     }
     
+    /**
+     * Paints the text of a line, and its background, up to 'maxX'.
+     */
+    private void paintLine(Graphics2D g, FontMetrics metrics, TextLine textLine, Range url, Range[] findResults, int baseline, int maxX, int height) {
+        int x = getInsets().left;
+        final int length = textLine.length();
+        final int urlStart = (url != null) ? url.getStart() : length;
+        final int urlEnd = (url != null) ? url.getEnd() : length;
+        int findIndex = -1;
+        int findStart = 0, findEnd = -1;
+        for (int start = 0, end, done; start < length && x < maxX; start = done) {
+            if (findResults != null && findEnd <= start && ++findIndex < findResults.length) {
+                findStart = findResults[findIndex].getStart();
+                findEnd = findResults[findIndex].getEnd();
+            }
+            end = getMinGT(start, findStart, findEnd, urlStart, urlEnd, length);
+            done = textLine.getRunLimit(start, end);
+            if (done - start > runChars.length) {
+                runChars = new char[Math.max(done - start, 2 * runChars.length)];
+            }
+            textLine.getChars(start, done, runChars);
+            Style style = textLine.getStyleAt(start);
+            boolean isUrl = urlStart <= start && start < urlEnd;
+            boolean isFind = findStart <= start && start < findEnd;
+            x += paintStyledText(g, metrics, runChars, done - start, style, x, baseline, isUrl, isFind);
+        }
+        Color lineBG = textLine.getBackground().get();
+        if (x < maxX && !getBackground().equals(lineBG)) {
+            // Fill the rest of the line with line's default background
+            g.setColor(lineBG);
+            g.fillRect(x, baseline - metrics.getMaxAscent() - metrics.getLeading(), maxX - x, height);
+        }
+    }
+    
+    /**
+     * Returns the width of the first 'count' characters of 'textLine', as if it were padded with 'W's (see getCharUnitSize) if it's shorter than that.
+     */
+    private int widthOfPaddedLine(FontMetrics metrics, TextLine textLine, int count) {
+        final int textCount = Math.min(count, textLine.length());
+        if (textCount > runChars.length) {
+            runChars = new char[Math.max(textCount, 2 * runChars.length)];
+        }
+        textLine.getChars(0, textCount, runChars);
+        return metrics.charsWidth(runChars, 0, textCount) + (count - textCount) * metrics.charWidth('W');
+    }
+    
     /**
      * Paints the cursor, which is either a solid block or an underline.
      * The cursor may actually be invisible because it's blinking and in
@@ -987,9 +1008,9 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
     }
     
     /**
-     * Paints the text. Returns how many pixels wide the text was.
+     * Paints the first 'length' characters of 'chars'. Returns how many pixels wide the text was.
      */
-    private int paintStyledText(Graphics2D g, FontMetrics metrics, String text, Style style, int x, int y, boolean url, boolean isFind) {
+    private int paintStyledText(Graphics2D g, FontMetrics metrics, char[] chars, int length, Style style, int x, int y, boolean url, boolean isFind) {
         Stopwatch.Timer timer = paintStyledTextStopwatch.start();
         try {
             Color foreground = isFind ? Color.BLACK : style.getForeground();
@@ -1006,7 +1027,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
                 foreground = background;
             }
             
-            int textWidth = metrics.stringWidth(text);
+            int textWidth = metrics.charsWidth(chars, 0, length);
             if (background.equals(getBackground()) == false) {
                 g.setColor(background);
                 int backgroundWidth = textWidth;
@@ -1037,7 +1058,7 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
             }
             
             g.setColor(foreground);
-            g.drawString(text, x, y);
+            g.drawChars(chars, 0, length, x, y);
             
             if (previousFont != null) g.setFont(previousFont);
             
@@ -1,22 +1,42 @@
 package terminator.view.highlight;
 
 import e.util.*;
-import java.util.concurrent.*;
 import java.util.regex.*;
 import java.util.ArrayList;
-import javax.swing.*;
 import terminator.model.*;
 import terminator.view.*;
 
 /**
  * Highlights the results of user-initiated finds.
+ * 
+ * Each terminal has its own FindHighlighter.
+ * A new find searches the whole buffer, from the newest line back, in slices on the EDT.
+ * Each slice runs for at most SLICE_NS before giving way to other events, so even a huge scroll buffer doesn't freeze the terminal, and we don't read the model on another thread while it's changing.
+ * Starting a new find (or cancelling this one) stops any find still in progress.
+ * Meanwhile, new output is searched as it arrives (see addHighlightsFrom), so the find never has to start again.
+ * The match count we report is the view's, so it includes matches in new output, and forgets matches in output that's been overwritten.
  */
 public class FindHighlighter {
-    private static final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Background Find");
+    private static final long SLICE_NS = 10 * 1000 * 1000;
     
     private Pattern pattern;
+    private Matcher matcher;
     private String regularExpression = "";
     
+    // The find in progress, if any, has yet to search the lines before this.
+    private int unsearchedLineCount = 0;
+    // The number of lines the find in progress started with, for reporting progress.
+    private int lineCountToSearch;
+    // Where to report the match count when new output changes it, or null if there's no current find.
+    private FindStatusDisplay findStatusDisplay;
+    // The match count we last reported, or -1 while the find is still in progress.
+    private int reportedMatchCount = -1;
+    // Incremented whenever we start or cancel a find, so that a slice of an old find knows to give up.
+    private int findGeneration = 0;
+    
+    // Reused for each line's matches.
+    private final ArrayList<Range> matches = new ArrayList<>();
+    
     public String getName() {
         return "Find Highlighter";
     }
@@ -28,7 +48,7 @@ public class FindHighlighter {
      * 
      * 'newRegularExpression' can be "" to cancel match highlighting.
      * 
-     * Status changes will be reported to 'findStatusDisplay' on the EDT.
+     * Status changes, including progress, will be reported to 'findStatusDisplay' on the EDT.
      */
     public void setPattern(final TerminalView view, String newRegularExpression, final FindStatusDisplay findStatusDisplay) {
         // Don't waste time re-finding all the current matches.
@@ -48,69 +68,103 @@ public class FindHighlighter {
         // Check that we can actually compile the new regular expression.
         try {
             this.pattern = PatternUtilities.smartCaseCompile(newRegularExpression);
+            this.matcher = pattern.matcher("");
             this.regularExpression = newRegularExpression;
         } catch (PatternSyntaxException ex) {
             findStatusDisplay.setStatus(ex.getDescription(), true);
             return;
         }
         
-        executorService.execute(new SwingWorker<Object, Object>() {
-            private int matchCount;
-            
-            @Override
-            protected Object doInBackground() {
-                matchCount = addHighlightsInternal(view, 0);
-                return null;
-            }
-            
-            @Override
-            protected void done() {
-                findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount, "match", "matches"), false);
-            }
-        });
+        unsearchedLineCount = lineCountToSearch = view.getModel().getLineCount();
+        this.findStatusDisplay = findStatusDisplay;
+        reportedMatchCount = -1;
+        searchSlice(view, findStatusDisplay, findGeneration);
     }
     
     public void forgetPattern(TerminalView view) {
+        ++findGeneration;
+        unsearchedLineCount = 0;
         view.removeFindMatches();
         this.pattern = null;
+        this.matcher = null;
         this.regularExpression = "";
+        this.findStatusDisplay = null;
     }
     
-    /** Request to add highlights to all lines of the view from the index given onwards. */
-    public void addHighlightsFrom(TerminalView view, int firstLineIndex) {
-        addHighlightsInternal(view, firstLineIndex);
+    /**
+     * Searches lines, newest first, until we run out of lines or time, and then arranges to carry on later if need be.
+     */
+    private void searchSlice(final TerminalView view, final FindStatusDisplay findStatusDisplay, final int generation) {
+        if (generation != findGeneration) {
+            // This find has been cancelled.
+            return;
+        }
+        final long deadline = System.nanoTime() + SLICE_NS;
+        view.getBirdView().setValueIsAdjusting(true);
+        try {
+            // The buffer may have been cleared since the last slice.
+            unsearchedLineCount = Math.min(unsearchedLineCount, view.getModel().getLineCount());
+            while (unsearchedLineCount > 0 && System.nanoTime() < deadline) {
+                searchLine(view, --unsearchedLineCount);
+            }
+        } finally {
+            view.getBirdView().setValueIsAdjusting(false);
+        }
+        if (unsearchedLineCount > 0) {
+            final int percentDone = (int) (100L * (lineCountToSearch - unsearchedLineCount) / lineCountToSearch);
+            findStatusDisplay.setStatus("Searching (" + percentDone + "%)", false);
+            GuiUtilities.invokeLater(() -> {
+                searchSlice(view, findStatusDisplay, generation);
+            });
+        } else {
+            reportMatchCount(view);
+        }
     }
-
+    
+    private void reportMatchCount(TerminalView view) {
+        final int matchCount = view.getFindMatchCount();
+        if (matchCount != reportedMatchCount) {
+            reportedMatchCount = matchCount;
+            findStatusDisplay.setStatus(StringUtilities.pluralize(matchCount, "match", "matches"), false);
+        }
+    }
+    
     /**
-     * Returns the number of highlights added.
+     * Request to add highlights to all lines of the view from the index given onwards.
+     * Lines the find in progress hasn't reached yet are left for it, and it reports the count when it's done.
+     * If the find has finished, we update the count ourselves.
      */
-    private int addHighlightsInternal(TerminalView view, int firstLineIndex) {
+    public void addHighlightsFrom(TerminalView view, int firstLineIndex) {
         if (pattern == null) {
-            return 0;
+            return;
         }
         view.getBirdView().setValueIsAdjusting(true);
         try {
-            // FIXME: this code is duplicated in UrlHighlighter.addHighlightsFrom.
-            TerminalModel model = view.getModel();
-            int count = 0;
-            // FIXME: this strange scoping avoids allocating an ArrayList for lines without matches, but there must be a cleaner way.
-            final ArrayList<Range> matches = new ArrayList<>();
-            for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
-                String text = model.getDisplayTextLine(i).getString();
-                Matcher matcher = pattern.matcher(text);
-                matches.clear();
-                while (matcher.find()) {
-                    matches.add(new Range(matcher.start(), matcher.end()));
-                    ++count;
-                }
-                if (!matches.isEmpty()) {
-                    // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                    view.setFindMatches(i, matches.toArray(new Range[matches.size()]));
-                }
+            for (int i = view.getModel().getLineCount() - 1; i >= Math.max(firstLineIndex, unsearchedLineCount); i--) {
+                searchLine(view, i);
             }
-            return count;
         } finally {
             view.getBirdView().setValueIsAdjusting(false);
         }
+        if (unsearchedLineCount == 0 && findStatusDisplay != null) {
+            reportMatchCount(view);
+        }
+    }
+    
+    /**
+     * Highlights the matches on the given line.
+     */
+    private void searchLine(TerminalView view, int lineIndex) {
+        String text = view.getModel().getDisplayTextLine(lineIndex).getString();
+        matcher.reset(text);
+        matches.clear();
+        while (matcher.find()) {
+            matches.add(new Range(matcher.start(), matcher.end()));
+        }
+        if (matches.isEmpty()) {
+            return;
+        }
+        // FIXME: the toArray is a mistake. We should use List<Range> instead.
+        view.setFindMatches(lineIndex, matches.toArray(new Range[matches.size()]));
     }
 }
@@ -5,39 +5,92 @@ import e.util.Range;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import terminator.Terminator;
 import terminator.TerminatorPreferences;
-import terminator.model.TerminalModel;
-import terminator.view.TerminalView;
+import terminator.model.TextLine;
 
 /**
  * This works in conjunction with the TerminalView mouse listener that tracks
  * and repaints highlights under the mouse.
+ * 
+ * The only URLs anyone ever sees are the ones under the mouse, so we only look for URLs in a line when the mouse is over it, rather than in all output as it arrives.
+ * We remember what we found for the lines we've looked at recently, until they change.
+ * Most lines contain neither "://" nor a ':' followed by a digit, and checking for those is much cheaper than running the regular expressions.
  */
 public class UrlHighlighter {
-    public void addHighlightsFrom(final TerminalView view, final int firstLineIndex) {
-        // FIXME: this code is duplicated in FindHighlighter.addHighlightsInternal.
-        addMatches(PatternUtilities.HYPERLINK_PATTERN, view, firstLineIndex);
-        // If the user has configured a script to handle error links, then include the errors regexp as 'URL's.
-        if (Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD) != "") {
-            addMatches(PatternUtilities.ERROR_PATTERN, view, firstLineIndex);
+    private static final Range[] NO_URLS = new Range[0];
+    
+    // Enough for the mouse to wander around the display and back.
+    private static final int CACHED_LINE_COUNT = 256;
+    
+    private static class CachedUrls {
+        private final int modificationCount;
+        private final Range[] urls;
+        
+        private CachedUrls(int modificationCount, Range[] urls) {
+            this.modificationCount = modificationCount;
+            this.urls = urls;
+        }
+    }
+    
+    // TextLine doesn't override equals, so lines are compared by identity.
+    private final LinkedHashMap<TextLine, CachedUrls> cache = new LinkedHashMap<TextLine, CachedUrls>(CACHED_LINE_COUNT, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<TextLine, CachedUrls> eldest) {
+            return size() > CACHED_LINE_COUNT;
         }
+    };
+    
+    private final Matcher hyperlinkMatcher = PatternUtilities.HYPERLINK_PATTERN.matcher("");
+    private final Matcher errorMatcher = PatternUtilities.ERROR_PATTERN.matcher("");
+    
+    /**
+     * Returns the URLs (and, if the user has configured a script to handle them, error links) in 'line', in order.
+     */
+    public Range[] getUrls(TextLine line) {
+        CachedUrls cachedUrls = cache.get(line);
+        if (cachedUrls == null || cachedUrls.modificationCount != line.getModificationCount()) {
+            cachedUrls = new CachedUrls(line.getModificationCount(), findUrls(line.getString()));
+            cache.put(line, cachedUrls);
+        }
+        return cachedUrls.urls;
     }
     
-    private void addMatches(Pattern pattern, final TerminalView view, final int firstLineIndex) {
-        final TerminalModel model = view.getModel();
+    private Range[] findUrls(String text) {
         ArrayList<Range> matches = new ArrayList<>();
-        for (int i = model.getLineCount() - 1; i >= firstLineIndex; i--) {
-            String text = model.getTextLine(i).getString();
-            Matcher matcher = pattern.matcher(text);
-            matches.clear();
-            while (matcher.find()) {
-                matches.add(new Range(matcher.start(), matcher.end()));
-            }
-            if (!matches.isEmpty()) {
-                // FIXME: the toArray is a mistake. We should use List<Range> instead.
-                view.setUrlMatches(i, matches.toArray(new Range[matches.size()]));
+        if (text.contains("://")) {
+            addMatches(hyperlinkMatcher, text, matches);
+        }
+        // If the user has configured a script to handle error links, then include the errors regexp as 'URL's.
+        if (mightContainErrorLink(text) && Terminator.getPreferences().getString(TerminatorPreferences.ERROR_LINK_CMD).isEmpty() == false) {
+            addMatches(errorMatcher, text, matches);
+        }
+        if (matches.isEmpty()) {
+            return NO_URLS;
+        }
+        // TerminalView relies on the URLs being in order.
+        matches.sort((lhs, rhs) -> Integer.compare(lhs.getStart(), rhs.getStart()));
+        return matches.toArray(new Range[matches.size()]);
+    }
+    
+    private static void addMatches(Matcher matcher, String text, ArrayList<Range> matches) {
+        matcher.reset(text);
+        while (matcher.find()) {
+            matches.add(new Range(matcher.start(), matcher.end()));
+        }
+    }
+    
+    /**
+     * Tests whether 'text' contains a ':' followed by a digit, which every match of PatternUtilities.ERROR_PATTERN does.
+     */
+    private static boolean mightContainErrorLink(String text) {
+        for (int i = text.indexOf(':'); i != -1 && i + 1 < text.length(); i = text.indexOf(':', i + 1)) {
+            final char next = text.charAt(i + 1);
+            if (next >= '0' && next <= '9') {
+                return true;
             }
         }
+        return false;
     }
 }